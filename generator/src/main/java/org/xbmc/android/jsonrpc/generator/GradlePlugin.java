@@ -21,6 +21,7 @@ public class GradlePlugin implements Plugin<Project> {
 	public static class GeneratorPluginExtension {
 		public File outputDir;
 		public File srcDir;
+		public boolean primitiveFields;
 	}
 
 }
\ No newline at end of file
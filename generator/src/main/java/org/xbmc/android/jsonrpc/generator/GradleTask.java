@@ -13,6 +13,6 @@ public class GradleTask extends DefaultTask {
 	@TaskAction
 	public void javaTask() {
 		final GeneratorPluginExtension config =(GeneratorPluginExtension)getProject().getExtensions().getByName("generator");
-		Introspect.generate(config.srcDir, config.outputDir);
+		Introspect.generate(config.srcDir, config.outputDir, config.primitiveFields);
 	}
 }
\ No newline at end of file
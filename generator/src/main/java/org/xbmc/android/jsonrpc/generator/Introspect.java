@@ -37,6 +37,7 @@ import org.xbmc.android.jsonrpc.generator.introspect.jackson.TypeDeserializer;
 import org.xbmc.android.jsonrpc.generator.introspect.wrapper.AdditionalPropertiesWrapper;
 import org.xbmc.android.jsonrpc.generator.introspect.wrapper.ExtendsWrapper;
 import org.xbmc.android.jsonrpc.generator.introspect.wrapper.TypeWrapper;
+import org.xbmc.android.jsonrpc.generator.model.JavaAttribute;
 import org.xbmc.android.jsonrpc.generator.model.Namespace;
 import org.xbmc.android.jsonrpc.generator.view.NamespaceView;
 import org.xbmc.android.jsonrpc.generator.view.module.IClassModule;
@@ -45,9 +46,14 @@ import org.xbmc.android.jsonrpc.generator.view.module.parentmodule.ClassParentMo
 import org.xbmc.android.jsonrpc.generator.view.module.parentmodule.MethodParentModule;
 
 import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 /**
@@ -93,7 +99,19 @@ public class Introspect {
 	}
 
 	public static void generate(File generatorFolder, File outputFolder) {
+		generate(generatorFolder, outputFolder, false);
+	}
+
+	/**
+	 * Generates the API.
+	 *
+	 * @param generatorFolder Folder of the generator, containing the schema
+	 * @param outputFolder Folder where the sources are written to
+	 * @param primitiveFields If set, native members of models are declared as primitives with a presence mask
+	 */
+	public static void generate(File generatorFolder, File outputFolder, boolean primitiveFields) {
 		final long started = System.currentTimeMillis();
+		JavaAttribute.setPrimitiveFields(primitiveFields);
 		//System.out.println("Generating API from " + generatorFolder.getAbsolutePath() + " to " + outputFolder.getAbsolutePath());
 
 		try {
@@ -105,6 +123,7 @@ public class Introspect {
 			final IClassModule[] typeClassModules = {
 					new MemberDeclarationClassModule(),
 					new JsonAccesClassModule(),
+					new JsonStreamClassModule(),
 					new ModelParcelableClassModule(),
 					new ConvenienceExtensionsClassModule()
 			};
@@ -149,8 +168,9 @@ public class Introspect {
 			}
 
 			// 1. render
+			final SortedMap<String, String> rendered = new TreeMap<String, String>();
 			for (Namespace ns : Namespace.getAll()) {
-				render(ns, outputFolder);
+				render(ns, outputFolder, rendered);
 			}
 
 			// 2. create version file
@@ -160,6 +180,7 @@ public class Introspect {
 			replaceInFile("%date%", XBMC_VERSION_DATE, versionFile);
 			replaceInFile("Branch.UNKNOWN", XBMC_VERSION_BRANCH, versionFile);
 			replaceInFile("Type.UNKNOWN", XBMC_VERSION_TYPE, versionFile);
+			replaceInFile("%schema%", getSchemaHash(rendered, primitiveFields), versionFile);
 
 			System.out.println("Generated JSON RPC API in " + (System.currentTimeMillis() - started) + "ms to " + outputFolder.getAbsolutePath());
 
@@ -173,7 +194,7 @@ public class Introspect {
 	}
 
 
-	private static void render(Namespace ns, File outputFolder) {
+	private static void render(Namespace ns, File outputFolder, Map<String, String> rendered) {
 
 		// do nothing if no classes or enums to render.
 		if (ns.isEmpty()) {
@@ -186,6 +207,33 @@ public class Introspect {
 		view.render(sb);
 		if (sb.length() > 0) {
 			writeFile(out, sb.toString());
+			rendered.put(ns.getPackageName() + "." + ns.getName(), sb.toString());
+		}
+	}
+
+	/**
+	 * Hashes the rendered classes, so the library can tell whether data
+	 * parcelled by another build still matches its model.
+	 *
+	 * @param rendered Rendered sources by class name
+	 * @param primitiveFields Whether native members are primitives
+	 * @return First 16 hex digits of the SHA-1 hash
+	 */
+	private static String getSchemaHash(SortedMap<String, String> rendered, boolean primitiveFields) throws IOException {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(String.valueOf(primitiveFields).getBytes("UTF-8"));
+			for (Map.Entry<String, String> entry : rendered.entrySet()) {
+				digest.update(entry.getKey().getBytes("UTF-8"));
+				digest.update(entry.getValue().getBytes("UTF-8"));
+			}
+			final StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest()) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.substring(0, 16);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not available.", e);
 		}
 	}
 
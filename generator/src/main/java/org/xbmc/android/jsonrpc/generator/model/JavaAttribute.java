@@ -37,6 +37,9 @@ import java.util.List;
  */
 public class JavaAttribute {
 
+	// if set, optional native scalars are rendered as primitives
+	private static boolean primitiveFields = false;
+
 	// variable name
 	private final String name;
 
@@ -156,6 +159,30 @@ public class JavaAttribute {
 		return (type != null && (type.isEnumArray() || type.isTypeArray())) || (e != null && e.isArray());
 	}
 
+	/**
+	 * Returns true if the variable is a native integer, number or boolean
+	 * and primitive fields are enabled.
+	 * @see #setPrimitiveFields(boolean)
+	 */
+	public boolean isPrimitive() {
+		if (!primitiveFields || type == null || !type.isNative()) {
+			return false;
+		}
+		final String typeName = type.getName();
+		return typeName.equals("integer") || typeName.equals("number") || typeName.equals("boolean");
+	}
+
+	/**
+	 * Enables or disables primitive fields. If enabled, native integers,
+	 * numbers and booleans are declared as <tt>int</tt>, <tt>double</tt> and
+	 * <tt>boolean</tt> instead of their boxed types, and their presence is
+	 * kept in a bitmask.
+	 * @param enabled True to render primitive fields, false for boxed types
+	 */
+	public static void setPrimitiveFields(boolean enabled) {
+		primitiveFields = enabled;
+	}
+
 	/**
 	 * Returns true if the variable is a map ("additionalProperties").
 	 */
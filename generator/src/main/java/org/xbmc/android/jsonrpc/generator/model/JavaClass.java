@@ -854,6 +854,22 @@ public class JavaClass {
 		return members;
 	}
 
+	/**
+	 * Returns true if a member of this class is of the given enum type. Other
+	 * than {@link #getMembers()}, the members are not sorted, so this can be
+	 * called while iterating over them.
+	 * @param e Enum
+	 * @return True if referenced by a member, false otherwise.
+	 */
+	public boolean hasEnumMember(JavaEnum e) {
+		for (JavaAttribute member : members) {
+			if (member.isEnum() && member.getEnum() == e) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Returns all added inner types of this class.
 	 * @return All inner types
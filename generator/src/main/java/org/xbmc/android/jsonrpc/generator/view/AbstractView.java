@@ -20,6 +20,9 @@
  */
 package org.xbmc.android.jsonrpc.generator.view;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.xbmc.android.jsonrpc.generator.model.JavaAttribute;
 import org.xbmc.android.jsonrpc.generator.model.JavaClass;
 import org.xbmc.android.jsonrpc.generator.model.JavaEnum;
@@ -147,11 +150,53 @@ public abstract class AbstractView {
 	protected String getClassName(Namespace ns, JavaAttribute attr) {
 		if (!attr.isEnum()) {
 			return getClassName(ns, attr.getType());
+		} else if (isJavaEnum(attr.getEnum())) {
+			return getJavaEnumReference(ns, attr.getEnum());
 		} else {
 			return "String";
 		}
 	}
 
+	/**
+	 * Returns true if the enum is rendered as Java enum instead of an
+	 * interface with string constants.
+	 * <p/>
+	 * That's the case for string enums declared for a member of their outer
+	 * class. Global enums and enums of method parameters stay interfaces,
+	 * since they are passed as strings or string arrays.
+	 *
+	 * @param e Enum
+	 * @return True if Java enum, false otherwise.
+	 */
+	protected boolean isJavaEnum(JavaEnum e) {
+		return e.isString() && e.isInner() && !e.isArray() && !e.doesExtend() && e.getOuterType().hasEnumMember(e);
+	}
+
+	/**
+	 * Returns the expression of an enum member's string value, like
+	 * <tt>type.getValue()</tt> for Java enums or just <tt>type</tt> otherwise.
+	 *
+	 * @param member Enum member
+	 * @return Expression
+	 */
+	protected String getEnumValue(JavaAttribute member) {
+		if (isJavaEnum(member.getEnum())) {
+			return member.getName() + ".getValue()";
+		}
+		return member.getName();
+	}
+
+	/**
+	 * Returns the reference of a Java enum, like <tt>ListModel.ItemBase.Type</tt>.
+	 *
+	 * @param ns Namespace where the enum is being referenced to.
+	 * @param e Enum being referenced
+	 * @return Java reference depending on where it's referenced from.
+	 */
+	protected String getJavaEnumReference(Namespace ns, JavaEnum e) {
+		return getClassReference(ns, e.getOuterType()) + "." + getEnumName(e);
+	}
+
 	/**
 	 * Returns the Java native type based on the JSON type.
 	 *
@@ -294,6 +339,133 @@ public abstract class AbstractView {
 		return "get" + klass.getNamespace().getName() + getClassName(klass) + "List";
 	}
 
+	/**
+	 * Returns true if the member is declared as primitive in the given class.
+	 * Multi-type classes keep their boxed members, since the member that
+	 * isn't null defines the type.
+	 *
+	 * @param klass Class declaring the member
+	 * @param member Member
+	 * @return True if primitive, false otherwise.
+	 */
+	protected boolean isPrimitive(JavaClass klass, JavaAttribute member) {
+		return !klass.isMultiType() && member.isPrimitive();
+	}
+
+	/**
+	 * Returns all members of a class declared as primitives. The position
+	 * in the list is the member's bit in the presence mask.
+	 *
+	 * @param klass Class
+	 * @return Primitive members
+	 */
+	protected List<JavaAttribute> getPrimitiveMembers(JavaClass klass) {
+		final List<JavaAttribute> members = new ArrayList<JavaAttribute>();
+		for (JavaAttribute member : klass.getMembers()) {
+			if (isPrimitive(klass, member)) {
+				members.add(member);
+			}
+		}
+		return members;
+	}
+
+	/**
+	 * Returns the Java type of the presence mask, <tt>long</tt> for up to 64
+	 * primitive members and <tt>int[]</tt> otherwise.
+	 *
+	 * @param primitives Primitive members, see {@link #getPrimitiveMembers(JavaClass)}
+	 * @return Java type
+	 */
+	protected String getPresenceType(List<JavaAttribute> primitives) {
+		return isPresenceArray(primitives) ? "int[]" : "long";
+	}
+
+	/**
+	 * Returns true if the presence mask doesn't fit into a <tt>long</tt>.
+	 *
+	 * @param primitives Primitive members, see {@link #getPrimitiveMembers(JavaClass)}
+	 * @return True if mask is an <tt>int[]</tt>, false otherwise.
+	 */
+	protected boolean isPresenceArray(List<JavaAttribute> primitives) {
+		return primitives.size() > 64;
+	}
+
+	/**
+	 * Returns the expression testing a member's bit, like
+	 * <tt>(mPresence &amp; (1L &lt;&lt; 3)) != 0</tt>.
+	 *
+	 * @param primitives Primitive members, see {@link #getPrimitiveMembers(JavaClass)}
+	 * @param member Primitive member
+	 * @param mask Name of the mask
+	 * @return Boolean expression
+	 */
+	protected String getPresenceTest(List<JavaAttribute> primitives, JavaAttribute member, String mask) {
+		final int bit = primitives.indexOf(member);
+		if (isPresenceArray(primitives)) {
+			return "(" + mask + "[" + (bit >> 5) + "] & (1 << " + (bit & 31) + ")) != 0";
+		}
+		return "(" + mask + " & (1L << " + bit + ")) != 0";
+	}
+
+	/**
+	 * Returns the statement setting a member's bit, like
+	 * <tt>presence |= 1L &lt;&lt; 3;</tt>.
+	 *
+	 * @param primitives Primitive members, see {@link #getPrimitiveMembers(JavaClass)}
+	 * @param member Primitive member
+	 * @param mask Name of the mask
+	 * @return Statement
+	 */
+	protected String getPresenceSetter(List<JavaAttribute> primitives, JavaAttribute member, String mask) {
+		final int bit = primitives.indexOf(member);
+		if (isPresenceArray(primitives)) {
+			return mask + "[" + (bit >> 5) + "] |= 1 << " + (bit & 31) + ";";
+		}
+		return mask + " |= 1L << " + bit + ";";
+	}
+
+	/**
+	 * Returns the name of the presence accessor, like <tt>hasYear</tt>.
+	 *
+	 * @param member Primitive member
+	 * @return Method name
+	 */
+	protected String getPresenceAccessor(JavaAttribute member) {
+		return "has" + member.getName().substring(0, 1).toUpperCase() + member.getName().substring(1);
+	}
+
+	/**
+	 * Returns the primitive Java type of a native type.
+	 *
+	 * @param klass Native type
+	 * @return <tt>int</tt>, <tt>double</tt> or <tt>boolean</tt>
+	 */
+	protected String getPrimitiveType(JavaClass klass) {
+		final String typeName = klass.getName();
+		if (typeName.equals("integer")) {
+			return "int";
+		} else if (typeName.equals("number")) {
+			return "double";
+		} else if (typeName.equals("boolean")) {
+			return "boolean";
+		}
+		throw new IllegalArgumentException("No primitive for native type \"" + typeName + "\".");
+	}
+
+	/**
+	 * Returns the default value of a primitive, assigned when absent.
+	 *
+	 * @param klass Native type
+	 * @return <tt>0</tt>, <tt>0.0</tt> or <tt>false</tt>
+	 */
+	protected String getPrimitiveDefault(JavaClass klass) {
+		final String type = getPrimitiveType(klass);
+		if (type.equals("boolean")) {
+			return "false";
+		}
+		return type.equals("double") ? "0.0" : "0";
+	}
+
 	protected String getIndent(int idt) {
 		StringBuilder sb = new StringBuilder();
 		for (int i = 0; i < idt; i++) {
@@ -20,7 +20,10 @@
  */
 package org.xbmc.android.jsonrpc.generator.view;
 
+import java.util.List;
+
 import org.xbmc.android.jsonrpc.generator.model.JavaAttribute;
+import org.xbmc.android.jsonrpc.generator.model.JavaClass;
 import org.xbmc.android.jsonrpc.generator.model.JavaConstructor;
 import org.xbmc.android.jsonrpc.generator.model.Namespace;
 
@@ -114,14 +117,31 @@ public class ConstructorView extends AbstractView {
 			sb.append(parentMemberList.toString());
 			sb.append(");\n");
 		}
+		final JavaClass klass = constructor.getType();
 		for (JavaAttribute p : constructor.getParameters()) {
 			sb.append(indent).append("\tthis.");
 			sb.append(p.getName());
 			sb.append(" = ");
 			sb.append(p.getName());
+			if (isPrimitive(klass, p)) {
+				// like: this.year = year != null ? year : 0;
+				sb.append(" != null ? ").append(p.getName()).append(" : ").append(getPrimitiveDefault(p.getType()));
+			}
 			sb.append(";\n");
 			lastArg = p.getName();
 		}
+
+		// like: mPresence = getNonNullMask(rating, year);
+		final List<JavaAttribute> primitives = getPrimitiveMembers(klass);
+		final StringBuilder presentArgs = new StringBuilder();
+		for (JavaAttribute member : primitives) {
+			presentArgs.append(presentArgs.length() == 0 ? "" : ", ").append(member.getName());
+		}
+		if (presentArgs.length() > 0) {
+			sb.append(indent).append("\tmPresence = ");
+			sb.append(isPresenceArray(primitives) ? "getNonNullMaskArray(" : "getNonNullMask(");
+			sb.append(presentArgs).append(");\n");
+		}
 		
 		// if multi type, init non-used vars as null
 		if (constructor.getType().isMultiType()) {
@@ -20,6 +20,11 @@
  */
 package org.xbmc.android.jsonrpc.generator.view;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
 import org.xbmc.android.jsonrpc.generator.model.JavaEnum;
 
 /**
@@ -49,6 +54,11 @@ public class EnumView extends AbstractView {
 			sb.append("</tt>\n");
 		}
 		sb.append(indent).append(" */\n");
+
+		if (isJavaEnum(e)) {
+			renderJavaEnum(sb, indent);
+			return;
+		}
 		
 		// signature
 		sb.append(indent).append("public interface ");
@@ -90,6 +100,99 @@ public class EnumView extends AbstractView {
 		sb.append(indent).append("}\n");
 	}
 	
+	/**
+	 * Renders a Java enum. Every constant knows its value on the wire, and
+	 * <tt>UNRECOGNIZED</tt> stands for values added in later API versions.
+	 * <p/>
+	 * Since Java 6 can't switch on strings, <tt>fromValue()</tt> does what
+	 * javac does for string switches: it switches on the hash code, computed
+	 * here, and compares the strings of the matching case only.
+	 * 
+	 * @param sb Current StringBuilder
+	 * @param indent Indent
+	 */
+	private void renderJavaEnum(StringBuilder sb, String indent) {
+		final String name = getEnumName(e);
+
+		// constants
+		sb.append(indent).append("public enum ").append(name).append(" {\n\n");
+		for (String enumValue : e.getValues()) {
+			sb.append(indent).append("	").append(getName(enumValue)).append("(\"").append(enumValue).append("\"),\n");
+		}
+		sb.append(indent).append("	UNRECOGNIZED(null);\n");
+
+		// public final static Set<String> values = new HashSet<String>(Arrays.asList("album", "artist"));
+		sb.append("\n");
+		sb.append(indent).append("	public final static Set<String> values = new HashSet<String>(Arrays.asList(");
+		for (String enumValue : e.getValues()) {
+			sb.append("\"").append(enumValue).append("\", ");
+		}
+		if (!e.getValues().isEmpty()) {
+			sb.delete(sb.length() - 2, sb.length());
+		}
+		sb.append("));\n");
+		sb.append(indent).append("	private final static ").append(name).append("[] BY_ORDINAL = values();\n");
+		sb.append("\n");
+		sb.append(indent).append("	private final String value;\n");
+		sb.append("\n");
+		sb.append(indent).append("	private ").append(name).append("(String value) {\n");
+		sb.append(indent).append("		this.value = value;\n");
+		sb.append(indent).append("	}\n");
+
+		// getValue()
+		sb.append("\n");
+		sb.append(indent).append("	/**\n");
+		sb.append(indent).append("	 * Returns the value as sent by XBMC, null for <tt>UNRECOGNIZED</tt>.\n");
+		sb.append(indent).append("	 */\n");
+		sb.append(indent).append("	public String getValue() {\n");
+		sb.append(indent).append("		return value;\n");
+		sb.append(indent).append("	}\n");
+
+		// fromValue()
+		final Map<Integer, List<String>> hashes = new TreeMap<Integer, List<String>>();
+		for (String enumValue : e.getValues()) {
+			if (!hashes.containsKey(enumValue.hashCode())) {
+				hashes.put(enumValue.hashCode(), new ArrayList<String>());
+			}
+			hashes.get(enumValue.hashCode()).add(enumValue);
+		}
+		sb.append("\n");
+		sb.append(indent).append("	/**\n");
+		sb.append(indent).append("	 * Returns the constant of a value as sent by XBMC.\n");
+		sb.append(indent).append("	 * @param value Value, may be null\n");
+		sb.append(indent).append("	 * @return Constant, null if value is null or <tt>UNRECOGNIZED</tt> if unknown.\n");
+		sb.append(indent).append("	 */\n");
+		sb.append(indent).append("	public static ").append(name).append(" fromValue(String value) {\n");
+		sb.append(indent).append("		if (value == null) {\n");
+		sb.append(indent).append("			return null;\n");
+		sb.append(indent).append("		}\n");
+		sb.append(indent).append("		switch (value.hashCode()) {\n");
+		for (Map.Entry<Integer, List<String>> hash : hashes.entrySet()) {
+			sb.append(indent).append("			case ").append(hash.getKey()).append(":\n");
+			for (String enumValue : hash.getValue()) {
+				sb.append(indent).append("				if (\"").append(enumValue).append("\".equals(value)) {\n");
+				sb.append(indent).append("					return ").append(getName(enumValue)).append(";\n");
+				sb.append(indent).append("				}\n");
+			}
+			sb.append(indent).append("				break;\n");
+		}
+		sb.append(indent).append("		}\n");
+		sb.append(indent).append("		return UNRECOGNIZED;\n");
+		sb.append(indent).append("	}\n");
+
+		// fromOrdinal()
+		sb.append("\n");
+		sb.append(indent).append("	/**\n");
+		sb.append(indent).append("	 * Returns the constant of an ordinal written to a parcel.\n");
+		sb.append(indent).append("	 * @param ordinal Ordinal, -1 for null\n");
+		sb.append(indent).append("	 * @return Constant or null\n");
+		sb.append(indent).append("	 */\n");
+		sb.append(indent).append("	public static ").append(name).append(" fromOrdinal(int ordinal) {\n");
+		sb.append(indent).append("		return ordinal < 0 ? null : BY_ORDINAL[ordinal];\n");
+		sb.append(indent).append("	}\n");
+		sb.append(indent).append("}\n");
+	}
+
 	private String getName(String enumValue) {
 		if (e.isString()) {
 			return enumValue.replaceAll("\\.",  "_").toUpperCase();
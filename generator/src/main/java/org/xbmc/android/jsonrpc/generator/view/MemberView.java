@@ -21,6 +21,7 @@
 package org.xbmc.android.jsonrpc.generator.view;
 
 import org.xbmc.android.jsonrpc.generator.model.JavaAttribute;
+import org.xbmc.android.jsonrpc.generator.model.JavaClass;
 import org.xbmc.android.jsonrpc.generator.model.Namespace;
 
 /**
@@ -36,12 +37,15 @@ public class MemberView extends AbstractView {
 		this.member = member;
 	}
 	
-	public void renderDeclaration(StringBuilder sb, Namespace ns, int indent) {
+	public void renderDeclaration(StringBuilder sb, JavaClass klass, int indent) {
 		
+		final Namespace ns = klass.getNamespace();
 		final String prefix = getIndent(indent);
 		
 		sb.append(prefix).append("public final ");
-		if (member.isEnum()) {
+		if (isPrimitive(klass, member)) {
+			sb.append(getPrimitiveType(member.getType()));
+		} else if (member.isEnum()) {
 			sb.append(getClassName(ns, member));
 		} else {
 			sb.append(getClassReference(ns, member.getType()));
@@ -44,14 +44,16 @@ public class CallParcelableClassModule extends AbstractView implements IClassMod
 		}
 		final JavaMethod method = (JavaMethod)klass;
 
-		// writeToParcel()
-		renderWriteToParcel(sb, ns, method, idt);
+		// writeToParcel() is inherited, the result is written by AbstractCall.
 
 		// class constructor via parcel
 		renderParcelConstructor(sb, ns, klass, idt);
 
 		// static final Parcelable.Creator<?> CREATOR
 		renderParcelableCreator(sb, ns, method, idt);
+
+		// Parcelable.Creator<?> getResultCreator()
+		renderResultCreator(sb, ns, method, idt);
 	}
 
 	@Override
@@ -62,40 +64,6 @@ public class CallParcelableClassModule extends AbstractView implements IClassMod
 		return imports;
 	}
 
-	/**
-	 * Generates the parcel serializator.
-	 * @param sb Current StringBuilder
-	 * @param ns Current namespace
-	 * @param klass Class to render
-	 * @param idt Indent
-	 */
-	private void renderWriteToParcel(StringBuilder sb, Namespace ns, JavaMethod klass, int idt) {
-		final String indent = getIndent(idt);
-
-		// method header
-/*		sb.append(indent).append("/**\n");
-		sb.append(indent).append(" * Flatten this object into a Parcel.\n");
-		sb.append(indent).append(" * @param parcel the Parcel in which the object should be written.\n");
-		sb.append(indent).append(" * @param flags additional flags about how the object should be written.\n");
-		sb.append(indent).append(" * /\n");
-*/
-
-		// signature
-		sb.append("\n");
-		sb.append(indent).append("@Override\n");
-		sb.append(indent).append("public void writeToParcel(Parcel parcel, int flags) {\n");
-
-		// body
-		sb.append(indent).append("	super.writeToParcel(parcel, flags);\n");
-		if (klass.getReturnType().isNative()) {
-			sb.append(indent).append("	parcel.writeValue(mResult);\n");
-		} else {
-			sb.append(indent).append("	parcel.writeParcelable(mResult, flags);\n");
-		}
-
-		sb.append(indent).append("}\n");
-	}
-
 	/**
 	 * Generates the constructor via parcel
 	 * @param sb Current StringBuilder
@@ -123,6 +91,30 @@ public class CallParcelableClassModule extends AbstractView implements IClassMod
 		sb.append(indent).append("}\n");
 	}
 
+	/**
+	 * Generates <tt>getResultCreator()</tt> for methods returning models, so
+	 * results are parcelled with their type known at compile time.
+	 *
+	 * @param sb Current StringBuilder
+	 * @param ns Current namespace
+	 * @param method Method to render
+	 * @param idt Indent
+	 */
+	private void renderResultCreator(StringBuilder sb, Namespace ns, JavaMethod method, int idt) {
+		final JavaClass returnType = method.getReturnType().isTypeArray() ? method.getReturnType().getArrayType() : method.getReturnType();
+		if (returnType.isNative()) {
+			return;
+		}
+		final String indent = getIndent(idt);
+		final String n = getClassReference(ns, returnType);
+
+		sb.append("\n");
+		sb.append(indent).append("@Override\n");
+		sb.append(indent).append("protected Parcelable.Creator<").append(n).append("> getResultCreator() {\n");
+		sb.append(indent).append("	return ").append(n).append(".CREATOR;\n");
+		sb.append(indent).append("}\n");
+	}
+
 	/**
 	 * Generates the static CREATOR class that creates an object from parcel
 	 * (basically just calls the constructor that does the work.)
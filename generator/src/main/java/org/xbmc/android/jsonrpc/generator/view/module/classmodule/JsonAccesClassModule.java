@@ -144,6 +144,7 @@ public class JsonAccesClassModule extends AbstractView implements IClassModule {
 		}
 
 		// parse members
+		final List<JavaAttribute> primitives = getPrimitiveMembers(klass);
 		boolean isFirst = true;
 		for (JavaAttribute member : klass.getMembers()) {
 			if (klass.isMultiType()) {
@@ -152,10 +153,26 @@ public class JsonAccesClassModule extends AbstractView implements IClassModule {
 				sb.append(indent).append("\t");
 				sb.append(member.getName());
 				sb.append(" = ");
-				renderParseLine(sb, member, ns);
+				if (primitives.contains(member) && !member.isRequired()) {
+					// like: year = node.path(YEAR).getIntValue();
+					sb.append("node.path(").append(member.getName().toUpperCase()).append(").");
+					sb.append(NATIVE_REQUIRED_NODE_GETTER.get(member.getType().getName())).append("();\n");
+				} else {
+					renderParseLine(sb, member, ns);
+				}
 			}
 			isFirst = false;
 		}
+
+		// like: mPresence = getKeyMask(node, RATING, YEAR);
+		if (!primitives.isEmpty()) {
+			sb.append(indent).append("	mPresence = ");
+			sb.append(isPresenceArray(primitives) ? "getKeyMaskArray(node" : "getKeyMask(node");
+			for (JavaAttribute member : primitives) {
+				sb.append(", ").append(member.getName().toUpperCase());
+			}
+			sb.append(");\n");
+		}
 		if (klass.isMultiType()) {
 			sb.append(indent).append("	else {\n");
 			sb.append(indent).append("		throw new RuntimeException(\"Weird type for \\\"");
@@ -182,7 +199,14 @@ public class JsonAccesClassModule extends AbstractView implements IClassModule {
 				sb.append(indent).append("	final ObjectNode node = OM.createObjectNode();\n");
 			}
 			for (JavaAttribute member : klass.getMembers()) {
-				renderPutLine(sb, member, ns, idt + 1);
+				if (isPrimitive(klass, member)) {
+					// like: if (hasYear()) { node.put(YEAR, year); }
+					sb.append(indent).append("	if (").append(getPresenceAccessor(member)).append("()) {\n");
+					renderPutLine(sb, member, ns, idt + 2);
+					sb.append(indent).append("	}\n");
+				} else {
+					renderPutLine(sb, member, ns, idt + 1);
+				}
 			}
 			sb.append(indent).append("	return node;\n");
 
@@ -190,7 +214,7 @@ public class JsonAccesClassModule extends AbstractView implements IClassModule {
 			for (JavaAttribute member : klass.getMembers()) {
 				sb.append(indent).append("	if (").append(member.getName()).append(" != null) {\n");
 				if (member.isEnum()) {
-					sb.append(indent).append("		return new TextNode(").append(member.getName()).append("); // 3num\n");
+					sb.append(indent).append("		return new TextNode(").append(getEnumValue(member)).append("); // 3num\n");
 				} else {
 
 					// native
@@ -251,7 +275,12 @@ public class JsonAccesClassModule extends AbstractView implements IClassModule {
 
 		if (member.isEnum()) {
 			sb.append(indent);
-			renderNodeSetter(sb, member, member.getName());
+			if (isJavaEnum(member.getEnum())) {
+				// like: node.put(TYPE, type != null ? type.getValue() : null); // enum
+				renderNodeSetter(sb, member, member.getName() + " != null ? " + getEnumValue(member) + " : null");
+			} else {
+				renderNodeSetter(sb, member, member.getName());
+			}
 			sb.append("; // enum\n");
 		} else {
 			final JavaClass klass = member.getType();
@@ -341,7 +370,13 @@ public class JsonAccesClassModule extends AbstractView implements IClassModule {
 	 */
 	private void renderParseLine(StringBuilder sb, JavaAttribute member, Namespace ns) {
 		if (member.isEnum()) {
-			renderOptionalNativeNodeGetter(sb, member.getName(), NATIVE_OPTIONAL_NODE_GETTER.get("string"));
+			if (isJavaEnum(member.getEnum())) {
+				// like: Type.fromValue(parseString(node, TYPE));
+				sb.append(getClassName(ns, member)).append(".fromValue(");
+				sb.append(NATIVE_OPTIONAL_NODE_GETTER.get("string")).append("(node, ").append(member.getName().toUpperCase()).append("));\n");
+			} else {
+				renderOptionalNativeNodeGetter(sb, member.getName(), NATIVE_OPTIONAL_NODE_GETTER.get("string"));
+			}
 		} else {
 			final JavaClass klass = member.getType();
 
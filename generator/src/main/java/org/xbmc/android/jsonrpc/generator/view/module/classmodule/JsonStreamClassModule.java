@@ -0,0 +1,563 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.generator.view.module.classmodule;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.xbmc.android.jsonrpc.generator.model.JavaAttribute;
+import org.xbmc.android.jsonrpc.generator.model.JavaClass;
+import org.xbmc.android.jsonrpc.generator.model.Namespace;
+import org.xbmc.android.jsonrpc.generator.view.AbstractView;
+import org.xbmc.android.jsonrpc.generator.view.module.IClassModule;
+
+/**
+ * Provides JSON serialization straight to and from Jackson's token stream,
+ * so neither requests nor large results need to be built as a tree first.
+ * <p/>
+ * Every class writes its members through <tt>writeFields()</tt>, or
+ * <tt>writeTo()</tt> for multi-type classes.
+ * <p/>
+ * For reading, since members are final and spread over the class hierarchy,
+ * fields are first read into a <tt>Values</tt> object, which every class of
+ * the hierarchy extends with its own members. The model is then constructed
+ * from it.
+ */
+public class JsonStreamClassModule extends AbstractView implements IClassModule {
+
+	@Override
+	public void render(StringBuilder sb, Namespace ns, JavaClass klass, int idt) {
+
+		// writeTo() or writeFields()
+		if (klass.isMultiType()) {
+			renderMultiTypeWriteTo(sb, ns, klass, idt);
+		} else {
+			renderWriteFields(sb, ns, klass, idt);
+		}
+
+		if (!klass.isUsedAsResult()) {
+			return;
+		}
+
+		// static read()
+		renderRead(sb, klass, idt);
+
+		if (!klass.isMultiType()) {
+
+			// class constructor via values
+			renderValuesConstructor(sb, ns, klass, idt);
+
+			// static class Values
+			renderValues(sb, ns, klass, idt);
+		}
+
+		// list reader
+		renderListReader(sb, ns, klass, idt);
+	}
+
+	@Override
+	public Set<String> getImports(JavaClass klass) {
+		final Set<String> imports = new HashSet<String>();
+		imports.add("java.io.IOException");
+		imports.add("org.codehaus.jackson.JsonGenerator");
+		if (klass.isUsedAsResult()) {
+			imports.add("java.util.ArrayList");
+			imports.add("java.util.List");
+			imports.add("org.codehaus.jackson.JsonParser");
+			imports.add("org.codehaus.jackson.JsonToken");
+			for (JavaAttribute member : klass.getMembers()) {
+				if (!member.isEnum() && member.getType().isTypeMap()) {
+					imports.add("java.util.HashMap");
+				}
+			}
+		}
+		return imports;
+	}
+
+	/**
+	 * Renders <tt>writeFields()</tt>, which writes all members that aren't
+	 * null after the members of the parent.
+	 *
+	 * @param sb Current StringBuilder
+	 * @param ns Current namespace
+	 * @param klass Class to render
+	 * @param idt Indent
+	 */
+	private void renderWriteFields(StringBuilder sb, Namespace ns, JavaClass klass, int idt) {
+		final String indent = getIndent(idt);
+
+		sb.append("\n");
+		sb.append(indent).append("@Override\n");
+		sb.append(indent).append("protected void writeFields(JsonGenerator gen) throws IOException {\n");
+		if (klass.doesExtend()) {
+			sb.append(indent).append("	super.writeFields(gen);\n");
+		}
+		for (JavaAttribute member : klass.getMembers()) {
+			final String name = member.getName();
+			final String field = name.toUpperCase();
+			if (isPrimitive(klass, member)) {
+				sb.append(indent).append("	if (").append(getPresenceAccessor(member)).append("()) {\n");
+			} else {
+				sb.append(indent).append("	if (").append(name).append(" != null) {\n");
+			}
+			if (member.isEnum()) {
+				// like: gen.writeStringField(TYPE, type);
+				sb.append(indent).append("		gen.writeStringField(").append(field).append(", ").append(getEnumValue(member)).append(");\n");
+			} else {
+				final JavaClass type = member.getType();
+				if (type.isNative()) {
+					// like: gen.writeNumberField(ALBUMID, albumid);
+					sb.append(indent).append("		gen.").append(getFieldWriter(type)).append("(").append(field).append(", ").append(name).append(");\n");
+
+				} else if (type.isTypeArray() || type.isEnumArray()) {
+					// like: gen.writeArrayFieldStart(GENRE); for (String item : genre) { gen.writeString(item); }
+					sb.append(indent).append("		gen.writeArrayFieldStart(").append(field).append(");\n");
+					sb.append(indent).append("		for (").append(getItemClassReference(ns, type)).append(" item : ").append(name).append(") {\n");
+					sb.append(indent).append("			");
+					renderWriteValue(sb, type.isEnumArray() ? null : type.getArrayType(), "item");
+					sb.append(indent).append("		}\n");
+					sb.append(indent).append("		gen.writeEndArray();\n");
+
+				} else if (type.isTypeMap()) {
+					// like: gen.writeObjectFieldStart(ART); for (String key : art.keySet()) { ... }
+					sb.append(indent).append("		gen.writeObjectFieldStart(").append(field).append(");\n");
+					sb.append(indent).append("		for (String key : ").append(name).append(".keySet()) {\n");
+					sb.append(indent).append("			gen.writeFieldName(key);\n");
+					sb.append(indent).append("			");
+					renderWriteValue(sb, type.getMapType(), name + ".get(key)");
+					sb.append(indent).append("		}\n");
+					sb.append(indent).append("		gen.writeEndObject();\n");
+
+				} else {
+					// like: gen.writeFieldName(FILTER); filter.writeTo(gen);
+					sb.append(indent).append("		gen.writeFieldName(").append(field).append(");\n");
+					sb.append(indent).append("		").append(name).append(".writeTo(gen);\n");
+				}
+			}
+			sb.append(indent).append("	}\n");
+		}
+		sb.append(indent).append("}\n");
+	}
+
+	/**
+	 * Renders <tt>writeTo()</tt> of a multi-type class, which writes the
+	 * first member that isn't null.
+	 *
+	 * @param sb Current StringBuilder
+	 * @param ns Current namespace
+	 * @param klass Class to render
+	 * @param idt Indent
+	 */
+	private void renderMultiTypeWriteTo(StringBuilder sb, Namespace ns, JavaClass klass, int idt) {
+		final String indent = getIndent(idt);
+
+		sb.append("\n");
+		sb.append(indent).append("@Override\n");
+		sb.append(indent).append("public void writeTo(JsonGenerator gen) throws IOException {\n");
+		sb.append(indent).append("	");
+		for (JavaAttribute member : klass.getMembers()) {
+			final String name = member.getName();
+			sb.append("if (").append(name).append(" != null) {\n");
+			final JavaClass type = member.isEnum() ? null : member.getType();
+			if (type != null && (type.isTypeArray() || type.isEnumArray())) {
+				sb.append(indent).append("		gen.writeStartArray();\n");
+				sb.append(indent).append("		for (").append(getItemClassReference(ns, type)).append(" item : ").append(name).append(") {\n");
+				sb.append(indent).append("			");
+				renderWriteValue(sb, type.isEnumArray() ? null : type.getArrayType(), "item");
+				sb.append(indent).append("		}\n");
+				sb.append(indent).append("		gen.writeEndArray();\n");
+			} else {
+				sb.append(indent).append("		");
+				renderWriteValue(sb, type, member.isEnum() ? getEnumValue(member) : name);
+			}
+			sb.append(indent).append("	} else ");
+		}
+		sb.append("{\n");
+		sb.append(indent).append("		gen.writeNull();\n");
+		sb.append(indent).append("	}\n");
+		sb.append(indent).append("}\n");
+	}
+
+	/**
+	 * Renders the statement writing a single value, like
+	 * <tt>gen.writeString(item);</tt>.
+	 *
+	 * @param sb Current StringBuilder
+	 * @param type Type of the value, null for enums
+	 * @param value Expression of the value
+	 */
+	private void renderWriteValue(StringBuilder sb, JavaClass type, String value) {
+		if (type == null) {
+			sb.append("gen.writeString(").append(value).append(");\n");
+		} else if (type.isNative()) {
+			sb.append("gen.").append(getValueWriter(type)).append("(").append(value).append(");\n");
+		} else if (type.isTypeArray() || type.isTypeMap() || type.isEnumArray()) {
+			throw new IllegalStateException("Nested lists and maps are not supported yet.");
+		} else {
+			sb.append(value).append(".writeTo(gen);\n");
+		}
+	}
+
+	/**
+	 * Returns the class of the items of a list, as referenced in the loop.
+	 *
+	 * @param ns Current namespace
+	 * @param type List type
+	 * @return Class reference
+	 */
+	private String getItemClassReference(Namespace ns, JavaClass type) {
+		if (type.isEnumArray()) {
+			return "String";
+		}
+		return getClassReference(ns, type.getArrayType());
+	}
+
+	/**
+	 * Returns the generator method writing a native value.
+	 *
+	 * @param type Native type
+	 * @return Method name, like <tt>writeNumber</tt>
+	 */
+	private String getValueWriter(JavaClass type) {
+		final String name = type.getName();
+		if ("integer".equals(name) || "number".equals(name)) {
+			return "writeNumber";
+		} else if ("boolean".equals(name)) {
+			return "writeBoolean";
+		} else if ("string".equals(name) || "any".equals(name)) {
+			return "writeString";
+		}
+		throw new IllegalStateException("Unknown native type \"" + name + "\". Probably implementation missing.");
+	}
+
+	/**
+	 * Returns the generator method writing a native field.
+	 *
+	 * @param type Native type
+	 * @return Method name, like <tt>writeNumberField</tt>
+	 */
+	private String getFieldWriter(JavaClass type) {
+		return getValueWriter(type) + "Field";
+	}
+
+	/**
+	 * Renders the static <tt>read()</tt> method. Multi-type classes are only
+	 * a single value and are still read through the tree.
+	 *
+	 * @param sb Current StringBuilder
+	 * @param klass Class to render
+	 * @param idt Indent
+	 */
+	private void renderRead(StringBuilder sb, JavaClass klass, int idt) {
+		final String indent = getIndent(idt);
+		final String name = getClassName(klass);
+
+		// comment
+		sb.append("\n");
+		sb.append(indent).append("/**\n");
+		sb.append(indent).append(" * Reads a ").append(name).append(" object directly from the token stream.\n");
+		sb.append(indent).append(" * @param parser Parser positioned at the value, positioned at its end when returning\n");
+		sb.append(indent).append(" * @return New instance, or null if the value is null\n");
+		sb.append(indent).append(" */\n");
+
+		// signature
+		sb.append(indent).append("public static ").append(name).append(" read(JsonParser parser) throws IOException {\n");
+
+		if (klass.isMultiType()) {
+			sb.append(indent).append("	if (parser.getCurrentToken() == JsonToken.VALUE_NULL) {\n");
+			sb.append(indent).append("		return null;\n");
+			sb.append(indent).append("	}\n");
+			sb.append(indent).append("	return new ").append(name).append("(OM.readTree(parser));\n");
+		} else {
+			sb.append(indent).append("	if (parser.getCurrentToken() != JsonToken.START_OBJECT) {\n");
+			sb.append(indent).append("		parser.skipChildren();\n");
+			sb.append(indent).append("		return null;\n");
+			sb.append(indent).append("	}\n");
+			sb.append(indent).append("	final Values values = new Values();\n");
+			sb.append(indent).append("	values.read(parser);\n");
+			sb.append(indent).append("	return new ").append(name).append("(values);\n");
+		}
+		sb.append(indent).append("}\n");
+	}
+
+	/**
+	 * Renders the constructor that assigns the members from the values read.
+	 * Missing lists and maps are empty, like when constructed from a node.
+	 *
+	 * @param sb Current StringBuilder
+	 * @param ns Current namespace
+	 * @param klass Class to render
+	 * @param idt Indent
+	 */
+	private void renderValuesConstructor(StringBuilder sb, Namespace ns, JavaClass klass, int idt) {
+		final String indent = getIndent(idt);
+
+		// comment
+		sb.append("\n");
+		sb.append(indent).append("/**\n");
+		sb.append(indent).append(" * Construct from values read from the token stream.\n");
+		sb.append(indent).append(" */\n");
+
+		// signature
+		sb.append(indent).append("protected ").append(getClassName(klass)).append("(Values values) {\n");
+		if (klass.doesExtend()) {
+			sb.append(indent).append("	super(values);\n");
+		}
+		for (JavaAttribute member : klass.getMembers()) {
+			sb.append(indent).append("	this.").append(member.getName()).append(" = ");
+			final String empty = getEmptyValue(ns, member);
+			if (empty != null) {
+				sb.append("values.").append(member.getName()).append(" != null ? values.").append(member.getName());
+				sb.append(" : ").append(empty).append(";\n");
+			} else {
+				sb.append("values.").append(member.getName()).append(";\n");
+			}
+		}
+		if (!getPrimitiveMembers(klass).isEmpty()) {
+			sb.append(indent).append("	this.mPresence = values.presence;\n");
+		}
+		sb.append(indent).append("}\n");
+	}
+
+	/**
+	 * Renders the <tt>Values</tt> class, which reads the fields of this class
+	 * and hands all other fields to the parent's values.
+	 *
+	 * @param sb Current StringBuilder
+	 * @param ns Current namespace
+	 * @param klass Class to render
+	 * @param idt Indent
+	 */
+	private void renderValues(StringBuilder sb, Namespace ns, JavaClass klass, int idt) {
+		final String indent = getIndent(idt);
+
+		// comment
+		sb.append("\n");
+		sb.append(indent).append("/**\n");
+		sb.append(indent).append(" * Field values of a ").append(getClassName(klass)).append(" object read from the token stream.\n");
+		sb.append(indent).append(" */\n");
+
+		// signature
+		sb.append(indent).append("protected static class Values extends ");
+		if (klass.doesExtend()) {
+			sb.append(getClassReference(ns, klass.getParentClass())).append(".Values");
+		} else {
+			sb.append("AbstractModel.Values");
+		}
+		sb.append(" {\n");
+
+		// members, with the defaults of parseInt() and friends
+		final List<JavaAttribute> primitives = getPrimitiveMembers(klass);
+		for (JavaAttribute member : klass.getMembers()) {
+			sb.append(indent).append("	");
+			final boolean primitive = primitives.contains(member);
+			if (primitive) {
+				sb.append(getPrimitiveType(member.getType()));
+			} else if (member.isEnum()) {
+				sb.append(getClassName(ns, member));
+			} else {
+				sb.append(getClassReference(ns, member.getType()));
+			}
+			sb.append(" ").append(member.getName());
+			if (!primitive && !member.isEnum() && member.getType().isNative() && !member.isRequired() && "integer".equals(member.getType().getName())) {
+				sb.append(" = -1");
+			}
+			sb.append(";\n");
+		}
+
+		// presence of primitive members
+		if (!primitives.isEmpty()) {
+			sb.append(indent).append("	").append(getPresenceType(primitives)).append(" presence");
+			if (isPresenceArray(primitives)) {
+				sb.append(" = new int[").append((primitives.size() + 31) >> 5).append("]");
+			}
+			sb.append(";\n");
+		}
+
+		// readField()
+		sb.append("\n");
+		sb.append(indent).append("	@Override\n");
+		sb.append(indent).append("	protected boolean readField(String name, JsonParser parser) throws IOException {\n");
+		boolean isFirst = true;
+		for (JavaAttribute member : klass.getMembers()) {
+			sb.append(indent).append("		");
+			if (!isFirst) {
+				sb.append("} else ");
+			}
+			sb.append("if (").append(member.getName().toUpperCase()).append(".equals(name)) {\n");
+			sb.append(indent).append("			this.").append(member.getName()).append(" = ");
+			renderReadLine(sb, ns, member);
+			sb.append(";\n");
+			if (primitives.contains(member)) {
+				// like: if (parser.getCurrentToken() != JsonToken.VALUE_NULL) { presence |= 1L << 3; }
+				sb.append(indent).append("			if (parser.getCurrentToken() != JsonToken.VALUE_NULL) {\n");
+				sb.append(indent).append("				").append(getPresenceSetter(primitives, member, "presence")).append("\n");
+				sb.append(indent).append("			}\n");
+			}
+			isFirst = false;
+		}
+		if (isFirst) {
+			sb.append(indent).append("		return super.readField(name, parser);\n");
+		} else {
+			sb.append(indent).append("		} else {\n");
+			sb.append(indent).append("			return super.readField(name, parser);\n");
+			sb.append(indent).append("		}\n");
+			sb.append(indent).append("		return true;\n");
+		}
+		sb.append(indent).append("	}\n");
+		sb.append(indent).append("}\n");
+	}
+
+	/**
+	 * Renders the expression reading the value of a member, like
+	 * <tt>readString(parser)</tt>.
+	 *
+	 * @param sb Current StringBuilder
+	 * @param ns Current namespace
+	 * @param member Member to read
+	 */
+	private void renderReadLine(StringBuilder sb, Namespace ns, JavaAttribute member) {
+		if (member.isEnum()) {
+			if (isJavaEnum(member.getEnum())) {
+				// like: Type.fromValue(readString(parser))
+				sb.append(getClassName(ns, member)).append(".fromValue(readString(parser))");
+			} else {
+				sb.append("readString(parser)");
+			}
+			return;
+		}
+		final JavaClass klass = member.getType();
+		if (klass.isNative()) {
+			final String type = klass.getName();
+			if ("integer".equals(type)) {
+				sb.append("readInt(parser)");
+			} else if ("boolean".equals(type)) {
+				sb.append("readBoolean(parser)");
+			} else if ("number".equals(type)) {
+				sb.append("readDouble(parser)");
+			} else if ("string".equals(type) || "any".equals(type)) {
+				sb.append("readString(parser)");
+			} else {
+				throw new IllegalStateException("Unknown native type \"" + type + "\". Probably implementation missing.");
+			}
+
+		} else if (klass.isTypeMap()) {
+			if (!klass.getMapType().isNative() || !klass.getMapType().getName().equals("string")) {
+				throw new IllegalStateException("For additionalProperties, only string types are supported yet.");
+			}
+			sb.append("readStringMap(parser)");
+
+		} else if (klass.isEnumArray()) {
+			sb.append("readStringArray(parser)");
+
+		} else if (klass.isTypeArray()) {
+			final JavaClass arrayType = klass.getArrayType();
+			if (arrayType.isNative()) {
+				if (arrayType.getName().equals("string")) {
+					sb.append("readStringArray(parser)");
+				} else if (arrayType.getName().equals("integer")) {
+					sb.append("readIntegerArray(parser)");
+				} else {
+					throw new IllegalStateException("Only string and integer arrays are supported yet.");
+				}
+			} else {
+				// like: Dependency.readAddonModelDependencyList(parser)
+				sb.append(getClassReference(ns, arrayType)).append(".").append(getListReader(arrayType)).append("(parser)");
+			}
+
+		} else {
+			// like: Broken.read(parser)
+			sb.append(getClassReference(ns, klass)).append(".read(parser)");
+		}
+	}
+
+	/**
+	 * Returns the value assigned when a list or map is missing, or null for
+	 * all other members.
+	 *
+	 * @param ns Current namespace
+	 * @param member Member
+	 * @return Empty list or map, null if not applicable
+	 */
+	private String getEmptyValue(Namespace ns, JavaAttribute member) {
+		if (member.isEnum()) {
+			return null;
+		}
+		final JavaClass klass = member.getType();
+		if (klass.isTypeMap()) {
+			return "new HashMap<String, String>()";
+		}
+		if (klass.isEnumArray()) {
+			return "new ArrayList<String>(0)";
+		}
+		if (klass.isTypeArray()) {
+			return "new ArrayList<" + getClassReference(ns, klass.getArrayType()) + ">(0)";
+		}
+		return null;
+	}
+
+	private void renderListReader(StringBuilder sb, Namespace ns, JavaClass klass, int idt) {
+		final String indent = getIndent(idt);
+		final String name = getClassReference(ns, klass);
+
+		// method header comment
+		sb.append("\n");
+		sb.append(indent).append("/**\n");
+		sb.append(indent).append(" * Reads a list of {@link ");
+		sb.append(name);
+		sb.append("} objects directly from the token stream.\n");
+		sb.append(indent).append(" * @param parser Parser positioned at the array, positioned at its end when returning.\n");
+		sb.append(indent).append(" */\n");
+
+		// signature
+		sb.append(indent).append("static List<");
+		sb.append(name);
+		sb.append("> ");
+		sb.append(getListReader(klass));
+		sb.append("(JsonParser parser) throws IOException {\n");
+
+		sb.append(indent).append("	if (parser.getCurrentToken() == JsonToken.START_ARRAY) {\n");
+		sb.append(indent).append("		final List<").append(name).append("> l = new ArrayList<").append(name).append(">();\n");
+		sb.append(indent).append("		while (parser.nextToken() != JsonToken.END_ARRAY) {\n");
+		sb.append(indent).append("			l.add(read(parser));\n");
+		sb.append(indent).append("		}\n");
+		sb.append(indent).append("		return l;\n");
+		sb.append(indent).append("	}\n");
+		sb.append(indent).append("	parser.skipChildren();\n");
+		sb.append(indent).append("	return new ArrayList<").append(name).append(">(0);\n");
+
+		sb.append(indent).append("}\n");
+	}
+
+	/**
+	 * Returns the name of the list reader, like
+	 * <tt>readAddonModelDependencyList</tt>.
+	 *
+	 * @param klass Class of the list items
+	 * @return Name of the static method
+	 */
+	private String getListReader(JavaClass klass) {
+		return "read" + getListGetter(klass).substring(3);
+	}
+
+}
@@ -21,6 +21,7 @@
 package org.xbmc.android.jsonrpc.generator.view.module.classmodule;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.xbmc.android.jsonrpc.generator.model.JavaAttribute;
@@ -64,7 +65,14 @@ public class MemberDeclarationClassModule extends AbstractView implements IClass
 				sb.append("</tt>.\n");
 				sb.append(indent).append(" */\n");
 			}
-			memberView.renderDeclaration(sb, klass.getNamespace(), idt);
+			memberView.renderDeclaration(sb, klass, idt);
+		}
+
+		// presence of primitive members
+		final List<JavaAttribute> primitives = getPrimitiveMembers(klass);
+		if (!primitives.isEmpty()) {
+			sb.append("\n").append(indent).append("// presence of primitive members, one bit per member\n");
+			sb.append(indent).append("private final ").append(getPresenceType(primitives)).append(" mPresence;\n");
 		}
 		
 		// constructors
@@ -74,6 +82,32 @@ public class MemberDeclarationClassModule extends AbstractView implements IClass
 				constructorView.renderDeclaration(sb, klass.getNamespace(), idt);
 			}
 		}
+
+		// presence accessors
+		for (JavaAttribute member : primitives) {
+			renderPresenceAccessor(sb, primitives, member, idt);
+		}
+	}
+
+	/**
+	 * Renders the accessor telling if a primitive member was set, like
+	 * <tt>hasYear()</tt>.
+	 * 
+	 * @param sb Current StringBuilder
+	 * @param primitives Primitive members of the class
+	 * @param member Primitive member
+	 * @param idt Indent
+	 */
+	private void renderPresenceAccessor(StringBuilder sb, List<JavaAttribute> primitives, JavaAttribute member, int idt) {
+		final String indent = getIndent(idt);
+
+		sb.append("\n");
+		sb.append(indent).append("/**\n");
+		sb.append(indent).append(" * Returns true if <tt>").append(member.getName()).append("</tt> is set, false if it's absent.\n");
+		sb.append(indent).append(" */\n");
+		sb.append(indent).append("public boolean ").append(getPresenceAccessor(member)).append("() {\n");
+		sb.append(indent).append("	return ").append(getPresenceTest(primitives, member, "mPresence")).append(";\n");
+		sb.append(indent).append("}\n");
 	}
 
 	@Override
@@ -170,6 +170,19 @@ public class MethodAPIClassModule extends AbstractView implements IClassModule {
 			sb.append(indent).append("	}\n");
 			sb.append(indent).append("}\n");
 
+			// streaming variant, see JsonStreamClassModule
+			sb.append("\n");
+			sb.append(indent).append("@Override\n");
+			sb.append(indent).append("public void setResult(JsonParser parser) throws IOException {\n");
+			sb.append(indent).append("	readResults(parser, ").append(method.hasReturnProperty() ? "RESULT" : "null").append(");\n");
+			sb.append(indent).append("}\n");
+
+			sb.append("\n");
+			sb.append(indent).append("@Override\n");
+			sb.append(indent).append("protected ").append(returnType).append(" readItem(JsonParser parser) throws IOException {\n");
+			sb.append(indent).append("	return ").append(returnType).append(".read(parser);\n");
+			sb.append(indent).append("}\n");
+
 		} else {
 			final String returnType = getClassReference(ns, method.getReturnType());
 			sb.append(indent).append("protected ").append(returnType).append(" parseOne(JsonNode node) {\n");
@@ -231,6 +244,8 @@ public class MethodAPIClassModule extends AbstractView implements IClassModule {
 		if (((JavaMethod)klass).getReturnType().isTypeArray()) {
 			imports.add("java.util.ArrayList");
 			imports.add("org.codehaus.jackson.node.ArrayNode");
+			imports.add("org.codehaus.jackson.JsonParser");
+			imports.add("java.io.IOException");
 		}
 		imports.add("org.codehaus.jackson.node.ObjectNode");
 		imports.add("org.codehaus.jackson.JsonNode");
@@ -21,6 +21,7 @@
 package org.xbmc.android.jsonrpc.generator.view.module.classmodule;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.xbmc.android.jsonrpc.generator.model.JavaAttribute;
@@ -87,14 +88,51 @@ public class ModelParcelableClassModule extends AbstractView implements IClassMo
 		if (klass.doesExtend()) {
 			sb.append(indent).append("	super.writeToParcel(parcel, flags);\n");
 		}
+		final List<JavaAttribute> primitives = getPrimitiveMembers(klass);
+		if (!primitives.isEmpty()) {
+			sb.append(indent).append("	parcel.").append(isPresenceArray(primitives) ? "writeIntArray" : "writeLong").append("(mPresence);\n");
+		}
 		for (JavaAttribute member : klass.getMembers()) {
-			renderWriteToParcel(sb, ns, member, idt + 1);
+			if (primitives.contains(member)) {
+				renderWritePrimitive(sb, member, idt + 1);
+			} else {
+				renderWriteToParcel(sb, ns, member, idt + 1);
+			}
+		}
+		sb.append(indent).append("}\n");
+	}
+
+	/**
+	 * Generates the parcel serializator for a primitive member. Absent
+	 * members aren't written at all, the presence mask is written first.
+	 * 
+	 * @param sb Current StringBuilder
+	 * @param member Primitive member
+	 * @param idt Indent
+	 */
+	private void renderWritePrimitive(StringBuilder sb, JavaAttribute member, int idt) {
+		final String indent = getIndent(idt);
+		final String name = member.getName();
+		final String type = getPrimitiveType(member.getType());
+
+		// like: if (hasYear()) { parcel.writeInt(year); }
+		sb.append(indent).append("if (").append(getPresenceAccessor(member)).append("()) {\n");
+		sb.append(indent).append("	parcel.");
+		if (type.equals("boolean")) {
+			sb.append("writeInt(").append(name).append(" ? 1 : 0);\n");
+		} else if (type.equals("double")) {
+			sb.append("writeDouble(").append(name).append(");\n");
+		} else {
+			sb.append("writeInt(").append(name).append(");\n");
 		}
 		sb.append(indent).append("}\n");
 	}
 
 	/**
 	 * Generates the parcel serializator for one member.
+	 * <p/>
+	 * Every type is written with a typed method and null markers where
+	 * needed, so neither type tags nor class names end up in the parcel.
 	 * 
 	 * @param sb Current StringBuilder
 	 * @param ns Current namespace
@@ -103,80 +141,77 @@ public class ModelParcelableClassModule extends AbstractView implements IClassMo
 	 */
 	private void renderWriteToParcel(StringBuilder sb, Namespace ns, JavaAttribute member, int idt) {
 		final String indent = getIndent(idt);
+		final String name = member.getName();
 
 		if (member.isEnum()) {
-			sb.append(indent).append("parcel.writeValue(");
-			sb.append(member.getName());
-			sb.append("); // enum\n");
-		} else {
-
-			final JavaClass klass = member.getType();
-			if (klass.isTypeArray()) {
+			if (isJavaEnum(member.getEnum())) {
+				// like: parcel.writeInt(type != null ? type.ordinal() : -1); // enum
+				sb.append(indent).append("parcel.writeInt(").append(name).append(" != null ? ").append(name).append(".ordinal() : -1); // enum\n");
+			} else {
+				// like: parcel.writeString(type); // enum
+				sb.append(indent).append("parcel.writeString(").append(name).append("); // enum\n");
+			}
+			return;
+		}
 
-				final JavaClass arrayType = klass.getArrayType();
+		final JavaClass klass = member.getType();
+		if (klass.isTypeArray()) {
+			final JavaClass arrayType = klass.getArrayType();
+			if (arrayType.isNative()) {
+				final String typeName = arrayType.getName();
 
-				// like: parcel.writeInt(genre.size());
-				sb.append(indent).append("parcel.writeInt(");
-				sb.append(member.getName());
-				sb.append(".size());\n");
+				// like: writeIntegerList(parcel, artistid);
+				if (typeName.equals("integer")) {
+					sb.append(indent).append("writeIntegerList(parcel, ").append(name).append(");\n");
 
-				// like: for (String item : genre) {
-				sb.append(indent).append("for (");
-				sb.append(getClassReference(ns, arrayType));
-				sb.append(" item : ");
-				sb.append(member.getName());
-				sb.append(") {\n");
+				// like: parcel.writeStringList(genre);
+				} else if (typeName.equals("string") || typeName.equals("any")) {
+					sb.append(indent).append("parcel.writeStringList(").append(name).append(");\n");
 
-				// like: parcel.writeValue(item);
-				sb.append(indent).append("	parcel.");
-				if (arrayType.isNative()) {
-					sb.append("writeValue(item);\n");
 				} else {
-					sb.append("writeParcelable(item, flags);\n");
+					throw new IllegalArgumentException("Don't know how to parcel arrays of " + typeName + ".");
 				}
 
-				sb.append(indent).append("}\n");
+			// like: parcel.writeTypedList(cast);
+			} else {
+				sb.append(indent).append("parcel.writeTypedList(").append(name).append(");\n");
+			}
 
-			} else if (klass.isTypeMap()) {
-				final JavaClass mapType = klass.getMapType();
+		} else if (klass.isTypeMap()) {
+			final JavaClass mapType = klass.getMapType();
+			if (!isStringType(mapType)) {
+				throw new IllegalArgumentException("Don't know how to parcel maps of " + mapType.getName() + ".");
+			}
 
-				// like: parcel.writeInt(uniqueid.size());
-				sb.append(indent).append("parcel.writeInt(");
-				sb.append(member.getName());
-				sb.append(".size());\n");
+			// like: writeStringMap(parcel, uniqueid);
+			sb.append(indent).append("writeStringMap(parcel, ").append(name).append(");\n");
 
-				// like: for (String key : uniqueid.values()) {
-				sb.append(indent).append("for (String key : ");
-				sb.append(member.getName());
-				sb.append(".values()) {\n");
+		} else if (klass.isNative()) {
+			final String typeName = klass.getName();
 
-				// like: parcel.writeValue(key);
-				// parcel.writeValue(uniqueid.get(key));
-				sb.append(indent).append("	parcel.writeValue(key);\n");
-				sb.append(indent).append("	parcel.");
-				if (mapType.isNative()) {
-					sb.append("writeValue(").append(member.getName()).append(".get(key));\n");
-				} else {
-					sb.append("writeParcelable(").append(member.getName()).append(", flags);\n");
-				}
+			// like: parcel.writeString(title);
+			if (typeName.equals("string") || typeName.equals("any")) {
+				sb.append(indent).append("parcel.writeString(").append(name).append(");\n");
 
-				sb.append(indent).append("}\n");
+			// like: writeInteger(parcel, year);
+			} else if (typeName.equals("integer")) {
+				sb.append(indent).append("writeInteger(parcel, ").append(name).append(");\n");
 
-			} else {
-				// like: parcel.writeInt(muted ? 1 : 0);
-				if (klass.isNative() && klass.getName().equals("boolean")) {
-					sb.append(indent).append("parcel.writeInt(");
-					sb.append(member.getName());
-					sb.append(" ? 1 : 0);\n");
+			// like: writeBoolean(parcel, muted);
+			} else if (typeName.equals("boolean")) {
+				sb.append(indent).append("writeBoolean(parcel, ").append(name).append(");\n");
 
-					// like: parcel.writeValue(data);
-				} else {
-					sb.append(indent).append("parcel.writeValue(");
-					sb.append(member.getName());
-					sb.append(");\n");
-				}
+			// like: writeDouble(parcel, rating);
+			} else if (typeName.equals("number")) {
+				sb.append(indent).append("writeDouble(parcel, ").append(name).append(");\n");
+
+			} else {
+				throw new IllegalArgumentException("Don't know how to parcel Class " + typeName + ".");
 			}
 
+		// like: writeModel(parcel, resume, flags);
+		} else {
+			sb.append(indent).append("writeModel(parcel, ").append(name).append(", flags);\n");
 		}
 	}
 
@@ -206,12 +241,43 @@ public class ModelParcelableClassModule extends AbstractView implements IClassMo
 		if (klass.doesExtend()) {
 			sb.append(indent).append("	super(parcel);\n");
 		}
+		final List<JavaAttribute> primitives = getPrimitiveMembers(klass);
+		if (!primitives.isEmpty()) {
+			sb.append(indent).append("	mPresence = parcel.").append(isPresenceArray(primitives) ? "createIntArray" : "readLong").append("();\n");
+		}
 		for (JavaAttribute member : klass.getMembers()) {
-			renderParcelConstructor(sb, ns, member, idt + 1);
+			if (primitives.contains(member)) {
+				renderReadPrimitive(sb, member, idt + 1);
+			} else {
+				renderParcelConstructor(sb, ns, member, idt + 1);
+			}
 		}
 		sb.append(indent).append("}\n");
 	}
 
+	/**
+	 * Generates the parcel de-serializator for a primitive member, which is
+	 * only read if its bit in the presence mask is set.
+	 * 
+	 * @param sb Current StringBuilder
+	 * @param member Primitive member
+	 * @param idt Indent
+	 */
+	private void renderReadPrimitive(StringBuilder sb, JavaAttribute member, int idt) {
+		final String indent = getIndent(idt);
+		final String type = getPrimitiveType(member.getType());
+
+		// like: year = hasYear() ? parcel.readInt() : 0;
+		sb.append(indent).append(member.getName()).append(" = ").append(getPresenceAccessor(member)).append("()");
+		if (type.equals("boolean")) {
+			sb.append(" && parcel.readInt() == 1;\n");
+		} else if (type.equals("double")) {
+			sb.append(" ? parcel.readDouble() : 0.0;\n");
+		} else {
+			sb.append(" ? parcel.readInt() : 0;\n");
+		}
+	}
+
 	/**
 	 * Generates the parcel de-serializator for one member.
 	 * 
@@ -223,77 +289,17 @@ public class ModelParcelableClassModule extends AbstractView implements IClassMo
 	private void renderParcelConstructor(StringBuilder sb, Namespace ns, JavaAttribute member, int idt) {
 		final String indent = getIndent(idt);
 
+		// like: artist = parcel.readString();
+		sb.append(indent).append(member.getName()).append(" = ");
 		if (member.isEnum()) {
-			sb.append(indent).append(member.getName());
-			sb.append(" = parcel.readString(); // enum\n");
-		} else {
-
-			final JavaClass klass = member.getType();
-			if (klass.isTypeArray()) {
-				final JavaClass arrayType = klass.getArrayType();
-
-				// like: final int genreSize = parcel.readInt();
-				sb.append(indent).append("final int ");
-				sb.append(member.getName());
-				sb.append("Size = parcel.readInt();\n");
-
-				// like: genre = new ArrayList<String>(genreSize);
-				sb.append(indent).append(member.getName());
-				sb.append(" = new ArrayList<");
-				sb.append(getClassReference(ns, arrayType));
-				sb.append(">(");
-				sb.append(member.getName());
-				sb.append("Size);\n");
-
-				// like: for (int i = 0; i < genreSize; i++) {
-				sb.append(indent).append("for (int i = 0; i < ");
-				sb.append(member.getName());
-				sb.append("Size; i++) {\n");
-
-				// like: genre.add(parcel.readString());
-				sb.append(indent).append("\t");
-				sb.append(member.getName());
-				sb.append(".add(parcel.");
-				sb.append(getUnparcelStatement(ns, arrayType));
-				sb.append(");\n");
-
-				sb.append(indent).append("}\n");
-
-			} else if (klass.isTypeMap()) {
-				final JavaClass mapType = klass.getMapType();
-
-				// like: final int uniqueidSize = parcel.readInt();
-				sb.append(indent).append("final int ");
-				sb.append(member.getName());
-				sb.append("Size = parcel.readInt();\n");
-
-				// like: uniqueid = new HashMap<String, String>();
-				sb.append(indent).append(member.getName());
-				sb.append(" = new HashMap<String, ");
-				sb.append(getClassReference(ns, mapType));
-				sb.append(">();\n");
-
-				// like: for (int i = 0; i < uniqueidSize; i++) {
-				sb.append(indent).append("for (int i = 0; i < ");
-				sb.append(member.getName());
-				sb.append("Size; i++) {\n");
-
-				// like: genre.add(parcel.readString());
-				sb.append(indent).append("\t");
-				sb.append(member.getName());
-				sb.append(".put(parcel.readString(), parcel.");
-				sb.append(getUnparcelStatement(ns, mapType));
-				sb.append(");\n");
-
-				sb.append(indent).append("}\n");
-
+			if (isJavaEnum(member.getEnum())) {
+				// like: type = Type.fromOrdinal(parcel.readInt()); // enum
+				sb.append(getClassName(ns, member)).append(".fromOrdinal(parcel.readInt()); // enum\n");
 			} else {
-				// like: artist = parcel.readString();
-				sb.append(indent).append(member.getName());
-				sb.append(" = parcel.");
-				sb.append(getUnparcelStatement(ns, klass));
-				sb.append(";\n");
+				sb.append("parcel.readString(); // enum\n");
 			}
+		} else {
+			sb.append(getUnparcelStatement(ns, member.getType())).append(";\n");
 		}
 	}
 
@@ -302,33 +308,64 @@ public class ModelParcelableClassModule extends AbstractView implements IClassMo
 	 * 
 	 * @param ns Namespace reference
 	 * @param k Given type
-	 * @return
+	 * @return Expression reading the type from <tt>parcel</tt>
 	 */
 	private String getUnparcelStatement(Namespace ns, JavaClass k) {
-		if (k.isNative()) {
+		if (k.isTypeArray()) {
+			final JavaClass arrayType = k.getArrayType();
+			if (arrayType.isNative()) {
+				final String typeName = arrayType.getName();
+				if (typeName.equals("integer")) {
+					return "readIntegerList(parcel)";
+
+				} else if (typeName.equals("string") || typeName.equals("any")) {
+					return "parcel.createStringArrayList()";
+				}
+				throw new IllegalArgumentException("Don't know how to unparcel arrays of " + typeName + ".");
+
+			} else {
+				return "parcel.createTypedArrayList(" + getClassReference(ns, arrayType) + ".CREATOR)";
+			}
+
+		} else if (k.isTypeMap()) {
+			if (isStringType(k.getMapType())) {
+				return "readStringMap(parcel)";
+			}
+			throw new IllegalArgumentException("Don't know how to unparcel maps of " + k.getMapType().getName() + ".");
+
+		} else if (k.isNative()) {
 			final String typeName = k.getName();
 			if (typeName.equals("integer")) {
-				return "readInt()";
+				return "readInteger(parcel)";
 
 			} else if (typeName.equals("string") || typeName.equals("any")) {
-				return "readString()";
+				return "parcel.readString()";
 
 			} else if (typeName.equals("boolean")) {
-				return "readInt() == 1";
+				return "readBoolean(parcel)";
 
 			} else if (typeName.equals("number")) {
-				return "readDouble()";
+				return "readDouble(parcel)";
 
 			}
 
 		} else {
-			final String classRef = getClassReference(ns, k);
-			return "<" + classRef + ">readParcelable(" + classRef + ".class.getClassLoader())";
+			return "readModel(parcel, " + getClassReference(ns, k) + ".CREATOR)";
 		}
 
 		throw new IllegalArgumentException("Don't know how to unparcel Class " + k.getName() + ".");
 	}
 
+	/**
+	 * Returns true if the given type is serialized as string.
+	 * 
+	 * @param k Given type
+	 * @return True if native string or any, false otherwise.
+	 */
+	private boolean isStringType(JavaClass k) {
+		return k.isNative() && (k.getName().equals("string") || k.getName().equals("any"));
+	}
+
 	/**
 	 * Generates the static CREATOR class that creates an object from parcel
 	 * (basically just calls the constructor that does the work.)
@@ -37,6 +37,13 @@ public class Version {
 	private final Branch branch;
 	private final Type type;
 
+	/**
+	 * Hash of the generated model and calls. It changes with every change
+	 * of the generated sources, so data parcelled by another build of the
+	 * library can be told apart.
+	 */
+	public static final String SCHEMA = "%schema%";
+
 	private static Version VERSION;
 
 	/**
@@ -0,0 +1,119 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.api;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.xbmc.android.jsonrpc.api.call.VideoLibrary;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Movies the way <tt>VideoLibrary.GetMovies</tt> returns them with all
+ * properties, shared by the parcel tests and the benchmark.
+ */
+final class MovieFixtures {
+
+	private static final ObjectMapper OM = new ObjectMapper();
+
+	private MovieFixtures() {
+	}
+
+	/**
+	 * Returns the result node of a <tt>VideoLibrary.GetMovies</tt> response.
+	 * @param count Number of movies
+	 * @return Result node
+	 */
+	static JsonNode getMoviesResult(int count) {
+		final StringBuilder sb = new StringBuilder("{\"limits\":{\"start\":0,\"end\":");
+		sb.append(count).append(",\"total\":").append(count).append("},\"movies\":[");
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(getMovie(i));
+		}
+		sb.append("]}");
+		return json(sb.toString());
+	}
+
+	/**
+	 * Returns a call whose response has arrived.
+	 * @param count Number of movies
+	 * @return Call containing the movies
+	 */
+	static VideoLibrary.GetMovies getMovies(int count) {
+		final VideoLibrary.GetMovies call = new VideoLibrary.GetMovies();
+		call.setResult(getMoviesResult(count));
+		return call;
+	}
+
+	/**
+	 * Serializes a model, leaving out null members, so two models can be
+	 * compared.
+	 * @param model Model
+	 * @return JSON string
+	 */
+	static String toJson(AbstractModel model) {
+		final StringWriter writer = new StringWriter();
+		try {
+			final JsonGenerator gen = OM.getJsonFactory().createJsonGenerator(writer);
+			model.writeTo(gen);
+			gen.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return writer.toString();
+	}
+
+	private static String getMovie(int i) {
+		return "{\"movieid\":" + i + ",\"label\":\"Movie " + i + "\",\"title\":\"Movie " + i + "\","
+			+ "\"art\":{\"fanart\":\"image://fanart" + i + ".jpg/\",\"poster\":\"image://poster" + i + ".jpg/\"},"
+			+ "\"playcount\":" + (i % 3) + ",\"fanart\":\"image://fanart" + i + ".jpg/\",\"thumbnail\":\"image://thumb" + i + ".jpg/\","
+			+ "\"dateadded\":\"2014-12-24 17:00:00\",\"file\":\"smb://nas/movies/movie" + i + ".mkv\",\"lastplayed\":\"\","
+			+ "\"plot\":\"A plot long enough to show up in the numbers, about movie number " + i + " and what happens in it.\","
+			+ "\"director\":[\"Director " + i + "\"],\"resume\":{\"position\":" + (i * 1.5) + ",\"total\":6000.0},\"runtime\":6000,"
+			+ "\"streamdetails\":{\"audio\":[{\"channels\":6,\"codec\":\"dca\",\"language\":\"eng\"},{\"channels\":2,\"codec\":\"aac\",\"language\":\"ger\"}],"
+			+ "\"subtitle\":[{\"language\":\"eng\"}],\"video\":[{\"aspect\":1.78,\"codec\":\"h264\",\"duration\":6000,\"height\":1080,\"width\":1920}]},"
+			+ "\"cast\":[{\"name\":\"Actor A\",\"order\":0,\"role\":\"Hero\",\"thumbnail\":\"image://a.jpg/\"},"
+			+ "{\"name\":\"Actor B\",\"order\":1,\"role\":\"Villain\"}],"
+			+ "\"country\":[\"USA\"],\"genre\":[\"Action\",\"Drama\"],\"imdbnumber\":\"tt00" + i + "\",\"mpaa\":\"Rated R\","
+			+ "\"originaltitle\":\"Movie " + i + "\",\"plotoutline\":\"Outline " + i + "\",\"rating\":7.5,\"set\":\"\",\"setid\":0,"
+			+ "\"showlink\":[],\"sorttitle\":\"\",\"studio\":[\"Studio\"],\"tag\":[],\"tagline\":\"Tagline " + i + "\","
+			+ "\"top250\":0,\"trailer\":\"\",\"votes\":\"12,345\",\"writer\":[\"Writer A\",\"Writer B\"],\"year\":" + (1980 + i % 35) + "}";
+	}
+
+	/**
+	 * Parses JSON.
+	 * @param json JSON string
+	 * @return Parsed node
+	 */
+	static JsonNode json(String json) {
+		try {
+			return OM.readTree(json);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
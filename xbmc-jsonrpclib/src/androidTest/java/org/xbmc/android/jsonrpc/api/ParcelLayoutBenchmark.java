@@ -0,0 +1,174 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.api;
+
+import android.os.Parcel;
+import android.util.Log;
+import junit.framework.TestCase;
+import org.xbmc.android.jsonrpc.api.model.VideoModel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the typed parcel layout of the generated models with the one
+ * they had before, using the result of a <tt>VideoLibrary.GetMovies</tt>
+ * call as it goes from the connection service to the connection manager.
+ * <p/>
+ * The old generated code is gone, so its layout is reproduced by hand:
+ * every member went through {@link Parcel#writeValue(Object)}, nested
+ * models through {@link Parcel#writeParcelable(android.os.Parcelable, int)},
+ * and every movie of the list was preceded by its class name. The nested
+ * models themselves use the current layout in both cases, so the old
+ * numbers are on the optimistic side.
+ * <p/>
+ * Results are logged with the tag of this class.
+ */
+public class ParcelLayoutBenchmark extends TestCase {
+
+	private static final String TAG = ParcelLayoutBenchmark.class.getSimpleName();
+
+	private static final int MOVIES = 500;
+	private static final int WARMUP = 5;
+	private static final int ROUNDS = 20;
+
+	public void testGetMoviesResult() {
+		final ArrayList<VideoModel.MovieDetail> movies = MovieFixtures.getMovies(MOVIES).getResults();
+		final long legacy = measure("old layout", new LegacyLayout(), movies);
+		final long typed = measure("typed layout", new TypedLayout(), movies);
+		Log.i(TAG, String.format("Typed layout takes %d%% of the time.", typed * 100 / legacy));
+	}
+
+	/**
+	 * Writes and reads the movies a few times and logs the average.
+	 * @return Average nanoseconds per round
+	 */
+	private static long measure(String name, Layout layout, List<VideoModel.MovieDetail> movies) {
+		int size = 0;
+		long total = 0;
+		for (int i = 0; i < WARMUP + ROUNDS; i++) {
+			final Parcel parcel = Parcel.obtain();
+			try {
+				final long started = System.nanoTime();
+				layout.write(parcel, movies);
+				final byte[] data = parcel.marshall();
+				parcel.unmarshall(data, 0, data.length);
+				parcel.setDataPosition(0);
+				assertEquals(movies.size(), layout.read(parcel));
+				if (i >= WARMUP) {
+					total += System.nanoTime() - started;
+				}
+				size = data.length;
+			} finally {
+				parcel.recycle();
+			}
+		}
+		final long average = total / ROUNDS;
+		Log.i(TAG, String.format("%s: %d movies in %d bytes, %.2fms per round trip.", name, movies.size(), size, average / 1000000d));
+		return average;
+	}
+
+	private interface Layout {
+		void write(Parcel parcel, List<VideoModel.MovieDetail> movies);
+		int read(Parcel parcel);
+	}
+
+	/**
+	 * What the generated code does now.
+	 */
+	private static class TypedLayout implements Layout {
+		@Override
+		public void write(Parcel parcel, List<VideoModel.MovieDetail> movies) {
+			parcel.writeTypedList(movies);
+		}
+		@Override
+		public int read(Parcel parcel) {
+			return parcel.createTypedArrayList(VideoModel.MovieDetail.CREATOR).size();
+		}
+	}
+
+	/**
+	 * What the generated code did before, with type tags for every member
+	 * and class names for every model.
+	 */
+	private static class LegacyLayout implements Layout {
+
+		private static final ClassLoader LOADER = VideoModel.class.getClassLoader();
+
+		@Override
+		public void write(Parcel parcel, List<VideoModel.MovieDetail> movies) {
+			parcel.writeInt(movies.size());
+			for (VideoModel.MovieDetail movie : movies) {
+				parcel.writeString(movie.getClass().getName());
+				parcel.writeValue(movie.label);
+				parcel.writeValue(movie.fanart);
+				parcel.writeValue(movie.thumbnail);
+				parcel.writeParcelable(movie.art, 0);
+				parcel.writeValue(movie.playcount);
+				parcel.writeValue(movie.title);
+				parcel.writeValue(movie.dateadded);
+				parcel.writeValue(movie.file);
+				parcel.writeValue(movie.lastplayed);
+				parcel.writeValue(movie.plot);
+				parcel.writeValue(movie.director);
+				parcel.writeParcelable(movie.resume, 0);
+				parcel.writeValue(movie.runtime);
+				parcel.writeParcelable(movie.streamdetails, 0);
+				parcel.writeValue(movie.cast);
+				parcel.writeValue(movie.country);
+				parcel.writeValue(movie.genre);
+				parcel.writeValue(movie.imdbnumber);
+				parcel.writeValue(movie.movieid);
+				parcel.writeValue(movie.mpaa);
+				parcel.writeValue(movie.originaltitle);
+				parcel.writeValue(movie.plotoutline);
+				parcel.writeValue(movie.rating);
+				parcel.writeValue(movie.set);
+				parcel.writeValue(movie.setid);
+				parcel.writeValue(movie.showlink);
+				parcel.writeValue(movie.sorttitle);
+				parcel.writeValue(movie.studio);
+				parcel.writeValue(movie.tag);
+				parcel.writeValue(movie.tagline);
+				parcel.writeValue(movie.top250);
+				parcel.writeValue(movie.trailer);
+				parcel.writeValue(movie.votes);
+				parcel.writeValue(movie.writer);
+				parcel.writeValue(movie.year);
+			}
+		}
+
+		@Override
+		public int read(Parcel parcel) {
+			final int count = parcel.readInt();
+			final Object[] members = new Object[35];
+			for (int i = 0; i < count; i++) {
+				assertEquals(VideoModel.MovieDetail.class.getName(), parcel.readString());
+				for (int j = 0; j < members.length; j++) {
+					// art, resume and streamdetails were parcelables.
+					members[j] = j == 3 || j == 11 || j == 13 ? parcel.readParcelable(LOADER) : parcel.readValue(LOADER);
+				}
+			}
+			return count;
+		}
+	}
+}
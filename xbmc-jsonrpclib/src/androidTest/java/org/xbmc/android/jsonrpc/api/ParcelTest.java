@@ -0,0 +1,137 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.api;
+
+import android.os.Parcel;
+import junit.framework.TestCase;
+import org.xbmc.android.jsonrpc.api.call.VideoLibrary;
+import org.xbmc.android.jsonrpc.api.model.VideoModel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Writes models and calls to a parcel and reads them back.
+ */
+public class ParcelTest extends TestCase {
+
+	private Parcel mParcel;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mParcel = Parcel.obtain();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mParcel.recycle();
+		super.tearDown();
+	}
+
+	public void testNullableScalars() {
+		AbstractModel.writeInteger(mParcel, 42);
+		AbstractModel.writeInteger(mParcel, null);
+		AbstractModel.writeDouble(mParcel, 7.5);
+		AbstractModel.writeDouble(mParcel, null);
+		AbstractModel.writeBoolean(mParcel, true);
+		AbstractModel.writeBoolean(mParcel, false);
+		AbstractModel.writeBoolean(mParcel, null);
+		rewind();
+
+		assertEquals(Integer.valueOf(42), AbstractModel.readInteger(mParcel));
+		assertNull(AbstractModel.readInteger(mParcel));
+		assertEquals(Double.valueOf(7.5), AbstractModel.readDouble(mParcel));
+		assertNull(AbstractModel.readDouble(mParcel));
+		assertEquals(Boolean.TRUE, AbstractModel.readBoolean(mParcel));
+		assertEquals(Boolean.FALSE, AbstractModel.readBoolean(mParcel));
+		assertNull(AbstractModel.readBoolean(mParcel));
+		assertEquals(0, mParcel.dataAvail());
+	}
+
+	public void testIntegerLists() {
+		final List<Integer> list = Arrays.asList(1, null, 3);
+		AbstractModel.writeIntegerList(mParcel, list);
+		AbstractModel.writeIntegerList(mParcel, new ArrayList<Integer>());
+		AbstractModel.writeIntegerList(mParcel, null);
+		rewind();
+
+		assertEquals(list, AbstractModel.readIntegerList(mParcel));
+		assertTrue(AbstractModel.readIntegerList(mParcel).isEmpty());
+		assertNull(AbstractModel.readIntegerList(mParcel));
+		assertEquals(0, mParcel.dataAvail());
+	}
+
+	public void testStringMaps() {
+		final HashMap<String, String> map = new HashMap<String, String>();
+		map.put("a", "1");
+		map.put("b", null);
+		AbstractModel.writeStringMap(mParcel, map);
+		AbstractModel.writeStringMap(mParcel, null);
+		rewind();
+
+		assertEquals(map, AbstractModel.readStringMap(mParcel));
+		assertNull(AbstractModel.readStringMap(mParcel));
+		assertEquals(0, mParcel.dataAvail());
+	}
+
+	public void testModel() {
+		final VideoModel.MovieDetail movie = MovieFixtures.getMovies(1).getResult();
+		AbstractModel.writeModel(mParcel, movie, 0);
+		AbstractModel.writeModel(mParcel, null, 0);
+		rewind();
+
+		assertEquals(MovieFixtures.toJson(movie), MovieFixtures.toJson(AbstractModel.readModel(mParcel, VideoModel.MovieDetail.CREATOR)));
+		assertNull(AbstractModel.readModel(mParcel, VideoModel.MovieDetail.CREATOR));
+		assertEquals(0, mParcel.dataAvail());
+	}
+
+	public void testModelWithoutMembers() {
+		final VideoModel.MovieDetail movie = new VideoModel.MovieDetail(MovieFixtures.json("{}"));
+		movie.writeToParcel(mParcel, 0);
+		rewind();
+
+		assertEquals(MovieFixtures.toJson(movie), MovieFixtures.toJson(VideoModel.MovieDetail.CREATOR.createFromParcel(mParcel)));
+		assertEquals(0, mParcel.dataAvail());
+	}
+
+	public void testCallWithModelResults() {
+		final VideoLibrary.GetMovies call = MovieFixtures.getMovies(3);
+		mParcel.writeParcelable(call, 0);
+		rewind();
+
+		final VideoLibrary.GetMovies copy = mParcel.readParcelable(VideoLibrary.GetMovies.class.getClassLoader());
+		assertEquals(call.getId(), copy.getId());
+		assertEquals(call.getRequest(), copy.getRequest());
+		assertEquals(3, copy.getTotal());
+		assertEquals(3, copy.getResults().size());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(MovieFixtures.toJson(call.getResults().get(i)), MovieFixtures.toJson(copy.getResults().get(i)));
+		}
+	}
+
+	private void rewind() {
+		mParcel.setDataPosition(0);
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.io;
+
+import android.test.InstrumentationTestCase;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.codehaus.jackson.node.TextNode;
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+import org.xbmc.android.jsonrpc.api.call.JSONRPC;
+import org.xbmc.android.jsonrpc.config.HostConfig;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the {@link DiskCache} on a directory of its own, and checks how
+ * {@link ConnectionManager#callCached(AbstractCall, ApiCallback)} hands out
+ * cached responses.
+ */
+public class DiskCacheTest extends InstrumentationTestCase {
+
+	private static final long TIMEOUT = 5000;
+	private static final String VERSION = "6.14.3";
+
+	private File mDir;
+	private DiskCache mCache;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDir = new File(getInstrumentation().getTargetContext().getCacheDir(), getClass().getSimpleName());
+		delete(mDir);
+		mCache = new DiskCache(mDir, new HostConfig("127.0.0.1"));
+		mCache.setVersion(VERSION);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mCache.close();
+		delete(mDir);
+		super.tearDown();
+	}
+
+	public void testNothingLoadedIfNotStored() {
+		assertNull(mCache.load(new JSONRPC.Ping()));
+	}
+
+	public void testResponseIsLoadedIntoNewInstance() throws Exception {
+		mCache.store(ping("cached"), mCache.getGeneration());
+
+		final JSONRPC.Ping call = new JSONRPC.Ping();
+		final JSONRPC.Ping cached = awaitLoad(call);
+		assertNotSame(call, cached);
+		assertEquals("cached", cached.getResult());
+		assertNull(call.getResult());
+	}
+
+	public void testModelSurvivesDisk() throws Exception {
+		mCache.store(version(), mCache.getGeneration());
+
+		final JSONRPC.Version.VersionResult result = awaitLoad(new JSONRPC.Version()).getResult();
+		assertEquals(6, (int)result.major);
+		assertEquals(14, (int)result.minor);
+		assertEquals(3, (int)result.patch);
+	}
+
+	public void testResponseOfCallSentBeforeInvalidationIsDropped() throws Exception {
+		final long generation = mCache.getGeneration();
+		mCache.invalidateAll();
+		mCache.store(ping("stale"), generation);
+
+		// files are written in order, so once this one is there, the
+		// stale one would be as well.
+		mCache.store(version(), mCache.getGeneration());
+		awaitLoad(new JSONRPC.Version());
+		assertNull(mCache.load(new JSONRPC.Ping()));
+	}
+
+	public void testInvalidationDeletesNamespace() throws Exception {
+		mCache.store(ping("cached"), mCache.getGeneration());
+		awaitLoad(new JSONRPC.Ping());
+
+		mCache.invalidate("JSONRPC.");
+		mCache.store(version(), mCache.getGeneration());
+		awaitLoad(new JSONRPC.Version());
+		assertNull(mCache.load(new JSONRPC.Ping()));
+	}
+
+	public void testEntryOfOtherFormatIsWiped() throws Exception {
+		mCache.store(ping("cached"), mCache.getGeneration());
+		awaitLoad(new JSONRPC.Ping());
+
+		// the header starts with the file format.
+		final File file = getFile(JSONRPC.Ping.API_TYPE);
+		overwriteInt(file, 0, Integer.MAX_VALUE);
+
+		assertNull(mCache.load(new JSONRPC.Ping()));
+		assertFalse(file.exists());
+	}
+
+	public void testEntryWithBrokenLengthIsWiped() throws Exception {
+		mCache.store(ping("cached"), mCache.getGeneration());
+		awaitLoad(new JSONRPC.Ping());
+
+		// format, SDK and schema are followed by the length of the parcel.
+		final File file = getFile(JSONRPC.Ping.API_TYPE);
+		final DataInputStream in = new DataInputStream(new FileInputStream(file));
+		final int offset;
+		try {
+			in.readInt();
+			in.readInt();
+			offset = 8 + 2 + in.readUnsignedShort();
+		} finally {
+			in.close();
+		}
+		overwriteInt(file, offset, Integer.MAX_VALUE);
+
+		assertNull(mCache.load(new JSONRPC.Ping()));
+		assertFalse(file.exists());
+	}
+
+	public void testCachedResponseIsNotOverwrittenByRefresh() throws Exception {
+		mCache.store(ping("cached"), mCache.getGeneration());
+		awaitLoad(new JSONRPC.Ping());
+
+		final StandInServer server = StandInServer.tcp();
+		server.setResponder(new StandInServer.Responder() {
+			@Override
+			public JsonNode answer(ObjectNode request) {
+				if (JSONRPC.Version.API_TYPE.equals(request.get("method").getTextValue())) {
+					return StandInServer.json("{\"jsonrpc\":\"2.0\",\"id\":" + request.get("id") + ",\"result\":{\"major\":6,\"minor\":14,\"patch\":3}}");
+				}
+				return StandInServer.PONG.answer(request);
+			}
+		});
+		final ConnectionManager[] manager = new ConnectionManager[1];
+		getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				manager[0] = new ConnectionManager(getInstrumentation().getTargetContext(), new HostConfig("127.0.0.1"));
+			}
+		});
+		final BlockingQueue<AbstractCall<String>> responses = new LinkedBlockingQueue<AbstractCall<String>>();
+		final AtomicReference<String> error = new AtomicReference<String>();
+		// the cached and the fresh response, or an error.
+		final CountDownLatch done = new CountDownLatch(2);
+		try {
+			manager[0].setTransport(new TcpTransport("127.0.0.1", server.getPort()));
+			manager[0].setDiskCache(mCache);
+
+			final JSONRPC.Ping call = new JSONRPC.Ping();
+			manager[0].callCached(call, new ApiCallback<String>() {
+				@Override
+				public void onResponse(AbstractCall<String> response) {
+					responses.add(response);
+					done.countDown();
+				}
+				@Override
+				public void onError(int code, String message, String hint) {
+					// callbacks don't run on the test thread, so fail() would get lost.
+					error.compareAndSet(null, code + ": " + message);
+					while (done.getCount() > 0) {
+						done.countDown();
+					}
+				}
+			});
+
+			assertTrue("No responses within " + TIMEOUT + "ms.", done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+			assertNull(error.get(), error.get());
+			final AbstractCall<String> cached = responses.poll();
+			final AbstractCall<String> fresh = responses.poll();
+			assertNotNull(fresh);
+			assertNotSame(call, cached);
+			assertEquals("cached", cached.getResult());
+			assertSame(call, fresh);
+			assertEquals("pong", fresh.getResult());
+
+		} finally {
+			manager[0].disconnect();
+			server.close();
+		}
+	}
+
+	private <C extends AbstractCall<?>> C awaitLoad(C call) throws InterruptedException {
+		final long timeout = System.currentTimeMillis() + TIMEOUT;
+		while (System.currentTimeMillis() < timeout) {
+			final C cached = mCache.load(call);
+			if (cached != null) {
+				return cached;
+			}
+			Thread.sleep(20);
+		}
+		fail(call.getName() + " not written within " + TIMEOUT + "ms.");
+		return null;
+	}
+
+	private File getFile(String method) {
+		final File[] files = mDir.listFiles();
+		assertNotNull(files);
+		for (File file : files) {
+			if (file.getName().startsWith(method + "-")) {
+				return file;
+			}
+		}
+		fail("No entry for " + method + " in " + mDir + ".");
+		return null;
+	}
+
+	private static void overwriteInt(File file, int offset, int value) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(offset);
+			raf.writeInt(value);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static JSONRPC.Ping ping(String result) {
+		final JSONRPC.Ping ping = new JSONRPC.Ping();
+		ping.setResult(TextNode.valueOf(result));
+		return ping;
+	}
+
+	private static JSONRPC.Version version() {
+		final JSONRPC.Version version = new JSONRPC.Version();
+		version.setResult(StandInServer.json("{\"major\":6,\"minor\":14,\"patch\":3}"));
+		return version;
+	}
+
+	private static void delete(File dir) {
+		final File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				delete(file);
+			}
+		}
+		dir.delete();
+	}
+}
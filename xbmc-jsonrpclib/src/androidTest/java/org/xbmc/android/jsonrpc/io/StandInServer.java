@@ -0,0 +1,462 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.io;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fake XBMC serving JSON-RPC on a local port, either as raw TCP socket
+ * or as WebSocket.
+ * <p/>
+ * Every request is answered by the {@link Responder}, which by default
+ * returns <tt>"pong"</tt> as result. Batches are answered with an array.
+ * Tests can push notifications to the connected client and drop its
+ * connection to simulate a network failure.
+ * <p/>
+ * Clients are served on their own thread, the one that connected last is
+ * the one notifications go to.
+ */
+public class StandInServer {
+
+	private static final ObjectMapper OM = new ObjectMapper();
+
+	private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	private static final int OP_CONTINUATION = 0x0;
+	private static final int OP_TEXT = 0x1;
+	private static final int OP_CLOSE = 0x8;
+	private static final int OP_PING = 0x9;
+	private static final int OP_PONG = 0xa;
+
+	/**
+	 * Answers with <tt>"pong"</tt> to everything.
+	 */
+	public static final Responder PONG = new Responder() {
+		@Override
+		public JsonNode answer(ObjectNode request) {
+			final ObjectNode response = OM.createObjectNode();
+			response.put("jsonrpc", "2.0");
+			response.put("id", request.get("id"));
+			response.put("result", "pong");
+			return response;
+		}
+	};
+
+	/**
+	 * Never answers.
+	 */
+	public static final Responder SILENT = new Responder() {
+		@Override
+		public JsonNode answer(ObjectNode request) {
+			return null;
+		}
+	};
+
+	private final boolean mWebSocket;
+	private final ServerSocket mServerSocket;
+	private final BlockingQueue<JsonNode> mRequests = new LinkedBlockingQueue<JsonNode>();
+	private final BlockingQueue<Socket> mConnections = new LinkedBlockingQueue<Socket>();
+
+	private volatile Responder mResponder = PONG;
+	private volatile Client mClient;
+	private volatile boolean mClosed = false;
+
+	/**
+	 * Starts a stand-in for XBMC's raw TCP socket.
+	 * @return Running server
+	 * @throws IOException If the port cannot be opened
+	 */
+	public static StandInServer tcp() throws IOException {
+		return new StandInServer(false);
+	}
+
+	/**
+	 * Starts a stand-in for XBMC's WebSocket, served at any path.
+	 * @return Running server
+	 * @throws IOException If the port cannot be opened
+	 */
+	public static StandInServer webSocket() throws IOException {
+		return new StandInServer(true);
+	}
+
+	/**
+	 * Parses JSON, for building notifications and canned responses.
+	 * @param json JSON string
+	 * @return Parsed node
+	 */
+	public static JsonNode json(String json) {
+		try {
+			return OM.readTree(json);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invalid JSON: " + json, e);
+		}
+	}
+
+	private StandInServer(boolean webSocket) throws IOException {
+		mWebSocket = webSocket;
+		mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+		final Thread acceptor = new Thread("StandInServer") {
+			@Override
+			public void run() {
+				accept();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Returns the port the server listens on.
+	 * @return TCP port
+	 */
+	public int getPort() {
+		return mServerSocket.getLocalPort();
+	}
+
+	/**
+	 * Sets who answers the requests from now on.
+	 * @param responder Responder
+	 */
+	public void setResponder(Responder responder) {
+		mResponder = responder;
+	}
+
+	/**
+	 * Waits for a client to connect.
+	 * @param timeout Milliseconds to wait at most
+	 * @return True if a client connected in time, false otherwise
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public boolean awaitConnection(long timeout) throws InterruptedException {
+		return mConnections.poll(timeout, TimeUnit.MILLISECONDS) != null;
+	}
+
+	/**
+	 * Waits for the next request, batches count as one.
+	 * @param timeout Milliseconds to wait at most
+	 * @return Received request or null if nothing arrived in time
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public JsonNode takeRequest(long timeout) throws InterruptedException {
+		return mRequests.poll(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends a notification to the client that connected last.
+	 * @param notification Notification
+	 * @throws IOException If there is no client or writing fails
+	 */
+	public void push(JsonNode notification) throws IOException {
+		final Client client = mClient;
+		if (client == null) {
+			throw new IOException("No client connected.");
+		}
+		client.write(notification);
+	}
+
+	/**
+	 * Cuts the connection of the client that connected last, without any
+	 * closing handshake.
+	 */
+	public void drop() {
+		final Client client = mClient;
+		if (client != null) {
+			client.close();
+		}
+	}
+
+	/**
+	 * Stops accepting clients and drops the connected one.
+	 */
+	public void close() {
+		mClosed = true;
+		drop();
+		try {
+			mServerSocket.close();
+		} catch (IOException e) {
+			// do nothing.
+		}
+	}
+
+	private void accept() {
+		while (!mClosed) {
+			final Socket socket;
+			try {
+				socket = mServerSocket.accept();
+				socket.setTcpNoDelay(true);
+			} catch (IOException e) {
+				return;
+			}
+			final Client client = new Client(socket);
+			mClient = client;
+			final Thread thread = new Thread("StandInServer client") {
+				@Override
+				public void run() {
+					client.serve();
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Answers a request or batch.
+	 * @param request Parsed request
+	 * @return Response or null if nothing is answered
+	 */
+	private JsonNode answer(JsonNode request) {
+		final Responder responder = mResponder;
+		if (!request.isArray()) {
+			return request.has("id") ? responder.answer((ObjectNode)request) : null;
+		}
+		final ArrayNode responses = OM.createArrayNode();
+		for (JsonNode call : request) {
+			final JsonNode response = responder.answer((ObjectNode)call);
+			if (response != null) {
+				responses.add(response);
+			}
+		}
+		return responses.size() > 0 ? responses : null;
+	}
+
+	/**
+	 * One connected client.
+	 */
+	private class Client {
+
+		private final Socket socket;
+		private OutputStream out;
+
+		private Client(Socket socket) {
+			this.socket = socket;
+		}
+
+		private void serve() {
+			try {
+				final InputStream in = socket.getInputStream();
+				out = socket.getOutputStream();
+				if (mWebSocket) {
+					handshake(in);
+				}
+				mConnections.add(socket);
+				if (mWebSocket) {
+					final DataInputStream data = new DataInputStream(in);
+					String message;
+					while ((message = readFrame(data)) != null) {
+						receive(OM.readTree(message));
+					}
+				} else {
+					final JsonParser parser = OM.getJsonFactory().createJsonParser(in);
+					while (parser.nextToken() != null) {
+						receive(OM.readTree(parser));
+					}
+				}
+			} catch (IOException e) {
+				// dropped, either by the client or by the test.
+			} finally {
+				close();
+			}
+		}
+
+		private void receive(JsonNode request) throws IOException {
+			mRequests.add(request);
+			final JsonNode response = answer(request);
+			if (response != null) {
+				write(response);
+			}
+		}
+
+		private synchronized void write(JsonNode message) throws IOException {
+			final byte[] data = OM.writeValueAsBytes(message);
+			if (mWebSocket) {
+				writeFrame(OP_TEXT, data);
+			} else {
+				out.write(data);
+			}
+			out.flush();
+		}
+
+		private void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// do nothing.
+			}
+		}
+
+		/**
+		 * Reads the HTTP upgrade request and accepts it.
+		 */
+		private void handshake(InputStream in) throws IOException {
+			String key = null;
+			String line;
+			while ((line = readLine(in)) != null && line.length() > 0) {
+				final int colon = line.indexOf(':');
+				if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+					key = line.substring(colon + 1).trim();
+				}
+			}
+			if (key == null) {
+				throw new IOException("Not a WebSocket request.");
+			}
+			final String accept;
+			try {
+				final byte[] sha1 = MessageDigest.getInstance("SHA-1").digest((key + WEBSOCKET_GUID).getBytes("ISO-8859-1"));
+				accept = Base64.encodeToString(sha1, false);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e.getMessage());
+			}
+			final String response = "HTTP/1.1 101 Switching Protocols\r\n"
+					+ "Upgrade: websocket\r\n"
+					+ "Connection: Upgrade\r\n"
+					+ "Sec-WebSocket-Accept: " + accept + "\r\n\r\n";
+			synchronized (this) {
+				out.write(response.getBytes("ISO-8859-1"));
+				out.flush();
+			}
+		}
+
+		/**
+		 * Reads a header line byte by byte, so nothing after the header is
+		 * consumed.
+		 * @return Line without line break or null at the end of the stream
+		 */
+		private String readLine(InputStream in) throws IOException {
+			final StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = in.read()) != -1 && c != '\n') {
+				if (c != '\r') {
+					line.append((char)c);
+				}
+			}
+			return c == -1 && line.length() == 0 ? null : line.toString();
+		}
+
+		/**
+		 * Reads the next text message, answering pings on the way.
+		 * @return Message or null if the client closed the socket
+		 */
+		private String readFrame(DataInputStream in) throws IOException {
+			final ByteArrayOutputStream message = new ByteArrayOutputStream();
+			while (true) {
+				final int head;
+				try {
+					head = in.readUnsignedByte();
+				} catch (EOFException e) {
+					return null;
+				}
+				final boolean fin = (head & 0x80) != 0;
+				final int opcode = head & 0x0f;
+				final int second = in.readUnsignedByte();
+				long length = second & 0x7f;
+				if (length == 126) {
+					length = in.readUnsignedShort();
+				} else if (length == 127) {
+					length = in.readLong();
+				}
+				final byte[] mask = new byte[4];
+				if ((second & 0x80) != 0) {
+					in.readFully(mask);
+				}
+				final byte[] payload = new byte[(int)length];
+				in.readFully(payload);
+				for (int i = 0; i < payload.length; i++) {
+					payload[i] ^= mask[i % 4];
+				}
+				switch (opcode) {
+					case OP_CLOSE:
+						synchronized (this) {
+							writeFrame(OP_CLOSE, new byte[0]);
+						}
+						return null;
+					case OP_PING:
+						synchronized (this) {
+							writeFrame(OP_PONG, payload);
+						}
+						break;
+					case OP_TEXT:
+					case OP_CONTINUATION:
+						message.write(payload);
+						if (fin) {
+							return message.toString("UTF-8");
+						}
+						break;
+					default:
+						break;
+				}
+			}
+		}
+
+		/**
+		 * Writes one unmasked frame, as servers do.
+		 */
+		private void writeFrame(int opcode, byte[] payload) throws IOException {
+			out.write(0x80 | opcode);
+			if (payload.length < 126) {
+				out.write(payload.length);
+			} else if (payload.length < 65536) {
+				out.write(126);
+				out.write(payload.length >>> 8);
+				out.write(payload.length & 0xff);
+			} else {
+				out.write(127);
+				for (int i = 7; i >= 0; i--) {
+					out.write(i > 3 ? 0 : (payload.length >>> (8 * i)) & 0xff);
+				}
+			}
+			out.write(payload);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Answers requests.
+	 */
+	public interface Responder {
+		/**
+		 * Returns the response to a request.
+		 * @param request Request as received
+		 * @return Response or null to never answer
+		 */
+		public JsonNode answer(ObjectNode request);
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.io;
+
+import junit.framework.TestCase;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+import org.xbmc.android.jsonrpc.api.call.JSONRPC;
+import org.xbmc.android.jsonrpc.notification.AbstractEvent;
+import org.xbmc.android.jsonrpc.notification.PlayerEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the {@link WebSocketTransport} against a local {@link StandInServer}.
+ */
+public class WebSocketTransportTest extends TestCase {
+
+	private static final long TIMEOUT = 5000;
+
+	private StandInServer mServer;
+	private WebSocketTransport mTransport;
+	private final BlockingQueue<Object> mEvents = new LinkedBlockingQueue<Object>();
+
+	private final Transport.Listener mListener = new Transport.Listener() {
+		@Override
+		public void onConnected() {
+			mEvents.add("connected");
+		}
+		@Override
+		public void onResponse(AbstractCall<?> call) {
+			mEvents.add(call);
+		}
+		@Override
+		public void onError(long id, ApiException e) {
+			mEvents.add(new Failure(id, e));
+		}
+		@Override
+		public void onNotification(AbstractEvent event) {
+			mEvents.add(event);
+		}
+	};
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mServer = StandInServer.webSocket();
+		mTransport = new WebSocketTransport("127.0.0.1", mServer.getPort());
+		mTransport.open(mListener);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mTransport.close();
+		mServer.close();
+		super.tearDown();
+	}
+
+	public void testCallSentWhileOpeningIsAnswered() throws Exception {
+		final JSONRPC.Ping ping = new JSONRPC.Ping();
+		mTransport.send(ping);
+
+		assertEquals("connected", next());
+		assertSame(ping, next());
+		assertEquals("pong", ping.getResult());
+
+		final JsonNode request = mServer.takeRequest(TIMEOUT);
+		assertEquals("JSONRPC.Ping", request.get("method").getTextValue());
+		assertEquals(ping.getId(), request.get("id").getLongValue());
+	}
+
+	public void testBatchIsSentAsOneArray() throws Exception {
+		final List<AbstractCall<?>> batch = new ArrayList<AbstractCall<?>>();
+		batch.add(new JSONRPC.Ping());
+		batch.add(new JSONRPC.Ping());
+		mTransport.send(batch);
+
+		assertEquals("connected", next());
+		final JsonNode request = mServer.takeRequest(TIMEOUT);
+		assertTrue(request.isArray());
+		assertEquals(2, request.size());
+		final Object first = next();
+		final Object second = next();
+		assertTrue(batch.contains(first));
+		assertTrue(batch.contains(second));
+		assertNotSame(first, second);
+	}
+
+	public void testErrorResponseFailsOnlyItsCall() throws Exception {
+		mServer.setResponder(new StandInServer.Responder() {
+			@Override
+			public JsonNode answer(ObjectNode request) {
+				return StandInServer.json("{\"jsonrpc\":\"2.0\",\"id\":" + request.get("id") + ",\"error\":{\"code\":-32601,\"message\":\"Method not found.\"}}");
+			}
+		});
+		final JSONRPC.Ping ping = new JSONRPC.Ping();
+		mTransport.send(ping);
+
+		assertEquals("connected", next());
+		final Failure error = (Failure)next();
+		assertEquals(ping.getId(), error.id);
+		assertEquals(ApiException.API_ERROR, error.e.getCode());
+	}
+
+	public void testNotificationIsDelivered() throws Exception {
+		mTransport.send(new JSONRPC.Ping());
+		assertEquals("connected", next());
+		next();
+		assertTrue(mServer.awaitConnection(TIMEOUT));
+
+		mServer.push(StandInServer.json("{\"jsonrpc\":\"2.0\",\"method\":\"Player.OnPause\",\"params\":{\"data\":"
+				+ "{\"item\":{\"id\":1,\"type\":\"song\"},\"player\":{\"playerid\":0,\"speed\":0}},\"sender\":\"xbmc\"}}"));
+		assertTrue(next() instanceof PlayerEvent.Pause);
+	}
+
+	public void testDroppedSocketFailsCallsInFlightAndReconnects() throws Exception {
+		mServer.setResponder(StandInServer.SILENT);
+		mTransport.send(new JSONRPC.Ping());
+		assertEquals("connected", next());
+		assertNotNull(mServer.takeRequest(TIMEOUT));
+		assertTrue(mServer.awaitConnection(TIMEOUT));
+
+		mServer.drop();
+		final Failure error = (Failure)next();
+		assertEquals(0, error.id);
+
+		// the next call opens a new socket.
+		mServer.setResponder(StandInServer.PONG);
+		final JSONRPC.Ping ping = new JSONRPC.Ping();
+		mTransport.send(ping);
+		assertEquals("connected", next());
+		assertSame(ping, next());
+		assertTrue(mServer.awaitConnection(TIMEOUT));
+	}
+
+	public void testCallWithoutResponseTimesOut() throws Exception {
+		mServer.setResponder(StandInServer.SILENT);
+		final JSONRPC.Ping ping = new JSONRPC.Ping();
+		ping.setTimeout(300);
+		mTransport.send(ping);
+
+		assertEquals("connected", next());
+		final Failure error = (Failure)next();
+		assertEquals(ping.getId(), error.id);
+		assertEquals(ApiException.IO_REQUEST_TIMEOUT, error.e.getCode());
+	}
+
+	private Object next() throws InterruptedException {
+		final Object event = mEvents.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull("Nothing received within " + TIMEOUT + "ms.", event);
+		return event;
+	}
+
+	private static class Failure {
+		private final long id;
+		private final ApiException e;
+		private Failure(long id, ApiException e) {
+			this.id = id;
+			this.e = e;
+		}
+	}
+}
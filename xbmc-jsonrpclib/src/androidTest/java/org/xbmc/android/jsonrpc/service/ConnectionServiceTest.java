@@ -0,0 +1,177 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.service;
+
+import android.test.InstrumentationTestCase;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+import org.xbmc.android.jsonrpc.api.call.JSONRPC;
+import org.xbmc.android.jsonrpc.api.call.VideoLibrary;
+import org.xbmc.android.jsonrpc.api.model.VideoModel;
+import org.xbmc.android.jsonrpc.config.HostConfig;
+import org.xbmc.android.jsonrpc.io.ApiCallback;
+import org.xbmc.android.jsonrpc.io.ApiException;
+import org.xbmc.android.jsonrpc.io.ConnectionManager;
+import org.xbmc.android.jsonrpc.io.StandInServer;
+import org.xbmc.android.jsonrpc.notification.PlayerEvent;
+import org.xbmc.android.jsonrpc.notification.PlayerObserver;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drops the TCP connection of the {@link ConnectionService} and checks that
+ * it comes back without the clients noticing more than a reconnect.
+ */
+public class ConnectionServiceTest extends InstrumentationTestCase {
+
+	private static final ObjectMapper OM = new ObjectMapper();
+	private static final long TIMEOUT = 5000;
+
+	private StandInServer mServer;
+	private ConnectionManager mManager;
+	private final BlockingQueue<Object> mEvents = new LinkedBlockingQueue<Object>();
+
+	private final ConnectionManager.NotificationObserver mObserver = new ConnectionManager.NotificationObserver() {
+		@Override
+		public PlayerObserver getPlayerObserver() {
+			return new PlayerObserver() {
+				@Override
+				public void onPause(PlayerEvent.Pause notification) {
+					mEvents.add(notification);
+				}
+			};
+		}
+		@Override
+		public void onConnected() {
+			mEvents.add("connected");
+		}
+		@Override
+		public void onError(int code, String message, String hint) {
+			mEvents.add("error " + code + ": " + message);
+		}
+	};
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mServer = StandInServer.tcp();
+		// the manager's handler needs a looper.
+		getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				mManager = new ConnectionManager(getInstrumentation().getTargetContext(), new HostConfig("127.0.0.1", 8080, mServer.getPort()));
+			}
+		});
+		mManager.registerObserver(mObserver);
+		assertEquals("connected", next());
+		assertTrue(mServer.awaitConnection(TIMEOUT));
+		// registering while the socket connects may announce it twice.
+		Thread.sleep(200);
+		mEvents.clear();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mManager.unregisterObserver(mObserver);
+		mServer.close();
+		super.tearDown();
+	}
+
+	public void testObserverStaysRegisteredThroughDroppedSocket() throws Exception {
+		mServer.drop();
+
+		// the first attempt comes after a quarter of a second at most.
+		final long dropped = System.currentTimeMillis();
+		assertTrue(mServer.awaitConnection(TIMEOUT));
+		assertTrue(System.currentTimeMillis() - dropped < 2000);
+		assertEquals("connected", next());
+
+		mServer.push(StandInServer.json("{\"jsonrpc\":\"2.0\",\"method\":\"Player.OnPause\",\"params\":{\"data\":"
+				+ "{\"item\":{\"id\":1,\"type\":\"song\"},\"player\":{\"playerid\":0,\"speed\":0}},\"sender\":\"xbmc\"}}"));
+		assertTrue(next() instanceof PlayerEvent.Pause);
+	}
+
+	public void testIdempotentCallInFlightIsReplayed() throws Exception {
+		mServer.setResponder(StandInServer.SILENT);
+		final JSONRPC.Ping ping = new JSONRPC.Ping();
+		mManager.call(ping, new ApiCallback<String>() {
+			@Override
+			public void onResponse(AbstractCall<String> call) {
+				mEvents.add(call.getResult());
+			}
+			@Override
+			public void onError(int code, String message, String hint) {
+				mEvents.add("error " + code + ": " + message);
+			}
+		});
+		assertEquals(ping.getId(), mServer.takeRequest(TIMEOUT).get("id").getLongValue());
+
+		mServer.setResponder(StandInServer.PONG);
+		mServer.drop();
+		assertTrue(mServer.awaitConnection(TIMEOUT));
+		assertEquals(ping.getId(), mServer.takeRequest(TIMEOUT).get("id").getLongValue());
+
+		// the order of the reconnect and the response isn't defined.
+		final Object first = next();
+		final Object second = next();
+		assertTrue(first + ", " + second, "connected".equals(first) ? "pong".equals(second) : "pong".equals(first) && "connected".equals(second));
+	}
+
+	public void testUnparsableResultKeepsConnection() throws Exception {
+		mServer.setResponder(new StandInServer.Responder() {
+			@Override
+			public JsonNode answer(ObjectNode request) {
+				final ObjectNode response = OM.createObjectNode();
+				response.put("jsonrpc", "2.0");
+				response.put("id", request.get("id"));
+				response.putObject("result").put("moviedetails", "Alien");
+				return response;
+			}
+		});
+		mManager.call(new VideoLibrary.GetMovieDetails(1), new ApiCallback<VideoModel.MovieDetail>() {
+			@Override
+			public void onResponse(AbstractCall<VideoModel.MovieDetail> call) {
+				mEvents.add(call.getResult());
+			}
+			@Override
+			public void onError(int code, String message, String hint) {
+				mEvents.add("call error " + code);
+			}
+		});
+		assertEquals("call error " + ApiException.RESPONSE_ERROR, next());
+
+		// the observer is still registered and the socket still open.
+		mServer.push(StandInServer.json("{\"jsonrpc\":\"2.0\",\"method\":\"Player.OnPause\",\"params\":{\"data\":"
+				+ "{\"item\":{\"id\":1,\"type\":\"song\"},\"player\":{\"playerid\":0,\"speed\":0}},\"sender\":\"xbmc\"}}"));
+		assertTrue(next() instanceof PlayerEvent.Pause);
+	}
+
+	private Object next() throws InterruptedException {
+		final Object event = mEvents.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull("Nothing received within " + TIMEOUT + "ms.", event);
+		return event;
+	}
+}
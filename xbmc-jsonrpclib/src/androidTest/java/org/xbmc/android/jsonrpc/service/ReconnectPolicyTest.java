@@ -0,0 +1,60 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.service;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the delays of the {@link ReconnectPolicy}.
+ */
+public class ReconnectPolicyTest extends TestCase {
+
+	public void testFirstAttemptIsQuick() {
+		final ReconnectPolicy policy = new ReconnectPolicy();
+		assertFalse(policy.isReconnecting());
+		final long delay = policy.nextDelay();
+		assertTrue(delay >= 125 && delay <= 250);
+		assertTrue(policy.isReconnecting());
+	}
+
+	public void testDelaysGrowUpToMaximum() {
+		final ReconnectPolicy policy = new ReconnectPolicy();
+		long cap = 250;
+		for (int i = 0; i < 12; i++) {
+			final long delay = policy.nextDelay();
+			assertTrue("Attempt " + i + " waits " + delay + "ms.", delay >= cap / 2 && delay <= cap);
+			cap = Math.min(30000, cap * 2);
+		}
+	}
+
+	public void testGivesUpAndStartsOverAfterReset() {
+		final ReconnectPolicy policy = new ReconnectPolicy();
+		for (int i = 0; i < 12; i++) {
+			assertTrue(policy.nextDelay() >= 0);
+		}
+		assertEquals(-1, policy.nextDelay());
+
+		policy.reset();
+		assertFalse(policy.isReconnecting());
+		assertTrue(policy.nextDelay() <= 250);
+	}
+}
@@ -24,17 +24,24 @@ package org.xbmc.android.jsonrpc.api;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.NullNode;
 import org.codehaus.jackson.node.ObjectNode;
+import org.codehaus.jackson.util.TokenBuffer;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Random;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Super class of all API call implementations.
@@ -73,25 +80,44 @@ import java.util.Random;
  *
  * @author freezy <freezy@xbmc.org>
  */
-public abstract class AbstractCall<T> implements Parcelable {
+public abstract class AbstractCall<T> implements Parcelable, Cloneable {
 
 //	private static final String TAG = AbstractCall.class.getSimpleName();
 
 	public static final String RESULT = "result";
 
-	private final static Random RND = new Random(System.currentTimeMillis());
+	/**
+	 * Source of request IDs. IDs are unique within the process, so calls of
+	 * different clients sharing the same connection never collide.
+	 */
+	private final static AtomicLong ID_SEQUENCE = new AtomicLong(0);
 	protected final static ObjectMapper OM = new ObjectMapper();
 
 	/**
 	 * Name of the node containing pagination limits
 	 */
 	public static final String LIMITS = "limits";
+	/**
+	 * Name of the total number of items within the pagination limits
+	 */
+	public static final String TOTAL = "total";
 
 	/**
 	 * Name of the node containing parameters in the JSON-RPC request
 	 */
 	private static final String PARAMS = "params";
 
+	/**
+	 * Milliseconds to wait for a response by default.
+	 */
+	public static final long DEFAULT_TIMEOUT = 10000;
+
+	/**
+	 * Milliseconds to wait for a response of library and file methods by
+	 * default, which can return huge lists.
+	 */
+	public static final long LIBRARY_TIMEOUT = 60000;
+
 	/**
 	 * Returns the name of the method.
 	 * @return Full name of the method, e.g. "AudioLibrary.GetSongDetails".
@@ -110,13 +136,20 @@ public abstract class AbstractCall<T> implements Parcelable {
 	protected abstract boolean returnsList();
 
 	/**
-	 * JSON request object sent to the API
+	 * Parameters of the request, by name. Values are written as they are when
+	 * the request is sent, so no tree is built for them.
+	 */
+	private LinkedHashMap<String, Object> mParams = null;
+
+	/**
+	 * JSON request object sent to the API, only built when asked for through
+	 * {@link #getRequest()} or read from a parcel.
 	 *
 	 * <p/>
 	 * <u>Example</u>:
-	 * 	<code>{"jsonrpc": "2.0", "method": "Application.GetProperties", "id": "1", "params": { "properties": [ "version" ] } }</code>
+	 * 	<code>{"jsonrpc": "2.0", "method": "Application.GetProperties", "id": 1, "params": { "properties": [ "version" ] } }</code>
 	 */
-	public ObjectNode mRequest = OM.createObjectNode();
+	private ObjectNode mRequest = null;
 
 	/**
 	 * The <tt>response</tt> node of the JSON response (the root node of the
@@ -127,33 +160,132 @@ public abstract class AbstractCall<T> implements Parcelable {
 	 */
 	protected T mResult = null;
 	protected ArrayList<T> mResults = null;
+	/**
+	 * Total number of items of a paged list, -1 if not paged.
+	 */
+	private int mTotal = -1;
+
+	/**
+	 * The ID of the request, always positive.
+	 */
+	private final long mId;
 
 	/**
-	 * The ID of the request.
+	 * Milliseconds to wait for a response, or 0 for the method's default.
 	 */
-	private final String mId;
+	private long mTimeout = 0;
 
 	/**
-	 * Creates the standard structure of the JSON request.
+	 * Creates a new call with a new ID.
 	 *
 	 */
 	protected AbstractCall() {
-		final ObjectNode request = mRequest;
-
-		mId = String.valueOf(RND.nextLong());
-		request.put("jsonrpc", "2.0");
-		request.put("id", mId);
-		request.put("method", getName());
+		mId = ID_SEQUENCE.incrementAndGet();
 	}
 
 	/**
 	 * Returns the JSON request object sent to XBMC.
+	 * <p/>
+	 * Transports write the request straight to their stream through
+	 * {@link #writeTo(JsonGenerator)}, so the tree is only built when this is
+	 * called.
+	 *
 	 * @return Request object
 	 */
 	public ObjectNode getRequest() {
+		if (mRequest == null) {
+			final TokenBuffer buffer = new TokenBuffer(OM);
+			try {
+				writeTo(buffer);
+				mRequest = (ObjectNode)OM.readTree(buffer.asParser());
+			} catch (IOException e) {
+				// token buffers don't do any I/O.
+				throw new IllegalStateException("Error building request of " + getName() + ": " + e.getMessage(), e);
+			}
+		}
 		return mRequest;
 	}
 
+	/**
+	 * Writes the JSON request straight to a generator, without building a
+	 * tree first.
+	 *
+	 * @param gen Generator to write to
+	 * @throws IOException If writing fails
+	 */
+	public void writeTo(JsonGenerator gen) throws IOException {
+		if (mRequest != null) {
+			OM.writeTree(gen, mRequest);
+			return;
+		}
+		gen.writeStartObject();
+		gen.writeStringField("jsonrpc", "2.0");
+		gen.writeNumberField("id", mId);
+		gen.writeStringField("method", getName());
+		if (mParams != null) {
+			gen.writeFieldName(PARAMS);
+			writeParameters(gen);
+		}
+		gen.writeEndObject();
+	}
+
+	/**
+	 * Writes the <tt>params</tt> object of the request, if any.
+	 *
+	 * @param gen Generator to write to
+	 * @return True if parameters were written, false if the call has none
+	 * @throws IOException If writing fails
+	 */
+	public boolean writeParameters(JsonGenerator gen) throws IOException {
+		if (mRequest != null) {
+			final JsonNode params = mRequest.get(PARAMS);
+			if (params == null) {
+				return false;
+			}
+			OM.writeTree(gen, params);
+			return true;
+		}
+		if (mParams == null) {
+			return false;
+		}
+		gen.writeStartObject();
+		for (Map.Entry<String, Object> param : mParams.entrySet()) {
+			gen.writeFieldName(param.getKey());
+			writeValue(gen, param.getValue());
+		}
+		gen.writeEndObject();
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void writeValue(JsonGenerator gen, Object value) throws IOException {
+		if (value instanceof String) {
+			gen.writeString((String)value);
+		} else if (value instanceof Integer) {
+			gen.writeNumber((Integer)value);
+		} else if (value instanceof Boolean) {
+			gen.writeBoolean((Boolean)value);
+		} else if (value instanceof Double) {
+			gen.writeNumber((Double)value);
+		} else if (value instanceof AbstractModel) {
+			((AbstractModel)value).writeTo(gen);
+		} else if (value instanceof String[]) {
+			gen.writeStartArray();
+			for (String item : (String[])value) {
+				gen.writeString(item);
+			}
+			gen.writeEndArray();
+		} else if (value instanceof HashMap) {
+			gen.writeStartObject();
+			for (Map.Entry<String, String> entry : ((HashMap<String, String>)value).entrySet()) {
+				gen.writeStringField(entry.getKey(), entry.getValue());
+			}
+			gen.writeEndObject();
+		} else {
+			gen.writeNull();
+		}
+	}
+
 	/**
 	 * Sets the response object once the data has arrived.
 	 * <p/>
@@ -162,22 +294,163 @@ public abstract class AbstractCall<T> implements Parcelable {
 	 * @param response Root node of response
 	 */
 	public void setResponse(JsonNode response) {
+		setResult(response.get(RESULT));
+	}
+
+	/**
+	 * Sets the result once the data has arrived.
+	 * <p/>
+	 * As opposed to {@link #setResponse(JsonNode)}, this is the
+	 * <tt>result</tt> node only, so the rest of the response never has to be
+	 * read into a tree.
+	 * @param result The <tt>result</tt> node of the response
+	 */
+	public void setResult(JsonNode result) {
 		if (returnsList()) {
-			mResults = parseMany(response.get(RESULT));
+			mResults = parseMany(result);
+			if (result != null && result.has(LIMITS) && result.get(LIMITS).has(TOTAL)) {
+				mTotal = result.get(LIMITS).get(TOTAL).getIntValue();
+			}
 		} else {
-			mResult = parseOne(response.get(RESULT));
+			mResult = parseOne(result);
 		}
 	}
 
+	/**
+	 * Reads the result straight from the token stream once the data has
+	 * arrived.
+	 * <p/>
+	 * The parser must be positioned at the start of the <tt>result</tt> value
+	 * and is positioned at its end when returning. By default, the result is
+	 * read into a tree and passed to {@link #setResult(JsonNode)}. Calls
+	 * returning lists override this with {@link #readResults(JsonParser, String)},
+	 * so the items are read one by one without ever building a tree.
+	 *
+	 * @param parser Parser positioned at the <tt>result</tt> value
+	 * @throws IOException If the result cannot be parsed
+	 */
+	public void setResult(JsonParser parser) throws IOException {
+		setResult(OM.readTree(parser));
+	}
+
+	/**
+	 * Reads a list result from the token stream, item by item through
+	 * {@link #readItem(JsonParser)}. The total of the pagination limits is
+	 * read along the way.
+	 *
+	 * @param parser Parser positioned at the <tt>result</tt> value
+	 * @param key Name of the array within the result, or null if the result
+	 *            is the array
+	 * @throws IOException If the result cannot be parsed
+	 */
+	protected void readResults(JsonParser parser, String key) throws IOException {
+		ArrayList<T> results = null;
+		if (key == null) {
+			results = readItems(parser);
+		} else if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String name = parser.getCurrentName();
+				parser.nextToken();
+				if (key.equals(name)) {
+					results = readItems(parser);
+				} else if (LIMITS.equals(name) && parser.getCurrentToken() == JsonToken.START_OBJECT) {
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						final String limit = parser.getCurrentName();
+						parser.nextToken();
+						if (TOTAL.equals(limit)) {
+							mTotal = parser.getIntValue();
+						} else {
+							parser.skipChildren();
+						}
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		} else {
+			parser.skipChildren();
+		}
+		mResults = results != null ? results : new ArrayList<T>(0);
+	}
+
+	private ArrayList<T> readItems(JsonParser parser) throws IOException {
+		if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+			parser.skipChildren();
+			return null;
+		}
+		final ArrayList<T> items = new ArrayList<T>();
+		while (parser.nextToken() != JsonToken.END_ARRAY) {
+			items.add(readItem(parser));
+		}
+		return items;
+	}
+
+	/**
+	 * Reads one item of a list result from the token stream.
+	 * <p/>
+	 * Must be overridden by sub classes using
+	 * {@link #readResults(JsonParser, String)}.
+	 *
+	 * @param parser Parser positioned at the start of the item
+	 * @return Item
+	 * @throws IOException If the item cannot be parsed
+	 */
+	protected T readItem(JsonParser parser) throws IOException {
+		return null;
+	}
+
+	/**
+	 * Returns the creator of the result type if results are models.
+	 * <p/>
+	 * If set, results are parcelled without type tags and class names.
+	 * Otherwise they are written as generic values. Note that this is called
+	 * from the parcel constructor and must therefore not depend on any
+	 * instance state.
+	 *
+	 * @return Creator of the result type or null if results aren't models
+	 */
+	protected Parcelable.Creator<T> getResultCreator() {
+		return null;
+	}
+
+	/**
+	 * Sets the result of an identical call that has been answered already.
+	 * <p/>
+	 * A list result is copied into a new list, so callers can sort or filter
+	 * it without affecting each other. The items themselves are shared.
+	 *
+	 * @param call Answered call of the same type
+	 */
 	@SuppressWarnings("unchecked")
 	public void copyResponse(AbstractCall<?> call) {
 		if (returnsList()) {
-			mResults = (ArrayList<T>)call.getResults();
+			final ArrayList<T> results = (ArrayList<T>)call.getResults();
+			mResults = results == null ? null : new ArrayList<T>(results);
+			mTotal = call.getTotal();
 		} else {
 			mResult = (T)call.getResult();
 		}
 	}
 
+	/**
+	 * Returns a copy of this call holding a snapshot of its response, as
+	 * {@link #copyResponse(AbstractCall)} takes it. Parameters are shared,
+	 * they don't change once the call is created.
+	 *
+	 * @return Copy of the call
+	 */
+	@SuppressWarnings("unchecked")
+	public AbstractCall<T> copy() {
+		final AbstractCall<T> copy;
+		try {
+			copy = (AbstractCall<T>)super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+		copy.copyResponse(this);
+		return copy;
+	}
+
 	/**
 	 * Returns the result as a single item.
 	 * <p>
@@ -193,6 +466,17 @@ public abstract class AbstractCall<T> implements Parcelable {
 		return mResult;
 	}
 
+	/**
+	 * Returns the total number of items of a paged list, i.e. the
+	 * <tt>total</tt> of the returned limits, which can be larger than the
+	 * number of returned items.
+	 *
+	 * @return Total number of items, -1 if the result isn't paged
+	 */
+	public int getTotal() {
+		return mTotal;
+	}
+
 	/**
 	 * Returns the result as a list of items.
 	 * <p>
@@ -210,14 +494,84 @@ public abstract class AbstractCall<T> implements Parcelable {
 		return mResults;
 	}
 
+	/**
+	 * Returns true if the API method returns a list, so the result is read
+	 * through {@link #getResults()} without wrapping it.
+	 *
+	 * @return True if a list is returned, false for a single item
+	 */
+	public boolean isListResult() {
+		return returnsList();
+	}
+
 	/**
 	 * Returns the generated ID of the request.
 	 * @return Generated ID of the request
 	 */
-	public String getId() {
+	public long getId() {
 		return mId;
 	}
 
+	/**
+	 * Returns how long to wait for a response until the call fails.
+	 * @return Timeout in milliseconds
+	 */
+	public long getTimeout() {
+		return mTimeout > 0 ? mTimeout : getDefaultTimeout();
+	}
+
+	/**
+	 * Overrides the default timeout of the method for this call.
+	 * @param timeout Timeout in milliseconds, or 0 for the default
+	 */
+	public void setTimeout(long timeout) {
+		mTimeout = timeout;
+	}
+
+	/**
+	 * Returns the timeout used if none is set with {@link #setTimeout(long)}.
+	 * <p/>
+	 * Sub classes may override this for methods known to take longer.
+	 * @return Timeout in milliseconds
+	 */
+	protected long getDefaultTimeout() {
+		final String name = getName();
+		if (name.startsWith("VideoLibrary.") || name.startsWith("AudioLibrary.") || name.startsWith("Files.")) {
+			return LIBRARY_TIMEOUT;
+		}
+		return DEFAULT_TIMEOUT;
+	}
+
+	/**
+	 * Returns true if sending the call twice has the same effect as sending it
+	 * once. Such calls are sent again if the connection drops before their
+	 * response arrived.
+	 * <p/>
+	 * By default, that's true for read-only methods. Sub classes may override
+	 * this.
+	 * @return True if idempotent, false otherwise
+	 */
+	public boolean isIdempotent() {
+		return isReadOnly();
+	}
+
+	/**
+	 * Returns true if the call doesn't change anything on XBMC's side, so
+	 * identical calls in flight can share one request.
+	 * <p/>
+	 * By default, that's true for getters and a few informational methods.
+	 * Sub classes may override this.
+	 * @return True if read-only, false otherwise
+	 */
+	public boolean isReadOnly() {
+		final String name = getName();
+		return name.startsWith("Get", name.indexOf('.') + 1)
+			|| name.equals("JSONRPC.Ping")
+			|| name.equals("JSONRPC.Version")
+			|| name.equals("JSONRPC.Permission")
+			|| name.equals("JSONRPC.Introspect");
+	}
+
 	/**
 	 * Gets the result object from a response.
 	 * @param obj Response
@@ -267,7 +621,7 @@ public abstract class AbstractCall<T> implements Parcelable {
 	 */
 	protected void addParameter(String name, String value) {
 		if (value != null) {
-			getParameters().put(name, value);
+			putParameter(name, value);
 		}
 	}
 
@@ -278,7 +632,7 @@ public abstract class AbstractCall<T> implements Parcelable {
 	 */
 	protected void addParameter(String name, Integer value) {
 		if (value != null) {
-			getParameters().put(name, value);
+			putParameter(name, value);
 		}
 	}
 
@@ -289,19 +643,19 @@ public abstract class AbstractCall<T> implements Parcelable {
 	 */
 	protected void addParameter(String name, Boolean value) {
 		if (value != null) {
-			getParameters().put(name, value);
+			putParameter(name, value);
 		}
 	}
 
 	protected void addParameter(String name, Double value) {
 		if (value != null) {
-			getParameters().put(name, value);
+			putParameter(name, value);
 		}
 	}
 
 	protected void addParameter(String name, AbstractModel value) {
 		if (value != null) {
-			getParameters().put(name, value.toJsonNode());
+			putParameter(name, value);
 		}
 	}
 
@@ -315,11 +669,7 @@ public abstract class AbstractCall<T> implements Parcelable {
 		if (values == null || values.length == 0) {
 			return;
 		}
-		final ArrayNode props = OM.createArrayNode();
-		for (String value : values) {
-			props.add(value);
-		}
-		getParameters().put(name, props);
+		putParameter(name, values);
 	}
 
 	/**
@@ -331,26 +681,19 @@ public abstract class AbstractCall<T> implements Parcelable {
 		if (map == null || map.size() == 0) {
 			return;
 		}
-		final ObjectNode props = OM.createObjectNode();
-		for (String key : map.values()) {
-			props.put(key, map.get(key));
-		}
-		getParameters().put(name, props);
+		putParameter(name, map);
 	}
 
 	/**
-	 * Returns the parameters array. Use this to add any parameters.
-	 * @return Parameters
+	 * Sets a parameter, which is written when the request is sent.
+	 * @param name Name of the parameter
+	 * @param value Value of the parameter
 	 */
-	private ObjectNode getParameters() {
-		final ObjectNode request = mRequest;
-		if (request.has(PARAMS)) {
-			return (ObjectNode)request.get(PARAMS);
-		} else {
-			final ObjectNode parameters = OM.createObjectNode();
-			request.put(PARAMS, parameters);
-			return parameters;
+	private void putParameter(String name, Object value) {
+		if (mParams == null) {
+			mParams = new LinkedHashMap<String, Object>();
 		}
+		mParams.put(name, value);
 	}
 
 	/**
@@ -359,17 +702,36 @@ public abstract class AbstractCall<T> implements Parcelable {
 	 * @param flags additional flags about how the object should be written
 	 */
 	@Override
+	@SuppressWarnings("unchecked")
 	public void writeToParcel(Parcel parcel, int flags) {
-		parcel.writeString(mId);
-		parcel.writeValue(mRequest.toString());
+		parcel.writeLong(mId);
+		final StringWriter request = new StringWriter();
+		try {
+			final JsonGenerator gen = OM.getJsonFactory().createJsonGenerator(request);
+			writeTo(gen);
+			gen.close();
+		} catch (IOException e) {
+			Log.e(getName(), "Error writing JSON request to parcel: " + e.getMessage(), e);
+		}
+		parcel.writeString(request.toString());
+		parcel.writeLong(mTimeout);
+		if (getResultCreator() != null) {
+			AbstractModel.writeModel(parcel, (Parcelable)mResult, flags);
+			parcel.writeTypedList((ArrayList<? extends Parcelable>)mResults);
+		} else {
+			parcel.writeValue(mResult);
+			parcel.writeList(mResults);
+		}
+		parcel.writeInt(mTotal);
 	}
 	@Override
 	public int describeContents() {
 		return 0;
 	}
 
+	@SuppressWarnings("unchecked")
 	protected AbstractCall(Parcel parcel) {
-		mId = parcel.readString();
+		mId = parcel.readLong();
 		try {
 			mRequest = (ObjectNode)OM.readTree(parcel.readString());
 		} catch (JsonProcessingException e) {
@@ -377,6 +739,17 @@ public abstract class AbstractCall<T> implements Parcelable {
 		} catch (IOException e) {
 			Log.e(getName(), "I/O exception reading JSON object from parcel: " + e.getMessage(), e);
 		}
+		mTimeout = parcel.readLong();
+		final Parcelable.Creator<T> creator = getResultCreator();
+		if (creator != null) {
+			mResult = AbstractModel.readModel(parcel, creator);
+			mResults = parcel.createTypedArrayList(creator);
+		} else {
+			final ClassLoader loader = getClass().getClassLoader();
+			mResult = (T)parcel.readValue(loader);
+			mResults = parcel.readArrayList(loader);
+		}
+		mTotal = parcel.readInt();
 	}
 
 }
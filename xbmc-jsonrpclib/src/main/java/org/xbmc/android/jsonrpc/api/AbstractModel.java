@@ -21,16 +21,23 @@
 
 package org.xbmc.android.jsonrpc.api;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.ObjectNode;
 import org.json.JSONException;
 
+import android.os.Parcel;
 import android.os.Parcelable;
 
 public abstract class AbstractModel implements JsonSerializable, Parcelable {
@@ -42,6 +49,30 @@ public abstract class AbstractModel implements JsonSerializable, Parcelable {
 
 	protected String mType;
 
+	/**
+	 * Writes this object straight to a JSON generator, without building a
+	 * tree through {@link #toJsonNode()} first. Members that are null are
+	 * left out.
+	 *
+	 * @param gen Generator to write to
+	 * @throws IOException If writing fails
+	 */
+	public void writeTo(JsonGenerator gen) throws IOException {
+		gen.writeStartObject();
+		writeFields(gen);
+		gen.writeEndObject();
+	}
+
+	/**
+	 * Writes the members of this object as fields of the current JSON object.
+	 * Sub classes write the fields of their parent first.
+	 *
+	 * @param gen Generator to write to
+	 * @throws IOException If writing fails
+	 */
+	protected void writeFields(JsonGenerator gen) throws IOException {
+	}
+
 	/**
 	 * Tries to read an integer from JSON object.
 	 *
@@ -122,4 +153,392 @@ public abstract class AbstractModel implements JsonSerializable, Parcelable {
 		return new HashMap<String, String>();
 	}
 
+	/**
+	 * Returns the presence mask of primitive members read from a JSON
+	 * object. Bit <tt>i</tt> is set if the object contains a non-null value
+	 * for <tt>keys[i]</tt>.
+	 *
+	 * @param node JSON object
+	 * @param keys Keys of the primitive members, at most 64
+	 * @return Presence mask
+	 */
+	public static long getKeyMask(JsonNode node, String... keys) {
+		long mask = 0;
+		for (int i = 0; i < keys.length; i++) {
+			final JsonNode value = node.get(keys[i]);
+			if (value != null && !value.isNull()) {
+				mask |= 1L << i;
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Same as {@link #getKeyMask(JsonNode, String...)} for more than 64 keys.
+	 *
+	 * @param node JSON object
+	 * @param keys Keys of the primitive members
+	 * @return Presence mask
+	 */
+	public static int[] getKeyMaskArray(JsonNode node, String... keys) {
+		final int[] mask = new int[(keys.length + 31) >> 5];
+		for (int i = 0; i < keys.length; i++) {
+			final JsonNode value = node.get(keys[i]);
+			if (value != null && !value.isNull()) {
+				mask[i >> 5] |= 1 << (i & 31);
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Returns the presence mask of primitive members passed as boxed
+	 * values. Bit <tt>i</tt> is set if <tt>values[i]</tt> isn't null.
+	 *
+	 * @param values Boxed values of the primitive members, at most 64
+	 * @return Presence mask
+	 */
+	public static long getNonNullMask(Object... values) {
+		long mask = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				mask |= 1L << i;
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Same as {@link #getNonNullMask(Object...)} for more than 64 values.
+	 *
+	 * @param values Boxed values of the primitive members
+	 * @return Presence mask
+	 */
+	public static int[] getNonNullMaskArray(Object... values) {
+		final int[] mask = new int[(values.length + 31) >> 5];
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				mask[i >> 5] |= 1 << (i & 31);
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Reads an integer from the token stream.
+	 *
+	 * @param parser Parser positioned at the value
+	 * @return Integer value, 0 if the value isn't a number.
+	 */
+	public static int readInt(JsonParser parser) throws IOException {
+		final JsonToken token = parser.getCurrentToken();
+		if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+			return parser.getIntValue();
+		}
+		parser.skipChildren();
+		return 0;
+	}
+
+	/**
+	 * Reads a string from the token stream.
+	 *
+	 * @param parser Parser positioned at the value
+	 * @return String value, null if the value isn't a string.
+	 */
+	public static String readString(JsonParser parser) throws IOException {
+		if (parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+			return parser.getText();
+		}
+		parser.skipChildren();
+		return null;
+	}
+
+	/**
+	 * Reads a boolean from the token stream.
+	 *
+	 * @param parser Parser positioned at the value
+	 * @return Boolean value, false if the value isn't a boolean.
+	 */
+	public static Boolean readBoolean(JsonParser parser) throws IOException {
+		final JsonToken token = parser.getCurrentToken();
+		if (token == JsonToken.VALUE_TRUE) {
+			return true;
+		}
+		parser.skipChildren();
+		return false;
+	}
+
+	/**
+	 * Reads a floating point number from the token stream.
+	 *
+	 * @param parser Parser positioned at the value
+	 * @return Double value, 0 if the value isn't a number.
+	 */
+	public static Double readDouble(JsonParser parser) throws IOException {
+		final JsonToken token = parser.getCurrentToken();
+		if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+			return parser.getDoubleValue();
+		}
+		parser.skipChildren();
+		return 0d;
+	}
+
+	public static ArrayList<String> readStringArray(JsonParser parser) throws IOException {
+		if (parser.getCurrentToken() == JsonToken.START_ARRAY) {
+			final ArrayList<String> l = new ArrayList<String>();
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				l.add(readString(parser));
+			}
+			return l;
+		}
+		parser.skipChildren();
+		return new ArrayList<String>(0);
+	}
+
+	public static ArrayList<Integer> readIntegerArray(JsonParser parser) throws IOException {
+		if (parser.getCurrentToken() == JsonToken.START_ARRAY) {
+			final ArrayList<Integer> l = new ArrayList<Integer>();
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				l.add(readInt(parser));
+			}
+			return l;
+		}
+		parser.skipChildren();
+		return new ArrayList<Integer>(0);
+	}
+
+	public static HashMap<String, String> readStringMap(JsonParser parser) throws IOException {
+		final HashMap<String, String> m = new HashMap<String, String>();
+		if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String fieldName = parser.getCurrentName();
+				if (parser.nextToken().isScalarValue()) {
+					m.put(fieldName, parser.getText());
+				} else {
+					parser.skipChildren();
+					m.put(fieldName, null);
+				}
+			}
+		} else {
+			parser.skipChildren();
+		}
+		return m;
+	}
+
+	/**
+	 * Writes a nullable integer to a parcel. A marker precedes the value so
+	 * null survives the round trip.
+	 *
+	 * @param parcel Parcel to write to
+	 * @param value Value, may be null
+	 */
+	public static void writeInteger(Parcel parcel, Integer value) {
+		if (value == null) {
+			parcel.writeInt(0);
+		} else {
+			parcel.writeInt(1);
+			parcel.writeInt(value);
+		}
+	}
+
+	/**
+	 * Reads an integer written by {@link #writeInteger(Parcel, Integer)}.
+	 *
+	 * @param parcel Parcel to read from
+	 * @return Integer value or null
+	 */
+	public static Integer readInteger(Parcel parcel) {
+		return parcel.readInt() == 0 ? null : parcel.readInt();
+	}
+
+	/**
+	 * Writes a nullable floating point number to a parcel.
+	 *
+	 * @param parcel Parcel to write to
+	 * @param value Value, may be null
+	 */
+	public static void writeDouble(Parcel parcel, Double value) {
+		if (value == null) {
+			parcel.writeInt(0);
+		} else {
+			parcel.writeInt(1);
+			parcel.writeDouble(value);
+		}
+	}
+
+	/**
+	 * Reads a floating point number written by {@link #writeDouble(Parcel, Double)}.
+	 *
+	 * @param parcel Parcel to read from
+	 * @return Double value or null
+	 */
+	public static Double readDouble(Parcel parcel) {
+		return parcel.readInt() == 0 ? null : parcel.readDouble();
+	}
+
+	/**
+	 * Writes a nullable boolean to a parcel as one integer: -1 for null, 0
+	 * for false and 1 for true.
+	 *
+	 * @param parcel Parcel to write to
+	 * @param value Value, may be null
+	 */
+	public static void writeBoolean(Parcel parcel, Boolean value) {
+		parcel.writeInt(value == null ? -1 : (value ? 1 : 0));
+	}
+
+	/**
+	 * Reads a boolean written by {@link #writeBoolean(Parcel, Boolean)}.
+	 *
+	 * @param parcel Parcel to read from
+	 * @return Boolean value or null
+	 */
+	public static Boolean readBoolean(Parcel parcel) {
+		final int value = parcel.readInt();
+		return value < 0 ? null : value == 1;
+	}
+
+	/**
+	 * Writes a list of integers to a parcel, prefixed by its length or -1
+	 * if the list is null.
+	 *
+	 * @param parcel Parcel to write to
+	 * @param list List, may be null
+	 */
+	public static void writeIntegerList(Parcel parcel, List<Integer> list) {
+		if (list == null) {
+			parcel.writeInt(-1);
+			return;
+		}
+		parcel.writeInt(list.size());
+		for (Integer item : list) {
+			writeInteger(parcel, item);
+		}
+	}
+
+	/**
+	 * Reads a list written by {@link #writeIntegerList(Parcel, List)}.
+	 *
+	 * @param parcel Parcel to read from
+	 * @return List of integers or null
+	 */
+	public static ArrayList<Integer> readIntegerList(Parcel parcel) {
+		final int size = parcel.readInt();
+		if (size < 0) {
+			return null;
+		}
+		final ArrayList<Integer> l = new ArrayList<Integer>(size);
+		for (int i = 0; i < size; i++) {
+			l.add(readInteger(parcel));
+		}
+		return l;
+	}
+
+	/**
+	 * Writes a map of strings to a parcel, prefixed by its size or -1 if
+	 * the map is null.
+	 *
+	 * @param parcel Parcel to write to
+	 * @param map Map, may be null
+	 */
+	public static void writeStringMap(Parcel parcel, Map<String, String> map) {
+		if (map == null) {
+			parcel.writeInt(-1);
+			return;
+		}
+		parcel.writeInt(map.size());
+		for (Map.Entry<String, String> entry : map.entrySet()) {
+			parcel.writeString(entry.getKey());
+			parcel.writeString(entry.getValue());
+		}
+	}
+
+	/**
+	 * Reads a map written by {@link #writeStringMap(Parcel, Map)}.
+	 *
+	 * @param parcel Parcel to read from
+	 * @return Map of strings or null
+	 */
+	public static HashMap<String, String> readStringMap(Parcel parcel) {
+		final int size = parcel.readInt();
+		if (size < 0) {
+			return null;
+		}
+		final HashMap<String, String> m = new HashMap<String, String>();
+		for (int i = 0; i < size; i++) {
+			m.put(parcel.readString(), parcel.readString());
+		}
+		return m;
+	}
+
+	/**
+	 * Writes a nullable model to a parcel. Other than
+	 * {@link Parcel#writeParcelable(Parcelable, int)}, no class name is
+	 * written, the reader must know the type. The layout is the same as
+	 * the one of an item written by {@link Parcel#writeTypedList(List)}.
+	 *
+	 * @param parcel Parcel to write to
+	 * @param value Model, may be null
+	 * @param flags Flags passed to {@link Parcelable#writeToParcel(Parcel, int)}
+	 */
+	public static void writeModel(Parcel parcel, Parcelable value, int flags) {
+		if (value == null) {
+			parcel.writeInt(0);
+		} else {
+			parcel.writeInt(1);
+			value.writeToParcel(parcel, flags);
+		}
+	}
+
+	/**
+	 * Reads a model written by {@link #writeModel(Parcel, Parcelable, int)}.
+	 *
+	 * @param parcel Parcel to read from
+	 * @param creator Creator of the model's type
+	 * @return Model or null
+	 */
+	public static <T> T readModel(Parcel parcel, Parcelable.Creator<T> creator) {
+		return parcel.readInt() == 0 ? null : creator.createFromParcel(parcel);
+	}
+
+	/**
+	 * Field values of a model read from the token stream.
+	 * <p/>
+	 * Models used as result read their fields into a sub class of this
+	 * before they are constructed, so responses can be parsed without
+	 * building a tree first. Every level of the class hierarchy reads its own
+	 * fields and passes the rest to its parent.
+	 */
+	protected static class Values {
+
+		/**
+		 * Reads all fields of a JSON object. The parser must be positioned at
+		 * the start of the object and is positioned at its end when
+		 * returning.
+		 *
+		 * @param parser Parser
+		 */
+		public void read(JsonParser parser) throws IOException {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String name = parser.getCurrentName();
+				parser.nextToken();
+				if (!readField(name, parser)) {
+					parser.skipChildren();
+				}
+			}
+		}
+
+		/**
+		 * Reads the value of a field. The parser is positioned at the value
+		 * and must be positioned at its last token when returning.
+		 *
+		 * @param name Name of the field
+		 * @param parser Parser
+		 * @return True if the field was read, false if it's unknown and must be skipped
+		 */
+		protected boolean readField(String name, JsonParser parser) throws IOException {
+			return false;
+		}
+	}
+
 }
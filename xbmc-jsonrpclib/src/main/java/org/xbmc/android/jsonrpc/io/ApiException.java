@@ -27,7 +27,6 @@ import org.xbmc.android.jsonrpc.api.R;
 import android.content.Context;
 import android.content.res.Resources;
 import android.os.Bundle;
-import android.util.Log;
 
 /**
  * Stuff that breaks while accessing the API
@@ -127,23 +126,57 @@ public class ApiException extends Exception {
 	 * Not found HTTP code received (404).
 	 */
 	public static final int HTTP_NOT_FOUND = 0x16;
+	/**
+	 * No response received before the call's timeout.
+	 */
+	public static final int IO_REQUEST_TIMEOUT = 0x17;
+	/**
+	 * Request not executed because the executor's queue is full.
+	 */
+	public static final int IO_REJECTED = 0x18;
+	/**
+	 * The future of a request was cancelled.
+	 */
+	public static final int CANCELLED = 0x19;
+	/**
+	 * Code processing a response, e.g. a continuation of a future, threw
+	 * an exception.
+	 */
+	public static final int UNEXPECTED_ERROR = 0x1a;
 
 	public static final String EXTRA_ERROR_CODE = "org.xbmc.android.jsonprc.extra.ERROR_CODE";
 	public static final String EXTRA_ERROR_MESSAGE = "org.xbmc.android.jsonprc.extra.ERROR_MESSAGE";
 	public static final String EXTRA_ERROR_HINT = "org.xbmc.android.jsonprc.extra.ERROR_HINT";
 
 	private int code;
+	/**
+	 * Hint that came with the error, null if none.
+	 */
+	private String hint;
 
 	public ApiException(int code, String message) {
 		super(message);
 		this.code = code;
-		Log.e(TAG, message, this);
+		Logger.e(TAG, message, this);
+	}
+
+	/**
+	 * Rebuilds an error that has already been translated, for example the
+	 * one received by an {@link ApiCallback}.
+	 * @param code Error code
+	 * @param message Error message
+	 * @param hint Error hint
+	 * @param cause Cause, may be null
+	 */
+	public ApiException(int code, String message, String hint, Throwable cause) {
+		this(code, message, cause);
+		this.hint = hint;
 	}
 
 	public ApiException(int code, String message, Throwable cause) {
 		super(message, cause);
 		this.code = code;
-		Log.e(TAG, message, this);
+		Logger.e(TAG, message, this);
 	}
 
 	public ApiException(JsonNode node) {
@@ -161,7 +194,7 @@ public class ApiException extends Exception {
 			// this message didn't conform to our expected format
 			throw new RuntimeException(node.toString());
 		}
-		Log.e(TAG, sb.toString());
+		Logger.e(TAG, sb.toString());
 	}
 
 	public int getCode() {
@@ -184,7 +217,15 @@ public class ApiException extends Exception {
 	 * @return Error hint
 	 */
 	public String getHint(Context c) {
-		return getHint(c.getResources(), code);
+		return hint == null ? getHint(c.getResources(), code) : hint;
+	}
+
+	/**
+	 * Returns the hint that came with the error.
+	 * @return Error hint or null if none
+	 */
+	public String getHint() {
+		return hint;
 	}
 	
 	public static String getError(Resources r, int error) {
@@ -227,6 +268,14 @@ public class ApiException extends Exception {
 				return r.getString(R.string.error_http_403);
 			case HTTP_NOT_FOUND:
 				return r.getString(R.string.error_http_404);
+			case IO_REQUEST_TIMEOUT:
+				return r.getString(R.string.error_request_timeout);
+			case IO_REJECTED:
+				return r.getString(R.string.error_rejected);
+			case CANCELLED:
+				return r.getString(R.string.error_cancelled);
+			case UNEXPECTED_ERROR:
+				return r.getString(R.string.error_unexpected);
 		}
 		return null;
 	}
@@ -271,6 +320,14 @@ public class ApiException extends Exception {
 			return r.getString(R.string.error_http_403_hint);
 		case HTTP_NOT_FOUND:
 			return r.getString(R.string.error_http_404_hint);
+		case IO_REQUEST_TIMEOUT:
+			return r.getString(R.string.error_request_timeout_hint);
+		case IO_REJECTED:
+			return r.getString(R.string.error_rejected_hint);
+		case CANCELLED:
+			return r.getString(R.string.error_cancelled_hint);
+		case UNEXPECTED_ERROR:
+			return r.getString(R.string.error_unexpected_hint);
 		}
 		return null;
 	}
@@ -0,0 +1,508 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+
+package org.xbmc.android.jsonrpc.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The result of an asynchronous operation, typically an API call sent through
+ * {@link ConnectionManager#submit(org.xbmc.android.jsonrpc.api.AbstractCall)}.
+ * <p/>
+ * Dependent calls can be chained without nesting callbacks:
+ * <pre>
+ * cm.submit(new Player.GetActivePlayers())
+ *     .thenCompose(new ApiFuture.AsyncFunction&lt;Player.GetActivePlayers, Player.GetItem&gt;() {
+ *         public ApiFuture&lt;Player.GetItem&gt; apply(Player.GetActivePlayers call) {
+ *             return cm.submit(new Player.GetItem(call.getResults().get(0).playerid));
+ *         }
+ *     })
+ *     .addCallback(new ApiFuture.FutureCallback&lt;Player.GetItem&gt;() { ... });
+ * </pre>
+ * Continuations run on the thread that completes the future, unless an
+ * executor is given. For calls, that thread depends on how the manager
+ * sends them, see {@link ConnectionManager#submit(org.xbmc.android.jsonrpc.api.AbstractCall)}. Background workers can block with
+ * {@link #get(long, TimeUnit)}, whose {@link ExecutionException} wraps the
+ * {@link ApiException}.
+ */
+public class ApiFuture<T> implements Future<T> {
+
+	private static final String TAG = ApiFuture.class.getSimpleName();
+
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private final CountDownLatch mDone = new CountDownLatch(1);
+
+	/**
+	 * Runs once completed, null after completion.
+	 */
+	private ArrayList<Runnable> mListeners = new ArrayList<Runnable>(2);
+
+	private T mValue;
+	private Exception mError;
+
+	/**
+	 * Returns a future that has already succeeded.
+	 * @param value Value of the future
+	 * @param <T> Value type
+	 * @return Completed future
+	 */
+	public static <T> ApiFuture<T> succeeded(T value) {
+		final ApiFuture<T> future = new ApiFuture<T>();
+		future.complete(value);
+		return future;
+	}
+
+	/**
+	 * Returns a future that has already failed.
+	 * @param e Error of the future
+	 * @param <T> Value type
+	 * @return Failed future
+	 */
+	public static <T> ApiFuture<T> failed(ApiException e) {
+		final ApiFuture<T> future = new ApiFuture<T>();
+		future.fail(e);
+		return future;
+	}
+
+	/**
+	 * Completes the future with a value. Only the first completion counts.
+	 * @param value Value
+	 * @return True if completed by this call, false if already done
+	 */
+	public boolean complete(T value) {
+		return finish(value, null);
+	}
+
+	/**
+	 * Completes the future with an error. Only the first completion counts.
+	 * @param e Error
+	 * @return True if completed by this call, false if already done
+	 */
+	public boolean fail(ApiException e) {
+		return finish(null, e);
+	}
+
+	/**
+	 * Completes the future with a cancellation. The call itself is still
+	 * executed by XBMC, but its response is ignored.
+	 * @param mayInterruptIfRunning Ignored
+	 * @return True if cancelled by this call, false if already done
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return finish(null, new CancellationException());
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return getError() instanceof CancellationException;
+	}
+
+	@Override
+	public boolean isDone() {
+		return mDone.getCount() == 0;
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		mDone.await();
+		return getNow();
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!mDone.await(timeout, unit)) {
+			throw new TimeoutException("No result after " + unit.toMillis(timeout) + "ms.");
+		}
+		return getNow();
+	}
+
+	/**
+	 * Runs a callback once the future is done, on the completing thread.
+	 * <p/>
+	 * Every error ends up in {@link FutureCallback#onFailure(ApiException)}:
+	 * a cancellation as {@link ApiException#CANCELLED}, and an exception
+	 * thrown by a continuation as {@link ApiException#UNEXPECTED_ERROR}.
+	 * @param callback Callback
+	 * @return This instance
+	 */
+	public ApiFuture<T> addCallback(FutureCallback<? super T> callback) {
+		return addCallback(callback, DIRECT);
+	}
+
+	/**
+	 * Runs a callback once the future is done.
+	 * @param callback Callback
+	 * @param executor Executes the callback
+	 * @return This instance
+	 */
+	public ApiFuture<T> addCallback(final FutureCallback<? super T> callback, Executor executor) {
+		addListener(new Continuation() {
+			@Override
+			public void run() {
+				final Exception e = getError();
+				if (e == null) {
+					callback.onSuccess(mValue);
+				} else {
+					callback.onFailure(toApiException(e));
+				}
+			}
+			@Override
+			void rejected(ApiException e) {
+				callback.onFailure(e);
+			}
+		}, executor);
+		return this;
+	}
+
+	/**
+	 * Returns a future of a value computed from this future's value, on the
+	 * completing thread. Errors are passed on.
+	 * @param fn Computes the new value
+	 * @param <U> New value type
+	 * @return New future
+	 */
+	public <U> ApiFuture<U> thenApply(Function<? super T, ? extends U> fn) {
+		return thenApply(fn, DIRECT);
+	}
+
+	/**
+	 * Returns a future of a value computed from this future's value. Errors
+	 * are passed on.
+	 * @param fn Computes the new value
+	 * @param executor Executes the function
+	 * @param <U> New value type
+	 * @return New future
+	 */
+	public <U> ApiFuture<U> thenApply(final Function<? super T, ? extends U> fn, Executor executor) {
+		final ApiFuture<U> next = new ApiFuture<U>();
+		addListener(new Continuation() {
+			@Override
+			public void run() {
+				if (next.forward(ApiFuture.this)) {
+					return;
+				}
+				try {
+					next.complete(fn.apply(mValue));
+				} catch (ApiException e) {
+					next.fail(e);
+				} catch (RuntimeException e) {
+					next.finish(null, e);
+				}
+			}
+			@Override
+			void rejected(ApiException e) {
+				next.fail(e);
+			}
+		}, executor);
+		return next;
+	}
+
+	/**
+	 * Returns a future of another asynchronous operation started with this
+	 * future's value, on the completing thread. Errors are passed on.
+	 * @param fn Starts the next operation
+	 * @param <U> New value type
+	 * @return New future
+	 */
+	public <U> ApiFuture<U> thenCompose(AsyncFunction<? super T, U> fn) {
+		return thenCompose(fn, DIRECT);
+	}
+
+	/**
+	 * Returns a future of another asynchronous operation started with this
+	 * future's value. Errors are passed on.
+	 * @param fn Starts the next operation
+	 * @param executor Executes the function
+	 * @param <U> New value type
+	 * @return New future
+	 */
+	public <U> ApiFuture<U> thenCompose(final AsyncFunction<? super T, U> fn, Executor executor) {
+		final ApiFuture<U> next = new ApiFuture<U>();
+		addListener(new Continuation() {
+			@Override
+			public void run() {
+				if (next.forward(ApiFuture.this)) {
+					return;
+				}
+				final ApiFuture<U> inner;
+				try {
+					inner = fn.apply(mValue);
+				} catch (RuntimeException e) {
+					next.finish(null, e);
+					return;
+				}
+				if (inner == null) {
+					next.finish(null, new NullPointerException("Function returned no future."));
+					return;
+				}
+				inner.addListener(new Runnable() {
+					@Override
+					public void run() {
+						next.finish(inner.mValue, inner.getError());
+					}
+				});
+			}
+			@Override
+			void rejected(ApiException e) {
+				next.fail(e);
+			}
+		}, executor);
+		return next;
+	}
+
+	/**
+	 * Returns a future that succeeds with the values of all given futures,
+	 * or fails as soon as one of them fails.
+	 * @param futures Futures to wait for
+	 * @param <T> Value type
+	 * @return Future of all values, in the order of the given futures
+	 */
+	public static <T> ApiFuture<List<T>> allOf(final List<? extends ApiFuture<? extends T>> futures) {
+		final ApiFuture<List<T>> all = new ApiFuture<List<T>>();
+		if (futures.isEmpty()) {
+			all.complete(new ArrayList<T>(0));
+			return all;
+		}
+		final Object[] values = new Object[futures.size()];
+		final AtomicInteger remaining = new AtomicInteger(futures.size());
+		for (int i = 0; i < futures.size(); i++) {
+			final int index = i;
+			final ApiFuture<? extends T> future = futures.get(i);
+			future.addListener(new Runnable() {
+				@SuppressWarnings("unchecked")
+				@Override
+				public void run() {
+					if (all.forward(future)) {
+						return;
+					}
+					values[index] = future.mValue;
+					if (remaining.decrementAndGet() == 0) {
+						all.complete((List<T>)Arrays.asList(values));
+					}
+				}
+			});
+		}
+		return all;
+	}
+
+	/**
+	 * Returns a future that completes like the first of the given futures
+	 * that completes, be it with a value or an error.
+	 * @param futures Futures to wait for, at least one
+	 * @param <T> Value type
+	 * @return Future of the first completed future
+	 * @throws IllegalArgumentException If no futures are given, since nothing would ever complete
+	 */
+	public static <T> ApiFuture<T> anyOf(List<? extends ApiFuture<? extends T>> futures) {
+		if (futures.isEmpty()) {
+			throw new IllegalArgumentException("No futures to wait for.");
+		}
+		final ApiFuture<T> any = new ApiFuture<T>();
+		for (final ApiFuture<? extends T> future : futures) {
+			future.addListener(new Runnable() {
+				@Override
+				public void run() {
+					any.finish(future.mValue, future.getError());
+				}
+			});
+		}
+		return any;
+	}
+
+	/**
+	 * Completes this future with the error of another one, if any.
+	 * @param future Completed future
+	 * @return True if the other future failed, false if it succeeded
+	 */
+	private boolean forward(ApiFuture<?> future) {
+		final Exception e = future.getError();
+		if (e != null) {
+			finish(null, e);
+			return true;
+		}
+		return false;
+	}
+
+	private boolean finish(T value, Exception e) {
+		final ArrayList<Runnable> listeners;
+		synchronized (this) {
+			if (mListeners == null) {
+				return false;
+			}
+			mValue = value;
+			mError = e;
+			listeners = mListeners;
+			mListeners = null;
+		}
+		mDone.countDown();
+		for (Runnable listener : listeners) {
+			try {
+				listener.run();
+			} catch (RuntimeException re) {
+				// a failing listener must not keep the others from running.
+				Logger.e(TAG, "Error in listener: " + re.getMessage(), re);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Runs a listener on an executor once the future is done, right away if
+	 * it's done already. If the executor doesn't take the listener, it's
+	 * told so with {@link ApiException#IO_REJECTED}.
+	 * @param listener Listener
+	 * @param executor Executes the listener
+	 */
+	private void addListener(final Continuation listener, final Executor executor) {
+		if (executor == DIRECT) {
+			addListener(listener);
+			return;
+		}
+		addListener(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					executor.execute(listener);
+				} catch (RejectedExecutionException e) {
+					listener.rejected(new ApiException(ApiException.IO_REJECTED, "Executor rejected continuation: " + e.getMessage(), e));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs a listener on the completing thread once the future is done, right
+	 * away if it's done already.
+	 * @param task Listener
+	 */
+	private void addListener(Runnable task) {
+		synchronized (this) {
+			if (mListeners != null) {
+				mListeners.add(task);
+				return;
+			}
+		}
+		task.run();
+	}
+
+	private synchronized Exception getError() {
+		return mError;
+	}
+
+	/**
+	 * Returns the error as given to {@link FutureCallback#onFailure(ApiException)}.
+	 * Cancellations and exceptions thrown by continuations are wrapped.
+	 * @param e Error of the future
+	 * @return API exception
+	 */
+	private static ApiException toApiException(Exception e) {
+		if (e instanceof ApiException) {
+			return (ApiException)e;
+		}
+		if (e instanceof CancellationException) {
+			return new ApiException(ApiException.CANCELLED, "Future was cancelled.", e);
+		}
+		return new ApiException(ApiException.UNEXPECTED_ERROR, "Continuation failed: " + e.getMessage(), e);
+	}
+
+	private T getNow() throws ExecutionException {
+		final Exception e = getError();
+		if (e instanceof CancellationException) {
+			throw (CancellationException)e;
+		}
+		if (e != null) {
+			throw new ExecutionException(e);
+		}
+		return mValue;
+	}
+
+	/**
+	 * A listener that is told when its executor doesn't take it.
+	 */
+	private static abstract class Continuation implements Runnable {
+		/**
+		 * The executor rejected the listener, so it will never run.
+		 * @param e Error with {@link ApiException#IO_REJECTED}
+		 */
+		abstract void rejected(ApiException e);
+	}
+
+	/**
+	 * Computes a value from another one.
+	 */
+	public interface Function<A, B> {
+		/**
+		 * Computes the value.
+		 * @param value Value of the previous future
+		 * @return New value
+		 * @throws ApiException If the value can't be computed
+		 */
+		public B apply(A value) throws ApiException;
+	}
+
+	/**
+	 * Starts an asynchronous operation with a value.
+	 */
+	public interface AsyncFunction<A, B> {
+		/**
+		 * Starts the operation.
+		 * @param value Value of the previous future
+		 * @return Future of the operation
+		 */
+		public ApiFuture<B> apply(A value);
+	}
+
+	/**
+	 * Receives the outcome of a future.
+	 */
+	public interface FutureCallback<T> {
+		/**
+		 * The future has succeeded.
+		 * @param value Value of the future
+		 */
+		public void onSuccess(T value);
+
+		/**
+		 * The future has failed or was cancelled.
+		 * @param e What went wrong
+		 */
+		public void onFailure(ApiException e);
+	}
+}
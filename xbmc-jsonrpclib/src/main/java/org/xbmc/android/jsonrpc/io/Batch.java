@@ -0,0 +1,92 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.io;
+
+import android.os.Handler;
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+
+import java.util.ArrayList;
+
+/**
+ * A JSON-RPC batch, i.e. a bunch of API calls sent to XBMC in one go.
+ * <p/>
+ * All calls are serialized into one JSON array, no matter if HTTP or TCP is
+ * used. The array of responses is parsed once and every response is handed
+ * to the callback of its call, matched by ID.
+ * <p/>
+ * Obtain a batch through {@link ConnectionManager#batch()}:
+ * <pre>
+ * cm.batch()
+ *     .add(new Player.GetActivePlayers(), playersCallback)
+ *     .add(new Application.GetProperties("volume", "muted"), appCallback)
+ *     .send();
+ * </pre>
+ */
+public class Batch {
+
+	private final ConnectionManager mManager;
+	private final Handler mHandler;
+	private final ArrayList<ConnectionManager.CallRequest<?>> mRequests = new ArrayList<ConnectionManager.CallRequest<?>>();
+
+	/**
+	 * Class constructor.
+	 * @param manager Connection manager which sends the batch
+	 * @param handler If not null, callbacks are posted on this handler
+	 */
+	Batch(ConnectionManager manager, Handler handler) {
+		mManager = manager;
+		mHandler = handler;
+	}
+
+	/**
+	 * Adds a call to the batch.
+	 * @param call Call to execute
+	 * @param callback How to treat result
+	 * @param <T> Result type
+	 * @return This instance
+	 */
+	public <T> Batch add(AbstractCall<T> call, ApiCallback<T> callback) {
+		mRequests.add(new ConnectionManager.CallRequest<T>(call, callback, mHandler));
+		return this;
+	}
+
+	/**
+	 * Returns the number of calls added to the batch.
+	 * @return Number of calls
+	 */
+	public int size() {
+		return mRequests.size();
+	}
+
+	/**
+	 * Sends all added calls in one request. Does nothing if the batch is
+	 * empty.
+	 * @return Connection manager that sent the batch
+	 */
+	public ConnectionManager send() {
+		return mManager.send(this);
+	}
+
+	ArrayList<ConnectionManager.CallRequest<?>> getRequests() {
+		return mRequests;
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+
+package org.xbmc.android.jsonrpc.io;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Shares one request between identical read-only calls in flight.
+ * <p/>
+ * The first call of a kind is sent and becomes the leader. Identical calls
+ * added before its response arrived become followers and aren't sent at all.
+ * Once the leader completes, its parsed result is copied into the followers,
+ * so XBMC answers once and the response is parsed once. Followers get their
+ * own result list, the items in it are shared.
+ * <p/>
+ * Calls are identical if they have the same method and their parameters
+ * are written as the same JSON. Generated calls and models always write
+ * their parameters in the same order.
+ */
+class CallCoalescer {
+
+	private final static JsonFactory FACTORY = new ObjectMapper().getJsonFactory();
+
+	/**
+	 * Followers of leaders in flight. Key is the canonical key of the leader.
+	 */
+	private final HashMap<String, ArrayList<ConnectionManager.CallRequest<?>>> mFollowers = new HashMap<String, ArrayList<ConnectionManager.CallRequest<?>>>();
+
+	/**
+	 * Adds a call request. If an identical call is in flight, the request
+	 * becomes its follower, otherwise it becomes the leader and must be sent.
+	 * @param key Canonical key of the call, see {@link #getKey(AbstractCall)}
+	 * @param callRequest Call request of a read-only call
+	 * @return True if the request must be sent, false if it's following
+	 */
+	synchronized boolean lead(String key, ConnectionManager.CallRequest<?> callRequest) {
+		final ArrayList<ConnectionManager.CallRequest<?>> followers = mFollowers.get(key);
+		if (followers != null) {
+			followers.add(callRequest);
+			return false;
+		}
+		mFollowers.put(key, new ArrayList<ConnectionManager.CallRequest<?>>(2));
+		callRequest.setCoalesceKey(key);
+		return true;
+	}
+
+	/**
+	 * Removes a leader, so the next identical call is sent again.
+	 * @param leader Completed call request
+	 * @return Followers of the leader, empty if none or not a leader
+	 */
+	synchronized List<ConnectionManager.CallRequest<?>> complete(ConnectionManager.CallRequest<?> leader) {
+		final String key = leader.getCoalesceKey();
+		if (key == null) {
+			return Collections.emptyList();
+		}
+		final ArrayList<ConnectionManager.CallRequest<?>> followers = mFollowers.remove(key);
+		return followers == null ? Collections.<ConnectionManager.CallRequest<?>>emptyList() : followers;
+	}
+
+	/**
+	 * Returns the canonical key of a call, i.e. its method and parameters as
+	 * JSON.
+	 * @param call API call
+	 * @return Canonical key
+	 */
+	static String getKey(AbstractCall<?> call) {
+		final StringWriter sw = new StringWriter();
+		sw.write(call.getName());
+		try {
+			final JsonGenerator gen = FACTORY.createJsonGenerator(sw);
+			call.writeParameters(gen);
+			gen.close();
+		} catch (IOException e) {
+			// string writers don't throw.
+			throw new IllegalStateException("Error writing parameters of " + call.getName() + ": " + e.getMessage(), e);
+		}
+		return sw.toString();
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.io;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of API calls in flight, keyed by the ID of the call.
+ * <p/>
+ * The registry is accessed from the thread posting a call as well as from
+ * the threads receiving responses and errors, so it's split into stripes
+ * which are locked independently. Threads working on different calls
+ * therefore rarely wait for each other. Each stripe is a
+ * {@link LongObjectMap}, so looking up a call by its ID doesn't allocate.
+ * <p/>
+ * A call is completed exactly once: {@link #complete(long)} atomically
+ * removes the entry, so when a response and an error race for the same call,
+ * only one of them gets it.
+ */
+public class CallRegistry<V> {
+
+	/**
+	 * Number of stripes, must be a power of two.
+	 */
+	private static final int STRIPES = 16;
+
+	private final LongObjectMap<V>[] mStripes;
+	private final AtomicInteger mSize = new AtomicInteger(0);
+
+	/**
+	 * Class constructor.
+	 */
+	@SuppressWarnings("unchecked")
+	public CallRegistry() {
+		mStripes = (LongObjectMap<V>[]) new LongObjectMap<?>[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			mStripes[i] = new LongObjectMap<V>();
+		}
+	}
+
+	/**
+	 * Adds a call that waits for completion.
+	 * @param id ID of the call
+	 * @param value What's needed when the call completes, not null
+	 */
+	public void put(long id, V value) {
+		final LongObjectMap<V> stripe = stripe(id);
+		synchronized (stripe) {
+			if (stripe.put(id, value) == null) {
+				mSize.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Returns the entry of a call without completing it.
+	 * @param id ID of the call
+	 * @return Entry or null if unknown or already completed
+	 */
+	public V get(long id) {
+		final LongObjectMap<V> stripe = stripe(id);
+		synchronized (stripe) {
+			return stripe.get(id);
+		}
+	}
+
+	/**
+	 * Returns true if the call is still waiting for completion.
+	 * @param id ID of the call
+	 * @return True if in flight, false otherwise
+	 */
+	public boolean contains(long id) {
+		final LongObjectMap<V> stripe = stripe(id);
+		synchronized (stripe) {
+			return stripe.containsKey(id);
+		}
+	}
+
+	/**
+	 * Removes a call from the registry. Only the first thread completing a
+	 * given call gets its entry back.
+	 * @param id ID of the call
+	 * @return Entry or null if unknown or already completed
+	 */
+	public V complete(long id) {
+		final LongObjectMap<V> stripe = stripe(id);
+		final V value;
+		synchronized (stripe) {
+			value = stripe.remove(id);
+		}
+		if (value != null) {
+			mSize.decrementAndGet();
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the entries of all calls in flight without completing them.
+	 * @return Snapshot of all entries
+	 */
+	public ArrayList<V> values() {
+		final ArrayList<V> values = new ArrayList<V>(mSize.get());
+		for (LongObjectMap<V> stripe : mStripes) {
+			synchronized (stripe) {
+				stripe.values(values);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Removes all calls from the registry.
+	 * @return Entries of all calls that were in flight
+	 */
+	public ArrayList<V> completeAll() {
+		final ArrayList<V> values = new ArrayList<V>(mSize.get());
+		for (LongObjectMap<V> stripe : mStripes) {
+			synchronized (stripe) {
+				stripe.values(values);
+				mSize.addAndGet(-stripe.size());
+				stripe.clear();
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Returns true if no call is in flight.
+	 * @return True if empty, false otherwise
+	 */
+	public boolean isEmpty() {
+		return mSize.get() == 0;
+	}
+
+	/**
+	 * Returns the number of calls in flight.
+	 * @return Number of calls
+	 */
+	public int size() {
+		return mSize.get();
+	}
+
+	private LongObjectMap<V> stripe(long id) {
+		// IDs are sequential, so consecutive calls land on different stripes.
+		return mStripes[(int)id & (STRIPES - 1)];
+	}
+}
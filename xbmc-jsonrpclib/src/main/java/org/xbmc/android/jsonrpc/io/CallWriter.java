@@ -0,0 +1,206 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.io;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * The writer stage of a {@link TcpConnection}.
+ * <p/>
+ * Calls are queued by any thread into a bounded queue. When the socket is
+ * ready, the I/O thread drains everything that has been queued so far and
+ * serializes it as UTF-8 directly into one re-used buffer, which is then
+ * written with a single flush. A burst of calls, e.g. from a remote control
+ * screen, therefore ends up in as few writes as possible.
+ * <p/>
+ * Batches are written as one JSON-RPC array.
+ */
+class CallWriter {
+
+	private static final ObjectMapper OM = new ObjectMapper();
+
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+
+	/**
+	 * Buffers bigger than this are dropped after being written.
+	 */
+	private static final int MAX_RETAINED_SIZE = 256 * 1024;
+
+	/**
+	 * Contains either {@link AbstractCall}s or lists of them for batches.
+	 */
+	private final ArrayBlockingQueue<Object> mQueue;
+	private OutputBuffer mBuffer = new OutputBuffer(INITIAL_BUFFER_SIZE);
+
+	/**
+	 * Class constructor.
+	 * @param capacity Maximal number of calls waiting to be written
+	 */
+	CallWriter(int capacity) {
+		mQueue = new ArrayBlockingQueue<Object>(capacity);
+	}
+
+	/**
+	 * Queues a call. Can be called from any thread.
+	 * @param call Call to write
+	 * @return False if the queue is full, true otherwise
+	 */
+	boolean offer(AbstractCall<?> call) {
+		return mQueue.offer(call);
+	}
+
+	/**
+	 * Queues a batch of calls, which are sent as one array. Can be called from
+	 * any thread.
+	 * @param calls Calls to write
+	 * @return False if the queue is full, true otherwise
+	 */
+	boolean offer(List<AbstractCall<?>> calls) {
+		return mQueue.offer(calls);
+	}
+
+	/**
+	 * Returns true if nothing is waiting to be written.
+	 * @return True if queue is empty
+	 */
+	boolean isEmpty() {
+		return mQueue.isEmpty();
+	}
+
+	/**
+	 * Serializes all queued calls, each terminated by a line break.
+	 * <p/>
+	 * A call that cannot be serialized is cut out of the buffer and handed
+	 * to the listener, the rest of the queue is written as usual. In a
+	 * batch, only the failing call is dropped from the array.
+	 * <p/>
+	 * The returned buffer is backed by the writer's internal array, so this
+	 * must not be called again before the previous buffer has been fully
+	 * written.
+	 *
+	 * @param listener Receives the calls that failed to serialize
+	 * @return Buffer in read mode, or null if nothing was written
+	 */
+	ByteBuffer drain(TcpConnection.Listener listener) {
+		if (mQueue.isEmpty()) {
+			return null;
+		}
+		if (mBuffer.capacity() > MAX_RETAINED_SIZE) {
+			mBuffer = new OutputBuffer(INITIAL_BUFFER_SIZE);
+		}
+		final OutputBuffer buffer = mBuffer;
+		buffer.reset();
+		Object item;
+		while ((item = mQueue.poll()) != null) {
+			final int start = buffer.size();
+			if (item instanceof AbstractCall) {
+				if (!write(buffer, (AbstractCall<?>)item, listener)) {
+					continue;
+				}
+			} else {
+				buffer.write('[');
+				boolean empty = true;
+				for (Object call : (List<?>)item) {
+					final int callStart = buffer.size();
+					if (!empty) {
+						buffer.write(',');
+					}
+					if (write(buffer, (AbstractCall<?>)call, listener)) {
+						empty = false;
+					} else {
+						buffer.truncate(callStart);
+					}
+				}
+				if (empty) {
+					buffer.truncate(start);
+					continue;
+				}
+				buffer.write(']');
+			}
+			buffer.write('\n');
+		}
+		return buffer.size() == 0 ? null : buffer.toByteBuffer();
+	}
+
+	/**
+	 * Serializes one call at the end of the buffer. If that fails, whatever
+	 * was written of the call is removed again and the listener is told.
+	 *
+	 * @param buffer Buffer to append to
+	 * @param call Call to write
+	 * @param listener Receives the call if it failed to serialize
+	 * @return True if the call was written, false otherwise
+	 */
+	private static boolean write(OutputBuffer buffer, AbstractCall<?> call, TcpConnection.Listener listener) {
+		final int start = buffer.size();
+		try {
+			// one generator per message, otherwise Jackson separates root
+			// values with a space.
+			final JsonGenerator gen = OM.getJsonFactory().createJsonGenerator(buffer, JsonEncoding.UTF8);
+			call.writeTo(gen);
+			gen.flush();
+			return true;
+		} catch (IOException e) {
+			buffer.truncate(start);
+			listener.onWriteFailed(call, new ApiException(ApiException.JSON_EXCEPTION, "Cannot serialize " + call.getName() + ": " + e.getMessage(), e));
+		} catch (RuntimeException e) {
+			buffer.truncate(start);
+			listener.onWriteFailed(call, new ApiException(ApiException.JSON_EXCEPTION, "Cannot serialize " + call.getName() + ": " + e.getMessage(), e));
+		}
+		return false;
+	}
+
+	/**
+	 * Drops all queued calls.
+	 */
+	void clear() {
+		mQueue.clear();
+	}
+
+	/**
+	 * A byte array output stream that hands out its internal array instead of
+	 * copying it.
+	 */
+	private static class OutputBuffer extends ByteArrayOutputStream {
+		OutputBuffer(int size) {
+			super(size);
+		}
+		int capacity() {
+			return buf.length;
+		}
+		void truncate(int size) {
+			count = size;
+		}
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+}
@@ -30,6 +30,7 @@ import android.util.Log;
 import org.codehaus.jackson.JsonNode;
 import org.xbmc.android.jsonrpc.api.AbstractCall;
 import org.xbmc.android.jsonrpc.api.AbstractModel;
+import org.xbmc.android.jsonrpc.api.call.JSONRPC;
 import org.xbmc.android.jsonrpc.config.HostConfig;
 import org.xbmc.android.jsonrpc.notification.AbstractEvent;
 import org.xbmc.android.jsonrpc.notification.PlayerEvent;
@@ -38,8 +39,10 @@ import org.xbmc.android.jsonrpc.notification.SystemEvent;
 import org.xbmc.android.jsonrpc.service.ConnectionService;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Provides simple access to XBMC's JSON-RPC API.
@@ -50,7 +53,12 @@ import java.util.LinkedList;
  *
  * TCP socket is used by default. If you want to force HTTP request, use
  * {@link #setPreferHTTP()}, which will use HTTP as transport layer and
- * not use the connection service but {@link JsonApiRequest}.
+ * not use the connection service but {@link HttpTransport}.
+ * <p/>
+ * Any other {@link Transport} can be set through
+ * {@link #setTransport(Transport)}, e.g. a {@link TcpTransport} that doesn't
+ * need the service, a {@link WebSocketTransport} or a
+ * {@link LoopbackTransport} for testing.
  * <p/>
  *
  * The TCP connection is managed by {@link ConnectionService}. The manager uses
@@ -78,6 +86,15 @@ import java.util.LinkedList;
  * provide a {@link JsonHandler}, which will synchronize the local DB and only
  * respond with a status code instead of the whole response.
  *
+ * <h3>Batches</h3>
+ * Several calls can be sent in one JSON-RPC batch using {@link #batch()}. This
+ * saves a round trip per call, which especially counts when using HTTP.
+ *
+ * <h3>Futures</h3>
+ * Instead of a callback, {@link #submit(AbstractCall)} returns an
+ * {@link ApiFuture}, so dependent calls can be chained and independent ones
+ * combined with {@link ApiFuture#allOf(java.util.List)}.
+ *
  * <h3>Notifications</h3>
  * Every instance of {@link ConnectionManager} appears as a client on the
  * service's side. Upon reception of a notification, the service announces all
@@ -110,11 +127,12 @@ public class ConnectionManager {
 	/**
 	 * The reference through which we receive messages from the service
 	 */
-	private final Messenger mMessenger = new Messenger(new IncomingHandler());
+	private final IncomingHandler mIncomingHandler = new IncomingHandler();
+	private final Messenger mMessenger = new Messenger(mIncomingHandler);
 	/**
 	 * The reference through which we send messages to the service
 	 */
-	private Messenger mService = null;
+	private volatile Messenger mService = null;
 	/**
 	 * List of observers listening to notifications.
 	 */
@@ -122,19 +140,22 @@ public class ConnectionManager {
 	/**
 	 * List of currently processing API calls with handler. Key is the ID of the API call.
 	 */
-	private final HashMap<String, HandlerCallback> mHandlerCallbacks = new HashMap<String, HandlerCallback>();
+	private final CallRegistry<HandlerCallback> mHandlerCallbacks = new CallRegistry<HandlerCallback>();
 	/**
 	 * Since we can't return the de-serialized object from the service, put the
 	 * response back into the received one and return the received one.
 	 */
-	private final HashMap<String, CallRequest<?>> mCallRequests = new HashMap<String, CallRequest<?>>();
+	private final CallRegistry<CallRequest<?>> mCallRequests = new CallRegistry<CallRequest<?>>();
 	/**
 	 * When posting request data and the service isn't started yet, we need to
-	 * reschedule the post until the service is available. This list contains
-	 * the requests that are to sent upon service startup.
+	 * reschedule the post until the service is available. This queue contains
+	 * the messages that are to sent upon service startup.
 	 */
-	private final LinkedList<AbstractCall<?>> mPendingCalls = new LinkedList<AbstractCall<?>>();
-	private final HashMap<String, JsonHandler> mPendingHandlers = new HashMap<String, JsonHandler>();
+	private final ConcurrentLinkedQueue<Message> mPendingMessages = new ConcurrentLinkedQueue<Message>();
+	/**
+	 * Shares requests between identical read-only calls in flight.
+	 */
+	private final CallCoalescer mCoalescer = new CallCoalescer();
 
 	/**
 	 * XBMC host configuration
@@ -151,6 +172,55 @@ public class ConnectionManager {
 	 */
 	private boolean mPreferHTTP = false;
 
+	/**
+	 * Milliseconds of silence on the TCP socket until a ping is sent, 0 for
+	 * no heartbeat.
+	 */
+	private int mHeartbeatInterval = 0;
+	/**
+	 * Milliseconds to wait for the answer of a heartbeat ping.
+	 */
+	private int mHeartbeatTimeout = 0;
+
+	/**
+	 * Runs HTTP calls, see {@link #setHttpExecutor(Executor)}.
+	 */
+	private Executor mHttpExecutor = null;
+	/**
+	 * Runs callbacks of calls without handler, null for running them on the
+	 * thread that received the response.
+	 */
+	private volatile Executor mCallbackExecutor = null;
+	/**
+	 * If true, identical read-only calls in flight share one request.
+	 */
+	private volatile boolean mCoalesceCalls = true;
+	/**
+	 * Cache of responses to read-only calls, null for none.
+	 */
+	private volatile ResponseCache mResponseCache = null;
+	/**
+	 * Persistent cache of responses to read-only calls, null for none.
+	 */
+	private volatile DiskCache mDiskCache = null;
+	/**
+	 * True once the API version has been requested for the disk cache.
+	 */
+	private boolean mDiskCacheVersioned = false;
+
+	/**
+	 * Transport set by {@link #setTransport(Transport)}, null for default.
+	 */
+	private Transport mTransport = null;
+	/**
+	 * Transport used if HTTP is preferred, created when needed.
+	 */
+	private HttpTransport mHttpTransport = null;
+	/**
+	 * Transport that has been opened, null if none.
+	 */
+	private Transport mOpenTransport = null;
+
 	/**
 	 * Class constructor.
 	 * @param c Needed if the service needs to be started
@@ -182,51 +252,270 @@ public class ConnectionManager {
 	 */
 	public <T> ConnectionManager call(final AbstractCall<T> call, final Handler handler, final ApiCallback<T> callback) {
 
-		if (mPreferHTTP) {
+		final CallRequest<T> callRequest = new CallRequest<T>(call, callback, handler);
+		String key = null;
+		final ResponseCache cache = mResponseCache;
+		if (cache != null && cache.isCacheable(call)) {
+			key = CallCoalescer.getKey(call);
+			if (cache.get(key, call)) {
+				postResponse(callRequest);
+				return this;
+			}
+			callRequest.setCache(cache, key, cache.getGeneration());
+		}
+		if (mCoalesceCalls && call.isReadOnly()) {
+			if (key == null) {
+				key = CallCoalescer.getKey(call);
+			}
+			if (!mCoalescer.lead(key, callRequest)) {
+				// identical call in flight, its response will be shared.
+				return this;
+			}
+		}
 
-			// spawn another thread for this
-			new Thread(new Runnable() {
-				@Override
-				public void run() {
-					try {
-						// synchronously post, retrieve and parse response.
-						call.setResponse(JsonApiRequest.execute(getUrl(), mHost.getUsername(), mHost.getPassword(), call.getRequest()));
-						if (handler != null) {
-							handler.post(new Runnable() {
-								@Override
-								public void run() {
-									callback.onResponse(call);
-								}
-							});
-						} else {
-							callback.onResponse(call);
-						}
-
-					} catch (final ApiException e) {
-						if (handler != null) {
-							handler.post(new Runnable() {
-								@Override
-								public void run() {
-									callback.onError(e.getCode(), e.getDisplayableMessage(mContext), e.getHint(mContext));
-								}
-							});
-						} else {
-							callback.onError(e.getCode(), e.getDisplayableMessage(mContext), e.getHint(mContext));
-						}
-					}
-				}
-			}).start();
+		final Transport transport = getTransport();
+		if (transport != null) {
+			mCallRequests.put(call.getId(), callRequest);
+			transport.send(call);
 
 		} else {
 
 			// start service if not yet started
 			bindService();
-			mCallRequests.put(call.getId(), new CallRequest<T>(call, callback));
+			mCallRequests.put(call.getId(), callRequest);
 			sendCall(call);
 		}
 		return this;
 	}
 
+	/**
+	 * Executes a JSON-RPC request and returns a future of the call, which
+	 * contains the result once the future has succeeded.
+	 * <p/>
+	 * Unless a callback executor is set, the future is completed on the
+	 * thread that received the response. With a transport set through
+	 * {@link #setTransport(Transport)}, that's its I/O thread, and with
+	 * {@link #setPreferHTTP()} the thread that executed the HTTP request, so
+	 * continuations should be short. Calls going through the connection
+	 * service are answered over IPC on the main looper, so their futures
+	 * complete on the main thread. Pass an executor to the continuations to
+	 * move work off it. Independent calls submitted one after another run
+	 * concurrently.
+	 *
+	 * @param call Call to execute
+	 * @param <C> Call type
+	 * @return Future of the call
+	 */
+	public <C extends AbstractCall<?>> ApiFuture<C> submit(C call) {
+		final ApiFuture<C> future = new ApiFuture<C>();
+		complete((AbstractCall<?>)call, call, future);
+		return future;
+	}
+
+	private <T, C extends AbstractCall<?>> void complete(AbstractCall<T> call, final C result, final ApiFuture<C> future) {
+		call(call, new ApiCallback<T>() {
+			@Override
+			public void onResponse(AbstractCall<T> call) {
+				future.complete(result);
+			}
+
+			@Override
+			public void onError(int code, String message, String hint) {
+				future.fail(new ApiException(code, message, hint, null));
+			}
+		});
+	}
+
+	/**
+	 * Executes a JSON-RPC request whose response is persisted in the disk
+	 * cache (see {@link #setDiskCache(DiskCache)}).
+	 * <p/>
+	 * If the response is on disk, the callback receives it right away,
+	 * without touching the network, in a copy of the call read from disk.
+	 * The call is then sent anyway and the callback receives the fresh
+	 * response a second time, in the given call. Errors of the refresh are
+	 * only reported if nothing was cached.
+	 * <p/>
+	 * Since the cache is read on the calling thread, this shouldn't be called
+	 * on the main thread.
+	 *
+	 * @param call Call to execute
+	 * @param callback How to treat result
+	 * @param <T> Result type
+	 * @return This instance
+	 */
+	public <T> ConnectionManager callCached(final AbstractCall<T> call, final ApiCallback<T> callback) {
+		return callCached(call, null, callback);
+	}
+
+	/**
+	 * Executes a JSON-RPC request whose response is persisted in the disk
+	 * cache, with the callback executed on the provided handler. See
+	 * {@link #callCached(AbstractCall, ApiCallback)}.
+	 *
+	 * @param call Call to execute
+	 * @param handler Results are posted on that handler
+	 * @param callback How to treat result
+	 * @param <T> Result type
+	 * @return This instance
+	 */
+	public <T> ConnectionManager callCached(final AbstractCall<T> call, final Handler handler, final ApiCallback<T> callback) {
+		final DiskCache cache = mDiskCache;
+		if (cache == null || !cache.isCacheable(call)) {
+			return call(call, handler, callback);
+		}
+		final CallRequest<T> callRequest = new CallRequest<T>(call, callback, handler);
+		final AbstractCall<T> cached = cache.load(call);
+		final boolean loaded = cached != null;
+		if (loaded) {
+			// the refresh below writes into the call, so the cached response
+			// goes out in its own instance.
+			respond(new CallRequest<T>(cached, callback, handler));
+		}
+		requestDiskCacheVersion(cache);
+		final long generation = cache.getGeneration();
+		// no handler, so the snapshot is taken before the callback gets the call.
+		return call(call, null, new ApiCallback<T>() {
+			@Override
+			public void onResponse(AbstractCall<T> response) {
+				cache.store(response, generation);
+				respond(callRequest);
+			}
+
+			@Override
+			public void onError(int code, String message, String hint) {
+				if (!loaded) {
+					fail(callRequest, code, message, hint);
+				} else {
+					Log.w(TAG, "Cannot refresh " + call.getName() + ": " + message);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Creates a new batch. Calls added to the batch are sent in one request
+	 * once {@link Batch#send()} is executed.
+	 * @return New batch
+	 */
+	public Batch batch() {
+		return new Batch(this, null);
+	}
+
+	/**
+	 * Creates a new batch whose callbacks are executed on the provided handler.
+	 * @param handler Results are posted on that handler
+	 * @return New batch
+	 */
+	public Batch batch(Handler handler) {
+		return new Batch(this, handler);
+	}
+
+	/**
+	 * Sends all calls of a batch in one request.
+	 * @param batch Batch to send
+	 * @return This instance
+	 */
+	ConnectionManager send(final Batch batch) {
+		final ArrayList<CallRequest<?>> requests = batch.getRequests();
+		if (requests.isEmpty()) {
+			return this;
+		}
+		final ArrayList<AbstractCall<?>> calls = new ArrayList<AbstractCall<?>>(requests.size());
+		final Transport transport = getTransport();
+		if (transport == null) {
+			// start service if not yet started
+			bindService();
+		}
+		for (CallRequest<?> callRequest : requests) {
+			mCallRequests.put(callRequest.getCall().getId(), callRequest);
+			calls.add(callRequest.getCall());
+		}
+		if (transport != null) {
+			transport.send(calls);
+		} else {
+			sendBatch(calls);
+		}
+		return this;
+	}
+
+	/**
+	 * Executes the callback of a call request and of the requests that
+	 * shared its call, on their handler if provided, otherwise on the
+	 * callback executor if set.
+	 * @param callRequest Call request with updated call
+	 */
+	private void postResponse(final CallRequest<?> callRequest) {
+		callRequest.store();
+		final List<CallRequest<?>> followers = mCoalescer.complete(callRequest);
+		respond(callRequest);
+		for (CallRequest<?> follower : followers) {
+			follower.update(callRequest.getCall());
+			respond(follower);
+		}
+	}
+
+	private void respond(final CallRequest<?> callRequest) {
+		final Handler handler = callRequest.getHandler();
+		final Runnable respond = new Runnable() {
+			@Override
+			public void run() {
+				callRequest.respond();
+			}
+		};
+		if (handler != null) {
+			handler.post(respond);
+		} else if (mCallbackExecutor != null) {
+			mCallbackExecutor.execute(respond);
+		} else {
+			callRequest.respond();
+		}
+	}
+
+	/**
+	 * Executes the error callback of a call request, on its handler if
+	 * provided, otherwise on the callback executor if set.
+	 * @param callRequest Call request that failed
+	 * @param e What went wrong
+	 */
+	private void postError(CallRequest<?> callRequest, ApiException e) {
+		postError(callRequest, e.getCode(), e.getDisplayableMessage(mContext), e.getHint(mContext));
+	}
+
+	/**
+	 * Executes the error callback of a call request and of the requests that
+	 * shared its call, on their handler if provided, otherwise on the
+	 * callback executor if set.
+	 * @param callRequest Call request that failed
+	 * @param code Error code, see constants at {@link ApiException}.
+	 * @param message Translated error message
+	 * @param hint Translated hint what the problem could be
+	 */
+	private void postError(final CallRequest<?> callRequest, final int code, final String message, final String hint) {
+		final List<CallRequest<?>> followers = mCoalescer.complete(callRequest);
+		fail(callRequest, code, message, hint);
+		for (CallRequest<?> follower : followers) {
+			fail(follower, code, message, hint);
+		}
+	}
+
+	private void fail(final CallRequest<?> callRequest, final int code, final String message, final String hint) {
+		final Handler handler = callRequest.getHandler();
+		final Runnable error = new Runnable() {
+			@Override
+			public void run() {
+				callRequest.error(code, message, hint);
+			}
+		};
+		if (handler != null) {
+			handler.post(error);
+		} else if (mCallbackExecutor != null) {
+			mCallbackExecutor.execute(error);
+		} else {
+			error.run();
+		}
+	}
+
 	/**
 	 * Executes a JSON-RPC request where the handler is executed at the service
 	 * and the callback gets a status code only.
@@ -240,7 +529,7 @@ public class ConnectionManager {
 
 		// start service if not yet started
 		bindService();
-		mHandlerCallbacks.put(call.getId(), callback);
+		mHandlerCallbacks.put(call.getId(), callback != null ? callback : NO_HANDLER_CALLBACK);
 		sendCall(call, handler);
 		return this;
 	}
@@ -251,8 +540,13 @@ public class ConnectionManager {
 	 * @return Class instance
 	 */
 	public ConnectionManager registerObserver(NotificationObserver observer) {
-		// start service if not yet started
-		bindService();
+		if (transportDeliversNotifications()) {
+			// open the transport so notifications start arriving
+			getTransport();
+		} else {
+			// start service if not yet started
+			bindService();
+		}
 		mObservers.add(observer);
 		return this;
 	}
@@ -266,9 +560,8 @@ public class ConnectionManager {
 		final ArrayList<NotificationObserver> observers = mObservers;
 		observers.remove(observer);
 		// stop service if no more observers.
-		if (observers.isEmpty() && mCallRequests.isEmpty() && mHandlerCallbacks.isEmpty()) {
-			unbindService();
-			Log.i(TAG, "Service unbound.");
+		if (mCallRequests.isEmpty() && mHandlerCallbacks.isEmpty()) {
+			releaseIdle();
 		} else {
 			Log.w(TAG, "Still stuff waiting, not unbinding.");
 		}
@@ -291,6 +584,146 @@ public class ConnectionManager {
 		mPreferHTTP = true;
 	}
 
+	/**
+	 * Makes the connection manager send calls through the given transport
+	 * instead of the connection service or HTTP.
+	 * <p/>
+	 * Calls with a {@link JsonHandler} always go through the service, since
+	 * the handler is executed there. So do notifications, unless the
+	 * transport {@link Transport#deliversNotifications() delivers} them.
+	 *
+	 * @param transport Transport to use, null for the default
+	 */
+	public synchronized void setTransport(Transport transport) {
+		closeTransport();
+		mTransport = transport;
+		// keep the registered observers fed through the new route
+		if (!mObservers.isEmpty()) {
+			if (transportDeliversNotifications()) {
+				getTransport();
+			} else {
+				bindService();
+			}
+		}
+	}
+
+	/**
+	 * Makes the connection service send a <tt>JSONRPC.Ping</tt> whenever the
+	 * TCP socket has been silent for a given time. If the ping isn't answered
+	 * in time, the connection is considered dead and re-established.
+	 * <p/>
+	 * Round trip times of the pings are measured, see
+	 * {@link #getRttEstimator()}.
+	 * <p/>
+	 * Must be set before the first call, since it's passed to the service
+	 * when binding.
+	 *
+	 * @param interval Milliseconds of silence until a ping is sent, 0 to disable
+	 * @param timeout Milliseconds to wait for the answer
+	 */
+	public void setHeartbeat(int interval, int timeout) {
+		mHeartbeatInterval = interval;
+		mHeartbeatTimeout = timeout;
+	}
+
+	/**
+	 * Sets the executor running HTTP calls.
+	 * <p/>
+	 * By default, a bounded pool shared by all connection managers is used,
+	 * which is sized to the number of cores and fails calls with
+	 * {@link ApiException#IO_REJECTED} when its queue is full. The same
+	 * happens if the given executor throws a
+	 * {@link RejectedExecutionException}.
+	 *
+	 * @param executor Executor for HTTP calls, null for the default
+	 */
+	public synchronized void setHttpExecutor(Executor executor) {
+		mHttpExecutor = executor;
+		resetHttpTransport();
+	}
+
+	/**
+	 * Sets the executor running the callbacks of calls that were sent without
+	 * a handler.
+	 * <p/>
+	 * By default, such callbacks run directly on the thread that received the
+	 * response, which for HTTP is the thread that executed the call, so a
+	 * slow callback blocks that thread for other calls.
+	 *
+	 * @param executor Executor for callbacks, null to run them on the receiving thread
+	 */
+	public void setCallbackExecutor(Executor executor) {
+		mCallbackExecutor = executor;
+	}
+
+	/**
+	 * Enables or disables call coalescing, which is enabled by default.
+	 * <p/>
+	 * When enabled, a read-only call (see {@link AbstractCall#isReadOnly()})
+	 * that is identical to one still in flight isn't sent. Instead, it gets
+	 * the result of the call in flight once that arrives. Every call gets its
+	 * own result list, but the result objects are shared between the
+	 * callbacks.
+	 *
+	 * @param coalesce True to share requests of identical calls, false to send every call
+	 */
+	public void setCoalesceCalls(boolean coalesce) {
+		mCoalesceCalls = coalesce;
+	}
+
+	/**
+	 * Sets a cache for responses to read-only calls. Cache hits are answered
+	 * right away without sending anything.
+	 * <p/>
+	 * Entries are invalidated by the library notifications received by this
+	 * manager, so a cache shouldn't be shared between managers of different
+	 * hosts.
+	 *
+	 * @param cache Response cache, null for no caching
+	 */
+	public void setResponseCache(ResponseCache cache) {
+		mResponseCache = cache;
+	}
+
+	/**
+	 * Returns the response cache.
+	 * @return Response cache, null if none set
+	 */
+	public ResponseCache getResponseCache() {
+		return mResponseCache;
+	}
+
+	/**
+	 * Sets a persistent cache for responses of calls sent through
+	 * {@link #callCached(AbstractCall, ApiCallback)}.
+	 * <p/>
+	 * With the first refresh, the API version of the host is requested, and
+	 * the cache is wiped if it was written for another version.
+	 *
+	 * @param cache Disk cache of the current host, null for no caching
+	 */
+	public synchronized void setDiskCache(DiskCache cache) {
+		mDiskCache = cache;
+		mDiskCacheVersioned = false;
+	}
+
+	/**
+	 * Returns the disk cache.
+	 * @return Disk cache, null if none set
+	 */
+	public DiskCache getDiskCache() {
+		return mDiskCache;
+	}
+
+	/**
+	 * Returns the round trip time estimation of the current host, which is
+	 * updated by the heartbeat (see {@link #setHeartbeat(int, int)}).
+	 * @return RTT estimator of the host
+	 */
+	public RttEstimator getRttEstimator() {
+		return RttEstimator.get(mHost.getAddress(), mHost.getTcpPort());
+	}
+
 	/**
 	 * Binds the connection to the notification service if not yet bound.
 	 */
@@ -302,6 +735,10 @@ public class ConnectionManager {
 			connectionServiceIntent.putExtra(ConnectionService.EXTRA_ADDRESS, mHost.getAddress());
 			connectionServiceIntent.putExtra(ConnectionService.EXTRA_HTTPPORT, mHost.getHttpPort());
 			connectionServiceIntent.putExtra(ConnectionService.EXTRA_TCPPORT, mHost.getTcpPort());
+			if (mHeartbeatInterval > 0) {
+				connectionServiceIntent.putExtra(ConnectionService.EXTRA_HEARTBEAT_INTERVAL, mHeartbeatInterval);
+				connectionServiceIntent.putExtra(ConnectionService.EXTRA_HEARTBEAT_TIMEOUT, mHeartbeatTimeout);
+			}
 
 			mContext.startService(connectionServiceIntent);
 			mContext.bindService(connectionServiceIntent, mConnection, Context.BIND_AUTO_CREATE);
@@ -332,33 +769,74 @@ public class ConnectionManager {
 			// Detach our existing connection.
 			mContext.unbindService(mConnection);
 			mIsBound = false;
+			invalidateResponseCache();
 		} else {
 			Log.d(TAG, "Not unbinding already unbound service.");
 		}
 	}
 
+	/**
+	 * Requests the API version of the host once, so a disk cache of another
+	 * version is wiped.
+	 * @param cache Disk cache
+	 */
+	private void requestDiskCacheVersion(final DiskCache cache) {
+		synchronized (this) {
+			if (mDiskCacheVersioned) {
+				return;
+			}
+			mDiskCacheVersioned = true;
+		}
+		call(new JSONRPC.Version(), new ApiCallback<JSONRPC.Version.VersionResult>() {
+			@Override
+			public void onResponse(AbstractCall<JSONRPC.Version.VersionResult> call) {
+				final JSONRPC.Version.VersionResult version = call.getResult();
+				cache.setVersion(version.major + "." + version.minor + "." + version.patch);
+			}
+
+			@Override
+			public void onError(int code, String message, String hint) {
+				Log.w(TAG, "Cannot retrieve API version for disk cache: " + message);
+				synchronized (ConnectionManager.this) {
+					mDiskCacheVersioned = false;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Clears the response cache once notifications aren't received anymore,
+	 * since it can't be invalidated until reconnected.
+	 */
+	private void invalidateResponseCache() {
+		final ResponseCache cache = mResponseCache;
+		if (cache != null) {
+			cache.invalidateAll();
+		}
+	}
+
 	/**
 	 * Posts a API call to the service.
 	 * @param apiCall API call
 	 */
 	private void sendCall(AbstractCall<?> apiCall) {
-		if (mService != null) {
-			try {
-				final Message msg = Message.obtain(null, ConnectionService.MSG_SEND_APICALL);
-				final Bundle data = new Bundle();
-				data.putParcelable(ConnectionService.EXTRA_APICALL, apiCall);
-				msg.setData(data);
-				msg.replyTo = mMessenger;
-				mService.send(msg);
-				Log.i(TAG, "Posted API call service (with callback).");
-			} catch (RemoteException e) {
-				Log.e(TAG, "Error posting message to service: " + e.getMessage(), e);
-			}
-		} else {
-			// service not yet started, saving data:
-			Log.i(TAG, "Saving post data for later.");
-			mPendingCalls.add(apiCall);
-		}
+		final Message msg = Message.obtain(null, ConnectionService.MSG_SEND_APICALL);
+		final Bundle data = new Bundle();
+		data.putParcelable(ConnectionService.EXTRA_APICALL, apiCall);
+		msg.setData(data);
+		sendMessage(msg);
+	}
+
+	/**
+	 * Posts a batch of API calls to the service.
+	 * @param apiCalls API calls
+	 */
+	private void sendBatch(ArrayList<AbstractCall<?>> apiCalls) {
+		final Message msg = Message.obtain(null, ConnectionService.MSG_SEND_BATCH);
+		final Bundle data = new Bundle();
+		data.putParcelableArrayList(ConnectionService.EXTRA_APICALLS, apiCalls);
+		msg.setData(data);
+		sendMessage(msg);
 	}
 
 	/**
@@ -367,24 +845,51 @@ public class ConnectionManager {
 	 * @param handler Handler to execute in the service
 	 */
 	private void sendCall(AbstractCall<?> apiCall, JsonHandler handler) {
+		final Message msg = Message. obtain(null, ConnectionService.MSG_SEND_HANDLED_APICALL);
+		final Bundle data = new Bundle();
+		data.putParcelable(ConnectionService.EXTRA_APICALL, apiCall);
+		data.putParcelable(ConnectionService.EXTRA_HANDLER, handler);
+		msg.setData(data);
+		sendMessage(msg);
+	}
+
+	/**
+	 * Posts a message to the service, or queues it until the service is
+	 * connected. Can be called from any thread.
+	 * @param msg Message to send
+	 */
+	private void sendMessage(Message msg) {
+		msg.replyTo = mMessenger;
 		if (mService != null) {
-			try {
-				final Message msg = Message. obtain(null, ConnectionService.MSG_SEND_HANDLED_APICALL);
-				final Bundle data = new Bundle();
-				data.putParcelable(ConnectionService.EXTRA_APICALL, apiCall);
-				data.putParcelable(ConnectionService.EXTRA_HANDLER, handler);
-				msg.setData(data);
-				msg.replyTo = mMessenger;
-				mService.send(msg);
-				Log.i(TAG, "Posted handled API call service.");
-			} catch (RemoteException e) {
-				Log.e(TAG, "Error posting message to service: " + e.getMessage(), e);
-			}
+			postMessage(msg);
 		} else {
 			// service not yet started, saving data:
 			Log.i(TAG, "Saving post data for later.");
-			mPendingCalls.add(apiCall);
-			mPendingHandlers.put(apiCall.getId(), handler);
+			mPendingMessages.add(msg);
+			// the service might have connected in the meantime
+			if (mService != null) {
+				flushPendingMessages();
+			}
+		}
+	}
+
+	/**
+	 * Posts all queued messages to the service.
+	 */
+	private void flushPendingMessages() {
+		Message msg;
+		while ((msg = mPendingMessages.poll()) != null) {
+			Log.d(TAG, "Posting pending message " + msg.what + "...");
+			postMessage(msg);
+		}
+	}
+
+	private void postMessage(Message msg) {
+		try {
+			mService.send(msg);
+			Log.i(TAG, "Posted message " + msg.what + " to service.");
+		} catch (RemoteException e) {
+			Log.e(TAG, "Error posting message to service: " + e.getMessage(), e);
 		}
 	}
 
@@ -398,11 +903,139 @@ public class ConnectionManager {
 	 * later, since it will be reconnect to the service as soon as it's used.
 	 */
 	public void disconnect() {
-		if (mObservers.isEmpty()) {
+		releaseIdle();
+	}
+
+	/**
+	 * Unbinds the service and closes the transport unless they are still
+	 * needed for the notifications of the registered observers.
+	 */
+	private void releaseIdle() {
+		final boolean observed = !mObservers.isEmpty();
+		final boolean viaTransport = transportDeliversNotifications();
+		if (!observed || viaTransport) {
 			unbindService();
 		}
+		if (!observed || !viaTransport) {
+			closeTransport();
+		}
+	}
+
+	/**
+	 * Returns true if notifications arrive through the transport set by
+	 * {@link #setTransport(Transport)}. Otherwise, e.g. when using HTTP, the
+	 * service must be bound to receive them.
+	 * @return True if the service isn't needed for notifications
+	 */
+	private synchronized boolean transportDeliversNotifications() {
+		return mTransport != null && mTransport.deliversNotifications();
+	}
+
+	/**
+	 * Returns the transport calls are sent through, opening it if necessary.
+	 * @return Transport or null if the connection service is used
+	 */
+	private synchronized Transport getTransport() {
+		Transport transport = mTransport;
+		if (transport == null && mPreferHTTP) {
+			if (mHttpTransport == null) {
+				mHttpTransport = new HttpTransport(mHost, mHttpPath, mHttpExecutor);
+			}
+			transport = mHttpTransport;
+		}
+		if (transport != null && transport != mOpenTransport) {
+			closeTransport();
+			transport.open(mTransportListener);
+			mOpenTransport = transport;
+		}
+		return transport;
 	}
 
+	/**
+	 * Closes the open transport, if any.
+	 */
+	private synchronized void closeTransport() {
+		if (mOpenTransport != null) {
+			mOpenTransport.close();
+			mOpenTransport = null;
+		}
+	}
+
+	/**
+	 * Makes the next HTTP call use a new transport with the current settings.
+	 */
+	private synchronized void resetHttpTransport() {
+		if (mHttpTransport != null && mOpenTransport == mHttpTransport) {
+			closeTransport();
+		}
+		mHttpTransport = null;
+	}
+
+	/**
+	 * Receives responses and notifications from the transport, if one is used.
+	 */
+	private final Transport.Listener mTransportListener = new Transport.Listener() {
+		@Override
+		public void onConnected() {
+			mIncomingHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					for (NotificationObserver observer : mObservers) {
+						observer.onConnected();
+					}
+				}
+			});
+		}
+
+		@Override
+		public void onResponse(AbstractCall<?> call) {
+			final CallRequest<?> callRequest = mCallRequests.complete(call.getId());
+			if (callRequest == null) {
+				Log.w(TAG, "Unknown ID " + call.getId() + " for " + call.getName() + ", dropping.");
+				return;
+			}
+			if (callRequest.getCall() != call) {
+				callRequest.update(call);
+			}
+			postResponse(callRequest);
+		}
+
+		@Override
+		public void onError(long id, final ApiException e) {
+			if (id != 0) {
+				final CallRequest<?> callRequest = mCallRequests.complete(id);
+				if (callRequest != null) {
+					postError(callRequest, e);
+				} else {
+					Log.w(TAG, "Unknown ID " + id + " for error, dropping.");
+				}
+				return;
+			}
+			for (CallRequest<?> callRequest : mCallRequests.completeAll()) {
+				postError(callRequest, e);
+			}
+			invalidateResponseCache();
+			mIncomingHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					for (NotificationObserver observer : mObservers) {
+						observer.onError(e.getCode(), e.getDisplayableMessage(mContext), e.getHint(mContext));
+					}
+				}
+			});
+		}
+
+		@Override
+		public void onNotification(final AbstractEvent event) {
+			mIncomingHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					notifyObservers(event);
+				}
+			});
+		}
+	};
+
 	/**
 	 * Connection used to communicate with the service.
 	 */
@@ -421,19 +1054,7 @@ public class ConnectionManager {
 				// anything with it
 			}
 			// now check if there are lost requests:
-			final LinkedList<AbstractCall<?>> calls = mPendingCalls;
-			while (!calls.isEmpty()) {
-				AbstractCall<?> call = calls.poll();
-				if (mPendingHandlers.containsKey(call.getId())) {
-					Log.d(TAG, "Posting pending handled call " + call.getName() + "...");
-					final JsonHandler handler = mPendingHandlers.get(call.getId());
-					sendCall(call, handler);
-					mPendingHandlers.remove(call.getId());
-				} else {
-					Log.d(TAG, "Posting pending call " + call.getName() + " with callback...");
-					sendCall(call);
-				}
-			}
+			flushPendingMessages();
 		}
 
 		public void onServiceDisconnected(ComponentName className) {
@@ -441,6 +1062,14 @@ public class ConnectionManager {
 			// unexpectedly disconnected - process crashed.
 			mService = null;
 			Log.i(TAG, "Service disconnected.");
+			// calls in flight won't get an answer anymore.
+			final ApiException e = new ApiException(ApiException.IO_DISCONNECTED, "Connection service disconnected.");
+			for (HandlerCallback callback : mHandlerCallbacks.completeAll()) {
+				callback.onError(e.getDisplayableMessage(mContext), e.getHint(mContext));
+			}
+			for (CallRequest<?> callRequest : mCallRequests.completeAll()) {
+				postError(callRequest, e);
+			}
 		}
 	};
 
@@ -456,16 +1085,60 @@ public class ConnectionManager {
 	 * Sets the path of the HTTP request. Should start with slash and end without.
 	 * @param httpPath Path
 	 */
-	public void setHttpPath(String httpPath) {
+	public synchronized void setHttpPath(String httpPath) {
 		mHttpPath = httpPath;
+		resetHttpTransport();
 	}
 
 	/**
 	 * Updates the host config.
 	 * @param hostConfig New host config.
 	 */
-	public void setHostConfig(HostConfig hostConfig) {
+	public synchronized void setHostConfig(HostConfig hostConfig) {
 		mHost = hostConfig;
+		resetHttpTransport();
+	}
+
+	/**
+	 * Passes a notification to the observers. Must run on the thread the
+	 * manager was created on.
+	 * @param notification Notification
+	 */
+	private void notifyObservers(AbstractEvent notification) {
+		final ResponseCache cache = mResponseCache;
+		if (cache != null) {
+			cache.onNotification(notification);
+		}
+		final DiskCache diskCache = mDiskCache;
+		if (diskCache != null) {
+			diskCache.onNotification(notification);
+		}
+		final ArrayList<NotificationObserver> observers = mObservers;
+		for (NotificationObserver observer : observers) {
+			switch (notification.getId()) {
+				case PlayerEvent.Play.ID:
+					observer.getPlayerObserver().onPlay((PlayerEvent.Play)notification);
+					break;
+				case PlayerEvent.Pause.ID:
+					observer.getPlayerObserver().onPause((PlayerEvent.Pause)notification);
+					break;
+				case PlayerEvent.Stop.ID:
+					observer.getPlayerObserver().onStop((PlayerEvent.Stop)notification);
+					break;
+				case PlayerEvent.SpeedChanged.ID:
+					observer.getPlayerObserver().onSpeedChanged((PlayerEvent.SpeedChanged)notification);
+					break;
+				case PlayerEvent.Seek.ID:
+					observer.getPlayerObserver().onSeek((PlayerEvent.Seek)notification);
+					break;
+				case SystemEvent.Quit.ID:
+				case SystemEvent.Restart.ID:
+				case SystemEvent.Wake.ID:
+				case SystemEvent.LowBattery.ID:
+				default:
+					break;
+			}
+		}
 	}
 
 	/**
@@ -480,19 +1153,18 @@ public class ConnectionManager {
 		@Override
 		public void handleMessage(Message msg) {
 			Log.i(TAG, "Got message: " + msg.what);
-			final HashMap<String, CallRequest<?>> callrequests = mCallRequests;
-			final HashMap<String, HandlerCallback> handlercallbacks = mHandlerCallbacks;
+			final CallRegistry<CallRequest<?>> callrequests = mCallRequests;
+			final CallRegistry<HandlerCallback> handlercallbacks = mHandlerCallbacks;
 			switch (msg.what) {
 
 				// fully updated API call object
 				case ConnectionService.MSG_RECEIVE_APICALL: {
 					final AbstractCall<?> returnedApiCall = msg.getData().getParcelable(ConnectionService.EXTRA_APICALL);
 					if (returnedApiCall != null) {
-						if (callrequests.containsKey(returnedApiCall.getId())) {
-							final CallRequest<?> callrequest = callrequests.get(returnedApiCall.getId());
+						final CallRequest<?> callrequest = callrequests.complete(returnedApiCall.getId());
+						if (callrequest != null) {
 							callrequest.update(returnedApiCall);
-							callrequest.respond();
-							callrequests.remove(returnedApiCall.getId());
+							postResponse(callrequest);
 							Log.d(TAG, "Callback for " + returnedApiCall.getName() + " sent back to caller.");
 						} else {
 							Log.w(TAG, "Unknown ID " + returnedApiCall.getId() + " for " + returnedApiCall.getName() + ", dropping.");
@@ -506,12 +1178,10 @@ public class ConnectionManager {
 				// status code after handled api call
 				case ConnectionService.MSG_RECEIVE_HANDLED_APICALL: {
 					final Bundle b = msg.getData();
-					final String id = b.getString(ConnectionService.EXTRA_CALLID);
-					if (handlercallbacks.containsKey(id)) {
-						if (handlercallbacks.get(id) != null) {
-							handlercallbacks.get(id).onFinish();
-							handlercallbacks.remove(id);
-						}
+					final long id = b.getLong(ConnectionService.EXTRA_CALLID);
+					final HandlerCallback handlercallback = handlercallbacks.complete(id);
+					if (handlercallback != null) {
+						handlercallback.onFinish();
 					} else {
 						Log.w(TAG, "Unknown ID " + id + " for handled callback, not notifying caller.");
 					}
@@ -522,32 +1192,7 @@ public class ConnectionManager {
 				case ConnectionService.MSG_RECEIVE_NOTIFICATION: {
 					final Bundle b = msg.getData();
 					final AbstractEvent notification = b.getParcelable(ConnectionService.EXTRA_NOTIFICATION);
-					final ArrayList<NotificationObserver> observers = mObservers;
-					for (NotificationObserver observer : observers) {
-						switch (notification.getId()) {
-							case PlayerEvent.Play.ID:
-								observer.getPlayerObserver().onPlay((PlayerEvent.Play)notification);
-								break;
-							case PlayerEvent.Pause.ID:
-								observer.getPlayerObserver().onPause((PlayerEvent.Pause)notification);
-								break;
-							case PlayerEvent.Stop.ID:
-								observer.getPlayerObserver().onStop((PlayerEvent.Stop)notification);
-								break;
-							case PlayerEvent.SpeedChanged.ID:
-								observer.getPlayerObserver().onSpeedChanged((PlayerEvent.SpeedChanged)notification);
-								break;
-							case PlayerEvent.Seek.ID:
-								observer.getPlayerObserver().onSeek((PlayerEvent.Seek)notification);
-								break;
-							case SystemEvent.Quit.ID:
-							case SystemEvent.Restart.ID:
-							case SystemEvent.Wake.ID:
-							case SystemEvent.LowBattery.ID:
-							default:
-								break;
-						}
-					}
+					notifyObservers(notification);
 					break;
 				}
 
@@ -572,35 +1217,33 @@ public class ConnectionManager {
 					final int code = b.getInt(ApiException.EXTRA_ERROR_CODE);
 					final String message = b.getString(ApiException.EXTRA_ERROR_MESSAGE);
 					final String hint = b.getString(ApiException.EXTRA_ERROR_HINT);
-					final String id = b.getString(ConnectionService.EXTRA_CALLID);
+					final long id = b.getLong(ConnectionService.EXTRA_CALLID);
 
-					final HashMap<String, HandlerCallback> handleCallbacks = mHandlerCallbacks;
-					final HashMap<String, CallRequest<?>> callRequests = mCallRequests;
+					final CallRegistry<HandlerCallback> handleCallbacks = mHandlerCallbacks;
+					final CallRegistry<CallRequest<?>> callRequests = mCallRequests;
 
-					if (id != null && handleCallbacks.containsKey(id)) {
+					final HandlerCallback handlerCallback = handleCallbacks.complete(id);
+					final CallRequest<?> callRequest = callRequests.complete(id);
+					if (handlerCallback != null) {
 						// if ID given and handler call back, announce to handler callback.
 						Log.e(TAG, "Error, notifying one handler callback.");
-						if (handleCallbacks.get(id) != null) {
-							handleCallbacks.get(id).onError(message, hint);
-						}
-					} else if (id != null && callRequests.containsKey(id)) {
+						handlerCallback.onError(message, hint);
+					} else if (callRequest != null) {
 						// if ID given and api call back, announce error.
 						Log.e(TAG, "Error, notifying one API callback.");
-						callRequests.get(id).error(code, message, hint);
+						postError(callRequest, code, message, hint);
+					} else if (id != 0) {
+						// call already completed, e.g. by its deadline.
+						Log.w(TAG, "Unknown ID " + id + " for error, dropping.");
 					} else {
 						// otherwise, announce to all clients (callbacks, api callbacks and observers).
 						Log.e(TAG, "Error, notifying everybody.");
-						for (HandlerCallback handlerCallback : handleCallbacks.values()) {
-							if (handlerCallback != null) {
-								handlerCallback.onError(message, hint);
-							}
+						for (HandlerCallback callback : handleCallbacks.completeAll()) {
+							callback.onError(message, hint);
 						}
-						handleCallbacks.clear();
-
-						for (CallRequest<?> callreq : callRequests.values()) {
-							callreq.error(code, message, hint);
+						for (CallRequest<?> callreq : callRequests.completeAll()) {
+							postError(callreq, code, message, hint);
 						}
-						callRequests.clear();
 
 						final ArrayList<NotificationObserver> observers = mObservers;
 						for (NotificationObserver observer : observers) {
@@ -619,27 +1262,57 @@ public class ConnectionManager {
 
 
 	/**
-	 * Returns the URL of XBMC to connect to.
-	 *
-	 * The URL already contains the JSON-RPC prefix, e.g.:
-	 * 		<code>http://192.168.0.100:8080/jsonrpc</code>
-	 * @return URL of JSON-RPC via HTTP
+	 * Stands in for handled calls posted without a callback, since the
+	 * registry doesn't take null values.
 	 */
-	private String getUrl() {
-		return "http://" + mHost.getAddress() + ":" + mHost.getHttpPort()+ mHttpPath;
-	}
+	private static final HandlerCallback NO_HANDLER_CALLBACK = new HandlerCallback() {
+		@Override
+		public void onFinish() {
+		}
+		@Override
+		public void onError(String message, String hint) {
+		}
+	};
 
 	/**
 	 * A call request bundles an API call and its callback of the same type.
 	 *
 	 * @author freezy <freezy@xbmc.org>
 	 */
-	private static class CallRequest<T> {
+	static class CallRequest<T> {
 		private final AbstractCall<T> mCall;
 		private final ApiCallback<T> mCallback;
-		public CallRequest(AbstractCall<T> call, ApiCallback<T> callback) {
+		private final Handler mHandler;
+		private String mCoalesceKey = null;
+		private ResponseCache mCache = null;
+		private String mCacheKey = null;
+		private long mCacheGeneration;
+		public CallRequest(AbstractCall<T> call, ApiCallback<T> callback, Handler handler) {
 			this.mCall = call;
 			this.mCallback = callback;
+			this.mHandler = handler;
+		}
+		public AbstractCall<T> getCall() {
+			return mCall;
+		}
+		public Handler getHandler() {
+			return mHandler;
+		}
+		public String getCoalesceKey() {
+			return mCoalesceKey;
+		}
+		public void setCoalesceKey(String key) {
+			mCoalesceKey = key;
+		}
+		public void setCache(ResponseCache cache, String key, long generation) {
+			mCache = cache;
+			mCacheKey = key;
+			mCacheGeneration = generation;
+		}
+		public void store() {
+			if (mCache != null) {
+				mCache.put(mCacheKey, mCall, mCacheGeneration);
+			}
 		}
 		public void update(AbstractCall<?> call) {
 			mCall.copyResponse(call);
@@ -666,7 +1339,8 @@ public class ConnectionManager {
 		 * The service is connected to JSON-RPC's TCP socket.
 		 * <p/>
 		 * If the service was already connected, this will be sent immediately
-		 * after registering the client.
+		 * after registering the client. It's sent again after the service
+		 * has reconnected from a dropped connection.
 		 */
 		public void onConnected();
 
@@ -0,0 +1,450 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+
+package org.xbmc.android.jsonrpc.io;
+
+import android.os.Build;
+import android.os.Parcel;
+import android.util.Log;
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+import org.xbmc.android.jsonrpc.api.Version;
+import org.xbmc.android.jsonrpc.config.HostConfig;
+import org.xbmc.android.jsonrpc.notification.AbstractEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent cache of responses to read-only calls of one host, so lists
+ * can be shown at startup without touching the network. Set it through
+ * {@link ConnectionManager#setDiskCache(DiskCache)} and send calls with
+ * {@link ConnectionManager#callCached(AbstractCall, ApiCallback)}.
+ * <p/>
+ * Every response is a file in the host's directory, named after the method
+ * and a hash of the parameters. Files contain the parcelled call, which is
+ * read back much faster than the original JSON could be parsed. Since the
+ * parcel format isn't stable between Android releases, and the model changes
+ * with every build of the library, each file starts with a header naming the
+ * file format, the Android release and the {@link Version#SCHEMA} it was
+ * written with, followed by the length and checksum of the parcel. Files
+ * whose header doesn't match are deleted before anything is unparcelled.
+ * Once the API version of the host is known (see {@link #setVersion(String)}),
+ * a cache of another version is wiped.
+ * <p/>
+ * Entries are invalidated by the same library notifications as the
+ * {@link ResponseCache}. Files are written on a background thread.
+ */
+public class DiskCache {
+
+	private static final String TAG = DiskCache.class.getSimpleName();
+
+	/**
+	 * Increase when the file format changes.
+	 */
+	private static final int FORMAT = 3;
+
+	/**
+	 * Entries larger than this are never read, so a broken length can't
+	 * exhaust memory.
+	 */
+	private static final int MAX_ENTRY_SIZE = 16 * 1024 * 1024;
+	private static final String VERSION_FILE = "version";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private final File mDir;
+	private final ExecutorService mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			final Thread thread = new Thread(r, TAG);
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Increased with every invalidation, so responses to calls sent before
+	 * don't end up on disk.
+	 */
+	private final AtomicLong mGeneration = new AtomicLong();
+
+	/**
+	 * Class constructor.
+	 * @param dir Cache directory, e.g. {@link android.content.Context#getCacheDir()}
+	 * @param host Host whose responses are cached
+	 */
+	public DiskCache(File dir, HostConfig host) {
+		mDir = new File(dir, "jsonrpc-" + sanitize(host.getAddress()) + "-" + host.getHttpPort() + "-" + host.getTcpPort());
+	}
+
+	/**
+	 * Sets the API version of the host, as returned by
+	 * <tt>JSONRPC.Version</tt>. If the cache was written for another version
+	 * or Android release, it's wiped.
+	 * @param version API version of the host
+	 */
+	public void setVersion(String version) {
+		final String fullVersion = FORMAT + ":" + Build.VERSION.SDK_INT + ":" + version;
+		mWriter.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final File file = new File(mDir, VERSION_FILE);
+					// an unreadable version file counts as another version.
+					final byte[] written = file.exists() ? read(file) : null;
+					if (written != null && fullVersion.equals(new String(written, "UTF-8"))) {
+						return;
+					}
+					Log.i(TAG, "Cache version changed to " + fullVersion + ", wiping.");
+					delete(null, null);
+					write(file, fullVersion.getBytes("UTF-8"));
+				} catch (UnsupportedEncodingException e) {
+					Log.e(TAG, "Cannot encode cache version: " + e.getMessage(), e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns true if responses to the given call are cached.
+	 * @param call API call
+	 * @return True if cached, false otherwise
+	 */
+	public boolean isCacheable(AbstractCall<?> call) {
+		return call.isReadOnly();
+	}
+
+	/**
+	 * Reads the cached response of a call. The call itself isn't touched,
+	 * the response comes in a new instance unparcelled from disk. Entries
+	 * written by another build of the library or another Android release
+	 * are deleted instead. This reads from disk, so it shouldn't be called
+	 * on the main thread.
+	 * @param call API call
+	 * @param <C> Call type
+	 * @return Copy of the call containing the cached response, or null if not found
+	 */
+	public <C extends AbstractCall<?>> C load(C call) {
+		final File file = getFile(call);
+		if (!file.exists()) {
+			return null;
+		}
+		final byte[] data = readEntry(file);
+		if (data == null) {
+			file.delete();
+			return null;
+		}
+		final Parcel parcel = Parcel.obtain();
+		try {
+			parcel.unmarshall(data, 0, data.length);
+			parcel.setDataPosition(0);
+			final Object cached = parcel.readParcelable(call.getClass().getClassLoader());
+			if (!call.getClass().isInstance(cached)) {
+				Log.w(TAG, "Unexpected content in " + file.getName() + ", deleting.");
+				file.delete();
+				return null;
+			}
+			@SuppressWarnings("unchecked")
+			final C copy = (C)cached;
+			return copy;
+
+		} catch (RuntimeException e) {
+			Log.w(TAG, "Cannot read " + file.getName() + ", deleting: " + e.getMessage());
+			file.delete();
+			return null;
+
+		} finally {
+			parcel.recycle();
+		}
+	}
+
+	/**
+	 * Returns the current generation, which is passed back when storing the
+	 * response.
+	 * @return Generation
+	 */
+	long getGeneration() {
+		return mGeneration.get();
+	}
+
+	/**
+	 * Writes the response of a call to disk, unless the cache has been
+	 * invalidated since the call was sent. Only a snapshot of the response
+	 * is taken on the calling thread, parcelling happens on the writer.
+	 * @param call API call containing the response
+	 * @param generation Generation when the call was sent
+	 */
+	void store(AbstractCall<?> call, final long generation) {
+		// snapshot right away, the results may change later.
+		final AbstractCall<?> snapshot = call.copy();
+		mWriter.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (generation != mGeneration.get()) {
+					return;
+				}
+				final Parcel parcel = Parcel.obtain();
+				final byte[] data;
+				try {
+					parcel.writeParcelable(snapshot, 0);
+					data = encodeEntry(parcel.marshall());
+				} finally {
+					parcel.recycle();
+				}
+				write(getFile(snapshot), data);
+			}
+		});
+	}
+
+	/**
+	 * Removes all entries of a method or a namespace.
+	 * @param method Method name or prefix, e.g. <tt>VideoLibrary.</tt>
+	 */
+	public void invalidate(String method) {
+		invalidate(method, null);
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public void invalidateAll() {
+		invalidate(null, null);
+	}
+
+	/**
+	 * Invalidates entries affected by a notification.
+	 * @param event Notification
+	 */
+	public void onNotification(AbstractEvent event) {
+		final String namespace = ResponseCache.getNamespace(event);
+		if (namespace != null) {
+			invalidate(namespace, ResponseCache.getMethodParts(event));
+		}
+	}
+
+	/**
+	 * Stops the writer thread once all pending files are written.
+	 */
+	public void close() {
+		mWriter.shutdown();
+	}
+
+	private void invalidate(final String prefix, final String[] parts) {
+		mGeneration.incrementAndGet();
+		mWriter.execute(new Runnable() {
+			@Override
+			public void run() {
+				delete(prefix, parts);
+			}
+		});
+	}
+
+	/**
+	 * Deletes the files of methods starting with the prefix and containing
+	 * one of the given parts. Runs on the writer thread.
+	 */
+	private void delete(String prefix, String[] parts) {
+		final File[] files = mDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			final String name = file.getName();
+			final int dash = name.lastIndexOf('-');
+			if (dash < 0) {
+				if (prefix == null) {
+					file.delete();
+				}
+				continue;
+			}
+			final String method = name.substring(0, dash);
+			if (prefix == null || (method.startsWith(prefix) && ResponseCache.contains(method, parts))) {
+				file.delete();
+			}
+		}
+	}
+
+	private File getFile(AbstractCall<?> call) {
+		return new File(mDir, call.getName() + "-" + hash(CallCoalescer.getKey(call)));
+	}
+
+	/**
+	 * Writes a file atomically, so readers never see half of it. Runs on the
+	 * writer thread.
+	 */
+	private void write(File file, byte[] data) {
+		if (!mDir.isDirectory() && !mDir.mkdirs()) {
+			Log.e(TAG, "Cannot create cache directory " + mDir + ".");
+			return;
+		}
+		final File tmp = new File(mDir, file.getName() + TMP_SUFFIX);
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			out.write(data);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				Log.e(TAG, "Cannot rename " + tmp + " to " + file + ".");
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot write " + file + ": " + e.getMessage(), e);
+			tmp.delete();
+		} finally {
+			close(out);
+		}
+	}
+
+	/**
+	 * Prefixes the parcelled call with the header.
+	 */
+	private static byte[] encodeEntry(byte[] parcel) {
+		final CRC32 crc = new CRC32();
+		crc.update(parcel);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(parcel.length + 64);
+		final DataOutputStream data = new DataOutputStream(out);
+		try {
+			data.writeInt(FORMAT);
+			data.writeInt(Build.VERSION.SDK_INT);
+			data.writeUTF(Version.SCHEMA);
+			data.writeInt(parcel.length);
+			data.writeLong(crc.getValue());
+			data.write(parcel);
+			data.close();
+		} catch (IOException e) {
+			// can't happen, it's all in memory.
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Checks the header of an entry and returns the parcelled call if it
+	 * was written by this build and is intact.
+	 * @return Parcelled call or null if incompatible or broken
+	 */
+	private static byte[] readEntry(File file) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+			final int format = in.readInt();
+			final int sdk = in.readInt();
+			final String schema = in.readUTF();
+			if (format != FORMAT || sdk != Build.VERSION.SDK_INT || !Version.SCHEMA.equals(schema)) {
+				Log.i(TAG, file.getName() + " was written with format " + format + ", SDK " + sdk + " and schema " + schema + ", deleting.");
+				return null;
+			}
+			final int length = in.readInt();
+			final long checksum = in.readLong();
+			if (length < 0 || length > MAX_ENTRY_SIZE || length > file.length()) {
+				Log.w(TAG, "Invalid length " + length + " in " + file.getName() + ", deleting.");
+				return null;
+			}
+			final byte[] data = new byte[length];
+			in.readFully(data);
+			final CRC32 crc = new CRC32();
+			crc.update(data);
+			if (crc.getValue() != checksum || in.read() >= 0) {
+				Log.w(TAG, "Corrupt entry " + file.getName() + ", deleting.");
+				return null;
+			}
+			return data;
+
+		} catch (EOFException e) {
+			Log.w(TAG, "Truncated entry " + file.getName() + ", deleting.");
+			return null;
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot read " + file + ": " + e.getMessage(), e);
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	private static byte[] read(File file) {
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			final byte[] data = new byte[(int)file.length()];
+			int read = 0;
+			while (read < data.length) {
+				final int n = in.read(data, read, data.length - read);
+				if (n < 0) {
+					break;
+				}
+				read += n;
+			}
+			return read == data.length ? data : null;
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot read " + file + ": " + e.getMessage(), e);
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	private static void close(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				// nothing to do.
+			}
+		}
+	}
+
+	private static String hash(String key) {
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+			final StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(key.hashCode());
+		} catch (IOException e) {
+			return Integer.toHexString(key.hashCode());
+		}
+	}
+
+	private static String sanitize(String name) {
+		return name.replaceAll("[^A-Za-z0-9._]", "_");
+	}
+}
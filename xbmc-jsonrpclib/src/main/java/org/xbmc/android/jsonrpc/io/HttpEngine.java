@@ -0,0 +1,311 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+
+package org.xbmc.android.jsonrpc.io;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.xbmc.android.jsonrpc.config.HostConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Posts JSON-RPC requests to one XBMC host over HTTP.
+ * <p/>
+ * An engine keeps everything that doesn't change between requests to a host,
+ * i.e. the parsed URL and the encoded <tt>Authorization</tt> header. It's
+ * owned by whoever talks to the host, usually the {@link HttpTransport} of a
+ * {@link ConnectionManager}, and dropped with it when the host or the
+ * credentials change.
+ * <p/>
+ * Connections are kept alive by the platform's connection pool. For a
+ * connection to be returned to the pool, its response must be read to the end
+ * and closed, which the engine does for error responses as well. The engine
+ * doesn't configure the pool. It's shared by the whole process and sized by
+ * the platform, so concurrent requests are limited by the executor of the
+ * {@link HttpTransport} instead.
+ * <p/>
+ * Responses are requested gzipped and decompressed while they're read.
+ * <p/>
+ * Neither the request nor the response ever exist as string. The request is
+ * serialized as UTF-8 bytes and sent with a fixed length, and the response
+ * is parsed directly from the (inflating) stream.
+ */
+public class HttpEngine {
+
+	private static final String TAG = HttpEngine.class.getSimpleName();
+
+	private static final int REQUEST_TIMEOUT = 5000; // 5 sec
+	private static final int BUFFER_SIZE = 8192;
+	private static final String USER_AGENT = "xbmc-jsonrpclib-android";
+
+	private static final ObjectMapper OM = new ObjectMapper();
+
+	private final URL mUrl;
+	private final String mAuthorization;
+
+	/**
+	 * Creates the engine of a host.
+	 * @param host Host config
+	 * @param path Path of the JSON-RPC endpoint, e.g. <tt>/jsonrpc</tt>
+	 * @throws ApiException If the resulting URL is invalid
+	 */
+	public HttpEngine(HostConfig host, String path) throws ApiException {
+		this("http://" + host.getAddress() + ":" + host.getHttpPort() + path, host.getUsername(), host.getPassword());
+	}
+
+	/**
+	 * Creates the engine of a URL and credentials.
+	 * @param url Complete URL with schema, host, port if not default and path.
+	 * @param user Username or null
+	 * @param pass Password or null
+	 * @throws ApiException If the URL is invalid
+	 */
+	public HttpEngine(String url, String user, String pass) throws ApiException {
+		try {
+			mUrl = new URL(url);
+		} catch (MalformedURLException e) {
+			throw new ApiException(ApiException.MALFORMED_URL, e.getMessage(), e);
+		}
+		// http basic authorization
+		if (user != null && !user.isEmpty() && pass != null && !pass.isEmpty()) {
+			mAuthorization = "Basic " + Base64.encodeToString((user + ":" + pass).getBytes(), false);
+		} else {
+			mAuthorization = null;
+		}
+	}
+
+	/**
+	 * Returns the URL requests are posted to.
+	 * @return URL of the JSON-RPC endpoint
+	 */
+	public URL getUrl() {
+		return mUrl;
+	}
+
+	/**
+	 * Posts a request and returns the parsed response.
+	 *
+	 * @param entity Request body
+	 * @return Root node of the response
+	 * @throws ApiException
+	 */
+	public JsonNode post(JsonNode entity) throws ApiException {
+		return post(serialize(entity));
+	}
+
+	/**
+	 * Posts a request that has already been serialized and returns the
+	 * parsed response.
+	 *
+	 * @param body Request body as UTF-8
+	 * @return Root node of the response
+	 * @throws ApiException
+	 */
+	public JsonNode post(byte[] body) throws ApiException {
+		return exchange(body, null);
+	}
+
+	/**
+	 * Posts a request that has already been serialized and routes the
+	 * response while it's read from the (inflating) stream, so it's never
+	 * read into a tree. A response without content routes nothing.
+	 *
+	 * @param body Request body as UTF-8
+	 * @param router Receives the response
+	 * @throws ApiException
+	 */
+	public void post(byte[] body, ResponseRouter router) throws ApiException {
+		exchange(body, router);
+	}
+
+	/**
+	 * Posts a request and either routes the response or returns it parsed.
+	 *
+	 * @param body Request body as UTF-8
+	 * @param router Receives the response, or null to return it
+	 * @return Root node of the response, or null if routed
+	 * @throws ApiException
+	 */
+	private JsonNode exchange(byte[] body, ResponseRouter router) throws ApiException {
+		HttpURLConnection conn = null;
+		try {
+			conn = (HttpURLConnection) mUrl.openConnection();
+
+			conn.setRequestMethod("POST");
+			if (mAuthorization != null) {
+				conn.setRequestProperty("Authorization", mAuthorization);
+			}
+			conn.setRequestProperty("Content-Type", "application/json");
+			conn.setRequestProperty("Accept-Encoding", "gzip");
+			conn.setRequestProperty("User-Agent", USER_AGENT);
+
+			conn.setConnectTimeout(REQUEST_TIMEOUT);
+			conn.setReadTimeout(REQUEST_TIMEOUT);
+
+			conn.setDoOutput(true);
+			conn.setFixedLengthStreamingMode(body.length);
+
+			final OutputStream output = conn.getOutputStream();
+			output.write(body);
+			output.close();
+
+			Logger.i(TAG, "POST request: " + conn.getURL() + " (" + body.length + " bytes)");
+
+			final int code = conn.getResponseCode();
+			if (code == 200) {
+				final InputStream in = open(conn, conn.getInputStream());
+				try {
+					final JsonParser jp = OM.getJsonFactory().createJsonParser(in);
+					if (router != null) {
+						// the stream is drained below, the parser mustn't close it.
+						jp.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+						router.route(jp);
+						drain(in);
+						return null;
+					}
+					final JsonNode response = OM.readTree(jp);
+					// whatever follows must be read too, so the connection is re-used.
+					drain(in);
+					if (response == null) {
+						throw new ApiException(ApiException.RESPONSE_ERROR, "Empty response.");
+					}
+					return response;
+				} catch (JsonProcessingException e) {
+					throw new ApiException(ApiException.JSON_EXCEPTION, "Parse error: " + e.getMessage(), e);
+				} finally {
+					in.close();
+				}
+			}
+
+			// read the error body as well, otherwise the connection isn't re-used.
+			final InputStream error = conn.getErrorStream();
+			if (error != null) {
+				drain(error);
+			}
+			throw httpError(code);
+
+		} catch (SocketTimeoutException e) {
+			if (conn != null) {
+				conn.disconnect();
+			}
+			throw new ApiException(ApiException.IO_SOCKETTIMEOUT, e.getMessage(), e);
+		} catch (IOException e) {
+			if (conn != null) {
+				conn.disconnect();
+			}
+			throw new ApiException(ApiException.IO_EXCEPTION, e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Serializes a request as UTF-8.
+	 * @param entity Request
+	 * @return UTF-8 bytes
+	 * @throws ApiException
+	 */
+	private static byte[] serialize(JsonNode entity) throws ApiException {
+		try {
+			final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+			final JsonGenerator gen = OM.getJsonFactory().createJsonGenerator(body, JsonEncoding.UTF8);
+			OM.writeTree(gen, entity);
+			gen.close();
+			return body.toByteArray();
+		} catch (IOException e) {
+			throw new ApiException(ApiException.JSON_EXCEPTION, "Unable to serialize request: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Wraps the response body into an inflater if it's gzipped.
+	 * @param conn Connection the body belongs to
+	 * @param stream Body as received
+	 * @return Decompressed body
+	 * @throws IOException
+	 */
+	private static InputStream open(HttpURLConnection conn, InputStream stream) throws IOException {
+		if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+			return new GZIPInputStream(stream, BUFFER_SIZE);
+		}
+		return stream;
+	}
+
+	/**
+	 * Reads a stream to the end and closes it.
+	 * @param stream Stream to drain
+	 * @throws IOException
+	 */
+	private static void drain(InputStream stream) throws IOException {
+		try {
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			while (stream.read(buffer) != -1) {
+				// discard
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Converts a HTTP status code other than 200 into an exception.
+	 * @param code HTTP status code
+	 * @return Exception describing the status
+	 */
+	private static ApiException httpError(int code) {
+		switch (code) {
+			case 400:
+				return new ApiException(ApiException.HTTP_BAD_REQUEST, "Server says \"400 Bad HTTP request\".");
+			case 401:
+				return new ApiException(ApiException.HTTP_UNAUTHORIZED, "Server says \"401 Unauthorized\".");
+			case 403:
+				return new ApiException(ApiException.HTTP_FORBIDDEN, "Server says \"403 Forbidden\".");
+			case 404:
+				return new ApiException(ApiException.HTTP_NOT_FOUND, "Server says \"404 Not Found\".");
+			default:
+				if (code >= 100 && code < 200) {
+					return new ApiException(ApiException.HTTP_INFO, "Server returned informational code " + code + " instead of 200.");
+				} else if (code >= 200 && code < 300) {
+					return new ApiException(ApiException.HTTP_SUCCESS, "Server returned success code " + code + " instead of 200.");
+				} else if (code >= 300 && code < 400) {
+					return new ApiException(ApiException.HTTP_REDIRECTION, "Server returned redirection code " + code + " instead of 200.");
+				} else if (code >= 400 && code < 500) {
+					return new ApiException(ApiException.HTTP_CLIENT_ERROR, "Server returned client error " + code + ".");
+				} else if (code >= 500 && code < 600) {
+					return new ApiException(ApiException.HTTP_SERVER_ERROR, "Server returned server error " + code + ".");
+				} else {
+					return new ApiException(ApiException.HTTP_UNKNOWN, "Server returned unspecified code " + code + ".");
+				}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+
+package org.xbmc.android.jsonrpc.io;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executor running HTTP calls when no other executor was set
+ * through {@link ConnectionManager#setHttpExecutor(Executor)}.
+ * <p/>
+ * The pool is shared by all connection managers and sized to the device: one
+ * thread more than there are cores, but at least two and at most four, since
+ * XBMC's web server doesn't get faster with more parallel requests either.
+ * Idle threads die after a while, so an unused pool costs nothing.
+ * <p/>
+ * Calls that don't fit into the queue are rejected, which the connection
+ * manager reports as {@link ApiException#IO_REJECTED} to the callback of the
+ * call.
+ */
+class HttpExecutor {
+
+	private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+	private static final int POOL_SIZE = Math.max(2, Math.min(CPU_COUNT + 1, 4));
+	private static final int QUEUE_SIZE = 128;
+	private static final int KEEP_ALIVE = 30;
+
+	private static Executor sDefault;
+
+	/**
+	 * Returns the shared default executor, creating it if necessary.
+	 * @return Default executor for HTTP calls
+	 */
+	static synchronized Executor getDefault() {
+		if (sDefault == null) {
+			final ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger(1);
+				@Override
+				public Thread newThread(Runnable r) {
+					return new Thread(r, "JsonRpcHttp #" + mCount.getAndIncrement());
+				}
+			}, new ThreadPoolExecutor.AbortPolicy());
+			executor.allowCoreThreadTimeOut(true);
+			sDefault = executor;
+		}
+		return sDefault;
+	}
+}
@@ -0,0 +1,295 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+
+package org.xbmc.android.jsonrpc.io;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.node.ObjectNode;
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+import org.xbmc.android.jsonrpc.config.HostConfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Sends every call or batch as a POST request through the {@link HttpEngine}
+ * of the host.
+ * <p/>
+ * Requests are executed on an {@link Executor}, by default the bounded pool
+ * described at {@link HttpExecutor}. A call the executor rejects fails with
+ * {@link ApiException#IO_REJECTED}. Responses are routed to the calls by
+ * ID while they're read, without building a tree first. A response the call
+ * can't be parsed into fails it with {@link ApiException#RESPONSE_ERROR}, as
+ * does a missing response, so no call is left without an answer.
+ * <p/>
+ * HTTP doesn't receive notifications.
+ */
+public class HttpTransport implements Transport {
+
+	private static final String TAG = HttpTransport.class.getSimpleName();
+
+	private final HostConfig mHost;
+	private final String mPath;
+	private final Executor mExecutor;
+
+	private volatile Listener mListener;
+	private volatile HttpEngine mEngine;
+
+	/**
+	 * Class constructor.
+	 * @param host Host to send requests to
+	 * @param path Path of the JSON-RPC endpoint, e.g. <tt>/jsonrpc</tt>
+	 * @param executor Executes the requests, null for the default
+	 */
+	public HttpTransport(HostConfig host, String path, Executor executor) {
+		mHost = host;
+		mPath = path;
+		mExecutor = executor != null ? executor : HttpExecutor.getDefault();
+	}
+
+	@Override
+	public void open(Listener listener) {
+		mListener = listener;
+	}
+
+	@Override
+	public void send(final AbstractCall<?> call) {
+		execute(new HttpTask() {
+			@Override
+			public void run() {
+				final Exchange exchange = new Exchange(Collections.<AbstractCall<?>>singletonList(call));
+				try {
+					// synchronously post, retrieve and route response.
+					JsonApiRequest.execute(getEngine(), call, new ResponseRouter(exchange));
+					exchange.failUnanswered(null);
+
+				} catch (ApiException e) {
+					exchange.failUnanswered(e);
+
+				} catch (RuntimeException e) {
+					Logger.e(TAG, "Error while executing " + call.getName() + ": " + e.getMessage(), e);
+					exchange.failUnanswered(new ApiException(ApiException.UNEXPECTED_ERROR, e.getMessage(), e));
+				}
+			}
+			@Override
+			void reject(ApiException e) {
+				mListener.onError(call.getId(), e);
+			}
+		});
+	}
+
+	@Override
+	public void send(final List<AbstractCall<?>> calls) {
+		execute(new HttpTask() {
+			@Override
+			public void run() {
+				final Exchange exchange = new Exchange(calls);
+				try {
+					// synchronously post, retrieve and route responses.
+					JsonApiRequest.executeBatch(getEngine(), calls, new ResponseRouter(exchange));
+					exchange.failUnanswered(null);
+
+				} catch (ApiException e) {
+					exchange.failUnanswered(e);
+
+				} catch (RuntimeException e) {
+					// only fail the calls that weren't answered yet.
+					Logger.e(TAG, "Error while executing batch: " + e.getMessage(), e);
+					exchange.failUnanswered(new ApiException(ApiException.UNEXPECTED_ERROR, e.getMessage(), e));
+				}
+			}
+			@Override
+			void reject(ApiException e) {
+				for (AbstractCall<?> call : calls) {
+					mListener.onError(call.getId(), e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * HTTP has no connection to close, calls in flight are still answered.
+	 */
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * HTTP is request/response only, so notifications never arrive.
+	 */
+	@Override
+	public boolean deliversNotifications() {
+		return false;
+	}
+
+	/**
+	 * Returns the HTTP engine of the host.
+	 * @return HTTP engine
+	 * @throws ApiException If the URL is invalid
+	 */
+	private HttpEngine getEngine() throws ApiException {
+		HttpEngine engine = mEngine;
+		if (engine == null) {
+			engine = new HttpEngine(mHost, mPath);
+			mEngine = engine;
+		}
+		return engine;
+	}
+
+	/**
+	 * Runs an HTTP call on the executor. If the executor doesn't take it, the
+	 * call fails immediately.
+	 * @param task HTTP call
+	 */
+	private void execute(HttpTask task) {
+		try {
+			mExecutor.execute(task);
+		} catch (RejectedExecutionException e) {
+			Logger.w(TAG, "HTTP executor rejected call: " + e.getMessage());
+			task.reject(new ApiException(ApiException.IO_REJECTED, "HTTP executor is saturated."));
+		}
+	}
+
+	/**
+	 * Receives the routed response of one HTTP request and answers its calls,
+	 * each of them once. Used by the executing thread only.
+	 */
+	private class Exchange implements ResponseRouter.Target {
+
+		private final LongObjectMap<AbstractCall<?>> mPending = new LongObjectMap<AbstractCall<?>>();
+
+		private Exchange(List<AbstractCall<?>> calls) {
+			for (AbstractCall<?> call : calls) {
+				mPending.put(call.getId(), call);
+			}
+		}
+
+		@Override
+		public boolean isWaiting(long id) {
+			return mPending.containsKey(id);
+		}
+
+		/**
+		 * A <tt>null</tt> result leaves the call empty.
+		 */
+		@Override
+		public void onResult(long id, JsonNode result) {
+			final AbstractCall<?> call = mPending.remove(id);
+			if (call == null) {
+				return;
+			}
+			try {
+				if (result != null && !result.isNull()) {
+					call.setResult(result);
+				}
+			} catch (RuntimeException e) {
+				Logger.e(TAG, "Cannot parse response of " + call.getName() + ": " + e.getMessage(), e);
+				mListener.onError(id, new ApiException(ApiException.RESPONSE_ERROR, "Cannot parse response: " + e.getMessage(), e));
+				return;
+			}
+			mListener.onResponse(call);
+		}
+
+		/**
+		 * A <tt>null</tt> result leaves the call empty.
+		 */
+		@Override
+		public void onResult(long id, JsonParser parser) throws IOException {
+			final AbstractCall<?> call = mPending.remove(id);
+			if (call == null) {
+				parser.skipChildren();
+				return;
+			}
+			try {
+				if (parser.getCurrentToken() != JsonToken.VALUE_NULL) {
+					call.setResult(parser);
+				}
+			} catch (IOException e) {
+				// the rest of the response is lost, too.
+				mListener.onError(id, new ApiException(ApiException.JSON_EXCEPTION, "Error parsing response of " + call.getName() + ": " + e.getMessage(), e));
+				throw e;
+			} catch (RuntimeException e) {
+				// the parser is somewhere inside the result, so the rest of the response is lost, too.
+				Logger.e(TAG, "Cannot parse response of " + call.getName() + ": " + e.getMessage(), e);
+				mListener.onError(id, new ApiException(ApiException.RESPONSE_ERROR, "Cannot parse response: " + e.getMessage(), e));
+				throw new IOException("Cannot parse response of " + call.getName() + ": " + e.getMessage(), e);
+			}
+			mListener.onResponse(call);
+		}
+
+		/**
+		 * An error without ID rejects the whole request, e.g. a batch XBMC
+		 * couldn't parse.
+		 */
+		@Override
+		public void onError(long id, JsonNode response) {
+			final ApiException e = JsonApiRequest.parseError(response);
+			if (id == 0) {
+				failUnanswered(e);
+			} else if (mPending.remove(id) != null) {
+				mListener.onError(id, e);
+			}
+		}
+
+		@Override
+		public void onDropped(long id) {
+			Logger.w(TAG, "Unknown ID " + id + " in response, dropping.");
+		}
+
+		/**
+		 * HTTP doesn't receive notifications.
+		 */
+		@Override
+		public void onNotification(ObjectNode notification) {
+		}
+
+		/**
+		 * Fails the calls that weren't answered.
+		 * @param e Error to fail them with, or null if their response is missing
+		 */
+		private void failUnanswered(ApiException e) {
+			final ArrayList<AbstractCall<?>> unanswered = new ArrayList<AbstractCall<?>>(mPending.size());
+			mPending.values(unanswered);
+			mPending.clear();
+			for (AbstractCall<?> call : unanswered) {
+				mListener.onError(call.getId(), e != null ? e : new ApiException(ApiException.RESPONSE_ERROR, "No response for " + call.getName() + "."));
+			}
+		}
+	}
+
+	/**
+	 * An HTTP call that knows how to fail when it can't be executed.
+	 */
+	private static abstract class HttpTask implements Runnable {
+		/**
+		 * Fails the call(s) without running it.
+		 * @param e Why it wasn't run
+		 */
+		abstract void reject(ApiException e);
+	}
+}
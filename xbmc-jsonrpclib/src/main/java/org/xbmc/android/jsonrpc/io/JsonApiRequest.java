@@ -21,27 +21,28 @@
 
 package org.xbmc.android.jsonrpc.io;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.SocketTimeoutException;
-import java.net.URL;
-
-import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.ObjectNode;
 import org.codehaus.jackson.node.TextNode;
+import org.xbmc.android.jsonrpc.api.AbstractCall;
 
-import android.util.Log;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Performs HTTP POST requests on the XBMC JSON API and handles the parsing from
  * and to {@link ObjectNode}.
  * <p/>
+ * The HTTP part, including serialization and parsing, is done by
+ * {@link HttpEngine}.
+ * <p/>
  * <i>Note</i>: All in here is synchronous.
  *
  * @author Joel Stemmer <stemmertech@gmail.com>
@@ -51,8 +52,7 @@ public class JsonApiRequest {
 
 	private static final String TAG = JsonApiRequest.class.getSimpleName();
 
-	private static final int REQUEST_TIMEOUT = 5000; // 5 sec
-	private static final ObjectMapper OM = new ObjectMapper();
+	private final static JsonFactory FACTORY = new ObjectMapper().getJsonFactory();
 
 	/**
 	 * Executes a POST request to the URL using the JSON Object as request body
@@ -64,163 +64,202 @@ public class JsonApiRequest {
 	 * @throws ApiException
 	 */
 	public static ObjectNode execute(String url, String user, String pass, ObjectNode entity) throws ApiException {
-		try {
-			String response = postRequest(new URL(url), user, pass, entity.toString());
-			return parseResponse(response);
-		} catch (MalformedURLException e) {
-			throw new ApiException(ApiException.MALFORMED_URL, e.getMessage(), e);
-		}
+		return execute(new HttpEngine(url, user, pass), entity);
+	}
+
+	/**
+	 * Executes a POST request through the given engine using the JSON Object
+	 * as request body and returns a JSON Object if the response was successful.
+	 *
+	 * @param engine HTTP engine of the host
+	 * @param entity Object being serialized as message body
+	 * @return JSON Object of the JSON-RPC response.
+	 * @throws ApiException
+	 */
+	public static ObjectNode execute(HttpEngine engine, ObjectNode entity) throws ApiException {
+		return parseResponse(engine.post(entity));
 	}
 
 	/**
-	 * Execute a POST request on URL using entity as request body.
+	 * Executes a POST request through the given engine with the request of
+	 * an API call as body, which is written without building a tree first.
 	 *
-	 * @param url
-	 * @param entity
-	 * @return The response as a string
+	 * @param engine HTTP engine of the host
+	 * @param call API call
+	 * @return JSON Object of the JSON-RPC response.
+	 * @throws ApiException
+	 */
+	public static ObjectNode execute(HttpEngine engine, AbstractCall<?> call) throws ApiException {
+		return parseResponse(engine.post(serialize(Collections.<AbstractCall<?>>singletonList(call), false)));
+	}
+
+	/**
+	 * Executes a JSON-RPC batch of API calls as one POST request through the
+	 * given engine and returns the array of responses.
+	 *
+	 * @param engine HTTP engine of the host
+	 * @param calls API calls
+	 * @return JSON Array of the JSON-RPC responses.
+	 * @throws ApiException
+	 */
+	public static ArrayNode executeBatch(HttpEngine engine, List<AbstractCall<?>> calls) throws ApiException {
+		return parseBatchResponse(engine.post(serialize(calls, true)));
+	}
+
+	/**
+	 * Executes a POST request through the given engine with the request of
+	 * an API call as body and routes the response to the call while it's
+	 * read, without building a tree of it.
+	 *
+	 * @param engine HTTP engine of the host
+	 * @param call API call
+	 * @param router Receives the response
+	 * @throws ApiException
+	 */
+	public static void execute(HttpEngine engine, AbstractCall<?> call, ResponseRouter router) throws ApiException {
+		engine.post(serialize(Collections.<AbstractCall<?>>singletonList(call), false), router);
+	}
+
+	/**
+	 * Executes a JSON-RPC batch of API calls as one POST request through the
+	 * given engine and routes the responses to the calls by ID while they're
+	 * read.
+	 *
+	 * @param engine HTTP engine of the host
+	 * @param calls API calls
+	 * @param router Receives the responses
+	 * @throws ApiException
+	 */
+	public static void executeBatch(HttpEngine engine, List<AbstractCall<?>> calls, ResponseRouter router) throws ApiException {
+		engine.post(serialize(calls, true), router);
+	}
+
+	/**
+	 * Writes the requests of API calls as UTF-8.
+	 * @param calls API calls
+	 * @param asArray If true, the requests are written as a batch
+	 * @return UTF-8 bytes
 	 * @throws ApiException
-	 * @throws IOException
 	 */
-	private static String postRequest(URL url, String user, String pass, String entity) throws ApiException {
+	private static byte[] serialize(List<AbstractCall<?>> calls, boolean asArray) throws ApiException {
 		try {
-			final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-
-			conn.setRequestMethod("POST");
-			
-			// http basic authorization
-			if (user != null && !user.isEmpty() && pass != null && !pass.isEmpty()) {
-				final String token = Base64.encodeToString((user + ":" + pass).getBytes(), false);
-				conn.setRequestProperty("Authorization", "Basic " + token);
+			final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+			final JsonGenerator gen = FACTORY.createJsonGenerator(body, JsonEncoding.UTF8);
+			if (asArray) {
+				gen.writeStartArray();
 			}
-			conn.setRequestProperty("Content-Type", "application/json");
-			conn.setRequestProperty("User-Agent", buildUserAgent());
-			
-			conn.setConnectTimeout(REQUEST_TIMEOUT);
-			conn.setReadTimeout(REQUEST_TIMEOUT);
-
-			conn.setDoOutput(true);
-
-			try {
-				OutputStreamWriter output = new OutputStreamWriter(conn.getOutputStream(), "UTF-8");
-				output.write(entity);
-				output.close();
-			} catch (UnsupportedEncodingException e) {
-				throw new ApiException(ApiException.UNSUPPORTED_ENCODING, "Unable to convert request to UTF-8", e);
+			for (AbstractCall<?> call : calls) {
+				call.writeTo(gen);
 			}
-
-			Log.i(TAG, "POST request: " + conn.getURL());
-			Log.i(TAG, "POST entity:" + entity);
-
-			StringBuilder response = new StringBuilder();
-			BufferedReader reader = null;
-			
-			final int code = conn.getResponseCode();
-			if (code == 200) {
-				try {
-					reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"), 8192);
-					String line;
-					while ((line = reader.readLine()) != null) {
-						response.append(line);
-					}
-				} catch (UnsupportedEncodingException e) {
-					throw new ApiException(ApiException.UNSUPPORTED_ENCODING, "Unable to convert HTTP response to UTF-8", e);
-				} finally {
-					if (reader != null) {
-						reader.close();
-					}
-				}
-
-				Log.i(TAG, "POST response: " + response.toString());
-				return response.toString();
-				
-			} else {
-				switch (code) {
-					case 400:
-						throw new ApiException(ApiException.HTTP_BAD_REQUEST, "Server says \"400 Bad HTTP request\".");
-					case 401:
-						throw new ApiException(ApiException.HTTP_UNAUTHORIZED, "Server says \"401 Unauthorized\".");
-					case 403:
-						throw new ApiException(ApiException.HTTP_FORBIDDEN, "Server says \"403 Forbidden\".");
-					case 404:
-						throw new ApiException(ApiException.HTTP_NOT_FOUND, "Server says \"404 Not Found\".");
-					default:
-						if (code >= 100 && code < 200) {
-							throw new ApiException(ApiException.HTTP_INFO, "Server returned informational code " + code + " instead of 200.");
-						} else if (code >= 200 && code < 300) {
-							throw new ApiException(ApiException.HTTP_SUCCESS, "Server returned success code " + code + " instead of 200.");
-						} else if (code >= 300 && code < 400) {
-							throw new ApiException(ApiException.HTTP_REDIRECTION, "Server returned redirection code " + code + " instead of 200.");
-						} else if (code >= 400 && code < 500) {
-							throw new ApiException(ApiException.HTTP_CLIENT_ERROR, "Server returned client error " + code + ".");
-						} else if (code >= 500 && code < 600) {
-							throw new ApiException(ApiException.HTTP_SERVER_ERROR, "Server returned server error " + code + ".");
-						} else {
-							throw new ApiException(ApiException.HTTP_UNKNOWN, "Server returned unspecified code " + code + ".");
-						}
-				}
+			if (asArray) {
+				gen.writeEndArray();
 			}
-
-		} catch (SocketTimeoutException e) {
-			throw new ApiException(ApiException.IO_SOCKETTIMEOUT, e.getMessage(), e);
+			gen.close();
+			return body.toByteArray();
 		} catch (IOException e) {
-			throw new ApiException(ApiException.IO_EXCEPTION, e.getMessage(), e);
+			throw new ApiException(ApiException.JSON_EXCEPTION, "Unable to serialize request: " + e.getMessage(), e);
 		}
 	}
 
 	/**
-	 * Parses the JSON response string and returns a {@link ObjectNode}.
+	 * Executes a JSON-RPC batch as one POST request and returns the array of
+	 * responses.
+	 * <p/>
+	 * Errors of single calls are not thrown but returned as part of the
+	 * array, it's up to the caller to dispatch them by ID.
+	 *
+	 * @param url Complete URL with schema, host, port if not default and path.
+	 * @param entity Array of request objects
+	 * @return JSON Array of the JSON-RPC responses.
+	 * @throws ApiException
+	 */
+	public static ArrayNode executeBatch(String url, String user, String pass, ArrayNode entity) throws ApiException {
+		return executeBatch(new HttpEngine(url, user, pass), entity);
+	}
+
+	/**
+	 * Executes a JSON-RPC batch as one POST request through the given engine
+	 * and returns the array of responses.
 	 *
-	 * If the response is not valid JSON, contained an error message or did not
-	 * include a result then a HandlerException is thrown.
+	 * @param engine HTTP engine of the host
+	 * @param entity Array of request objects
+	 * @return JSON Array of the JSON-RPC responses.
+	 * @throws ApiException
+	 */
+	public static ArrayNode executeBatch(HttpEngine engine, ArrayNode entity) throws ApiException {
+		return parseBatchResponse(engine.post(entity));
+	}
+
+	/**
+	 * Checks the parsed response and returns it as {@link ObjectNode}.
 	 *
-	 * @param response
+	 * If the response is not a JSON object, contained an error message or did
+	 * not include a result then a HandlerException is thrown.
+	 *
+	 * @param node Parsed response
 	 * @return ObjectNode Root node of the server response, unserialized as
 	 *         ObjectNode.
 	 * @throws ApiException
 	 */
-	private static ObjectNode parseResponse(String response) throws ApiException {
-		try {
-			final ObjectNode node = (ObjectNode) OM.readTree(response.toString());
-
-			if (node.has("error")) {
-				if (node.get("error").isTextual()) {
-					final TextNode error = (TextNode) node.get("error");
-					Log.e(TAG, "[JSON-RPC] " + error.getTextValue());
-					Log.e(TAG, "[JSON-RPC] " + response);
-					throw new ApiException(ApiException.API_ERROR, "Error: " + error.getTextValue(), null);
-				} else {
-					final ObjectNode error = (ObjectNode) node.get("error");
-					Log.e(TAG, "[JSON-RPC] " + error.get("message").getTextValue());
-					Log.e(TAG, "[JSON-RPC] " + response);
-					throw new ApiException(ApiException.API_ERROR, "Error " + error.get("code").getIntValue() + ": " + error.get("message").getTextValue(), null);
-				}
-			}
+	private static ObjectNode parseResponse(JsonNode node) throws ApiException {
+		if (!node.isObject()) {
+			Logger.e(TAG, "[JSON-RPC] " + node);
+			throw new ApiException(ApiException.RESPONSE_ERROR, "Expected object as response.", null);
+		}
 
-			if (!node.has("result")) {
-				Log.e(TAG, "[JSON-RPC] " + response);
-				throw new ApiException(ApiException.RESPONSE_ERROR, "Neither result nor error object found in response.", null);
-			}
+		if (node.has("error")) {
+			Logger.e(TAG, "[JSON-RPC] " + node);
+			throw parseError(node);
+		}
 
-			if (node.get("result").isNull()) {
-				return null;
-			}
+		if (!node.has("result")) {
+			Logger.e(TAG, "[JSON-RPC] " + node);
+			throw new ApiException(ApiException.RESPONSE_ERROR, "Neither result nor error object found in response.", null);
+		}
 
-			return node;
-		} catch (JsonProcessingException e) {
-			throw new ApiException(ApiException.JSON_EXCEPTION, "Parse error: " + e.getMessage(), e);
-		} catch (IOException e) {
-			throw new ApiException(ApiException.JSON_EXCEPTION, "Parse error: " + e.getMessage(), e);
+		if (node.get("result").isNull()) {
+			return null;
 		}
+
+		return (ObjectNode)node;
 	}
 
 	/**
-	 * Build user agent used for the HTTP requests
-	 *
-	 * TODO: include version information
+	 * Checks the parsed response of a batch request.
+	 * <p/>
+	 * If the whole batch was rejected, XBMC returns a single error object,
+	 * which is thrown as {@link ApiException}.
 	 *
-	 * @return String containing the user agent
+	 * @param node Parsed response
+	 * @return ArrayNode Root node of the server response.
+	 * @throws ApiException
+	 */
+	private static ArrayNode parseBatchResponse(JsonNode node) throws ApiException {
+		if (node.isArray()) {
+			return (ArrayNode)node;
+		}
+		if (node.has("error")) {
+			Logger.e(TAG, "[JSON-RPC] " + node);
+			throw parseError(node);
+		}
+		Logger.e(TAG, "[JSON-RPC] " + node);
+		throw new ApiException(ApiException.RESPONSE_ERROR, "Expected array as batch response.", null);
+	}
+
+	/**
+	 * Converts the <tt>error</tt> object of a response into an exception.
+	 * @param node Response containing an <tt>error</tt> node
+	 * @return Exception describing the error
 	 */
-	private static String buildUserAgent() {
-		return "xbmc-jsonrpclib-android";
+	static ApiException parseError(JsonNode node) {
+		if (node.get("error").isTextual()) {
+			final TextNode error = (TextNode) node.get("error");
+			Logger.e(TAG, "[JSON-RPC] " + error.getTextValue());
+			return new ApiException(ApiException.API_ERROR, "Error: " + error.getTextValue(), null);
+		} else {
+			final ObjectNode error = (ObjectNode) node.get("error");
+			Logger.e(TAG, "[JSON-RPC] " + error.get("message").getTextValue());
+			return new ApiException(ApiException.API_ERROR, "Error " + error.get("code").getIntValue() + ": " + error.get("message").getTextValue(), null);
+		}
 	}
 }
@@ -0,0 +1,151 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a stream of bytes into top-level JSON messages.
+ * <p/>
+ * XBMC doesn't delimit messages on the TCP socket, it just sends one JSON
+ * object (or array, for batches) after another. The framer keeps track of
+ * the nesting depth and of string literals while bytes arrive, so a message
+ * is emitted as soon as its last byte was read, no matter how it was
+ * fragmented by the network.
+ * <p/>
+ * Since UTF-8 continuation bytes never collide with ASCII, the framer works
+ * on raw bytes and never decodes anything.
+ */
+class JsonFramer {
+
+	private static final int INITIAL_SIZE = 8192;
+
+	/**
+	 * Buffers bigger than this are dropped after a message was emitted, so a
+	 * single huge response doesn't keep its memory forever.
+	 */
+	private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+	private byte[] mBuffer = new byte[INITIAL_SIZE];
+	private int mLength = 0;
+
+	private int mDepth = 0;
+	private boolean mInString = false;
+	private boolean mEscaped = false;
+
+	/**
+	 * Consumes all remaining bytes of the given buffer and emits every
+	 * completed message to the listener.
+	 * <p/>
+	 * The array passed to the listener is re-used, so it must be copied if
+	 * it's needed after the callback returned.
+	 *
+	 * @param src Buffer in read mode, must be backed by an array
+	 * @param listener Receives completed messages
+	 */
+	void feed(ByteBuffer src, Listener listener) {
+		final byte[] in = src.array();
+		final int end = src.arrayOffset() + src.limit();
+		int i = src.arrayOffset() + src.position();
+		int start = mDepth > 0 ? i : -1;
+
+		for (; i < end; i++) {
+			final byte b = in[i];
+			if (mDepth == 0) {
+				// skip whitespace and line breaks in between messages.
+				if (b == '{' || b == '[') {
+					mDepth = 1;
+					start = i;
+				}
+				continue;
+			}
+			if (mInString) {
+				if (mEscaped) {
+					mEscaped = false;
+				} else if (b == '\\') {
+					mEscaped = true;
+				} else if (b == '"') {
+					mInString = false;
+				}
+				continue;
+			}
+			switch (b) {
+				case '"':
+					mInString = true;
+					break;
+				case '{':
+				case '[':
+					mDepth++;
+					break;
+				case '}':
+				case ']':
+					if (--mDepth == 0) {
+						append(in, start, i + 1 - start);
+						listener.onMessage(mBuffer, 0, mLength);
+						mLength = 0;
+						if (mBuffer.length > MAX_RETAINED_SIZE) {
+							mBuffer = new byte[INITIAL_SIZE];
+						}
+						start = -1;
+					}
+					break;
+			}
+		}
+		if (mDepth > 0 && start >= 0) {
+			append(in, start, end - start);
+		}
+		src.position(src.limit());
+	}
+
+	/**
+	 * Drops any partially received message.
+	 */
+	void reset() {
+		mLength = 0;
+		mDepth = 0;
+		mInString = false;
+		mEscaped = false;
+	}
+
+	private void append(byte[] src, int offset, int length) {
+		if (mLength + length > mBuffer.length) {
+			final byte[] grown = new byte[Math.max(mBuffer.length * 2, mLength + length)];
+			System.arraycopy(mBuffer, 0, grown, 0, mLength);
+			mBuffer = grown;
+		}
+		System.arraycopy(src, offset, mBuffer, mLength, length);
+		mLength += length;
+	}
+
+	/**
+	 * Receives completed messages.
+	 */
+	interface Listener {
+		/**
+		 * A complete JSON message has been received.
+		 * @param data Buffer containing the message
+		 * @param offset Where the message starts
+		 * @param length Length of the message in bytes
+		 */
+		void onMessage(byte[] data, int offset, int length);
+	}
+}
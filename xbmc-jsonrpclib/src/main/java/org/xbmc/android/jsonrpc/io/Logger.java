@@ -0,0 +1,131 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.io;
+
+import android.util.Log;
+
+import java.io.PrintStream;
+
+/**
+ * Where the transport core logs to.
+ * <p/>
+ * On Android, that's {@link Log}. Without Android, e.g. when the transports
+ * are driven from a unit test on a plain JVM, {@link Log} isn't available,
+ * and messages go to {@link System#err} instead. Apps can send them
+ * somewhere else through {@link #setSink(Sink)}.
+ */
+public final class Logger {
+
+	private static volatile Sink sSink = createDefaultSink();
+
+	private Logger() {
+	}
+
+	/**
+	 * Replaces where messages go.
+	 * @param sink New sink, or null for the default
+	 */
+	public static void setSink(Sink sink) {
+		sSink = sink != null ? sink : createDefaultSink();
+	}
+
+	public static void d(String tag, String message) {
+		sSink.log(Sink.DEBUG, tag, message, null);
+	}
+
+	public static void i(String tag, String message) {
+		sSink.log(Sink.INFO, tag, message, null);
+	}
+
+	public static void w(String tag, String message) {
+		sSink.log(Sink.WARN, tag, message, null);
+	}
+
+	public static void e(String tag, String message) {
+		sSink.log(Sink.ERROR, tag, message, null);
+	}
+
+	public static void e(String tag, String message, Throwable t) {
+		sSink.log(Sink.ERROR, tag, message, t);
+	}
+
+	/**
+	 * Uses Android's log if it works, which it doesn't on a plain JVM, where
+	 * the class is either missing or a stub throwing on every call.
+	 */
+	private static Sink createDefaultSink() {
+		try {
+			Log.isLoggable(Logger.class.getSimpleName(), Log.DEBUG);
+			return new AndroidSink();
+		} catch (RuntimeException e) {
+			return new StreamSink(System.err);
+		} catch (LinkageError e) {
+			return new StreamSink(System.err);
+		}
+	}
+
+	/**
+	 * Receives the log messages.
+	 */
+	public interface Sink {
+
+		public static final int DEBUG = Log.DEBUG;
+		public static final int INFO = Log.INFO;
+		public static final int WARN = Log.WARN;
+		public static final int ERROR = Log.ERROR;
+
+		/**
+		 * Logs a message.
+		 * @param priority One of the constants above
+		 * @param tag Tag of the class logging
+		 * @param message Message
+		 * @param t Exception, may be null
+		 */
+		public void log(int priority, String tag, String message, Throwable t);
+	}
+
+	private static class AndroidSink implements Sink {
+		@Override
+		public void log(int priority, String tag, String message, Throwable t) {
+			if (t != null) {
+				Log.println(priority, tag, message + '\n' + Log.getStackTraceString(t));
+			} else {
+				Log.println(priority, tag, message);
+			}
+		}
+	}
+
+	private static class StreamSink implements Sink {
+		private static final String[] LEVELS = { "V", "V", "V", "D", "I", "W", "E", "A" };
+		private final PrintStream mOut;
+		private StreamSink(PrintStream out) {
+			mOut = out;
+		}
+		@Override
+		public void log(int priority, String tag, String message, Throwable t) {
+			mOut.println(LEVELS[Math.max(0, Math.min(priority, LEVELS.length - 1))] + "/" + tag + ": " + message);
+			if (t != null) {
+				t.printStackTrace(mOut);
+			}
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.io;
+
+import java.util.Collection;
+
+/**
+ * A map from primitive <tt>long</tt> keys to objects.
+ * <p/>
+ * Keys and values are stored in two flat arrays using open addressing with
+ * linear probing, so neither keys nor entries are allocated on insertion.
+ * Removal shifts following entries back instead of leaving tombstones, which
+ * keeps lookups short when calls are constantly added and removed.
+ * <p/>
+ * Values must not be null. The map is not thread-safe.
+ */
+class LongObjectMap<V> {
+
+	/**
+	 * Initial number of slots, must be a power of two.
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+
+	private long[] mKeys;
+	private Object[] mValues;
+	private int mMask;
+	private int mSize = 0;
+
+	/**
+	 * Class constructor.
+	 */
+	LongObjectMap() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Returns the value of a key.
+	 * @param key Key
+	 * @return Value or null if not found
+	 */
+	@SuppressWarnings("unchecked")
+	V get(long key) {
+		final long[] keys = mKeys;
+		final Object[] values = mValues;
+		for (int i = index(key); ; i = (i + 1) & mMask) {
+			final Object value = values[i];
+			if (value == null || keys[i] == key) {
+				return (V)value;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the key is in the map.
+	 * @param key Key
+	 * @return True if found, false otherwise
+	 */
+	boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Adds or replaces a value.
+	 * @param key Key
+	 * @param value Value, not null
+	 * @return Previous value or null if none
+	 */
+	@SuppressWarnings("unchecked")
+	V put(long key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Value must not be null.");
+		}
+		int i = index(key);
+		for (; mValues[i] != null; i = (i + 1) & mMask) {
+			if (mKeys[i] == key) {
+				final V previous = (V)mValues[i];
+				mValues[i] = value;
+				return previous;
+			}
+		}
+		mKeys[i] = key;
+		mValues[i] = value;
+		// keep load factor under 3/4
+		if (++mSize * 4 > mValues.length * 3) {
+			rehash(mValues.length * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * Removes a key.
+	 * @param key Key
+	 * @return Removed value or null if not found
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(long key) {
+		final long[] keys = mKeys;
+		final Object[] values = mValues;
+		final int mask = mMask;
+		int gap = index(key);
+		for (; values[gap] != null; gap = (gap + 1) & mask) {
+			if (keys[gap] == key) {
+				break;
+			}
+		}
+		final V removed = (V)values[gap];
+		if (removed == null) {
+			return null;
+		}
+		// shift back following entries that would be unreachable otherwise.
+		for (int i = (gap + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+			final int home = index(keys[i]);
+			final boolean reachable = gap < i ? (home > gap && home <= i) : (home > gap || home <= i);
+			if (!reachable) {
+				keys[gap] = keys[i];
+				values[gap] = values[i];
+				gap = i;
+			}
+		}
+		values[gap] = null;
+		mSize--;
+		return removed;
+	}
+
+	/**
+	 * Adds all values to a collection.
+	 * @param dest Collection to add to
+	 */
+	@SuppressWarnings("unchecked")
+	void values(Collection<? super V> dest) {
+		for (Object value : mValues) {
+			if (value != null) {
+				dest.add((V)value);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of entries.
+	 * @return Number of entries
+	 */
+	int size() {
+		return mSize;
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	void clear() {
+		if (mValues.length > INITIAL_CAPACITY) {
+			allocate(INITIAL_CAPACITY);
+		} else {
+			for (int i = 0; i < mValues.length; i++) {
+				mValues[i] = null;
+			}
+		}
+		mSize = 0;
+	}
+
+	private void rehash(int capacity) {
+		final long[] keys = mKeys;
+		final Object[] values = mValues;
+		allocate(capacity);
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				int j = index(keys[i]);
+				while (mValues[j] != null) {
+					j = (j + 1) & mMask;
+				}
+				mKeys[j] = keys[i];
+				mValues[j] = values[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		mKeys = new long[capacity];
+		mValues = new Object[capacity];
+		mMask = capacity - 1;
+	}
+
+	private int index(long key) {
+		// spread sequential IDs over the table
+		final long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mMask;
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+
+package org.xbmc.android.jsonrpc.io;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Answers calls in memory through a {@link Server}, e.g. a fake XBMC
+ * returning canned responses.
+ * <p/>
+ * Requests are written through {@link AbstractCall#writeTo(JsonGenerator)}
+ * and parsed again, and responses are serialized and routed like the ones
+ * of the {@link TcpTransport}, so the same code runs as on the wire. Calls
+ * are answered synchronously on the calling thread. Calls the server doesn't
+ * answer fail once their timeout expires.
+ */
+public class LoopbackTransport extends RoutingTransport {
+
+	private static final ObjectMapper OM = new ObjectMapper();
+
+	private final Server mServer;
+
+	/**
+	 * Class constructor.
+	 * @param server Answers the calls
+	 */
+	public LoopbackTransport(Server server) {
+		mServer = server;
+	}
+
+	@Override
+	public void open(Listener listener) {
+		super.open(listener);
+		listener.onConnected();
+	}
+
+	@Override
+	public void send(AbstractCall<?> call) {
+		registerWithDeadline(call);
+		try {
+			final JsonNode response = mServer.handle(transfer(call));
+			if (response != null) {
+				reply(response);
+			}
+		} catch (IOException e) {
+			fail(call.getId(), new ApiException(ApiException.JSON_EXCEPTION, "Loopback error: " + e.getMessage(), e));
+		}
+	}
+
+	@Override
+	public void send(List<AbstractCall<?>> calls) {
+		final ArrayNode responses = OM.createArrayNode();
+		try {
+			for (AbstractCall<?> call : calls) {
+				registerWithDeadline(call);
+				final JsonNode response = mServer.handle(transfer(call));
+				if (response != null) {
+					responses.add(response);
+				}
+			}
+			reply(responses);
+		} catch (IOException e) {
+			for (AbstractCall<?> call : calls) {
+				fail(call.getId(), new ApiException(ApiException.JSON_EXCEPTION, "Loopback error: " + e.getMessage(), e));
+			}
+		}
+	}
+
+	/**
+	 * Sends a notification to the listener, as if XBMC had sent it.
+	 * @param notification Notification with <tt>method</tt> and <tt>params</tt>
+	 * @throws IOException If the notification cannot be serialized
+	 */
+	public void notify(ObjectNode notification) throws IOException {
+		reply(notification);
+	}
+
+	@Override
+	public void close() {
+		clear();
+	}
+
+	/**
+	 * Writes the request of a call and parses it, like it would be received
+	 * by XBMC.
+	 * @param call Call to send
+	 * @return Parsed request
+	 * @throws IOException
+	 */
+	private static ObjectNode transfer(AbstractCall<?> call) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final JsonGenerator gen = OM.getJsonFactory().createJsonGenerator(out);
+		call.writeTo(gen);
+		gen.close();
+		return (ObjectNode)OM.readTree(OM.getJsonFactory().createJsonParser(out.toByteArray()));
+	}
+
+	/**
+	 * Serializes a response and routes it back.
+	 * @param response Response, array of responses or notification
+	 * @throws IOException
+	 */
+	private void reply(JsonNode response) throws IOException {
+		final byte[] message = OM.writeValueAsBytes(response);
+		receive(message, 0, message.length);
+	}
+
+	/**
+	 * Answers requests of a {@link LoopbackTransport}.
+	 */
+	public interface Server {
+		/**
+		 * Handles a request.
+		 * @param request Request with <tt>method</tt>, <tt>params</tt> and <tt>id</tt>
+		 * @return Response with <tt>id</tt> and <tt>result</tt> or <tt>error</tt>, or null for no answer
+		 */
+		public JsonNode handle(ObjectNode request);
+	}
+}
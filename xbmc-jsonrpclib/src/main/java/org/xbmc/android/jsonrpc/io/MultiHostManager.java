@@ -0,0 +1,427 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+
+package org.xbmc.android.jsonrpc.io;
+
+import android.content.Context;
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+import org.xbmc.android.jsonrpc.config.HostConfig;
+import org.xbmc.android.jsonrpc.notification.AbstractEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Talks to many XBMC hosts at once.
+ * <p/>
+ * Every host gets its own {@link Transport}, i.e. its own connection and its
+ * own queue, so a slow or unreachable host doesn't hold up the others. By
+ * default that's a {@link TcpTransport}, which unlike the connection service
+ * isn't limited to one socket per app.
+ * <p/>
+ * Calls can be sent to a single host or to all hosts at once:
+ * <pre>
+ * mhm.fanOut(new MultiHostManager.CallFactory&lt;String&gt;() {
+ *     public AbstractCall&lt;String&gt; create(HostConfig host) {
+ *         return new Player.Stop(1);
+ *     }
+ * }, new MultiHostManager.FanOutCallback&lt;String&gt;() {
+ *     public void onComplete(List&lt;MultiHostManager.HostResult&lt;String&gt;&gt; results) {
+ *         ...
+ *     }
+ * });
+ * </pre>
+ * A fan-out sends to all hosts in parallel and completes when the slowest
+ * host has answered or failed.
+ * <p/>
+ * Callbacks run on the thread that received the response.
+ */
+public class MultiHostManager {
+
+	private static final String TAG = MultiHostManager.class.getSimpleName();
+
+	private final Context mContext;
+	private final TransportFactory mTransportFactory;
+	private final LinkedHashMap<String, Host> mHosts = new LinkedHashMap<String, Host>();
+
+	private volatile NotificationListener mNotificationListener;
+
+	/**
+	 * Class constructor. Uses a {@link TcpTransport} for every host.
+	 * @param c Used for translating error messages, can be null
+	 */
+	public MultiHostManager(Context c) {
+		this(c, new TransportFactory() {
+			@Override
+			public Transport create(HostConfig host) {
+				return new TcpTransport(host);
+			}
+		});
+	}
+
+	/**
+	 * Class constructor.
+	 * @param c Used for translating error messages, can be null
+	 * @param transportFactory Creates the transport of every host
+	 */
+	public MultiHostManager(Context c, TransportFactory transportFactory) {
+		mContext = c;
+		mTransportFactory = transportFactory;
+	}
+
+	/**
+	 * Adds a host. Nothing happens if the host was already added.
+	 * @param host Host to add
+	 * @return This instance
+	 */
+	public MultiHostManager addHost(HostConfig host) {
+		getHost(host);
+		return this;
+	}
+
+	/**
+	 * Removes a host and closes its transport. Calls in flight fail with
+	 * {@link ApiException#IO_DISCONNECTED}.
+	 * @param host Host to remove
+	 * @return This instance
+	 */
+	public MultiHostManager removeHost(HostConfig host) {
+		final Host removed;
+		synchronized (mHosts) {
+			removed = mHosts.remove(key(host));
+		}
+		if (removed != null) {
+			removed.close();
+		}
+		return this;
+	}
+
+	/**
+	 * Returns all added hosts.
+	 * @return Hosts in the order they were added
+	 */
+	public List<HostConfig> getHosts() {
+		synchronized (mHosts) {
+			final ArrayList<HostConfig> hosts = new ArrayList<HostConfig>(mHosts.size());
+			for (Host host : mHosts.values()) {
+				hosts.add(host.config);
+			}
+			return hosts;
+		}
+	}
+
+	/**
+	 * Sets who receives the notifications of all hosts.
+	 * @param listener Listener or null
+	 */
+	public void setNotificationListener(NotificationListener listener) {
+		mNotificationListener = listener;
+	}
+
+	/**
+	 * Executes a call on one host, which is added if necessary.
+	 * @param host Host to send the call to
+	 * @param call Call to execute
+	 * @param callback How to treat result
+	 * @param <T> Result type
+	 * @return This instance
+	 */
+	public <T> MultiHostManager call(HostConfig host, AbstractCall<T> call, ApiCallback<T> callback) {
+		getHost(host).send(call, callback);
+		return this;
+	}
+
+	/**
+	 * Executes a call on all hosts in parallel. Since a call can only be sent
+	 * once, the factory creates one per host.
+	 * @param factory Creates the call for each host
+	 * @param callback Receives the results of all hosts once the last one is in
+	 * @param <T> Result type
+	 * @return This instance
+	 */
+	public <T> MultiHostManager fanOut(CallFactory<T> factory, final FanOutCallback<T> callback) {
+		final ArrayList<Host> hosts;
+		synchronized (mHosts) {
+			hosts = new ArrayList<Host>(mHosts.values());
+		}
+		if (hosts.isEmpty()) {
+			callback.onComplete(Collections.<HostResult<T>>emptyList());
+			return this;
+		}
+		final HostResult<?>[] results = new HostResult<?>[hosts.size()];
+		final AtomicInteger remaining = new AtomicInteger(hosts.size());
+		for (int i = 0; i < hosts.size(); i++) {
+			final int index = i;
+			final HostConfig config = hosts.get(i).config;
+			final long started = System.nanoTime();
+			final AbstractCall<T> call = factory.create(config);
+			hosts.get(i).send(call, new ApiCallback<T>() {
+				@Override
+				public void onResponse(AbstractCall<T> call) {
+					complete(new HostResult<T>(config, call, true, 0, null, started));
+				}
+				@Override
+				public void onError(int code, String message, String hint) {
+					complete(new HostResult<T>(config, call, false, code, message, started));
+				}
+				@SuppressWarnings("unchecked")
+				private void complete(HostResult<T> result) {
+					results[index] = result;
+					if (remaining.decrementAndGet() == 0) {
+						callback.onComplete((List<HostResult<T>>)(List<?>)Arrays.asList(results));
+					}
+				}
+			});
+		}
+		return this;
+	}
+
+	/**
+	 * Closes the transports of all hosts. Calls in flight fail with
+	 * {@link ApiException#IO_DISCONNECTED}.
+	 */
+	public void close() {
+		final ArrayList<Host> hosts;
+		synchronized (mHosts) {
+			hosts = new ArrayList<Host>(mHosts.values());
+			mHosts.clear();
+		}
+		for (Host host : hosts) {
+			host.close();
+		}
+	}
+
+	private Host getHost(HostConfig config) {
+		final String key = key(config);
+		synchronized (mHosts) {
+			Host host = mHosts.get(key);
+			if (host == null) {
+				host = new Host(config, mTransportFactory.create(config));
+				mHosts.put(key, host);
+			}
+			return host;
+		}
+	}
+
+	private static String key(HostConfig host) {
+		return host.getAddress() + ":" + host.getTcpPort() + ":" + host.getHttpPort();
+	}
+
+	/**
+	 * One host with its transport and the calls waiting for its responses.
+	 */
+	private class Host implements Transport.Listener {
+
+		private final HostConfig config;
+		private final Transport transport;
+		private final CallRegistry<ConnectionManager.CallRequest<?>> requests = new CallRegistry<ConnectionManager.CallRequest<?>>();
+		/**
+		 * Set once the host is removed. Guarded by the host, so no call is
+		 * sent after the transport has been closed.
+		 */
+		private boolean closed = false;
+
+		private Host(HostConfig config, Transport transport) {
+			this.config = config;
+			this.transport = transport;
+			transport.open(this);
+		}
+
+		private <T> void send(AbstractCall<T> call, ApiCallback<T> callback) {
+			requests.put(call.getId(), new ConnectionManager.CallRequest<T>(call, callback, null));
+			synchronized (this) {
+				if (!closed) {
+					transport.send(call);
+					return;
+				}
+			}
+			// removed while a fan-out was sending
+			onError(call.getId(), new ApiException(ApiException.IO_DISCONNECTED, "Connection to " + config.getAddress() + " closed."));
+		}
+
+		/**
+		 * Closes the transport and fails the calls still waiting for it, so
+		 * their callbacks, and with them a fan-out, still complete.
+		 */
+		private void close() {
+			synchronized (this) {
+				closed = true;
+				transport.close();
+			}
+			onError(0, new ApiException(ApiException.IO_DISCONNECTED, "Connection to " + config.getAddress() + " closed."));
+		}
+
+		@Override
+		public void onConnected() {
+			Logger.i(TAG, "Connected to " + config.getAddress() + ".");
+		}
+
+		@Override
+		public void onResponse(AbstractCall<?> call) {
+			final ConnectionManager.CallRequest<?> request = requests.complete(call.getId());
+			if (request == null) {
+				Logger.w(TAG, "Unknown ID " + call.getId() + " from " + config.getAddress() + ", dropping.");
+				return;
+			}
+			if (request.getCall() != call) {
+				request.update(call);
+			}
+			request.respond();
+		}
+
+		@Override
+		public void onError(long id, ApiException e) {
+			if (id != 0) {
+				final ConnectionManager.CallRequest<?> request = requests.complete(id);
+				if (request != null) {
+					error(request, e);
+				}
+			} else {
+				for (ConnectionManager.CallRequest<?> request : requests.completeAll()) {
+					error(request, e);
+				}
+			}
+		}
+
+		@Override
+		public void onNotification(AbstractEvent event) {
+			final NotificationListener listener = mNotificationListener;
+			if (listener != null) {
+				listener.onNotification(config, event);
+			}
+		}
+
+		private void error(ConnectionManager.CallRequest<?> request, ApiException e) {
+			if (mContext != null) {
+				request.error(e.getCode(), e.getDisplayableMessage(mContext), e.getHint(mContext));
+			} else {
+				request.error(e.getCode(), e.getMessage(), null);
+			}
+		}
+	}
+
+	/**
+	 * The result of a fan-out call on one host.
+	 */
+	public static class HostResult<T> {
+
+		private final HostConfig mHost;
+		private final AbstractCall<T> mCall;
+		private final boolean mSuccess;
+		private final int mErrorCode;
+		private final String mErrorMessage;
+		private final long mLatency;
+
+		private HostResult(HostConfig host, AbstractCall<T> call, boolean success, int errorCode, String errorMessage, long started) {
+			mHost = host;
+			mCall = call;
+			mSuccess = success;
+			mErrorCode = errorCode;
+			mErrorMessage = errorMessage;
+			mLatency = (System.nanoTime() - started) / 1000000;
+		}
+
+		/**
+		 * Returns the host.
+		 * @return Host the call was sent to
+		 */
+		public HostConfig getHost() {
+			return mHost;
+		}
+
+		/**
+		 * Returns the call, which contains the response if successful.
+		 * @return Call sent to the host
+		 */
+		public AbstractCall<T> getCall() {
+			return mCall;
+		}
+
+		/**
+		 * Returns true if the host has answered without error.
+		 * @return True if successful, false otherwise
+		 */
+		public boolean isSuccess() {
+			return mSuccess;
+		}
+
+		/**
+		 * Returns the error code if the call failed.
+		 * @return Error code, see constants at {@link ApiException}
+		 */
+		public int getErrorCode() {
+			return mErrorCode;
+		}
+
+		/**
+		 * Returns the error message if the call failed.
+		 * @return Error message or null if successful
+		 */
+		public String getErrorMessage() {
+			return mErrorMessage;
+		}
+
+		/**
+		 * Returns how long the host took to answer or fail.
+		 * @return Latency in milliseconds
+		 */
+		public long getLatency() {
+			return mLatency;
+		}
+	}
+
+	/**
+	 * Creates the transport of a host.
+	 */
+	public interface TransportFactory {
+		public Transport create(HostConfig host);
+	}
+
+	/**
+	 * Creates the call sent to a host during a fan-out.
+	 */
+	public interface CallFactory<T> {
+		public AbstractCall<T> create(HostConfig host);
+	}
+
+	/**
+	 * Receives the results of a fan-out.
+	 */
+	public interface FanOutCallback<T> {
+		/**
+		 * All hosts have answered or failed.
+		 * @param results One result per host, in the order the hosts were added
+		 */
+		public void onComplete(List<HostResult<T>> results);
+	}
+
+	/**
+	 * Receives notifications of all hosts.
+	 */
+	public interface NotificationListener {
+		public void onNotification(HostConfig host, AbstractEvent event);
+	}
+}
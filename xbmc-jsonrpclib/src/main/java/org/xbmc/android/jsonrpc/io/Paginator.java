@@ -0,0 +1,349 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+
+package org.xbmc.android.jsonrpc.io;
+
+import android.os.Handler;
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+import org.xbmc.android.jsonrpc.api.model.ListModel;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Walks through the pages of a paged list call, such as
+ * <tt>VideoLibrary.GetMovies</tt> or <tt>AudioLibrary.GetSongs</tt>.
+ * <p/>
+ * The next page is always requested as soon as the current one has arrived,
+ * so it's on its way while the current page is being consumed. The first
+ * page is small so it arrives quickly. The size of the following pages is
+ * adapted to the measured throughput, so each page takes about the target
+ * duration. Paging stops once the total returned by XBMC is reached.
+ * <p/>
+ * Pages can be pulled from a background thread:
+ * <pre>
+ * final Paginator&lt;VideoModel.MovieDetail&gt; movies = new Paginator&lt;VideoModel.MovieDetail&gt;(cm,
+ *     new Paginator.PageFactory&lt;VideoModel.MovieDetail&gt;() {
+ *         public AbstractCall&lt;VideoModel.MovieDetail&gt; create(ListModel.Limits limits) {
+ *             return new VideoLibrary.GetMovies(limits, "title", "year");
+ *         }
+ *     });
+ * while (movies.hasNext()) {
+ *     adapter.addAll(movies.next());
+ * }
+ * </pre>
+ * or pushed to a callback with {@link #start(Handler, PageCallback)}. A
+ * paginator walks the list once.
+ */
+public class Paginator<T> {
+
+	private final ConnectionManager mManager;
+	private final PageFactory<T> mFactory;
+
+	private int mFirstPageSize = 100;
+	private int mMaxPageSize = 2000;
+	private long mTargetDuration = 500;
+
+	/**
+	 * Start of the next page to request.
+	 */
+	private int mStart = 0;
+	private int mPageSize = 0;
+	private int mTotal = -1;
+	/**
+	 * When the page in flight was sent, in milliseconds.
+	 */
+	private long mSent;
+	/**
+	 * When the last page submitted by {@link #next()} arrived, in
+	 * milliseconds.
+	 */
+	private long mArrived;
+	private ApiFuture<AbstractCall<T>> mNext = null;
+	private boolean mStarted = false;
+	private boolean mDone = false;
+	private volatile boolean mCancelled = false;
+
+	/**
+	 * Class constructor.
+	 * @param manager Connection manager sending the calls
+	 * @param factory Creates the call for a page
+	 */
+	public Paginator(ConnectionManager manager, PageFactory<T> factory) {
+		mManager = manager;
+		mFactory = factory;
+	}
+
+	/**
+	 * Sets the page size limits.
+	 * @param first Number of items of the first page, default 100
+	 * @param max Maximal number of items of a page, default 2000
+	 * @return This instance
+	 */
+	public Paginator<T> setPageSize(int first, int max) {
+		mFirstPageSize = first;
+		mMaxPageSize = max;
+		return this;
+	}
+
+	/**
+	 * Sets how long receiving a page should take, which determines the size
+	 * of the following pages.
+	 * @param duration Target duration in milliseconds, default 500
+	 * @return This instance
+	 */
+	public Paginator<T> setTargetDuration(long duration) {
+		mTargetDuration = duration;
+		return this;
+	}
+
+	/**
+	 * Returns the total number of items.
+	 * @return Total number of items, -1 if no page has arrived yet
+	 */
+	public synchronized int getTotal() {
+		return mTotal;
+	}
+
+	/**
+	 * Returns true if there are more pages.
+	 * @return True if {@link #next()} returns another page, false otherwise
+	 */
+	public synchronized boolean hasNext() {
+		return !mDone && !mCancelled;
+	}
+
+	/**
+	 * Returns the next page, waiting for it if necessary, and requests the
+	 * page after. Must not be called on the main thread.
+	 * @return Items of the page
+	 * @throws ApiException If the page couldn't be retrieved
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public List<T> next() throws ApiException, InterruptedException {
+		final ApiFuture<AbstractCall<T>> page;
+		synchronized (this) {
+			if (!hasNext()) {
+				throw new IllegalStateException("No more pages.");
+			}
+			if (mNext == null) {
+				mNext = submit(nextPage());
+			}
+			page = mNext;
+		}
+		final AbstractCall<T> call;
+		try {
+			call = page.get();
+		} catch (ExecutionException e) {
+			synchronized (this) {
+				mDone = true;
+			}
+			if (e.getCause() instanceof ApiException) {
+				throw (ApiException)e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		synchronized (this) {
+			mNext = received(call, mArrived) ? submit(nextPage()) : null;
+		}
+		return call.getResults();
+	}
+
+	/**
+	 * Walks through all pages and passes them to a callback.
+	 * <p/>
+	 * With a handler, the next page is requested while the callback consumes
+	 * the current one. Without, the callback runs on the receiving thread and
+	 * the next page is requested once it has returned.
+	 *
+	 * @param handler If not null, the callback is executed on this handler
+	 * @param callback Receives the pages
+	 */
+	public void start(final Handler handler, final PageCallback<T> callback) {
+		final AbstractCall<T> call;
+		synchronized (this) {
+			call = nextPage();
+		}
+		// no handler, so the next page is requested on the receiving thread.
+		mManager.call(call, null, new ApiCallback<T>() {
+			@Override
+			public void onResponse(final AbstractCall<T> call) {
+				if (mCancelled) {
+					return;
+				}
+				final int start;
+				final boolean more;
+				final long arrived = now();
+				synchronized (Paginator.this) {
+					start = mStart - mPageSize;
+					more = received(call, arrived);
+				}
+				final Runnable deliver = new Runnable() {
+					@Override
+					public void run() {
+						callback.onPage(call.getResults(), start, getTotal());
+						if (!more) {
+							callback.onFinish(getTotal());
+						}
+					}
+				};
+				if (handler != null) {
+					// request the next page while this one is being consumed.
+					if (more) {
+						start(handler, callback);
+					}
+					handler.post(deliver);
+				} else {
+					// keep pages in order if the response arrives synchronously.
+					deliver.run();
+					if (more) {
+						start(handler, callback);
+					}
+				}
+			}
+
+			@Override
+			public void onError(final int code, final String message, final String hint) {
+				synchronized (Paginator.this) {
+					mDone = true;
+				}
+				final Runnable error = new Runnable() {
+					@Override
+					public void run() {
+						callback.onError(code, message, hint);
+					}
+				};
+				if (handler != null) {
+					handler.post(error);
+				} else {
+					error.run();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops paging. The page in flight is dropped.
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	/**
+	 * Creates the call of the next page and advances the start.
+	 */
+	private AbstractCall<T> nextPage() {
+		if (!mStarted) {
+			mStarted = true;
+			mPageSize = mFirstPageSize;
+		}
+		final AbstractCall<T> call = mFactory.create(new ListModel.Limits(mStart + mPageSize, mStart));
+		mStart += mPageSize;
+		mSent = now();
+		return call;
+	}
+
+	/**
+	 * Updates total and page size with a received page.
+	 * @param call Received page
+	 * @param arrived When the page arrived, in milliseconds
+	 * @return True if there are more pages, false otherwise
+	 */
+	private boolean received(AbstractCall<T> call, long arrived) {
+		final List<T> items = call.getResults();
+		final int count = items == null ? 0 : items.size();
+		mTotal = call.getTotal();
+		mDone = mCancelled || count == 0 || mTotal < 0 || mStart >= mTotal;
+		if (!mDone) {
+			// aim for the target duration, but grow at most twice as large.
+			final long elapsed = Math.max(1, arrived - mSent);
+			final long size = count * mTargetDuration / elapsed;
+			mPageSize = (int)Math.max(mFirstPageSize, Math.min(Math.min(size, 2L * mPageSize), mMaxPageSize));
+		}
+		return !mDone;
+	}
+
+	/**
+	 * Submits the call of a page and notes when it arrives, which is before
+	 * the consumer asks for it with {@link #next()}.
+	 */
+	private ApiFuture<AbstractCall<T>> submit(AbstractCall<T> call) {
+		return mManager.<AbstractCall<T>>submit(call).thenApply(new ApiFuture.Function<AbstractCall<T>, AbstractCall<T>>() {
+			@Override
+			public AbstractCall<T> apply(AbstractCall<T> page) {
+				final long arrived = now();
+				synchronized (Paginator.this) {
+					mArrived = arrived;
+				}
+				return page;
+			}
+		});
+	}
+
+	/**
+	 * Returns the time pages are measured with. It's monotonic, so changes
+	 * of the wall clock don't distort the page size.
+	 * @return Milliseconds of {@link System#nanoTime()}
+	 */
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * Creates the call of a page.
+	 */
+	public interface PageFactory<T> {
+		/**
+		 * Creates the call retrieving the given range.
+		 * @param limits Range of the page
+		 * @return Paged list call
+		 */
+		public AbstractCall<T> create(ListModel.Limits limits);
+	}
+
+	/**
+	 * Receives the pages of {@link #start(Handler, PageCallback)}.
+	 */
+	public interface PageCallback<T> {
+		/**
+		 * A page has arrived.
+		 * @param items Items of the page
+		 * @param start Position of the first item within the list
+		 * @param total Total number of items
+		 */
+		public void onPage(List<T> items, int start, int total);
+
+		/**
+		 * The last page has been passed to {@link #onPage(List, int, int)}.
+		 * @param total Total number of items
+		 */
+		public void onFinish(int total);
+
+		/**
+		 * A page couldn't be retrieved, paging has stopped.
+		 * @param code Error code, see constants at {@link ApiException}.
+		 * @param message Translated error message
+		 * @param hint Translated hint what the problem could be
+		 */
+		public void onError(int code, String message, String hint);
+	}
+}
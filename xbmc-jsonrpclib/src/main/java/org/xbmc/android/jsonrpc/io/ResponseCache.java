@@ -0,0 +1,409 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+
+package org.xbmc.android.jsonrpc.io;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.util.Log;
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+import org.xbmc.android.jsonrpc.notification.AbstractEvent;
+import org.xbmc.android.jsonrpc.notification.AudioLibraryEvent;
+import org.xbmc.android.jsonrpc.notification.VideoLibraryEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * An in-memory cache of parsed responses to read-only calls, set through
+ * {@link ConnectionManager#setResponseCache(ResponseCache)}.
+ * <p/>
+ * Entries are keyed by method and parameters, and the cache is bounded by
+ * the approximate size of the cached calls, which is estimated from a few
+ * parcelled results. When full, the least recently used entries are
+ * evicted.
+ * <p/>
+ * Only methods with a time to live are cached. By default, these are the
+ * getters of <tt>VideoLibrary</tt> and <tt>AudioLibrary</tt> as well as
+ * <tt>Files.GetSources</tt> and <tt>Addons.GetAddons</tt>. Library entries
+ * are additionally invalidated by the library notifications, e.g. an updated
+ * movie invalidates all movie getters. Note that notifications are only
+ * received through the TCP connection, so over HTTP entries only expire.
+ * <p/>
+ * Cached results are shared between all callers of the same call, so they
+ * shouldn't be modified. Every caller gets its own result list, though.
+ */
+public class ResponseCache {
+
+	private static final String TAG = ResponseCache.class.getSimpleName();
+
+	/**
+	 * Approximate bytes of an entry without its results.
+	 */
+	private static final int ENTRY_OVERHEAD = 128;
+	/**
+	 * Approximate bytes of a result that isn't parcelable.
+	 */
+	private static final int ITEM_SIZE = 16;
+	/**
+	 * Number of results parcelled when weighing a list.
+	 */
+	private static final int SAMPLES = 3;
+
+	private final long mMaxBytes;
+	private long mBytes = 0;
+
+	/**
+	 * Entries in access order, so the eldest is the least recently used.
+	 */
+	private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	/**
+	 * Time to live in milliseconds. Key is the method name or a namespace
+	 * followed by a dot.
+	 */
+	private final HashMap<String, Long> mTtls = new HashMap<String, Long>();
+
+	/**
+	 * Increased with every invalidation, so responses to calls sent before
+	 * don't end up in the cache.
+	 */
+	private long mGeneration = 0;
+
+	/**
+	 * Class constructor.
+	 * @param maxBytes Maximal approximate size of all cached calls in bytes
+	 */
+	public ResponseCache(long maxBytes) {
+		mMaxBytes = maxBytes;
+		mTtls.put("VideoLibrary.", 600000L);
+		mTtls.put("AudioLibrary.", 600000L);
+		mTtls.put("Files.GetSources", 300000L);
+		mTtls.put("Addons.GetAddons", 300000L);
+	}
+
+	/**
+	 * Sets how long the responses of a method stay valid.
+	 * @param method Method name, e.g. <tt>Files.GetSources</tt>, or namespace followed by a dot, e.g. <tt>VideoLibrary.</tt>
+	 * @param ttl Milliseconds until expiration, 0 for not caching the method
+	 * @return This instance
+	 */
+	public synchronized ResponseCache setTtl(String method, long ttl) {
+		mTtls.put(method, ttl);
+		return this;
+	}
+
+	/**
+	 * Returns true if responses to the given call are cached.
+	 * @param call API call
+	 * @return True if cached, false otherwise
+	 */
+	public boolean isCacheable(AbstractCall<?> call) {
+		return call.isReadOnly() && getTtl(call.getName()) > 0;
+	}
+
+	/**
+	 * Copies a cached response into a call.
+	 * @param key Canonical key of the call
+	 * @param call API call
+	 * @return True if found, false if not cached or expired
+	 */
+	synchronized boolean get(String key, AbstractCall<?> call) {
+		final Entry entry = mEntries.get(key);
+		if (entry == null) {
+			return false;
+		}
+		if (entry.mExpires < System.currentTimeMillis()) {
+			remove(key);
+			return false;
+		}
+		call.copyResponse(entry.mCall);
+		return true;
+	}
+
+	/**
+	 * Returns the current generation, which is passed back when storing the
+	 * response.
+	 * @return Generation
+	 */
+	synchronized long getGeneration() {
+		return mGeneration;
+	}
+
+	/**
+	 * Stores the response of a call, unless the cache has been invalidated
+	 * since the call was sent.
+	 * @param key Canonical key of the call
+	 * @param call API call containing the response
+	 * @param generation Generation when the call was sent
+	 */
+	void put(String key, AbstractCall<?> call, long generation) {
+		final long ttl = getTtl(call.getName());
+		if (ttl <= 0) {
+			return;
+		}
+		// weigh outside the lock, it's the expensive part.
+		final long bytes = ENTRY_OVERHEAD + weigh(call);
+		if (bytes > mMaxBytes) {
+			Log.d(TAG, "Response of " + call.getName() + " too large for cache (" + bytes + " bytes).");
+			return;
+		}
+		synchronized (this) {
+			if (generation != mGeneration) {
+				return;
+			}
+			remove(key);
+			mEntries.put(key, new Entry(call, bytes, System.currentTimeMillis() + ttl));
+			mBytes += bytes;
+			final Iterator<Entry> it = mEntries.values().iterator();
+			while (mBytes > mMaxBytes && it.hasNext()) {
+				mBytes -= it.next().mBytes;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries of a method or a namespace.
+	 * @param method Method name or prefix, e.g. <tt>VideoLibrary.</tt>
+	 */
+	public void invalidate(String method) {
+		invalidate(method, (String[])null);
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public synchronized void invalidateAll() {
+		mEntries.clear();
+		mBytes = 0;
+		mGeneration++;
+	}
+
+	/**
+	 * Invalidates entries affected by a notification.
+	 * @param event Notification
+	 */
+	public void onNotification(AbstractEvent event) {
+		final String namespace = getNamespace(event);
+		if (namespace != null) {
+			invalidate(namespace, getMethodParts(event));
+		}
+	}
+
+	/**
+	 * Returns the number of cached responses.
+	 * @return Number of entries
+	 */
+	public synchronized int size() {
+		return mEntries.size();
+	}
+
+	/**
+	 * Returns the approximate size of all cached responses.
+	 * @return Size in bytes
+	 */
+	public synchronized long getBytes() {
+		return mBytes;
+	}
+
+	/**
+	 * Removes entries of methods starting with the prefix and containing
+	 * one of the given parts, if any.
+	 * @param prefix Start of the method name
+	 * @param parts Parts of the method name, null for all methods
+	 */
+	private synchronized void invalidate(String prefix, String[] parts) {
+		final Iterator<Entry> it = mEntries.values().iterator();
+		while (it.hasNext()) {
+			final Entry entry = it.next();
+			final String method = entry.mCall.getName();
+			if (method.startsWith(prefix) && contains(method, parts)) {
+				mBytes -= entry.mBytes;
+				it.remove();
+			}
+		}
+		mGeneration++;
+	}
+
+	private void remove(String key) {
+		final Entry entry = mEntries.remove(key);
+		if (entry != null) {
+			mBytes -= entry.mBytes;
+		}
+	}
+
+	private synchronized long getTtl(String method) {
+		Long ttl = mTtls.get(method);
+		if (ttl == null) {
+			ttl = mTtls.get(method.substring(0, method.indexOf('.') + 1));
+		}
+		return ttl == null ? 0 : ttl;
+	}
+
+	/**
+	 * Returns the namespace of the methods affected by a notification.
+	 * @param event Notification
+	 * @return Namespace followed by a dot, null if nothing is affected
+	 */
+	static String getNamespace(AbstractEvent event) {
+		switch (event.getId()) {
+			case VideoLibraryEvent.Update.ID:
+			case VideoLibraryEvent.Remove.ID:
+			case VideoLibraryEvent.ScanFinished.ID:
+			case VideoLibraryEvent.CleanFinished.ID:
+				return "VideoLibrary.";
+			case AudioLibraryEvent.Update.ID:
+			case AudioLibraryEvent.Remove.ID:
+			case AudioLibraryEvent.ScanFinished.ID:
+			case AudioLibraryEvent.CleanFinished.ID:
+				return "AudioLibrary.";
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Returns the parts of the method names affected by a notification.
+	 * <p/>
+	 * Updates only affect the getters of the updated item type, while
+	 * removing an item also changes genres, sets and counts.
+	 * @param event Notification
+	 * @return Parts of the method names, null for the whole namespace
+	 */
+	static String[] getMethodParts(AbstractEvent event) {
+		switch (event.getId()) {
+			case VideoLibraryEvent.Update.ID:
+				return getVideoMethods(((VideoLibraryEvent.Update)event).type);
+			case AudioLibraryEvent.Update.ID:
+				return getAudioMethods(((AudioLibraryEvent.Update)event).type);
+			default:
+				return null;
+		}
+	}
+
+	static boolean contains(String method, String[] parts) {
+		if (parts == null) {
+			return true;
+		}
+		for (String part : parts) {
+			if (method.contains(part)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the parts of the video getters affected by an item type, null
+	 * for all of them.
+	 */
+	private static String[] getVideoMethods(String type) {
+		if ("movie".equals(type)) {
+			return new String[] { "Movie" };
+		} else if ("tvshow".equals(type) || "episode".equals(type)) {
+			// play counts of episodes add up to seasons and shows.
+			return new String[] { "TVShow", "Season", "Episode" };
+		} else if ("musicvideo".equals(type)) {
+			return new String[] { "MusicVideo" };
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the parts of the audio getters affected by an item type, null
+	 * for all of them.
+	 */
+	private static String[] getAudioMethods(String type) {
+		if ("song".equals(type)) {
+			return new String[] { "Song" };
+		} else if ("album".equals(type)) {
+			return new String[] { "Album", "Song" };
+		} else if ("artist".equals(type)) {
+			return new String[] { "Artist", "Album", "Song" };
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the approximate size of a call including its results.
+	 * <p/>
+	 * By default, a single result such as the details of a movie is
+	 * parcelled. Of a list, a few results spread over it are parcelled and
+	 * their average size is multiplied by the number of results, so even a
+	 * list of thousands of movies is weighed by marshalling only a handful of
+	 * them. This is called on the thread that received the response, which
+	 * can be the main thread.
+	 * @param call API call containing the response
+	 * @return Size in bytes
+	 */
+	protected long weigh(AbstractCall<?> call) {
+		if (!call.isListResult()) {
+			return weighItem(call.getResult());
+		}
+		final ArrayList<?> results = call.getResults();
+		if (results == null || results.isEmpty()) {
+			return 0;
+		}
+		final int size = results.size();
+		final int samples = Math.min(SAMPLES, size);
+		long bytes = 0;
+		for (int i = 0; i < samples; i++) {
+			bytes += weighItem(results.get(samples == 1 ? 0 : i * (size - 1) / (samples - 1)));
+		}
+		return bytes * size / samples;
+	}
+
+	/**
+	 * Returns the approximate size of one result.
+	 * @param item Result
+	 * @return Size in bytes
+	 */
+	private static long weighItem(Object item) {
+		if (item instanceof Parcelable) {
+			final Parcel parcel = Parcel.obtain();
+			try {
+				((Parcelable)item).writeToParcel(parcel, 0);
+				return parcel.dataSize();
+			} finally {
+				parcel.recycle();
+			}
+		}
+		if (item instanceof String) {
+			return ITEM_SIZE + 2 * ((String)item).length();
+		}
+		return ITEM_SIZE;
+	}
+
+	private static class Entry {
+		private final AbstractCall<?> mCall;
+		private final long mBytes;
+		private final long mExpires;
+		private Entry(AbstractCall<?> call, long bytes, long expires) {
+			mCall = call;
+			mBytes = bytes;
+			mExpires = expires;
+		}
+	}
+}
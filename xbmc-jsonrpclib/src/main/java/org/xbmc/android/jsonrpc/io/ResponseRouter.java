@@ -0,0 +1,252 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.io;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.IOException;
+
+/**
+ * Routes messages received from the TCP socket without building a tree of
+ * the whole message.
+ * <p/>
+ * The message is tokenized and only the <tt>id</tt> and <tt>method</tt>
+ * fields are looked at first. If nobody is waiting for the response anymore,
+ * the <tt>result</tt> is skipped token by token, which doesn't allocate
+ * anything. Otherwise the parser is handed to the call, which reads the
+ * <tt>result</tt> straight from the token stream.
+ * <p/>
+ * XBMC writes the fields of a response in alphabetical order, so <tt>id</tt>
+ * always arrives before <tt>result</tt>. Should a result come first anyway,
+ * it's read into a tree before the ID is known.
+ */
+public class ResponseRouter {
+
+	private static final String ID = "id";
+	private static final String METHOD = "method";
+	private static final String RESULT = "result";
+	private static final String ERROR = "error";
+	private static final String PARAMS = "params";
+
+	private final static ObjectMapper OM = new ObjectMapper();
+	private final static JsonFactory FACTORY = OM.getJsonFactory();
+
+	private final Target mTarget;
+
+	/**
+	 * Class constructor.
+	 * @param target Receives routed messages
+	 */
+	public ResponseRouter(Target target) {
+		mTarget = target;
+	}
+
+	/**
+	 * Routes a complete message, which is either a single response or
+	 * notification, or an array of responses of a batch.
+	 *
+	 * @param message Complete JSON message
+	 * @throws IOException If the message cannot be parsed
+	 */
+	public void route(byte[] message) throws IOException {
+		route(message, 0, message.length);
+	}
+
+	/**
+	 * Routes a complete message that has been received as text.
+	 *
+	 * @param message Complete JSON message
+	 * @throws IOException If the message cannot be parsed
+	 */
+	public void route(String message) throws IOException {
+		route(FACTORY.createJsonParser(message));
+	}
+
+	/**
+	 * Routes a complete message contained in a part of a buffer.
+	 *
+	 * @param data Buffer containing the message
+	 * @param offset Where the message starts
+	 * @param length Length of the message in bytes
+	 * @throws IOException If the message cannot be parsed
+	 */
+	public void route(byte[] data, int offset, int length) throws IOException {
+		route(FACTORY.createJsonParser(data, offset, length));
+	}
+
+	/**
+	 * Routes the message read by a parser and closes the parser. The
+	 * underlying stream is only closed as well if the parser's
+	 * {@link JsonParser.Feature#AUTO_CLOSE_SOURCE} is enabled.
+	 * @param parser Parser positioned before the message
+	 * @throws IOException If the message cannot be parsed
+	 */
+	public void route(JsonParser parser) throws IOException {
+		try {
+			final JsonToken token = parser.nextToken();
+			if (token == JsonToken.START_ARRAY) {
+				// batch response
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					routeObject(parser);
+				}
+			} else if (token == JsonToken.START_OBJECT) {
+				routeObject(parser);
+			}
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Reads one response or notification. The parser must be positioned at
+	 * the start of the object and is positioned at its end when returning.
+	 * @param parser Parser
+	 */
+	private void routeObject(JsonParser parser) throws IOException {
+		boolean hasId = false;
+		long id = 0;
+		String method = null;
+		boolean waiting = false;
+		boolean routed = false;
+		JsonNode result = null;
+		JsonNode error = null;
+		JsonNode params = null;
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			final String name = parser.getCurrentName();
+			parser.nextToken();
+			if (ID.equals(name)) {
+				final JsonToken token = parser.getCurrentToken();
+				if (token == JsonToken.VALUE_NUMBER_INT) {
+					hasId = true;
+					id = parser.getLongValue();
+					waiting = mTarget.isWaiting(id);
+				} else if (token != JsonToken.VALUE_NULL) {
+					// not one of our IDs, which are always numeric.
+					hasId = true;
+					id = 0;
+				}
+			} else if (METHOD.equals(name)) {
+				method = parser.getText();
+			} else if (RESULT.equals(name)) {
+				if (!hasId) {
+					result = OM.readTree(parser);
+				} else if (waiting) {
+					mTarget.onResult(id, parser);
+					routed = true;
+				} else {
+					parser.skipChildren();
+				}
+			} else if (ERROR.equals(name)) {
+				error = OM.readTree(parser);
+			} else if (PARAMS.equals(name) && !hasId) {
+				params = OM.readTree(parser);
+			} else {
+				parser.skipChildren();
+			}
+		}
+
+		if (routed) {
+			// the result has been read by the call already.
+		} else if (hasId) {
+			if (!mTarget.isWaiting(id)) {
+				mTarget.onDropped(id);
+			} else if (error != null) {
+				final ObjectNode response = OM.createObjectNode();
+				response.put(ID, id);
+				response.put(ERROR, error);
+				mTarget.onError(id, response);
+			} else {
+				mTarget.onResult(id, result);
+			}
+		} else if (error != null) {
+			final ObjectNode response = OM.createObjectNode();
+			response.put(ERROR, error);
+			mTarget.onError(0, response);
+		} else if (method != null) {
+			final ObjectNode notification = OM.createObjectNode();
+			notification.put(METHOD, method);
+			if (params != null) {
+				notification.put(PARAMS, params);
+			}
+			mTarget.onNotification(notification);
+		}
+	}
+
+	/**
+	 * Receives routed messages.
+	 */
+	public interface Target {
+		/**
+		 * Returns true if a client is waiting for the response of a call.
+		 * @param id ID of the call
+		 * @return True if the response should be parsed, false otherwise
+		 */
+		boolean isWaiting(long id);
+
+		/**
+		 * A response has been received.
+		 * @param id ID of the call
+		 * @param result The <tt>result</tt> node of the response
+		 */
+		void onResult(long id, JsonNode result);
+
+		/**
+		 * A response has been received and its result can be read straight
+		 * from the token stream.
+		 * <p/>
+		 * The parser is positioned at the start of the <tt>result</tt> value
+		 * and must be positioned at its end when returning, even if nobody
+		 * takes the result anymore.
+		 *
+		 * @param id ID of the call
+		 * @param parser Parser positioned at the <tt>result</tt> value
+		 * @throws IOException If the result cannot be parsed
+		 */
+		void onResult(long id, JsonParser parser) throws IOException;
+
+		/**
+		 * An error has been received.
+		 * @param id ID of the call or 0 if none given
+		 * @param response Response containing the <tt>error</tt> node
+		 */
+		void onError(long id, JsonNode response);
+
+		/**
+		 * A response nobody is waiting for has been skipped.
+		 * @param id ID of the call
+		 */
+		void onDropped(long id);
+
+		/**
+		 * A notification has been received.
+		 * @param notification Notification containing <tt>method</tt> and
+		 *                     <tt>params</tt>
+		 */
+		void onNotification(ObjectNode notification);
+	}
+}
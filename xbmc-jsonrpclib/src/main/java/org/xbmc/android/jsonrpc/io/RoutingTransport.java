@@ -0,0 +1,250 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+
+package org.xbmc.android.jsonrpc.io;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.node.ObjectNode;
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+import org.xbmc.android.jsonrpc.notification.AbstractEvent;
+
+import java.io.IOException;
+
+/**
+ * Base of transports that receive raw JSON messages and match them to the
+ * calls sent by ID, using a {@link ResponseRouter}.
+ */
+abstract class RoutingTransport implements Transport, ResponseRouter.Target {
+
+	private static final String TAG = RoutingTransport.class.getSimpleName();
+
+	/**
+	 * Deadlines of the calls of all transports.
+	 */
+	private static final TimerWheel DEADLINES = new TimerWheel(100, 512);
+
+	/**
+	 * Calls waiting for a response.
+	 */
+	private final CallRegistry<Pending> mCalls = new CallRegistry<Pending>();
+	private final ResponseRouter mRouter = new ResponseRouter(this);
+	private volatile Listener mListener;
+
+	@Override
+	public void open(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Notifications are routed like responses.
+	 */
+	@Override
+	public boolean deliversNotifications() {
+		return true;
+	}
+
+	Listener getListener() {
+		return mListener;
+	}
+
+	/**
+	 * Adds a call to the calls waiting for a response.
+	 * @param call Sent call
+	 * @return Entry of the call
+	 */
+	Pending register(AbstractCall<?> call) {
+		final Pending pending = new Pending(call);
+		mCalls.put(call.getId(), pending);
+		return pending;
+	}
+
+	/**
+	 * Adds a call to the calls waiting for a response and fails it with
+	 * {@link ApiException#IO_REQUEST_TIMEOUT} if no response arrives within
+	 * its timeout.
+	 * @param call Sent call
+	 * @return Entry of the call
+	 */
+	Pending registerWithDeadline(final AbstractCall<?> call) {
+		final Pending pending = register(call);
+		pending.deadline = DEADLINES.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				fail(call.getId(), new ApiException(ApiException.IO_REQUEST_TIMEOUT, "No response for " + call.getName() + " (" + call.getId() + ") after " + call.getTimeout() + "ms."));
+			}
+		}, call.getTimeout());
+		return pending;
+	}
+
+	/**
+	 * Fails a call that is still waiting.
+	 * @param id ID of the call
+	 * @param e What went wrong
+	 */
+	void fail(long id, ApiException e) {
+		final Pending pending = mCalls.complete(id);
+		if (pending != null) {
+			pending.cancelDeadline();
+			mListener.onError(id, e);
+		}
+	}
+
+	/**
+	 * Fails all waiting calls and tells the listener the transport failed.
+	 * @param e What went wrong
+	 */
+	void failAll(ApiException e) {
+		for (Pending pending : mCalls.completeAll()) {
+			pending.cancelDeadline();
+		}
+		final Listener listener = mListener;
+		if (listener != null) {
+			listener.onError(0, e);
+		}
+	}
+
+	/**
+	 * Forgets all waiting calls without telling anybody.
+	 */
+	void clear() {
+		for (Pending pending : mCalls.completeAll()) {
+			pending.cancelDeadline();
+		}
+	}
+
+	/**
+	 * Routes a complete message received from XBMC.
+	 * @param message Message
+	 */
+	void receive(String message) {
+		try {
+			mRouter.route(message);
+		} catch (Exception e) {
+			Logger.e(TAG, "Error routing message: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Routes a complete message received from XBMC.
+	 * @param data Buffer containing the message
+	 * @param offset Where the message starts
+	 * @param length Length of the message in bytes
+	 */
+	void receive(byte[] data, int offset, int length) {
+		try {
+			mRouter.route(data, offset, length);
+		} catch (Exception e) {
+			Logger.e(TAG, "Error routing message: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public boolean isWaiting(long id) {
+		return mCalls.contains(id);
+	}
+
+	@Override
+	public void onResult(long id, JsonNode result) {
+		final Pending pending = mCalls.complete(id);
+		if (pending == null) {
+			Logger.w(TAG, "Call " + id + " already completed, dropping response.");
+			return;
+		}
+		pending.cancelDeadline();
+		try {
+			pending.call.setResult(result);
+		} catch (RuntimeException e) {
+			Logger.e(TAG, "Cannot parse result of " + pending.call.getName() + ": " + e.getMessage(), e);
+			mListener.onError(id, new ApiException(ApiException.RESPONSE_ERROR, "Cannot parse result of " + pending.call.getName() + ": " + e.getMessage(), e));
+			return;
+		}
+		mListener.onResponse(pending.call);
+	}
+
+	@Override
+	public void onResult(long id, JsonParser parser) throws IOException {
+		final Pending pending = mCalls.complete(id);
+		if (pending == null) {
+			Logger.w(TAG, "Call " + id + " already completed, dropping response.");
+			parser.skipChildren();
+			return;
+		}
+		pending.cancelDeadline();
+		try {
+			pending.call.setResult(parser);
+		} catch (IOException e) {
+			// the rest of the message is lost, too.
+			mListener.onError(id, new ApiException(ApiException.JSON_EXCEPTION, "Error parsing result of " + pending.call.getName() + ": " + e.getMessage(), e));
+			throw e;
+		} catch (RuntimeException e) {
+			// the parser is somewhere inside the result, so the rest of the message is lost, too.
+			Logger.e(TAG, "Cannot parse result of " + pending.call.getName() + ": " + e.getMessage(), e);
+			mListener.onError(id, new ApiException(ApiException.RESPONSE_ERROR, "Cannot parse result of " + pending.call.getName() + ": " + e.getMessage(), e));
+			throw new IOException("Cannot parse result of " + pending.call.getName() + ": " + e.getMessage(), e);
+		}
+		mListener.onResponse(pending.call);
+	}
+
+	@Override
+	public void onError(long id, JsonNode response) {
+		final ApiException e = JsonApiRequest.parseError(response);
+		if (id != 0) {
+			fail(id, e);
+		} else {
+			failAll(e);
+		}
+	}
+
+	@Override
+	public void onDropped(long id) {
+		Logger.w(TAG, "Unknown ID " + id + ", dropping response.");
+	}
+
+	@Override
+	public void onNotification(ObjectNode notification) {
+		final AbstractEvent event = AbstractEvent.parse(notification);
+		if (event != null) {
+			mListener.onNotification(event);
+		}
+	}
+
+	/**
+	 * A call waiting for its response.
+	 */
+	static class Pending {
+		private final AbstractCall<?> call;
+		/**
+		 * Fails the call if no response arrives in time, null if no deadline.
+		 */
+		private volatile TimerWheel.Timeout deadline;
+		private Pending(AbstractCall<?> call) {
+			this.call = call;
+		}
+		private void cancelDeadline() {
+			final TimerWheel.Timeout timeout = deadline;
+			if (timeout != null) {
+				timeout.cancel();
+			}
+		}
+	}
+}
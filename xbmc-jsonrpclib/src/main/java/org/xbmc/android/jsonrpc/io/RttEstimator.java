@@ -0,0 +1,110 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.io;
+
+import java.util.HashMap;
+
+/**
+ * Estimates the round trip time to a host.
+ * <p/>
+ * Samples are smoothed the same way TCP does it (Jacobson/Karels): the
+ * smoothed RTT follows new samples with a gain of 1/8, and the mean deviation
+ * with a gain of 1/4. From both, a timeout is derived that is rarely hit
+ * unless the host has really gone away.
+ * <p/>
+ * There is one estimator per host, fed by the heartbeat of the connection
+ * service (see {@link ConnectionManager#setHeartbeat(int, int)}).
+ */
+public class RttEstimator {
+
+	private static final HashMap<String, RttEstimator> ESTIMATORS = new HashMap<String, RttEstimator>();
+
+	private double mSmoothedRtt = 0;
+	private double mRttVariance = 0;
+	private int mSamples = 0;
+
+	/**
+	 * Returns the estimator of a host, which is created if necessary.
+	 * @param address IP or host name
+	 * @param port Port
+	 * @return Estimator of the host
+	 */
+	public static RttEstimator get(String address, int port) {
+		final String key = address + ":" + port;
+		synchronized (ESTIMATORS) {
+			RttEstimator estimator = ESTIMATORS.get(key);
+			if (estimator == null) {
+				estimator = new RttEstimator();
+				ESTIMATORS.put(key, estimator);
+			}
+			return estimator;
+		}
+	}
+
+	/**
+	 * Adds a measured round trip time.
+	 * @param rtt Round trip time in milliseconds
+	 */
+	public synchronized void addSample(double rtt) {
+		if (mSamples == 0) {
+			mSmoothedRtt = rtt;
+			mRttVariance = rtt / 2;
+		} else {
+			mRttVariance = 0.75 * mRttVariance + 0.25 * Math.abs(mSmoothedRtt - rtt);
+			mSmoothedRtt = 0.875 * mSmoothedRtt + 0.125 * rtt;
+		}
+		mSamples++;
+	}
+
+	/**
+	 * Returns the smoothed round trip time.
+	 * @return RTT in milliseconds, 0 if no samples yet
+	 */
+	public synchronized double getSmoothedRtt() {
+		return mSmoothedRtt;
+	}
+
+	/**
+	 * Returns the mean deviation of the round trip time.
+	 * @return Deviation in milliseconds, 0 if no samples yet
+	 */
+	public synchronized double getRttVariance() {
+		return mRttVariance;
+	}
+
+	/**
+	 * Returns a timeout after which a response can be considered lost, i.e.
+	 * the smoothed RTT plus four times its deviation.
+	 * @return Timeout in milliseconds, 0 if no samples yet
+	 */
+	public synchronized long getTimeout() {
+		return (long)Math.ceil(mSmoothedRtt + 4 * mRttVariance);
+	}
+
+	/**
+	 * Returns the number of samples taken so far.
+	 * @return Number of samples
+	 */
+	public synchronized int getSampleCount() {
+		return mSamples;
+	}
+}
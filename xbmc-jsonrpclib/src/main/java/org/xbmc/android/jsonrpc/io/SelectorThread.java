@@ -0,0 +1,259 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.io;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The one I/O thread all {@link TcpConnection}s are running on.
+ * <p/>
+ * Connecting, reading and writing is done without blocking through a single
+ * {@link Selector}, so any number of connections can be served without
+ * spending a thread on each of them.
+ * <p/>
+ * Channels must only be touched on this thread. Other threads hand over
+ * work through {@link #execute(Runnable)}, which wakes up the selector.
+ */
+class SelectorThread extends Thread {
+
+	private static final String TAG = SelectorThread.class.getSimpleName();
+
+	private static final int RESOLVER_POOL_SIZE = 2;
+	private static final int RESOLVER_KEEP_ALIVE = 30;
+
+	private static SelectorThread sInstance;
+	private static Executor sResolver;
+
+	private final Selector mSelector;
+
+	/**
+	 * Work posted from other threads, executed before every select.
+	 */
+	private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Delayed work, only accessed on the I/O thread.
+	 */
+	private final PriorityQueue<ScheduledTask> mScheduled = new PriorityQueue<ScheduledTask>();
+
+	/**
+	 * Returns the running I/O thread and starts it if necessary.
+	 * @return I/O thread
+	 * @throws IOException If the selector cannot be opened
+	 */
+	static synchronized SelectorThread get() throws IOException {
+		if (sInstance == null || !sInstance.isAlive()) {
+			sInstance = new SelectorThread();
+			sInstance.start();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Runs a task that may block, such as resolving a host name, on a
+	 * separate thread so it doesn't stall the I/O thread. The result must be
+	 * handed back through {@link #execute(Runnable)}.
+	 * @param task Task to execute
+	 */
+	static void resolve(Runnable task) {
+		getResolver().execute(task);
+	}
+
+	private static synchronized Executor getResolver() {
+		if (sResolver == null) {
+			final ThreadPoolExecutor executor = new ThreadPoolExecutor(RESOLVER_POOL_SIZE, RESOLVER_POOL_SIZE,
+					RESOLVER_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger(1);
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "JsonRpcResolver #" + mCount.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+			sResolver = executor;
+		}
+		return sResolver;
+	}
+
+	private SelectorThread() throws IOException {
+		super(TAG);
+		setDaemon(true);
+		mSelector = Selector.open();
+	}
+
+	/**
+	 * Runs a task on the I/O thread.
+	 * @param task Task to execute
+	 */
+	void execute(Runnable task) {
+		if (Thread.currentThread() == this) {
+			task.run();
+		} else {
+			mTasks.add(task);
+			mSelector.wakeup();
+		}
+	}
+
+	/**
+	 * Runs a task on the I/O thread after a given delay.
+	 * @param task Task to execute
+	 * @param delay Delay in milliseconds
+	 * @return Handle that can be used to cancel the task
+	 */
+	ScheduledTask schedule(final Runnable task, long delay) {
+		final ScheduledTask scheduled = new ScheduledTask(task, now() + delay);
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				mScheduled.add(scheduled);
+			}
+		});
+		return scheduled;
+	}
+
+	/**
+	 * Registers a channel with the selector. Must be called on the I/O thread.
+	 *
+	 * @param channel Non-blocking channel
+	 * @param ops Interest set
+	 * @param callback Receives the selected keys of the channel
+	 * @return Selection key
+	 * @throws ClosedChannelException If the channel is closed
+	 */
+	SelectionKey register(SelectableChannel channel, int ops, Callback callback) throws ClosedChannelException {
+		return channel.register(mSelector, ops, callback);
+	}
+
+	@Override
+	public void run() {
+		Logger.d(TAG, "I/O thread started.");
+		while (true) {
+			try {
+				runTasks();
+				final long timeout = runScheduled();
+				if (timeout < 0) {
+					mSelector.selectNow();
+				} else {
+					mSelector.select(timeout);
+				}
+				final Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					final SelectionKey key = it.next();
+					it.remove();
+					if (key.isValid()) {
+						((Callback)key.attachment()).onSelected(key);
+					}
+				}
+			} catch (IOException e) {
+				Logger.e(TAG, "Error while selecting: " + e.getMessage(), e);
+			} catch (RuntimeException e) {
+				// never let a misbehaving callback take down the I/O thread.
+				Logger.e(TAG, "Error in I/O callback: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = mTasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Executes all due tasks.
+	 * @return Milliseconds until the next task is due, 0 if none is scheduled
+	 *         and -1 if there is work waiting already.
+	 */
+	private long runScheduled() {
+		final PriorityQueue<ScheduledTask> scheduled = mScheduled;
+		final long now = now();
+		while (!scheduled.isEmpty() && scheduled.peek().mTime <= now) {
+			final ScheduledTask task = scheduled.poll();
+			if (!task.mCancelled) {
+				task.mTask.run();
+			}
+		}
+		if (!mTasks.isEmpty()) {
+			return -1;
+		}
+		return scheduled.isEmpty() ? 0 : Math.max(1, scheduled.peek().mTime - now);
+	}
+
+	/**
+	 * Returns the time scheduled tasks are due at. It's monotonic, so changes
+	 * of the wall clock don't fire them early or late.
+	 * @return Milliseconds of {@link System#nanoTime()}
+	 */
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * Receives the selected keys of a registered channel.
+	 */
+	interface Callback {
+		/**
+		 * The channel is ready for one or more operations of its interest set.
+		 * @param key Selection key of the channel
+		 */
+		void onSelected(SelectionKey key);
+	}
+
+	/**
+	 * A task that runs on the I/O thread at a given time.
+	 */
+	static class ScheduledTask implements Comparable<ScheduledTask> {
+		private final Runnable mTask;
+		private final long mTime;
+		private volatile boolean mCancelled = false;
+		private ScheduledTask(Runnable task, long time) {
+			mTask = task;
+			mTime = time;
+		}
+		/**
+		 * Makes sure the task won't run.
+		 */
+		void cancel() {
+			mCancelled = true;
+		}
+		@Override
+		public int compareTo(ScheduledTask another) {
+			return mTime < another.mTime ? -1 : (mTime == another.mTime ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,462 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.io;
+
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking TCP connection to XBMC's JSON-RPC socket.
+ * <p/>
+ * All connections share one {@link SelectorThread}, which connects, reads
+ * and writes without blocking. Incoming data is read into a re-used buffer
+ * and split into messages by a {@link JsonFramer}, so a slow or stalled
+ * read never holds back outgoing data and vice versa.
+ * <p/>
+ * Calls are serialized and written by a {@link CallWriter} on the I/O thread,
+ * so the thread sending a call never blocks on the network. Calls can be
+ * sent before the connection is established, they will be flushed as soon as
+ * the socket is connected.
+ * <p/>
+ * All {@link Listener} callbacks are executed on the I/O thread and should
+ * return quickly.
+ */
+public class TcpConnection implements SelectorThread.Callback {
+
+	private static final String TAG = TcpConnection.class.getSimpleName();
+
+	private static final int READ_BUFFER_SIZE = 16384;
+
+	/**
+	 * Maximal number of calls waiting to be written.
+	 */
+	private static final int WRITE_QUEUE_SIZE = 256;
+
+	private final String mAddress;
+	private final int mPort;
+	private final int mConnectTimeout;
+	private final Listener mListener;
+
+	private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private final JsonFramer mFramer = new JsonFramer();
+	private final JsonFramer.Listener mFrameListener = new JsonFramer.Listener() {
+		@Override
+		public void onMessage(byte[] data, int offset, int length) {
+			mListener.onMessage(data, offset, length);
+		}
+	};
+
+	/**
+	 * Outgoing calls, filled by any thread and drained by the I/O thread.
+	 */
+	private final CallWriter mWriter = new CallWriter(WRITE_QUEUE_SIZE);
+	/**
+	 * Serialized data the socket didn't accept yet.
+	 */
+	private ByteBuffer mPendingWrite;
+	/**
+	 * True while a flush is posted to the I/O thread, so a burst of calls
+	 * only wakes up the selector once.
+	 */
+	private final AtomicBoolean mFlushScheduled = new AtomicBoolean(false);
+	private final Runnable mFlushTask = new Runnable() {
+		@Override
+		public void run() {
+			mFlushScheduled.set(false);
+			enableWrite();
+		}
+	};
+
+	private SelectorThread mSelector;
+	private SocketChannel mChannel;
+	private SelectionKey mKey;
+	private SelectorThread.ScheduledTask mConnectTimeoutTask;
+
+	private volatile boolean mConnected = false;
+	private volatile boolean mClosed = false;
+	private volatile long mLastReceived = 0;
+
+	/**
+	 * Creates a new connection. Nothing happens until {@link #connect()}.
+	 *
+	 * @param address IP or host name of XBMC
+	 * @param port TCP port of JSON-RPC
+	 * @param connectTimeout Milliseconds until connecting is aborted
+	 * @param listener Receives messages and status changes
+	 */
+	public TcpConnection(String address, int port, int connectTimeout, Listener listener) {
+		mAddress = address;
+		mPort = port;
+		mConnectTimeout = connectTimeout;
+		mListener = listener;
+	}
+
+	/**
+	 * Starts connecting in the background. {@link Listener#onConnected()} is
+	 * called once the connection is established.
+	 */
+	public void connect() {
+		try {
+			mSelector = SelectorThread.get();
+		} catch (IOException e) {
+			mListener.onDisconnected(new ApiException(ApiException.IO_EXCEPTION_WHILE_OPENING, "Cannot open selector: " + e.getMessage(), e));
+			return;
+		}
+		// resolving blocks, so it's done off the I/O thread which is shared
+		// by all connections.
+		SelectorThread.resolve(new Runnable() {
+			@Override
+			public void run() {
+				if (mClosed) {
+					return;
+				}
+				final InetSocketAddress address = new InetSocketAddress(mAddress, mPort);
+				mSelector.execute(new Runnable() {
+					@Override
+					public void run() {
+						doConnect(address);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Queues a call to be written to the socket. Can be called from any thread.
+	 *
+	 * @param call Call to send
+	 * @throws ApiException If too many calls are waiting to be written
+	 */
+	public void send(AbstractCall<?> call) throws ApiException {
+		if (!mWriter.offer(call)) {
+			throw new ApiException(ApiException.IO_EXCEPTION_WHILE_WRITING, "Write queue full, dropping " + call.getName() + ".");
+		}
+		scheduleFlush();
+	}
+
+	/**
+	 * Queues a batch of calls to be written as one JSON-RPC array. Can be
+	 * called from any thread.
+	 *
+	 * @param calls Calls to send
+	 * @throws ApiException If too many calls are waiting to be written
+	 */
+	public void send(List<AbstractCall<?>> calls) throws ApiException {
+		if (!mWriter.offer(calls)) {
+			throw new ApiException(ApiException.IO_EXCEPTION_WHILE_WRITING, "Write queue full, dropping batch of " + calls.size() + " calls.");
+		}
+		scheduleFlush();
+	}
+
+	private void scheduleFlush() {
+		final SelectorThread selector = mSelector;
+		if (selector != null && mFlushScheduled.compareAndSet(false, true)) {
+			selector.execute(mFlushTask);
+		}
+	}
+
+	/**
+	 * Closes the connection without notifying the listener.
+	 */
+	public void close() {
+		mClosed = true;
+		final SelectorThread selector = mSelector;
+		if (selector != null) {
+			selector.execute(new Runnable() {
+				@Override
+				public void run() {
+					closeChannel();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns true if the socket is connected.
+	 * @return True if connected, false otherwise.
+	 */
+	public boolean isConnected() {
+		return mConnected;
+	}
+
+	/**
+	 * Returns true if the connection was closed, either by the client or
+	 * because of an error.
+	 * @return True if closed, false otherwise
+	 */
+	public boolean isClosed() {
+		return mClosed;
+	}
+
+	/**
+	 * Returns when data was last received, or when the connection was
+	 * established if nothing was received yet.
+	 * <p/>
+	 * The time is taken from the monotonic clock of {@link System#nanoTime()},
+	 * so it can only be compared to <tt>System.nanoTime() / 1000000</tt>, but
+	 * doesn't move with the wall clock.
+	 * @return Time in milliseconds of {@link System#nanoTime()}
+	 */
+	public long getLastReceived() {
+		return mLastReceived;
+	}
+
+	/**
+	 * Returns the host this connection is made to.
+	 * @return IP or host name
+	 */
+	public String getAddress() {
+		return mAddress;
+	}
+
+	/**
+	 * Returns the port this connection is made to.
+	 * @return TCP port
+	 */
+	public int getPort() {
+		return mPort;
+	}
+
+	/**
+	 * Returns true if this is a connection to the given host and port.
+	 * @param address IP or host name
+	 * @param port TCP port
+	 * @return True if address and port match
+	 */
+	public boolean isConnectionTo(String address, int port) {
+		return mPort == port && mAddress.equals(address);
+	}
+
+	@Override
+	public void onSelected(SelectionKey key) {
+		try {
+			if (key.isConnectable()) {
+				finishConnect();
+			}
+			if (key.isValid() && key.isReadable()) {
+				read();
+			}
+			if (key.isValid() && key.isWritable()) {
+				flush();
+			}
+		} catch (ApiException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Opens the channel. Must be called on the I/O thread.
+	 * @param address Already resolved address of XBMC
+	 */
+	private void doConnect(InetSocketAddress address) {
+		if (mClosed) {
+			return;
+		}
+		if (address.isUnresolved()) {
+			fail(new ApiException(ApiException.IO_UNKNOWN_HOST, "Unknown host: " + mAddress));
+			return;
+		}
+		Logger.d(TAG, "Starting TCP client for " + mAddress + ":" + mPort + "...");
+		try {
+			final SocketChannel channel = SocketChannel.open();
+			mChannel = channel;
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			if (channel.connect(address)) {
+				mKey = mSelector.register(channel, SelectionKey.OP_READ, this);
+				onConnected();
+			} else {
+				mKey = mSelector.register(channel, SelectionKey.OP_CONNECT, this);
+				mConnectTimeoutTask = mSelector.schedule(new Runnable() {
+					@Override
+					public void run() {
+						if (!mConnected && !mClosed) {
+							fail(new ApiException(ApiException.IO_SOCKETTIMEOUT, "Connection timeout after " + mConnectTimeout + "ms."));
+						}
+					}
+				}, mConnectTimeout);
+			}
+		} catch (UnresolvedAddressException e) {
+			fail(new ApiException(ApiException.IO_UNKNOWN_HOST, "Unknown host: " + mAddress, e));
+		} catch (IOException e) {
+			fail(new ApiException(ApiException.IO_EXCEPTION_WHILE_OPENING, "I/O error while opening: " + e.getMessage(), e));
+		}
+	}
+
+	private void finishConnect() throws ApiException {
+		try {
+			if (mChannel.finishConnect()) {
+				if (mConnectTimeoutTask != null) {
+					mConnectTimeoutTask.cancel();
+					mConnectTimeoutTask = null;
+				}
+				mKey.interestOps(SelectionKey.OP_READ);
+				onConnected();
+			}
+		} catch (IOException e) {
+			throw new ApiException(ApiException.IO_EXCEPTION_WHILE_OPENING, "I/O error while opening: " + e.getMessage(), e);
+		}
+	}
+
+	private void onConnected() {
+		mConnected = true;
+		mLastReceived = System.nanoTime() / 1000000;
+		Logger.i(TAG, "Connected to " + mAddress + ":" + mPort + ".");
+		mListener.onConnected();
+		enableWrite();
+	}
+
+	private void read() throws ApiException {
+		final ByteBuffer buffer = mReadBuffer;
+		try {
+			int read;
+			while ((read = mChannel.read(buffer)) > 0) {
+				mLastReceived = System.nanoTime() / 1000000;
+				buffer.flip();
+				mFramer.feed(buffer, mFrameListener);
+				buffer.clear();
+			}
+			if (read < 0) {
+				throw new ApiException(ApiException.IO_DISCONNECTED, "Socket disconnected.");
+			}
+		} catch (IOException e) {
+			throw new ApiException(ApiException.IO_EXCEPTION_WHILE_READING, "I/O error while reading: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Drains the queued calls and writes as much as the socket accepts. If
+	 * there is anything left, subscribes for write readiness.
+	 */
+	private void flush() throws ApiException {
+		final CallWriter writer = mWriter;
+		try {
+			while (true) {
+				if (mPendingWrite == null) {
+					mPendingWrite = writer.drain(mListener);
+					if (mPendingWrite == null) {
+						break;
+					}
+				}
+				mChannel.write(mPendingWrite);
+				if (mPendingWrite.hasRemaining()) {
+					break;
+				}
+				mPendingWrite = null;
+			}
+		} catch (IOException e) {
+			throw new ApiException(ApiException.IO_EXCEPTION_WHILE_WRITING, "I/O error while writing: " + e.getMessage(), e);
+		}
+		if (mPendingWrite == null) {
+			mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_WRITE);
+		} else {
+			mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void enableWrite() {
+		if (mConnected && mKey != null && mKey.isValid() && mPendingWrite == null && !mWriter.isEmpty()) {
+			try {
+				flush();
+			} catch (ApiException e) {
+				fail(e);
+			}
+		}
+	}
+
+	private void fail(ApiException e) {
+		final boolean wasClosed = mClosed;
+		mClosed = true;
+		closeChannel();
+		if (!wasClosed) {
+			mListener.onDisconnected(e);
+		}
+	}
+
+	private void closeChannel() {
+		mConnected = false;
+		if (mConnectTimeoutTask != null) {
+			mConnectTimeoutTask.cancel();
+			mConnectTimeoutTask = null;
+		}
+		if (mKey != null) {
+			mKey.cancel();
+		}
+		if (mChannel != null) {
+			try {
+				mChannel.close();
+				Logger.i(TAG, "TCP socket closed.");
+			} catch (IOException e) {
+				// do nothing.
+			}
+			mChannel = null;
+		}
+		mFramer.reset();
+		mWriter.clear();
+		mPendingWrite = null;
+	}
+
+	/**
+	 * Receives messages and status changes of the connection. All methods are
+	 * called on the I/O thread.
+	 */
+	public interface Listener {
+		/**
+		 * The socket is connected.
+		 */
+		void onConnected();
+
+		/**
+		 * A complete JSON message has been read from the socket.
+		 * <p/>
+		 * The buffer is re-used for the next message, so it must be copied if
+		 * it's needed after returning.
+		 *
+		 * @param data Buffer containing the message
+		 * @param offset Where the message starts
+		 * @param length Length of the message in bytes
+		 */
+		void onMessage(byte[] data, int offset, int length);
+
+		/**
+		 * The connection could not be established or was terminated.
+		 * @param e What went wrong
+		 */
+		void onDisconnected(ApiException e);
+
+		/**
+		 * A call could not be serialized and was not sent. The connection
+		 * stays up and the other queued calls are written as usual.
+		 * @param call Call that was dropped
+		 * @param e What went wrong
+		 */
+		void onWriteFailed(AbstractCall<?> call, ApiException e);
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+
+package org.xbmc.android.jsonrpc.io;
+
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+import org.xbmc.android.jsonrpc.config.HostConfig;
+
+import java.util.List;
+
+/**
+ * Sends calls over a persistent TCP socket and receives responses as well as
+ * notifications on it.
+ * <p/>
+ * Unlike the {@link org.xbmc.android.jsonrpc.service.ConnectionService}, the
+ * socket belongs to the transport and not to a service shared by the whole
+ * app. Responses are routed on the I/O thread. If the connection drops, all
+ * calls in flight fail and the next call reconnects.
+ * <p/>
+ * Every call fails with {@link ApiException#IO_REQUEST_TIMEOUT} if no
+ * response arrives within its timeout.
+ */
+public class TcpTransport extends RoutingTransport {
+
+	private static final int SOCKET_TIMEOUT = 5000;
+
+	private final String mAddress;
+	private final int mPort;
+
+	private TcpConnection mConnection;
+
+	/**
+	 * Class constructor.
+	 * @param address IP or host name of XBMC
+	 * @param port TCP port of JSON-RPC
+	 */
+	public TcpTransport(String address, int port) {
+		mAddress = address;
+		mPort = port;
+	}
+
+	/**
+	 * Class constructor.
+	 * @param host Host to connect to
+	 */
+	public TcpTransport(HostConfig host) {
+		this(host.getAddress(), host.getTcpPort());
+	}
+
+	@Override
+	public void open(Listener listener) {
+		super.open(listener);
+		getConnection();
+	}
+
+	@Override
+	public void send(AbstractCall<?> call) {
+		registerWithDeadline(call);
+		try {
+			getConnection().send(call);
+		} catch (ApiException e) {
+			fail(call.getId(), e);
+		}
+	}
+
+	@Override
+	public void send(List<AbstractCall<?>> calls) {
+		for (AbstractCall<?> call : calls) {
+			registerWithDeadline(call);
+		}
+		try {
+			getConnection().send(calls);
+		} catch (ApiException e) {
+			for (AbstractCall<?> call : calls) {
+				fail(call.getId(), e);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (mConnection != null) {
+			mConnection.close();
+			mConnection = null;
+		}
+		clear();
+	}
+
+	/**
+	 * Returns the current connection, connecting if there's none.
+	 * @return Connection
+	 */
+	private synchronized TcpConnection getConnection() {
+		if (mConnection == null) {
+			final ConnectionListener listener = new ConnectionListener();
+			mConnection = new TcpConnection(mAddress, mPort, SOCKET_TIMEOUT, listener);
+			listener.connection = mConnection;
+			mConnection.connect();
+		}
+		return mConnection;
+	}
+
+	/**
+	 * Dropped connections are forgotten so the next call reconnects.
+	 * @param connection Connection that was lost
+	 * @param e What went wrong
+	 */
+	private void onConnectionLost(TcpConnection connection, ApiException e) {
+		synchronized (this) {
+			if (mConnection != connection) {
+				return;
+			}
+			mConnection = null;
+		}
+		failAll(e);
+	}
+
+	/**
+	 * Receives what happens on one connection. Called on the I/O thread.
+	 */
+	private class ConnectionListener implements TcpConnection.Listener {
+
+		private TcpConnection connection;
+
+		@Override
+		public void onConnected() {
+			final Listener listener = getListener();
+			if (listener != null) {
+				listener.onConnected();
+			}
+		}
+
+		@Override
+		public void onMessage(byte[] data, int offset, int length) {
+			receive(data, offset, length);
+		}
+
+		@Override
+		public void onDisconnected(ApiException e) {
+			onConnectionLost(connection, e);
+		}
+
+		@Override
+		public void onWriteFailed(AbstractCall<?> call, ApiException e) {
+			fail(call.getId(), e);
+		}
+	}
+}
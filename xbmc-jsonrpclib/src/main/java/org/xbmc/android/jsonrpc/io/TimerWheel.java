@@ -0,0 +1,286 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.io;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timer wheel for a large number of timeouts which usually get
+ * cancelled before they expire, such as deadlines of API calls.
+ * <p/>
+ * Time is divided into ticks, and every timeout is put into the slot of the
+ * tick it expires in. The worker thread only looks at one slot per tick, so
+ * adding, cancelling and expiring a timeout costs O(1), no matter how many
+ * are pending. The price is precision: timeouts expire up to one tick late.
+ * <p/>
+ * Timeouts can be added and cancelled from any thread. They are handed over
+ * to the worker through lock-free queues, and the worker thread sleeps as
+ * long as there is nothing to expire.
+ */
+public class TimerWheel {
+
+	private static final String TAG = TimerWheel.class.getSimpleName();
+
+	private final long mTickDuration;
+	/**
+	 * Origin of the wheel's clock, see {@link #now()}.
+	 */
+	private final long mStarted = System.nanoTime();
+	private final Slot[] mWheel;
+	private final int mMask;
+
+	private final ConcurrentLinkedQueue<Timeout> mAdded = new ConcurrentLinkedQueue<Timeout>();
+	private final ConcurrentLinkedQueue<Timeout> mCancelled = new ConcurrentLinkedQueue<Timeout>();
+
+	private final Object mLock = new Object();
+	private Worker mWorker;
+	private boolean mStopped = false;
+
+	/**
+	 * Class constructor. The worker thread is started with the first timeout.
+	 * @param tickDuration Duration of a tick in milliseconds
+	 * @param ticksPerWheel Number of slots, rounded up to a power of two
+	 */
+	public TimerWheel(long tickDuration, int ticksPerWheel) {
+		int size = 1;
+		while (size < ticksPerWheel) {
+			size <<= 1;
+		}
+		mTickDuration = tickDuration;
+		mWheel = new Slot[size];
+		for (int i = 0; i < size; i++) {
+			mWheel[i] = new Slot();
+		}
+		mMask = size - 1;
+	}
+
+	/**
+	 * Schedules a task. It's executed on the worker thread, so it should
+	 * return quickly. Once the wheel is stopped, tasks are never executed.
+	 * @param task Task to run when the timeout expires
+	 * @param delay Delay in milliseconds
+	 * @return Handle for cancelling the timeout
+	 */
+	public Timeout newTimeout(Runnable task, long delay) {
+		final Timeout timeout = new Timeout(this, task, now() + delay);
+		mAdded.add(timeout);
+		synchronized (mLock) {
+			if (mStopped) {
+				Logger.w(TAG, "Timer wheel has been stopped, timeout will never expire.");
+			} else if (mWorker == null) {
+				mWorker = new Worker();
+				mWorker.start();
+			} else {
+				mLock.notify();
+			}
+		}
+		return timeout;
+	}
+
+	/**
+	 * Returns the time on the wheel's clock. It's monotonic, so changes of
+	 * the wall clock don't move deadlines.
+	 * @return Milliseconds since the wheel was created
+	 */
+	private long now() {
+		return (System.nanoTime() - mStarted) / 1000000;
+	}
+
+	/**
+	 * Stops the worker thread. Pending timeouts never expire.
+	 */
+	public void stop() {
+		synchronized (mLock) {
+			mStopped = true;
+			mLock.notify();
+		}
+	}
+
+	/**
+	 * The worker thread, which advances the wheel tick by tick.
+	 */
+	private class Worker extends Thread {
+
+		private long mTick;
+		private int mPending = 0;
+
+		private Worker() {
+			super(TAG);
+			setDaemon(true);
+			mTick = now() / mTickDuration;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				synchronized (mLock) {
+					// sleep until there's something to do.
+					while (!mStopped && mPending == 0 && mAdded.isEmpty()) {
+						try {
+							mLock.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+						mTick = now() / mTickDuration;
+					}
+					if (mStopped) {
+						return;
+					}
+				}
+				transferCancelled();
+				transferAdded();
+				final long now = now();
+				while (mTick <= now / mTickDuration) {
+					expire(mWheel[(int)mTick & mMask], mTick);
+					mTick++;
+				}
+				try {
+					Thread.sleep(Math.max(1, mTick * mTickDuration - now()));
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		private void transferAdded() {
+			Timeout timeout;
+			while ((timeout = mAdded.poll()) != null) {
+				if (timeout.mState.get() != Timeout.ST_INIT) {
+					continue;
+				}
+				// round up, so nothing expires early, and never schedule into
+				// the past, it would take a whole round.
+				final long tick = Math.max(mTick, (timeout.mDeadline + mTickDuration - 1) / mTickDuration);
+				timeout.mTick = tick;
+				mWheel[(int)tick & mMask].add(timeout);
+				mPending++;
+			}
+		}
+
+		private void transferCancelled() {
+			Timeout timeout;
+			while ((timeout = mCancelled.poll()) != null) {
+				if (timeout.mSlot != null) {
+					timeout.mSlot.remove(timeout);
+					mPending--;
+				}
+			}
+		}
+
+		private void expire(Slot slot, long tick) {
+			Timeout timeout = slot.mHead;
+			while (timeout != null) {
+				final Timeout next = timeout.mNext;
+				if (timeout.mTick <= tick) {
+					slot.remove(timeout);
+					mPending--;
+					if (timeout.mState.compareAndSet(Timeout.ST_INIT, Timeout.ST_EXPIRED)) {
+						try {
+							timeout.mTask.run();
+						} catch (RuntimeException e) {
+							Logger.e(TAG, "Error in timeout task: " + e.getMessage(), e);
+						}
+					}
+				}
+				timeout = next;
+			}
+		}
+	}
+
+	/**
+	 * A doubly linked list of timeouts, only accessed by the worker thread.
+	 */
+	private static class Slot {
+		private Timeout mHead;
+
+		private void add(Timeout timeout) {
+			timeout.mSlot = this;
+			timeout.mNext = mHead;
+			if (mHead != null) {
+				mHead.mPrev = timeout;
+			}
+			mHead = timeout;
+		}
+
+		private void remove(Timeout timeout) {
+			if (timeout.mPrev != null) {
+				timeout.mPrev.mNext = timeout.mNext;
+			} else {
+				mHead = timeout.mNext;
+			}
+			if (timeout.mNext != null) {
+				timeout.mNext.mPrev = timeout.mPrev;
+			}
+			timeout.mSlot = null;
+			timeout.mPrev = null;
+			timeout.mNext = null;
+		}
+	}
+
+	/**
+	 * Handle of a scheduled task.
+	 */
+	public static class Timeout {
+
+		private static final int ST_INIT = 0;
+		private static final int ST_CANCELLED = 1;
+		private static final int ST_EXPIRED = 2;
+
+		private final TimerWheel mWheel;
+		private final Runnable mTask;
+		private final long mDeadline;
+		private final AtomicInteger mState = new AtomicInteger(ST_INIT);
+
+		// only accessed by the worker thread
+		private long mTick;
+		private Slot mSlot;
+		private Timeout mPrev;
+		private Timeout mNext;
+
+		private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+			mWheel = wheel;
+			mTask = task;
+			mDeadline = deadline;
+		}
+
+		/**
+		 * Makes sure the task won't run, unless it's running already.
+		 * @return True if cancelled, false if already expired or cancelled
+		 */
+		public boolean cancel() {
+			if (mState.compareAndSet(ST_INIT, ST_CANCELLED)) {
+				mWheel.mCancelled.add(this);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Returns true if the task has been executed.
+		 * @return True if expired, false otherwise
+		 */
+		public boolean isExpired() {
+			return mState.get() == ST_EXPIRED;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+
+package org.xbmc.android.jsonrpc.io;
+
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+import org.xbmc.android.jsonrpc.notification.AbstractEvent;
+
+import java.util.List;
+
+/**
+ * Carries API calls to XBMC and their responses back.
+ * <p/>
+ * Shipped transports are:
+ * <ul><li>{@link TcpTransport}, a persistent TCP socket that also receives
+ *         notifications,</li>
+ *     <li>{@link WebSocketTransport}, the same over a WebSocket,</li>
+ *     <li>{@link HttpTransport}, a POST request per call or batch and</li>
+ *     <li>{@link LoopbackTransport}, which answers calls in memory.</li></ul>
+ *
+ * None of them depends on a context or the service. Except for the
+ * WebSocket transport, which runs on AndroidAsync, they log through the
+ * {@link Logger} and can be driven from plain Java code as well, e.g. from a
+ * unit test on the JVM.
+ * {@link ConnectionManager} routes calls through a transport if one is set,
+ * otherwise through the {@link org.xbmc.android.jsonrpc.service.ConnectionService}.
+ * <p/>
+ * Listener methods may be called on any thread.
+ */
+public interface Transport {
+
+	/**
+	 * Starts the transport. Calls may be sent right after, they're queued if
+	 * the transport isn't ready yet.
+	 * @param listener Receives responses, errors and notifications
+	 */
+	public void open(Listener listener);
+
+	/**
+	 * Sends a call.
+	 * @param call Call to send
+	 */
+	public void send(AbstractCall<?> call);
+
+	/**
+	 * Sends a bunch of calls as one JSON-RPC batch.
+	 * @param calls Calls to send
+	 */
+	public void send(List<AbstractCall<?>> calls);
+
+	/**
+	 * Stops the transport. Calls in flight don't get an answer anymore.
+	 */
+	public void close();
+
+	/**
+	 * Returns true if XBMC's notifications arrive through this transport.
+	 * If not, the connection manager binds the connection service to
+	 * receive them.
+	 * @return True if notifications are delivered, false otherwise
+	 */
+	public boolean deliversNotifications();
+
+	/**
+	 * Receives what comes back from XBMC.
+	 */
+	public interface Listener {
+
+		/**
+		 * The transport is connected. Not called by connection-less
+		 * transports.
+		 */
+		public void onConnected();
+
+		/**
+		 * A response has been received.
+		 * @param call Call as sent, with its response set
+		 */
+		public void onResponse(AbstractCall<?> call);
+
+		/**
+		 * An error has occurred.
+		 * @param id ID of the failed call, or 0 if the transport itself failed,
+		 *           in which case all calls in flight are lost.
+		 * @param e What went wrong
+		 */
+		public void onError(long id, ApiException e);
+
+		/**
+		 * A notification has been received.
+		 * @param event Parsed notification
+		 */
+		public void onNotification(AbstractEvent event);
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+
+package org.xbmc.android.jsonrpc.io;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.WebSocket;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+import org.xbmc.android.jsonrpc.config.HostConfig;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Sends calls and receives responses as well as notifications over a
+ * WebSocket, which XBMC serves on the same port as the raw TCP socket.
+ * <p/>
+ * Every text frame contains exactly one message, so unlike the raw socket,
+ * nothing needs to be framed by looking at the JSON. Where port 9090 is only
+ * reachable through HTTP-aware proxies, the WebSocket still gets through.
+ * <p/>
+ * The socket is provided by AndroidAsync and all its callbacks run on its
+ * server thread, which is also where responses are routed. Calls sent before
+ * the socket is open are written once it is. If the connection drops, all
+ * calls in flight fail and the next call reconnects.
+ */
+public class WebSocketTransport extends RoutingTransport {
+
+	private static final String TAG = WebSocketTransport.class.getSimpleName();
+
+	private final static ObjectMapper OM = new ObjectMapper();
+
+	private static final String PATH = "/jsonrpc";
+
+	private final String mUri;
+	private final AsyncHttpClient mClient;
+
+	/**
+	 * Messages waiting for the socket to open.
+	 */
+	private final ConcurrentLinkedQueue<String> mPending = new ConcurrentLinkedQueue<String>();
+
+	private Future<WebSocket> mConnecting;
+	private WebSocket mSocket;
+
+	/**
+	 * Class constructor.
+	 * @param address IP or host name of XBMC
+	 * @param port TCP port of JSON-RPC
+	 */
+	public WebSocketTransport(String address, int port) {
+		this("ws://" + address + ":" + port + PATH, AsyncHttpClient.getDefaultInstance());
+	}
+
+	/**
+	 * Class constructor.
+	 * @param host Host to connect to
+	 */
+	public WebSocketTransport(HostConfig host) {
+		this(host.getAddress(), host.getTcpPort());
+	}
+
+	/**
+	 * Class constructor.
+	 * @param uri Complete URI of the WebSocket, e.g. <tt>ws://localhost:9090/jsonrpc</tt>
+	 * @param client Client opening the WebSocket
+	 */
+	public WebSocketTransport(String uri, AsyncHttpClient client) {
+		mUri = uri;
+		mClient = client;
+	}
+
+	@Override
+	public void open(Listener listener) {
+		super.open(listener);
+		connect();
+	}
+
+	@Override
+	public void send(AbstractCall<?> call) {
+		registerWithDeadline(call);
+		final StringWriter message = new StringWriter();
+		try {
+			final JsonGenerator gen = OM.getJsonFactory().createJsonGenerator(message);
+			call.writeTo(gen);
+			gen.close();
+		} catch (IOException e) {
+			fail(call.getId(), new ApiException(ApiException.JSON_EXCEPTION, "Unable to serialize request: " + e.getMessage(), e));
+			return;
+		}
+		write(message.toString());
+	}
+
+	@Override
+	public void send(List<AbstractCall<?>> calls) {
+		final StringWriter message = new StringWriter();
+		try {
+			final JsonGenerator gen = OM.getJsonFactory().createJsonGenerator(message);
+			gen.writeStartArray();
+			for (AbstractCall<?> call : calls) {
+				registerWithDeadline(call);
+				call.writeTo(gen);
+			}
+			gen.writeEndArray();
+			gen.close();
+		} catch (IOException e) {
+			final ApiException error = new ApiException(ApiException.JSON_EXCEPTION, "Unable to serialize request: " + e.getMessage(), e);
+			for (AbstractCall<?> call : calls) {
+				fail(call.getId(), error);
+			}
+			return;
+		}
+		write(message.toString());
+	}
+
+	@Override
+	public void close() {
+		final WebSocket socket;
+		synchronized (this) {
+			if (mConnecting != null) {
+				mConnecting.cancel();
+				mConnecting = null;
+			}
+			socket = mSocket;
+			mSocket = null;
+		}
+		mPending.clear();
+		clear();
+		if (socket != null) {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Writes a message to the socket, or queues it until the socket is open.
+	 * @param message Message to send
+	 */
+	private void write(String message) {
+		mPending.add(message);
+		final WebSocket socket = connect();
+		if (socket != null) {
+			flush(socket);
+		}
+	}
+
+	/**
+	 * Writes all queued messages on the server thread of the socket.
+	 * @param socket Open socket
+	 */
+	private void flush(final WebSocket socket) {
+		getServer().post(new Runnable() {
+			@Override
+			public void run() {
+				String message;
+				while ((message = mPending.poll()) != null) {
+					socket.send(message);
+				}
+			}
+		});
+	}
+
+	private AsyncServer getServer() {
+		return mClient.getServer();
+	}
+
+	/**
+	 * Returns the open socket or starts connecting if there's none.
+	 * @return Socket or null if not yet open
+	 */
+	private synchronized WebSocket connect() {
+		if (mSocket != null || mConnecting != null) {
+			return mSocket;
+		}
+		Logger.i(TAG, "Opening " + mUri + "...");
+		mConnecting = mClient.websocket(mUri, null, new AsyncHttpClient.WebSocketConnectCallback() {
+			@Override
+			public void onCompleted(Exception ex, WebSocket socket) {
+				onOpened(ex, socket);
+			}
+		});
+		return null;
+	}
+
+	/**
+	 * Sets up a socket that has been opened, or fails everything if opening
+	 * failed. Runs on the server thread.
+	 * @param ex Error or null
+	 * @param socket Opened socket or null
+	 */
+	private void onOpened(Exception ex, final WebSocket socket) {
+		synchronized (this) {
+			if (mConnecting == null) {
+				// closed in the meantime.
+				if (socket != null) {
+					socket.close();
+				}
+				return;
+			}
+			mConnecting = null;
+			if (ex == null) {
+				mSocket = socket;
+			}
+		}
+		if (ex != null) {
+			mPending.clear();
+			failAll(new ApiException(ApiException.IO_EXCEPTION_WHILE_OPENING, "Cannot open " + mUri + ": " + ex.getMessage(), ex));
+			return;
+		}
+		Logger.i(TAG, "Connected to " + mUri + ".");
+		socket.setStringCallback(new WebSocket.StringCallback() {
+			@Override
+			public void onStringAvailable(String message) {
+				receive(message);
+			}
+		});
+		final CompletedCallback closed = new CompletedCallback() {
+			@Override
+			public void onCompleted(Exception ex) {
+				onConnectionLost(socket, ex);
+			}
+		};
+		socket.setClosedCallback(closed);
+		socket.setEndCallback(closed);
+
+		final Listener listener = getListener();
+		if (listener != null) {
+			listener.onConnected();
+		}
+		flush(socket);
+	}
+
+	/**
+	 * Dropped sockets are forgotten so the next call reconnects.
+	 * @param socket Socket that was closed
+	 * @param ex Error or null if closed by XBMC
+	 */
+	private void onConnectionLost(WebSocket socket, Exception ex) {
+		synchronized (this) {
+			if (mSocket != socket) {
+				return;
+			}
+			mSocket = null;
+		}
+		Logger.i(TAG, "Disconnected from " + mUri + ".");
+		failAll(ex != null
+				? new ApiException(ApiException.IO_EXCEPTION_WHILE_READING, "WebSocket error: " + ex.getMessage(), ex)
+				: new ApiException(ApiException.IO_DISCONNECTED, "WebSocket closed."));
+	}
+}
@@ -70,6 +70,22 @@ public abstract class AbstractEvent implements Parcelable {
 			return new SystemEvent.Wake(params);
 		} else if (method.equals(SystemEvent.LowBattery.METHOD)) {
 			return new SystemEvent.LowBattery(params);
+		} else if (method.equals(VideoLibraryEvent.Update.METHOD)) {
+			return new VideoLibraryEvent.Update(params);
+		} else if (method.equals(VideoLibraryEvent.Remove.METHOD)) {
+			return new VideoLibraryEvent.Remove(params);
+		} else if (method.equals(VideoLibraryEvent.ScanFinished.METHOD)) {
+			return new VideoLibraryEvent.ScanFinished(params);
+		} else if (method.equals(VideoLibraryEvent.CleanFinished.METHOD)) {
+			return new VideoLibraryEvent.CleanFinished(params);
+		} else if (method.equals(AudioLibraryEvent.Update.METHOD)) {
+			return new AudioLibraryEvent.Update(params);
+		} else if (method.equals(AudioLibraryEvent.Remove.METHOD)) {
+			return new AudioLibraryEvent.Remove(params);
+		} else if (method.equals(AudioLibraryEvent.ScanFinished.METHOD)) {
+			return new AudioLibraryEvent.ScanFinished(params);
+		} else if (method.equals(AudioLibraryEvent.CleanFinished.METHOD)) {
+			return new AudioLibraryEvent.CleanFinished(params);
 		} else{
 			return null;
 		}
@@ -0,0 +1,225 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+
+package org.xbmc.android.jsonrpc.notification;
+
+import org.codehaus.jackson.node.ObjectNode;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Parses VideoLibrary.* events.
+ * <p/>
+ * The <tt>type</tt> of updated or removed items is one of <tt>movie</tt>,
+ * <tt>tvshow</tt>, <tt>episode</tt> or <tt>musicvideo</tt>.
+ */
+public class VideoLibraryEvent {
+	
+	/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * 
+	 *  notifications: https://github.com/xbmc/xbmc/blob/master/xbmc/interfaces/json-rpc/notifications.json
+	 * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+	/**
+	 * A video item has been updated, e.g. its play count has changed.
+	 */
+	public static class Update extends AbstractEvent {
+		public final static int ID = 0x21;
+		public final static String METHOD = "VideoLibrary.OnUpdate";
+		public final String type;
+		public final int id;
+		public final int playcount;
+		public Update(ObjectNode node) {
+			super(node);
+			final ObjectNode data = (ObjectNode)node.get("data");
+			// older versions wrap type and id into an item object.
+			final ObjectNode item = data.has("item") ? (ObjectNode)data.get("item") : data;
+			type = parseString(item, "type");
+			id = parseInt(item, "id");
+			playcount = parseInt(data, "playcount");
+		}
+		protected Update(Parcel parcel) {
+			super(parcel);
+			type = parcel.readString();
+			id = parcel.readInt();
+			playcount = parcel.readInt();
+		}
+		@Override
+		public String toString() {
+			return 	"VIDEO UPDATE: " + type + " " + id + ".";
+		}
+		@Override
+		public int describeContents() {
+			return 0;
+		}
+		@Override
+		public void writeToParcel(Parcel parcel, int flags) {
+			super.writeToParcel(parcel, flags);
+			parcel.writeString(type);
+			parcel.writeInt(id);
+			parcel.writeInt(playcount);
+		}
+		public static final Parcelable.Creator<Update> CREATOR = new Parcelable.Creator<Update>() {
+			@Override
+			public Update createFromParcel(Parcel parcel) {
+				return new Update(parcel);
+			}
+			@Override
+			public Update[] newArray(int n) {
+				return new Update[n];
+			}
+		};
+		@Override
+		public int getId() {
+			return ID;
+		}
+	}
+
+	/**
+	 * A video item has been removed from the library.
+	 */
+	public static class Remove extends AbstractEvent {
+		public final static int ID = 0x22;
+		public final static String METHOD = "VideoLibrary.OnRemove";
+		public final String type;
+		public final int id;
+		public Remove(ObjectNode node) {
+			super(node);
+			final ObjectNode data = (ObjectNode)node.get("data");
+			type = parseString(data, "type");
+			id = parseInt(data, "id");
+		}
+		protected Remove(Parcel parcel) {
+			super(parcel);
+			type = parcel.readString();
+			id = parcel.readInt();
+		}
+		@Override
+		public String toString() {
+			return 	"VIDEO REMOVE: " + type + " " + id + ".";
+		}
+		@Override
+		public int describeContents() {
+			return 0;
+		}
+		@Override
+		public void writeToParcel(Parcel parcel, int flags) {
+			super.writeToParcel(parcel, flags);
+			parcel.writeString(type);
+			parcel.writeInt(id);
+		}
+		public static final Parcelable.Creator<Remove> CREATOR = new Parcelable.Creator<Remove>() {
+			@Override
+			public Remove createFromParcel(Parcel parcel) {
+				return new Remove(parcel);
+			}
+			@Override
+			public Remove[] newArray(int n) {
+				return new Remove[n];
+			}
+		};
+		@Override
+		public int getId() {
+			return ID;
+		}
+	}
+
+	/**
+	 * A video library scan has finished.
+	 */
+	public static class ScanFinished extends AbstractEvent {
+		public final static int ID = 0x23;
+		public final static String METHOD = "VideoLibrary.OnScanFinished";
+		public ScanFinished(ObjectNode node) {
+			super(node);
+		}
+		protected ScanFinished(Parcel parcel) {
+			super(parcel);
+		}
+		@Override
+		public String toString() {
+			return 	"VIDEO SCAN FINISHED";
+		}
+		@Override
+		public int describeContents() {
+			return 0;
+		}
+		@Override
+		public void writeToParcel(Parcel parcel, int flags) {
+			super.writeToParcel(parcel, flags);
+		}
+		public static final Parcelable.Creator<ScanFinished> CREATOR = new Parcelable.Creator<ScanFinished>() {
+			@Override
+			public ScanFinished createFromParcel(Parcel parcel) {
+				return new ScanFinished(parcel);
+			}
+			@Override
+			public ScanFinished[] newArray(int n) {
+				return new ScanFinished[n];
+			}
+		};
+		@Override
+		public int getId() {
+			return ID;
+		}
+	}
+
+	/**
+	 * The video library has been cleaned.
+	 */
+	public static class CleanFinished extends AbstractEvent {
+		public final static int ID = 0x24;
+		public final static String METHOD = "VideoLibrary.OnCleanFinished";
+		public CleanFinished(ObjectNode node) {
+			super(node);
+		}
+		protected CleanFinished(Parcel parcel) {
+			super(parcel);
+		}
+		@Override
+		public String toString() {
+			return 	"VIDEO CLEAN FINISHED";
+		}
+		@Override
+		public int describeContents() {
+			return 0;
+		}
+		@Override
+		public void writeToParcel(Parcel parcel, int flags) {
+			super.writeToParcel(parcel, flags);
+		}
+		public static final Parcelable.Creator<CleanFinished> CREATOR = new Parcelable.Creator<CleanFinished>() {
+			@Override
+			public CleanFinished createFromParcel(Parcel parcel) {
+				return new CleanFinished(parcel);
+			}
+			@Override
+			public CleanFinished[] newArray(int n) {
+				return new CleanFinished[n];
+			}
+		};
+		@Override
+		public int getId() {
+			return ID;
+		}
+	}
+}
@@ -21,36 +21,43 @@
 
 package org.xbmc.android.jsonrpc.service;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.Intent;
 import android.os.*;
 import android.util.Log;
-import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.node.ObjectNode;
 import org.xbmc.android.jsonrpc.api.AbstractCall;
+import org.xbmc.android.jsonrpc.api.call.JSONRPC;
 import org.xbmc.android.jsonrpc.io.ApiException;
+import org.xbmc.android.jsonrpc.io.CallRegistry;
 import org.xbmc.android.jsonrpc.io.ConnectionManager;
 import org.xbmc.android.jsonrpc.io.JsonHandler;
+import org.xbmc.android.jsonrpc.io.ResponseRouter;
+import org.xbmc.android.jsonrpc.io.RttEstimator;
+import org.xbmc.android.jsonrpc.io.TcpConnection;
+import org.xbmc.android.jsonrpc.io.TimerWheel;
 import org.xbmc.android.jsonrpc.notification.AbstractEvent;
 
-import java.io.BufferedWriter;
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Service which keeps a steady TCP connection to XBMC's JSON-RPC API via TCP
  * socket (as opposed to HTTP messages).
  * <p/>
+ * The socket is a non-blocking {@link TcpConnection}, so the service doesn't
+ * occupy a thread per connection. Received messages are parsed on a separate
+ * dispatch thread by a {@link ResponseRouter}, which only reads responses
+ * somebody is still waiting for.
+ * <p/>
  * It serves as listener for notification, but is also used for posting normal
  * API requests.
  * <p/>
@@ -61,22 +68,52 @@ import java.util.*;
  * "cooldown" period, in which the service will just wait for new clients to
  * arrive before shutting down.
  * <p/>
+ * Calls in flight are kept in a {@link CallRegistry}, since they are
+ * registered on the main thread and completed on the dispatch thread. Every
+ * call has a deadline on a {@link TimerWheel}. If it passes before the
+ * response arrives, the client gets an {@link ApiException#IO_REQUEST_TIMEOUT}
+ * and the late response is skipped.
+ * <p/>
+ * When an established connection drops, the service reconnects with growing
+ * delays as defined by the {@link ReconnectPolicy}, while clients stay
+ * registered. Calls in flight that are safe to send twice (see
+ * {@link AbstractCall#isIdempotent()}) are sent again once reconnected, the
+ * others fail. Only when giving up, all clients get the error.
+ * <p/>
+ * Optionally, a <tt>JSONRPC.Ping</tt> is sent when the socket has been silent
+ * for a while. A ping that isn't answered in time means the connection is
+ * half-open, so it's dropped and re-established. The round trip times of the
+ * pings feed the {@link RttEstimator} of the host.
+ * <p/>
  * About message exchange, see {@link ConnectionManager}.
  *
  * @author freezy <freezy@xbmc.org>
  */
-public class ConnectionService extends IntentService {
+public class ConnectionService extends Service {
 
 	public final static String TAG = ConnectionService.class.getSimpleName();
 
 	private static final int SOCKET_TIMEOUT = 5000;
 
+	/**
+	 * Precision of the call deadlines in milliseconds.
+	 */
+	private static final long DEADLINE_TICK = 100;
+	/**
+	 * Number of slots of the deadline timer wheel, which gives one round
+	 * every 51.2 seconds.
+	 */
+	private static final int DEADLINE_SLOTS = 512;
+
 	public static final String EXTRA_ADDRESS = "org.xbmc.android.jsonprc.extra.ADDRESS";
 	public static final String EXTRA_TCPPORT = "org.xbmc.android.jsonprc.extra.TCPPORT";
 	public static final String EXTRA_HTTPPORT = "org.xbmc.android.jsonprc.extra.HTTPPORT";
+	public static final String EXTRA_HEARTBEAT_INTERVAL = "org.xbmc.android.jsonprc.extra.HEARTBEAT_INTERVAL";
+	public static final String EXTRA_HEARTBEAT_TIMEOUT = "org.xbmc.android.jsonprc.extra.HEARTBEAT_TIMEOUT";
 
 	public static final String EXTRA_STATUS = "org.xbmc.android.jsonprc.extra.STATUS";
 	public static final String EXTRA_APICALL = "org.xbmc.android.jsonprc.extra.APICALL";
+	public static final String EXTRA_APICALLS = "org.xbmc.android.jsonprc.extra.APICALLS";
 	public static final String EXTRA_NOTIFICATION = "org.xbmc.android.jsonprc.extra.NOTIFICATION";
 	public static final String EXTRA_HANDLER = "org.xbmc.android.jsonprc.extra.HANDLER";
 	public static final String EXTRA_CALLID = "org.xbmc.android.jsonprc.extra.CALLID";
@@ -91,6 +128,7 @@ public class ConnectionService extends IntentService {
 	public static final int MSG_SEND_APICALL = 0x08;
 	public static final int MSG_SEND_HANDLED_APICALL = 0x09;
 	public static final int MSG_ERROR = 0x0a;
+	public static final int MSG_SEND_BATCH = 0x0b;
 
 	public static final int RESULT_SUCCESS = 0x01;
 
@@ -114,32 +152,70 @@ public class ConnectionService extends IntentService {
 	 * Keeps track of all currently registered client. Normally, all clients
 	 * are {@link ConnectionManager} instances.
 	 */
-	private final ArrayList<Messenger> clients = new ArrayList<Messenger>();
+	private final CopyOnWriteArrayList<Messenger> clients = new CopyOnWriteArrayList<Messenger>();
 	/**
-	 * API call results are only returned to the client requested it, so here are the relations.
+	 * All calls the service is currently dealing with, along with the client
+	 * that posted them. Key is the ID of the call.
 	 */
-	private final HashMap<String, Messenger> clientMap = new HashMap<String, Messenger>();
+	private final CallRegistry<InFlightCall> calls = new CallRegistry<InFlightCall>();
 	/**
 	 * If we have to send data before we're connected, store data until connection
 	 */
-	private final LinkedList<AbstractCall<?>> pendingCalls = new LinkedList<AbstractCall<?>>();
+	private final ConcurrentLinkedQueue<AbstractCall<?>> pendingCalls = new ConcurrentLinkedQueue<AbstractCall<?>>();
+	private final ConcurrentLinkedQueue<ArrayList<AbstractCall<?>>> pendingBatches = new ConcurrentLinkedQueue<ArrayList<AbstractCall<?>>>();
 	/**
-	 * All calls the service is currently dealing with. Key is the ID of the call.
+	 * Expires calls that didn't get a response in time.
 	 */
-	private final HashMap<String, AbstractCall<?>> calls = new HashMap<String, AbstractCall<?>>();
+	private final TimerWheel deadlines = new TimerWheel(DEADLINE_TICK, DEADLINE_SLOTS);
 	/**
-	 * The handler we'll update with a status code as soon as we're done.
+	 * Parses received messages and hands them to the clients.
 	 */
-	private final HashMap<String, JsonHandler> handlers = new HashMap<String, JsonHandler>();
+	private final ResponseRouter router = new ResponseRouter(new ResponseDispatcher());
 
 	/**
-	 * Reference to the socket, so we shut it down properly.
+	 * The non-blocking TCP connection, null if not started yet.
 	 */
-	private Socket socket = null;
+	private volatile TcpConnection connection = null;
 	/**
-	 * Output writer so we can also write stuff to the socket.
+	 * Host we're connected to, needed for reconnecting.
 	 */
-	private BufferedWriter out = null;
+	private String address;
+	private int port;
+	/**
+	 * Connection state changes are treated on the main thread, like messages
+	 * from clients, so a call can't slip through while reconnecting.
+	 */
+	private final Handler mainHandler = new Handler();
+	private final ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+	/**
+	 * Heartbeat settings in milliseconds, no heartbeat if interval is 0.
+	 */
+	private int heartbeatInterval = 0;
+	private int heartbeatTimeout = 0;
+	/**
+	 * ID of the last heartbeat ping, 0 if none sent yet.
+	 */
+	private long heartbeatId = 0;
+	private final Runnable heartbeatTask = new Runnable() {
+		@Override
+		public void run() {
+			heartbeat();
+		}
+	};
+	private final Runnable reconnectTask = new Runnable() {
+		@Override
+		public void run() {
+			if (connection == null && address != null) {
+				Log.i(TAG, "Reconnecting to " + address + ":" + port + "...");
+				connect(address, port);
+			}
+		}
+	};
+	/**
+	 * Received messages are parsed and handed to the clients on this thread,
+	 * so the I/O thread never waits for parsing.
+	 */
+	private Handler dispatchHandler;
 
 	/**
 	 * When no more clients are connected, wait {@link #COOLDOWN} milliseconds
@@ -147,106 +223,94 @@ public class ConnectionService extends IntentService {
 	 */
 	private Timer cooldownTimer = null;
 
-	/**
-	 * Class constructor must be empty for services.
-	 */
-	public ConnectionService() {
-		super(TAG);
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		final HandlerThread thread = new HandlerThread(TAG + "-dispatch");
+		thread.start();
+		dispatchHandler = new Handler(thread.getLooper());
 	}
 
 	@Override
-	protected void onHandleIntent(Intent intent) {
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		if (intent != null) {
+			final int port = intent.getIntExtra(EXTRA_TCPPORT, 9090);
+			final String address = intent.getStringExtra(EXTRA_ADDRESS) != null ? intent.getStringExtra(EXTRA_ADDRESS) : "10.0.2.2";
+			if (intent.hasExtra(EXTRA_HEARTBEAT_INTERVAL)) {
+				heartbeatInterval = intent.getIntExtra(EXTRA_HEARTBEAT_INTERVAL, 0);
+				heartbeatTimeout = intent.getIntExtra(EXTRA_HEARTBEAT_TIMEOUT, 0);
+				scheduleHeartbeat();
+			}
+			connect(address, port);
+		}
+		return START_NOT_STICKY;
+	}
 
-		final int port = intent.getIntExtra(EXTRA_TCPPORT, 9090);
-		final String address = intent.getStringExtra(EXTRA_ADDRESS) != null ? intent.getStringExtra(EXTRA_ADDRESS) : "10.0.2.2";
+	/**
+	 * Opens the TCP connection if not already connected (or connecting) to
+	 * the given host. This doesn't block, the result is announced to the
+	 * clients through {@link #MSG_CONNECTED} or {@link #MSG_ERROR}.
+	 *
+	 * @param address IP or host name of XBMC
+	 * @param port TCP port of JSON-RPC
+	 */
+	private void connect(String address, int port) {
+		final TcpConnection current = connection;
+		if (current != null && !current.isClosed()) {
+			if (current.isConnectionTo(address, port)) {
+				Log.d(TAG, "Already connected to " + address + ":" + port + ".");
+				return;
+			}
+			Log.i(TAG, "Host changed, closing connection.");
+			current.close();
+		}
+		mainHandler.removeCallbacks(reconnectTask);
+		this.address = address;
+		this.port = port;
 
-		long s = System.currentTimeMillis();
-		Log.d(TAG, "Starting TCP client for " + address + ":" + port + "...");
 		notifyStatus(MSG_CONNECTING, null);
-		Socket sock;
-
-		try {
-			final InetSocketAddress sockaddr = new InetSocketAddress(address, port);
-			sock = new Socket();
-			socket = sock;       // update class reference
-			sock.setSoTimeout(0); // no timeout for reading from connection.
-			sock.connect(sockaddr, SOCKET_TIMEOUT);
-			out = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream()));
-			Log.d(TAG, "Connected and writer setup.");
-		} catch (UnknownHostException e) {
-			Log.e(TAG, "Unknown host: " + e.getMessage(), e);
-			notifyError(new ApiException(ApiException.IO_UNKNOWN_HOST,  "Unknown host: " + e.getMessage(), e), null);
-			stopSelf();
-			out = null;
-			return;
-		} catch (SocketTimeoutException e) {
-			Log.e(TAG, "Unknown host: " + e.getMessage(), e);
-			notifyError(new ApiException(ApiException.IO_SOCKETTIMEOUT,  "Connection timeout: " + e.getMessage(), e), null);
-			stopSelf();
-			out = null;
-			return;
-		} catch (IOException e) {
-			Log.e(TAG, "I/O error while opening: " + e.getMessage(), e);
-			notifyError(new ApiException(ApiException.IO_EXCEPTION_WHILE_OPENING,  "I/O error while opening: " + e.getMessage(), e), null);
-			stopSelf();
-			out = null;
-			return;
+		final ConnectionListener listener = new ConnectionListener();
+		final TcpConnection conn = new TcpConnection(address, port, SOCKET_TIMEOUT, listener);
+		listener.connection = conn;
+		connection = conn;
+
+		// calls sent before we had a connection are written as soon as the
+		// socket is connected.
+		AbstractCall<?> call;
+		while ((call = pendingCalls.poll()) != null) {
+			writeSocket(call);
+		}
+		ArrayList<AbstractCall<?>> batch;
+		while ((batch = pendingBatches.poll()) != null) {
+			writeSocket(batch);
 		}
+		conn.connect();
+	}
 
+	/**
+	 * Parses a message received from the socket and passes it to the clients.
+	 * <p/>
+	 * The framer has already cut the message out of the stream, so a message
+	 * that can't be parsed is dropped and the connection is kept. The call
+	 * whose result failed to parse has been failed by the dispatcher, and
+	 * other calls answered in the rest of the message fail at their deadline.
+	 * @param message Complete JSON message
+	 */
+	private void readMessage(byte[] message) {
 		try {
-			Log.i(TAG, "Connected to TCP socket in " + (System.currentTimeMillis() - s) + "ms");
-			notifyStatus(MSG_CONNECTED, null);
-
-			// check for saved post data to send while we weren't connected, but
-			// do it in a separate thread so we can read already while sending.
-			if (!pendingCalls.isEmpty()) {
-				new Thread("post-data-on-connection") {
-					@Override
-					public void run() {
-						final LinkedList<AbstractCall<?>> calls = pendingCalls;
-						while (!calls.isEmpty()) {
-							writeSocket(calls.poll());
-						}
-					}
-				}.start();
-			}
-
-			final JsonFactory jf = OM.getJsonFactory();
-			final JsonParser jp = jf.createJsonParser(sock.getInputStream());
-			JsonNode node;
-			while ((node = OM.readTree(jp)) != null) {
-				final String debugDump = ((Object)node).toString();
-				if (debugDump.length() > 80) {
-					Log.i(TAG, "READ: " + debugDump.substring(0, 80) + "...");
-				} else {
-					Log.i(TAG, "READ: " + debugDump);
-				}
-				notifyClients(node);
+			if (message.length > 80) {
+				Log.i(TAG, "READ: " + new String(message, 0, 80, "UTF-8") + "...");
+			} else {
+				Log.i(TAG, "READ: " + new String(message, "UTF-8"));
 			}
-
+			router.route(message);
 
 		} catch (JsonParseException e) {
-			Log.e(TAG, "Cannot parse JSON response: " + e.getMessage(), e);
-			notifyError(new ApiException(ApiException.JSON_EXCEPTION,  "Error while parsing JSON response: " + e.getMessage(), e), null);
-		} catch (EOFException e) {
-			Log.i(TAG, "Connection broken, quitting.");
-			notifyError(new ApiException(ApiException.IO_DISCONNECTED,  "Socket disconnected: " + e.getMessage(), e), null);
+			Log.e(TAG, "Cannot parse JSON response, dropping message: " + e.getMessage(), e);
 		} catch (IOException e) {
-			Log.e(TAG, "I/O error while reading (" + e.getClass().getSimpleName() + "): " + e.getMessage(), e);
-			notifyError(new ApiException(ApiException.IO_EXCEPTION_WHILE_READING,  "I/O error while reading: " + e.getMessage(), e), null);
-		} finally {
-			try {
-				if (sock != null) {
-					sock.close();
-				}
-				if (out != null) {
-					out.close();
-					out = null;
-					Log.i(TAG, "TCP socket closed.");
-				}
-			} catch (IOException e) {
-				// do nothing.
-			}
+			Log.e(TAG, "Error while reading message (" + e.getClass().getSimpleName() + "), dropping it: " + e.getMessage(), e);
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Error while routing message, dropping it: " + e.getMessage(), e);
 		}
 	}
 
@@ -259,22 +323,25 @@ public class ConnectionService extends IntentService {
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
-		try {
-			final Socket socket = this.socket;
-			if (socket != null) {
-				if (socket.isConnected()) {
-					socket.shutdownInput();
-				}
-				if (!socket.isClosed()) {
-					socket.close();
-				}
-			}
-		} catch (IOException e) {
-			Log.e(TAG, "Error closing socket.", e);
-		}
+		closeConnection();
+		deadlines.stop();
+		dispatchHandler.getLooper().quit();
 		Log.d(TAG, "Notification service destroyed.");
 	}
 
+	/**
+	 * Shuts down the TCP connection, if any.
+	 */
+	private void closeConnection() {
+		mainHandler.removeCallbacks(reconnectTask);
+		mainHandler.removeCallbacks(heartbeatTask);
+		final TcpConnection conn = connection;
+		if (conn != null) {
+			conn.close();
+			connection = null;
+		}
+	}
+
 	/**
 	 * Starts cooldown. If there is no new client for {@link #COOLDOWN}
 	 * milliseconds, the service will shutdown, otherwise it will continue
@@ -288,7 +355,7 @@ public class ConnectionService extends IntentService {
 			public void run() {
 				if (clients.isEmpty()) {
 					Log.i(TAG, "No new clients, shutting down service.");
-					out = null;
+					closeConnection();
 					stopSelf();
 				} else {
 					Log.i(TAG, "Cooldown failed, got " + clients.size() + " new client(s).");
@@ -299,153 +366,151 @@ public class ConnectionService extends IntentService {
 
 
 	/**
-	 * Treats the received result.
-	 * <p/>
-	 * If an ID is found in the response, the API call object is retrieved,
-	 * updated and sent back to the client.
+	 * Treats a dropped connection. If it was established before or if we're
+	 * already reconnecting, a new attempt is scheduled. Otherwise, or if
+	 * the reconnect policy gives up, the error is sent to all clients.
 	 * <p/>
-	 * Otherwise, the notification object is sent to all clients.
+	 * Must be called on the main thread.
 	 *
-	 * @param node JSON-serialized response
-	 */
-	private void notifyClients(JsonNode node) {
-		final ArrayList<Messenger> clients = this.clients;
-		final HashMap<String, Messenger> map = clientMap;
-		final HashMap<String, AbstractCall<?>> calls = this.calls;
-		final HashMap<String, JsonHandler> handlers = this.handlers;
-
-		// check for errors
-		if (node.has("error")) {
-			notifyError(new ApiException(node), node.get("id").getValueAsText());
-
-			// check if notification or api call
-		} else if (node.has("id")) {
-			// it's api call.
-			final String id = node.get("id").getValueAsText();
-			if (calls.containsKey(id)) {
-				final AbstractCall<?> call = calls.get(id);
-				if (handlers.containsKey(id)) {
-					// we got an provided handler, so apply it and send back status message.
-					try {
-						handlers.get(id).applyResult(node, getContentResolver());
-						// get the right client to send back to
-						if (map.containsKey(id)) {
-							final Bundle b = new Bundle();
-							b.putString(EXTRA_CALLID, call.getId());
-							b.putInt(EXTRA_STATUS, RESULT_SUCCESS);
-							final Message msg = Message.obtain(null, MSG_RECEIVE_HANDLED_APICALL);
-							msg.setData(b);
-							try {
-								map.get(id).send(msg);
-								Log.i(TAG, "API call handled successfully, posting status back to client.");
-							} catch (RemoteException e) {
-								Log.e(TAG, "Error posting status back to client: " + e.getMessage(), e);
-								map.remove(id);
-							} finally {
-								// clean up
-								map.remove(id);
-								calls.remove(id);
-							}
-						} else {
-							Log.w(TAG, "Cannot find client in caller-mapping for " + id + ", dropping response (handled call).");
-						}
-					} catch (ApiException e) {
-						notifyError(e, id);
-					}
-				} else {
-					// get the right client to send back to
-					if (map.containsKey(id)) {
-						call.setResponse(node);
-						final Bundle b = new Bundle();
-						b.putParcelable(EXTRA_APICALL, call);
-						final Message msg = Message.obtain(null, MSG_RECEIVE_APICALL);
-						msg.setData(b);
-						try {
-							map.get(id).send(msg);
-							Log.i(TAG, "Sent updated API call " + call.getName() + " to client.");
-						} catch (RemoteException e) {
-							Log.e(TAG, "Error sending API response to client: " + e.getMessage(), e);
-							map.remove(id);
-						} finally {
-							// clean up
-							map.remove(id);
-							calls.remove(id);
-						}
-					} else {
-						Log.w(TAG, "Cannot find client in caller-mapping for " + id + ", dropping response (api call).");
-					}
+	 * @param e What went wrong
+	 * @param wasConnected True if the connection had been established
+	 */
+	private void onConnectionLost(ApiException e, boolean wasConnected) {
+		connection = null;
+		final boolean retry = (wasConnected || reconnectPolicy.isReconnecting()) && !clients.isEmpty();
+		final long delay = retry ? reconnectPolicy.nextDelay() : -1;
+		if (delay < 0) {
+			reconnectPolicy.reset();
+			notifyError(e, 0);
+			return;
+		}
+		// calls are replayed if they are safe to send twice, or if they
+		// couldn't have been sent because we never got connected.
+		for (InFlightCall inFlight : calls.values()) {
+			if (inFlight.heartbeat != null) {
+				// heartbeats of the old connection don't matter anymore.
+				if (calls.complete(inFlight.call.getId()) != null) {
+					inFlight.cancelDeadline();
 				}
+			} else if (!wasConnected || inFlight.call.isIdempotent()) {
+				pendingCalls.add(inFlight.call);
 			} else {
-				Log.e(TAG, "Error: Cannot find API call with ID " + id + ".");
+				notifyError(e, inFlight.call.getId());
 			}
-		} else {
-			// it's a notification.
-			final AbstractEvent event = AbstractEvent.parse((ObjectNode) node);
-			if (event != null) {
-				Log.i(TAG, "Notifying " + clients.size() + " clients.");
-				for (int i = clients.size() - 1; i >= 0; i--) {
-					try {
-						final Bundle b = new Bundle();
-						b.putParcelable(EXTRA_NOTIFICATION, event);
-						final Message msg = Message.obtain(null, MSG_RECEIVE_NOTIFICATION);
-						msg.setData(b);
-						clients.get(i).send(msg);
+		}
+		Log.i(TAG, "Connection lost, reconnecting in " + delay + "ms with " + pendingCalls.size() + " pending calls.");
+		mainHandler.postDelayed(reconnectTask, delay);
+	}
 
-					} catch (RemoteException e) {
-						Log.e(TAG, "Cannot send notification to client: " + e.getMessage(), e);
-						/*
-						 * The client is dead. Remove it from the list; we are
-						 * going through the list from back to front so this is
-						 * safe to do inside the loop.
-						 */
-						clients.remove(i);
-						// stopSelf();
-					}
-				}
-			} else {
-				Log.i(TAG, "Ignoring unknown notification " + node.get("method").getTextValue() + ".");
+	/**
+	 * (Re-)starts checking for silence on the socket, if enabled. Must be
+	 * called on the main thread.
+	 */
+	private void scheduleHeartbeat() {
+		mainHandler.removeCallbacks(heartbeatTask);
+		if (heartbeatInterval > 0 && connection != null && connection.isConnected()) {
+			mainHandler.postDelayed(heartbeatTask, heartbeatInterval);
+		}
+	}
+
+	/**
+	 * Sends a ping if nothing has been received for the heartbeat interval,
+	 * and schedules the next check. Runs on the main thread.
+	 */
+	private void heartbeat() {
+		final TcpConnection conn = connection;
+		if (heartbeatInterval <= 0 || conn == null || !conn.isConnected()) {
+			return;
+		}
+		final long idle = System.nanoTime() / 1000000 - conn.getLastReceived();
+		if (idle < heartbeatInterval) {
+			mainHandler.postDelayed(heartbeatTask, heartbeatInterval - idle);
+			return;
+		}
+		if (!calls.contains(heartbeatId)) {
+			final JSONRPC.Ping ping = new JSONRPC.Ping();
+			if (heartbeatTimeout > 0) {
+				ping.setTimeout(heartbeatTimeout);
 			}
+			register(ping, null, null, conn);
+			heartbeatId = ping.getId();
+			writeSocket(ping);
+		}
+		mainHandler.postDelayed(heartbeatTask, heartbeatInterval);
+	}
+
+	/**
+	 * Drops a connection whose heartbeat wasn't answered in time. Runs on
+	 * the main thread.
+	 * @param conn Connection the ping was sent to
+	 * @param timeout Milliseconds waited
+	 */
+	private void onHeartbeatLost(TcpConnection conn, long timeout) {
+		if (connection == conn) {
+			Log.w(TAG, "Heartbeat not answered within " + timeout + "ms, dropping connection.");
+			conn.close();
+			onConnectionLost(new ApiException(ApiException.IO_SOCKETTIMEOUT, "Heartbeat not answered within " + timeout + "ms."), true);
 		}
 	}
 
 	/**
 	 * Sends an error to all clients.
 	 * @param e Thrown API exception
-	 * @param id ID of the request
+	 * @param id ID of the request, 0 if the error concerns all clients
 	 */
-	private void notifyError(ApiException e, String id) {
+	private void notifyError(ApiException e, long id) {
 
-		// if id is set and callback exists, only send error back to one client.
-		if (id != null && clientMap.containsKey(id)) {
-			try {
-				final Message msg = Message.obtain(null, MSG_ERROR);
-				msg.setData(e.getBundle(getResources()));
-				clientMap.get(id).send(msg);
-				Log.i(TAG, "Sent error to client with ID " + id + ".");
-			} catch (RemoteException e2) {
-				Log.e(TAG, "Cannot send errors to client " + id + ": "+ e.getMessage(), e2);
-				clientMap.remove(id);
-			}
+		// if id is known, only send error back to one client.
+		final InFlightCall inFlight = calls.complete(id);
+		if (inFlight != null) {
+			inFlight.cancelDeadline();
+			notifyClientError(e, inFlight);
 		} else {
 			// otherwise, send error back to all clients and die.
-			for (int i = clients.size() - 1; i >= 0; i--) {
+			for (InFlightCall call : calls.completeAll()) {
+				call.cancelDeadline();
+			}
+			for (Messenger client : clients) {
 				final Message msg = Message.obtain(null, MSG_ERROR);
 				msg.setData(e.getBundle(getResources()));
 				try {
-					clients.get(i).send(msg);
-					Log.i(TAG, "Sent error to client " + i + ".");
+					client.send(msg);
+					Log.i(TAG, "Sent error to client.");
 				} catch (RemoteException e2) {
 					Log.e(TAG, "Cannot send errors to client: " + e2.getMessage(), e2);
 					/*
-					 * The client is dead. Remove it from the list; we are going
-					 * through the list from back to front so this is safe to do
-					 * inside the loop.
+					 * The client is dead. Remove it from the list; we are
+					 * iterating over a snapshot so this is safe to do inside
+					 * the loop.
 					 */
-					clients.remove(i);
+					clients.remove(client);
 				}
 			}
+			closeConnection();
 			stopSelf();
-			out = null;
+		}
+	}
+
+	/**
+	 * Sends an error back to the client of an already completed call.
+	 * @param e Thrown API exception
+	 * @param inFlight Completed call
+	 */
+	private void notifyClientError(ApiException e, InFlightCall inFlight) {
+		final long id = inFlight.call.getId();
+		if (inFlight.client == null) {
+			Log.w(TAG, "Error for internal call " + id + ": " + e.getMessage());
+			return;
+		}
+		try {
+			final Message msg = Message.obtain(null, MSG_ERROR);
+			final Bundle b = e.getBundle(getResources());
+			b.putLong(EXTRA_CALLID, id);
+			msg.setData(b);
+			inFlight.client.send(msg);
+			Log.i(TAG, "Sent error to client with ID " + id + ".");
+		} catch (RemoteException e2) {
+			Log.e(TAG, "Cannot send errors to client " + id + ": "+ e.getMessage(), e2);
 		}
 	}
 
@@ -457,13 +522,13 @@ public class ConnectionService extends IntentService {
 				Log.e(TAG, "Could not notify sender of new status: " + e.getMessage(), e);
 			}
 		} else {
-			for (int i = clients.size() - 1; i >= 0; i--) {
+			for (Messenger client : clients) {
 				final Message msg = Message.obtain(null, code);
 				try {
-					clients.get(i).send(msg);
+					client.send(msg);
 				} catch (RemoteException e2) {
 					Log.e(TAG, "Could not notify sender of new status: " + e2.getMessage(), e2);
-					clients.remove(i);
+					clients.remove(client);
 				}
 			}
 		}
@@ -472,19 +537,338 @@ public class ConnectionService extends IntentService {
 
 
 	/**
-	 * Serializes the API request and dumps it on the socket.
+	 * Adds a call to the calls in flight and starts its deadline.
+	 * @param call API call
+	 * @param client Client the response is sent back to
+	 * @param handler If not null, applied to the response in the service
+	 */
+	private void register(AbstractCall<?> call, Messenger client, JsonHandler handler) {
+		register(call, client, handler, null);
+	}
+
+	/**
+	 * Adds a call to the calls in flight and starts its deadline.
+	 * @param call API call
+	 * @param client Client the response is sent back to, null for heartbeats
+	 * @param handler If not null, applied to the response in the service
+	 * @param heartbeat If not null, the call is a heartbeat of that connection
+	 */
+	private void register(final AbstractCall<?> call, Messenger client, JsonHandler handler, final TcpConnection heartbeat) {
+		final long id = call.getId();
+		// register first, so the deadline can't expire before the call is known.
+		final InFlightCall entry = new InFlightCall(call, client, handler, heartbeat);
+		calls.put(id, entry);
+		entry.deadline = deadlines.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				final InFlightCall inFlight = calls.complete(id);
+				if (inFlight != null && heartbeat != null) {
+					mainHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							onHeartbeatLost(heartbeat, call.getTimeout());
+						}
+					});
+				} else if (inFlight != null) {
+					dispatchHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							notifyClientError(new ApiException(ApiException.IO_REQUEST_TIMEOUT, "No response for " + call.getName() + " (" + id + ") after " + call.getTimeout() + "ms."), inFlight);
+						}
+					});
+				}
+			}
+		}, call.getTimeout());
+	}
+
+	/**
+	 * Queues the API request on the socket. Serialization and writing is done
+	 * by the connection's I/O thread.
 	 * @param call
 	 */
 	private void writeSocket(AbstractCall<?> call) {
-		final String data = call.getRequest().toString();
-		Log.d(TAG, "Sending data to server.");
-		Log.d(TAG, "REQUEST: " + data);
+		Log.d(TAG, "Sending " + call.getName() + " (" + call.getId() + ") to server.");
 		try {
-			out.write(data + "\n");
-			out.flush();
-		} catch (IOException e) {
+			connection.send(call);
+		} catch (ApiException e) {
+			Log.e(TAG, "Error writing to socket: " + e.getMessage(), e);
+			notifyError(e, call.getId());
+		}
+	}
+
+	/**
+	 * Queues a batch of API requests on the socket, which is written as one
+	 * JSON-RPC array.
+	 * @param calls
+	 */
+	private void writeSocket(ArrayList<AbstractCall<?>> calls) {
+		Log.d(TAG, "Sending batch of " + calls.size() + " calls to server.");
+		try {
+			connection.send(calls);
+		} catch (ApiException e) {
 			Log.e(TAG, "Error writing to socket: " + e.getMessage(), e);
-			notifyError(new ApiException(ApiException.IO_EXCEPTION_WHILE_WRITING,  "I/O error while writing: " + e.getMessage(), e),  call.getId());
+			for (AbstractCall<?> call : calls) {
+				notifyError(e, call.getId());
+			}
+		}
+	}
+
+	/**
+	 * Treats the messages routed by the {@link ResponseRouter}.
+	 * <p/>
+	 * Results are applied to their API call object, which is sent back to
+	 * the client that posted it. Notifications are sent to all clients.
+	 */
+	private class ResponseDispatcher implements ResponseRouter.Target {
+
+		@Override
+		public boolean isWaiting(long id) {
+			return calls.contains(id);
+		}
+
+		@Override
+		public void onResult(long id, JsonNode result) {
+			// only the first of response or error gets the call.
+			final InFlightCall inFlight = calls.complete(id);
+			if (inFlight == null) {
+				Log.w(TAG, "Call " + id + " already completed, dropping response.");
+				return;
+			}
+			inFlight.cancelDeadline();
+			final AbstractCall<?> call = inFlight.call;
+			if (inFlight.heartbeat != null) {
+				final double rtt = (System.nanoTime() - inFlight.sent) / 1000000d;
+				RttEstimator.get(inFlight.heartbeat.getAddress(), inFlight.heartbeat.getPort()).addSample(rtt);
+				Log.d(TAG, "Heartbeat answered in " + rtt + "ms.");
+				return;
+			}
+			if (inFlight.handler != null) {
+				// we got an provided handler, so apply it and send back status message.
+				try {
+					final ObjectNode response = OM.createObjectNode();
+					response.put("id", id);
+					response.put(AbstractCall.RESULT, result);
+					inFlight.handler.applyResult(response, getContentResolver());
+					// get the right client to send back to
+					final Bundle b = new Bundle();
+					b.putLong(EXTRA_CALLID, call.getId());
+					b.putInt(EXTRA_STATUS, RESULT_SUCCESS);
+					final Message msg = Message.obtain(null, MSG_RECEIVE_HANDLED_APICALL);
+					msg.setData(b);
+					try {
+						inFlight.client.send(msg);
+						Log.i(TAG, "API call handled successfully, posting status back to client.");
+					} catch (RemoteException e) {
+						Log.e(TAG, "Error posting status back to client: " + e.getMessage(), e);
+					}
+				} catch (ApiException e) {
+					notifyClientError(e, inFlight);
+				}
+			} else {
+				try {
+					call.setResult(result);
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Cannot parse result of " + call.getName() + ": " + e.getMessage(), e);
+					notifyClientError(new ApiException(ApiException.RESPONSE_ERROR, "Cannot parse result of " + call.getName() + ": " + e.getMessage(), e), inFlight);
+					return;
+				}
+				sendResult(inFlight);
+			}
+		}
+
+		@Override
+		public void onResult(long id, JsonParser parser) throws IOException {
+			final InFlightCall inFlight = calls.get(id);
+			if (inFlight == null || inFlight.heartbeat != null || inFlight.handler != null) {
+				// handlers work on the tree of the response.
+				onResult(id, OM.readTree(parser));
+				return;
+			}
+			// only the first of response or error gets the call.
+			if (calls.complete(id) == null) {
+				Log.w(TAG, "Call " + id + " already completed, dropping response.");
+				parser.skipChildren();
+				return;
+			}
+			inFlight.cancelDeadline();
+			try {
+				inFlight.call.setResult(parser);
+			} catch (IOException e) {
+				// the rest of the message is lost, too.
+				notifyClientError(new ApiException(ApiException.JSON_EXCEPTION, "Error parsing result of " + inFlight.call.getName() + ": " + e.getMessage(), e), inFlight);
+				throw e;
+			} catch (RuntimeException e) {
+				// the parser is somewhere inside the result, so the rest of the message is lost, too.
+				Log.e(TAG, "Cannot parse result of " + inFlight.call.getName() + ": " + e.getMessage(), e);
+				notifyClientError(new ApiException(ApiException.RESPONSE_ERROR, "Cannot parse result of " + inFlight.call.getName() + ": " + e.getMessage(), e), inFlight);
+				throw new IOException("Cannot parse result of " + inFlight.call.getName() + ": " + e.getMessage(), e);
+			}
+			sendResult(inFlight);
+		}
+
+		/**
+		 * Sends the call with its result back to the client that posted it.
+		 * @param inFlight Completed call
+		 */
+		private void sendResult(InFlightCall inFlight) {
+			final AbstractCall<?> call = inFlight.call;
+			final Bundle b = new Bundle();
+			b.putParcelable(EXTRA_APICALL, call);
+			final Message msg = Message.obtain(null, MSG_RECEIVE_APICALL);
+			msg.setData(b);
+			try {
+				inFlight.client.send(msg);
+				Log.i(TAG, "Sent updated API call " + call.getName() + " to client.");
+			} catch (RemoteException e) {
+				Log.e(TAG, "Error sending API response to client: " + e.getMessage(), e);
+			}
+		}
+
+		@Override
+		public void onError(long id, JsonNode response) {
+			notifyError(new ApiException(response), id);
+		}
+
+		@Override
+		public void onDropped(long id) {
+			Log.e(TAG, "Error: Cannot find API call with ID " + id + ".");
+		}
+
+		@Override
+		public void onNotification(ObjectNode node) {
+			final CopyOnWriteArrayList<Messenger> clients = ConnectionService.this.clients;
+			final AbstractEvent event = AbstractEvent.parse(node);
+			if (event != null) {
+				Log.i(TAG, "Notifying " + clients.size() + " clients.");
+				for (Messenger client : clients) {
+					try {
+						final Bundle b = new Bundle();
+						b.putParcelable(EXTRA_NOTIFICATION, event);
+						final Message msg = Message.obtain(null, MSG_RECEIVE_NOTIFICATION);
+						msg.setData(b);
+						client.send(msg);
+
+					} catch (RemoteException e) {
+						Log.e(TAG, "Cannot send notification to client: " + e.getMessage(), e);
+						/*
+						 * The client is dead. Remove it from the list; we are
+						 * iterating over a snapshot so this is safe to do
+						 * inside the loop.
+						 */
+						clients.remove(client);
+						// stopSelf();
+					}
+				}
+			} else {
+				Log.i(TAG, "Ignoring unknown notification " + node.get("method").getTextValue() + ".");
+			}
+		}
+	}
+
+	/**
+	 * Receives data and status changes from the TCP connection on the I/O
+	 * thread and moves them over to the dispatch thread.
+	 */
+	private class ConnectionListener implements TcpConnection.Listener {
+
+		private final long started = System.currentTimeMillis();
+		private TcpConnection connection;
+		private volatile boolean connected = false;
+
+		@Override
+		public void onConnected() {
+			Log.i(TAG, "Connected to TCP socket in " + (System.currentTimeMillis() - started) + "ms");
+			connected = true;
+			mainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (ConnectionService.this.connection == connection) {
+						reconnectPolicy.reset();
+						scheduleHeartbeat();
+					}
+					notifyStatus(MSG_CONNECTED, null);
+				}
+			});
+		}
+
+		@Override
+		public void onMessage(byte[] data, int offset, int length) {
+			// the buffer is re-used by the connection, and we don't want
+			// to parse on the I/O thread.
+			final byte[] message = new byte[length];
+			System.arraycopy(data, offset, message, 0, length);
+			dispatchHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					readMessage(message);
+				}
+			});
+		}
+
+		@Override
+		public void onDisconnected(final ApiException e) {
+			mainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					// ignore errors of connections we already replaced.
+					if (ConnectionService.this.connection == connection) {
+						onConnectionLost(e, connected);
+					}
+				}
+			});
+		}
+
+		@Override
+		public void onWriteFailed(AbstractCall<?> call, final ApiException e) {
+			final long id = call.getId();
+			mainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					// only this call is concerned, so don't go through
+					// notifyError(), which takes down everything for unknown ids.
+					final InFlightCall inFlight = calls.complete(id);
+					if (inFlight != null) {
+						inFlight.cancelDeadline();
+						notifyClientError(e, inFlight);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * An API call in flight, along with the client it's returned to.
+	 */
+	private static class InFlightCall {
+		private final AbstractCall<?> call;
+		private final Messenger client;
+		/**
+		 * If not null, applied to the response in the service.
+		 */
+		private final JsonHandler handler;
+		/**
+		 * If not null, the call is a heartbeat ping of this connection.
+		 */
+		private final TcpConnection heartbeat;
+		/**
+		 * When the call was registered, as given by {@link System#nanoTime()}.
+		 */
+		private final long sent = System.nanoTime();
+		/**
+		 * Fails the call if no response arrives in time.
+		 */
+		private volatile TimerWheel.Timeout deadline;
+		private InFlightCall(AbstractCall<?> call, Messenger client, JsonHandler handler, TcpConnection heartbeat) {
+			this.call = call;
+			this.client = client;
+			this.handler = handler;
+			this.heartbeat = heartbeat;
+		}
+		private void cancelDeadline() {
+			final TimerWheel.Timeout timeout = deadline;
+			if (timeout != null) {
+				timeout.cancel();
+			}
 		}
 	}
 
@@ -503,7 +887,7 @@ public class ConnectionService extends IntentService {
 						cooldownTimer.cancel();
 						cooldownTimer.purge();
 					}
-					if (socket != null && socket.isConnected()) {
+					if (connection != null && connection.isConnected()) {
 						Log.d(TAG, "Directly notifying connected status.");
 						notifyStatus(MSG_CONNECTED, msg.replyTo);
 					}
@@ -521,9 +905,8 @@ public class ConnectionService extends IntentService {
 					Log.d(TAG, "Sending new API call..");
 					final Bundle data = msg.getData();
 					final AbstractCall<?> call = data.getParcelable(EXTRA_APICALL);
-					calls.put(call.getId(), call);
-					clientMap.put(call.getId(), msg.replyTo);
-					if (out == null) {
+					register(call, msg.replyTo, null);
+					if (connection == null) {
 						pendingCalls.add(call);
 					} else {
 						writeSocket(call);
@@ -535,10 +918,8 @@ public class ConnectionService extends IntentService {
 					final Bundle data = msg.getData();
 					final AbstractCall<?> call = data.getParcelable(EXTRA_APICALL);
 					final JsonHandler handler = data.getParcelable(EXTRA_HANDLER);
-					calls.put(call.getId(), call);
-					handlers.put(call.getId(), handler);
-					clientMap.put(call.getId(), msg.replyTo);
-					if (out == null) {
+					register(call, msg.replyTo, handler);
+					if (connection == null) {
 						Log.d(TAG, "Quering for later.");
 						pendingCalls.add(call);
 					} else {
@@ -546,6 +927,20 @@ public class ConnectionService extends IntentService {
 					}
 				}
 				break;
+				case MSG_SEND_BATCH: {
+					final Bundle data = msg.getData();
+					final ArrayList<AbstractCall<?>> batch = data.getParcelableArrayList(EXTRA_APICALLS);
+					Log.d(TAG, "Sending new batch of " + batch.size() + " API calls..");
+					for (AbstractCall<?> call : batch) {
+						register(call, msg.replyTo, null);
+					}
+					if (connection == null) {
+						pendingBatches.add(batch);
+					} else {
+						writeSocket(batch);
+					}
+				}
+				break;
 				default:
 					super.handleMessage(msg);
 			}
@@ -0,0 +1,82 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.service;
+
+import java.util.Random;
+
+/**
+ * Decides when to try reconnecting after the TCP connection dropped.
+ * <p/>
+ * The delay grows exponentially with every failed attempt, up to a maximum.
+ * Half of each delay is random, so a bunch of devices losing the same access
+ * point don't all hit XBMC at the same moment. The first attempt is made
+ * within a quarter of a second, so a short Wi-Fi hiccup is barely noticed.
+ */
+class ReconnectPolicy {
+
+	/**
+	 * Delay before the first attempt in milliseconds.
+	 */
+	private static final long BASE_DELAY = 250;
+	/**
+	 * Maximal delay between two attempts in milliseconds.
+	 */
+	private static final long MAX_DELAY = 30000;
+	/**
+	 * Number of attempts until giving up, which adds up to about three
+	 * minutes.
+	 */
+	private static final int MAX_ATTEMPTS = 12;
+
+	private final Random mRandom = new Random();
+	private int mAttempt = 0;
+
+	/**
+	 * Returns how long to wait before the next attempt, and counts the
+	 * attempt.
+	 * @return Delay in milliseconds, or -1 if we should give up
+	 */
+	long nextDelay() {
+		if (mAttempt >= MAX_ATTEMPTS) {
+			return -1;
+		}
+		final long cap = Math.min(MAX_DELAY, BASE_DELAY << mAttempt);
+		mAttempt++;
+		return cap / 2 + (long)(mRandom.nextDouble() * (cap / 2));
+	}
+
+	/**
+	 * Returns true while reconnecting, i.e. after the first attempt has been
+	 * made and before the connection has been re-established.
+	 * @return True if reconnecting
+	 */
+	boolean isReconnecting() {
+		return mAttempt > 0;
+	}
+
+	/**
+	 * Starts over after a successful connection.
+	 */
+	void reset() {
+		mAttempt = 0;
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.io;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completes {@link ApiFuture}s on the JVM.
+ */
+public class ApiFutureTest extends TestCase {
+
+	public void testFailingCallbackDoesNotStopContinuations() throws Exception {
+		final ApiFuture<String> future = new ApiFuture<String>();
+		future.addCallback(new ApiFuture.FutureCallback<String>() {
+			@Override
+			public void onSuccess(String value) {
+				throw new IllegalStateException("Broken callback.");
+			}
+			@Override
+			public void onFailure(ApiException e) {
+			}
+		});
+		final ApiFuture<Integer> length = future.thenApply(new ApiFuture.Function<String, Integer>() {
+			@Override
+			public Integer apply(String value) {
+				return value.length();
+			}
+		});
+
+		assertTrue(future.complete("pong"));
+		assertTrue(length.isDone());
+		assertEquals(Integer.valueOf(4), length.get(1, TimeUnit.SECONDS));
+	}
+
+	public void testComposeCompletesWithInnerFuture() throws Exception {
+		final ApiFuture<String> future = new ApiFuture<String>();
+		final ApiFuture<Integer> inner = new ApiFuture<Integer>();
+		final ApiFuture<Integer> next = future.thenCompose(new ApiFuture.AsyncFunction<String, Integer>() {
+			@Override
+			public ApiFuture<Integer> apply(String value) {
+				return inner;
+			}
+		});
+
+		future.complete("pong");
+		assertFalse(next.isDone());
+		inner.complete(4);
+		assertEquals(Integer.valueOf(4), next.get(1, TimeUnit.SECONDS));
+	}
+
+	public void testComposeFailsIfFunctionReturnsNull() throws Exception {
+		final ApiFuture<String> future = new ApiFuture<String>();
+		final ApiFuture<Integer> next = future.thenCompose(new ApiFuture.AsyncFunction<String, Integer>() {
+			@Override
+			public ApiFuture<Integer> apply(String value) {
+				return null;
+			}
+		});
+
+		future.complete("pong");
+		assertEquals(ApiException.UNEXPECTED_ERROR, failure(next).getCode());
+	}
+
+	public void testComposePassesErrorOn() throws Exception {
+		final ApiFuture<String> future = new ApiFuture<String>();
+		final ApiFuture<Integer> next = future.thenCompose(new ApiFuture.AsyncFunction<String, Integer>() {
+			@Override
+			public ApiFuture<Integer> apply(String value) {
+				fail("Function must not run after an error.");
+				return null;
+			}
+		});
+
+		future.fail(new ApiException(ApiException.API_ERROR, "Method not found."));
+		assertEquals(ApiException.API_ERROR, failure(next).getCode());
+	}
+
+	public void testRejectedContinuationFailsNextFuture() throws Exception {
+		final Executor rejecting = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException("Shut down.");
+			}
+		};
+		final ApiFuture<String> future = new ApiFuture<String>();
+		final ApiFuture<Integer> next = future.thenApply(new ApiFuture.Function<String, Integer>() {
+			@Override
+			public Integer apply(String value) {
+				return value.length();
+			}
+		}, rejecting);
+		final List<ApiException> errors = new ArrayList<ApiException>();
+		future.addCallback(new ApiFuture.FutureCallback<String>() {
+			@Override
+			public void onSuccess(String value) {
+				fail("Callback must not run on a rejecting executor.");
+			}
+			@Override
+			public void onFailure(ApiException e) {
+				errors.add(e);
+			}
+		}, rejecting);
+
+		future.complete("pong");
+		assertEquals(ApiException.IO_REJECTED, failure(next).getCode());
+		assertEquals(1, errors.size());
+		assertEquals(ApiException.IO_REJECTED, errors.get(0).getCode());
+	}
+
+	public void testAllOfKeepsOrder() throws Exception {
+		final ApiFuture<String> first = new ApiFuture<String>();
+		final ApiFuture<String> second = new ApiFuture<String>();
+		final ApiFuture<List<String>> all = ApiFuture.allOf(Arrays.asList(first, second));
+
+		second.complete("b");
+		assertFalse(all.isDone());
+		first.complete("a");
+		assertEquals(Arrays.asList("a", "b"), all.get(1, TimeUnit.SECONDS));
+	}
+
+	public void testAllOfFailsWithFirstError() throws Exception {
+		final ApiFuture<String> first = new ApiFuture<String>();
+		final ApiFuture<String> second = new ApiFuture<String>();
+		final ApiFuture<List<String>> all = ApiFuture.allOf(Arrays.asList(first, second));
+
+		second.fail(new ApiException(ApiException.IO_REQUEST_TIMEOUT, "No response."));
+		assertEquals(ApiException.IO_REQUEST_TIMEOUT, failure(all).getCode());
+	}
+
+	public void testAllOfNothingSucceeds() throws Exception {
+		assertTrue(ApiFuture.allOf(Collections.<ApiFuture<String>>emptyList()).get(1, TimeUnit.SECONDS).isEmpty());
+	}
+
+	public void testAnyOfCompletesWithFirst() throws Exception {
+		final ApiFuture<String> first = new ApiFuture<String>();
+		final ApiFuture<String> second = new ApiFuture<String>();
+		final ApiFuture<String> any = ApiFuture.anyOf(Arrays.asList(first, second));
+
+		second.complete("b");
+		first.complete("a");
+		assertEquals("b", any.get(1, TimeUnit.SECONDS));
+	}
+
+	public void testAnyOfNothingIsRefused() {
+		try {
+			ApiFuture.anyOf(Collections.<ApiFuture<String>>emptyList());
+			fail("Empty list must be refused.");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testGetTimesOut() throws Exception {
+		final ApiFuture<String> future = new ApiFuture<String>();
+		try {
+			future.get(50, TimeUnit.MILLISECONDS);
+			fail("Future must not complete.");
+		} catch (TimeoutException e) {
+			assertFalse(future.isDone());
+		}
+	}
+
+	public void testCancelFailsCallbacksAndGet() throws Exception {
+		final ApiFuture<String> future = new ApiFuture<String>();
+		final ApiFuture<Integer> next = future.thenApply(new ApiFuture.Function<String, Integer>() {
+			@Override
+			public Integer apply(String value) {
+				return value.length();
+			}
+		});
+
+		assertTrue(future.cancel(false));
+		assertTrue(future.isCancelled());
+		assertFalse(future.complete("pong"));
+		try {
+			future.get();
+			fail("Cancelled future must not return a value.");
+		} catch (CancellationException e) {
+			// expected
+		}
+		assertEquals(ApiException.CANCELLED, failure(next).getCode());
+	}
+
+	/**
+	 * Returns the error a failed future hands to its callbacks.
+	 * @param future Failed future
+	 * @return Error of the future
+	 */
+	private static ApiException failure(ApiFuture<?> future) throws InterruptedException {
+		try {
+			future.get(1, TimeUnit.SECONDS);
+			fail("Future must have failed.");
+		} catch (ExecutionException e) {
+			// the callback receives it as API exception.
+		} catch (CancellationException e) {
+			// the callback receives it as API exception.
+		} catch (TimeoutException e) {
+			fail("Future didn't complete.");
+		}
+		final List<ApiException> errors = new ArrayList<ApiException>();
+		future.addCallback(new ApiFuture.FutureCallback<Object>() {
+			@Override
+			public void onSuccess(Object value) {
+				fail("Future must have failed.");
+			}
+			@Override
+			public void onFailure(ApiException e) {
+				errors.add(e);
+			}
+		});
+		assertEquals(1, errors.size());
+		return errors.get(0);
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.io;
+
+import junit.framework.TestCase;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+import org.xbmc.android.jsonrpc.api.AbstractCall;
+import org.xbmc.android.jsonrpc.api.call.JSONRPC;
+import org.xbmc.android.jsonrpc.api.call.VideoLibrary;
+import org.xbmc.android.jsonrpc.notification.AbstractEvent;
+import org.xbmc.android.jsonrpc.notification.PlayerEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the transport core through a {@link LoopbackTransport} on the JVM,
+ * without Android.
+ */
+public class LoopbackTransportTest extends TestCase {
+
+	private static final ObjectMapper OM = new ObjectMapper();
+	private static final long TIMEOUT = 5000;
+
+	private final List<ObjectNode> mRequests = new ArrayList<ObjectNode>();
+	private final BlockingQueue<Object> mEvents = new LinkedBlockingQueue<Object>();
+	private LoopbackTransport mTransport;
+
+	/**
+	 * Answers pings with <tt>"pong"</tt>, movie details with a result that
+	 * doesn't fit the model, fails everything else and never answers version
+	 * calls.
+	 */
+	private final LoopbackTransport.Server mServer = new LoopbackTransport.Server() {
+		@Override
+		public JsonNode handle(ObjectNode request) {
+			mRequests.add(request);
+			if (request.get("method").getTextValue().equals(JSONRPC.Version.API_TYPE)) {
+				return null;
+			}
+			final ObjectNode response = OM.createObjectNode();
+			response.put("jsonrpc", "2.0");
+			response.put("id", request.get("id"));
+			if (request.get("method").getTextValue().equals(JSONRPC.Ping.API_TYPE)) {
+				response.put("result", "pong");
+			} else if (request.get("method").getTextValue().equals(VideoLibrary.GetMovieDetails.API_TYPE)) {
+				response.putObject("result").put("moviedetails", "Alien");
+			} else {
+				final ObjectNode error = response.putObject("error");
+				error.put("code", -32601);
+				error.put("message", "Method not found.");
+			}
+			return response;
+		}
+	};
+
+	private final Transport.Listener mListener = new Transport.Listener() {
+		@Override
+		public void onConnected() {
+			mEvents.add("connected");
+		}
+		@Override
+		public void onResponse(AbstractCall<?> call) {
+			mEvents.add(call);
+		}
+		@Override
+		public void onError(long id, ApiException e) {
+			mEvents.add(id + ": " + e.getCode());
+		}
+		@Override
+		public void onNotification(AbstractEvent event) {
+			mEvents.add(event);
+		}
+	};
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mTransport = new LoopbackTransport(mServer);
+		mTransport.open(mListener);
+		assertEquals("connected", next());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mTransport.close();
+		super.tearDown();
+	}
+
+	public void testCallIsWrittenAndAnswered() throws Exception {
+		final JSONRPC.Ping ping = new JSONRPC.Ping();
+		mTransport.send(ping);
+
+		assertSame(ping, next());
+		assertEquals("pong", ping.getResult());
+		assertEquals(1, mRequests.size());
+		assertEquals(JSONRPC.Ping.API_TYPE, mRequests.get(0).get("method").getTextValue());
+		assertEquals(ping.getId(), mRequests.get(0).get("id").getLongValue());
+		assertEquals("2.0", mRequests.get(0).get("jsonrpc").getTextValue());
+	}
+
+	public void testBatchIsAnsweredPerCall() throws Exception {
+		final JSONRPC.Ping first = new JSONRPC.Ping();
+		final JSONRPC.Ping second = new JSONRPC.Ping();
+		final List<AbstractCall<?>> batch = new ArrayList<AbstractCall<?>>();
+		batch.add(first);
+		batch.add(second);
+		mTransport.send(batch);
+
+		assertSame(first, next());
+		assertSame(second, next());
+		assertEquals("pong", second.getResult());
+	}
+
+	public void testErrorFailsOnlyItsCall() throws Exception {
+		final JSONRPC.Permission permission = new JSONRPC.Permission();
+		final JSONRPC.Ping ping = new JSONRPC.Ping();
+		final List<AbstractCall<?>> batch = new ArrayList<AbstractCall<?>>();
+		batch.add(permission);
+		batch.add(ping);
+		mTransport.send(batch);
+
+		assertEquals(permission.getId() + ": " + ApiException.API_ERROR, next());
+		assertSame(ping, next());
+	}
+
+	public void testUnparsableResultFailsItsCall() throws Exception {
+		final VideoLibrary.GetMovieDetails details = new VideoLibrary.GetMovieDetails(1);
+		details.setTimeout(500);
+		mTransport.send(details);
+
+		assertEquals(details.getId() + ": " + ApiException.RESPONSE_ERROR, next());
+	}
+
+	public void testUnansweredCallTimesOut() throws Exception {
+		final JSONRPC.Version version = new JSONRPC.Version();
+		version.setTimeout(200);
+		mTransport.send(version);
+
+		assertEquals(version.getId() + ": " + ApiException.IO_REQUEST_TIMEOUT, next());
+	}
+
+	public void testNotificationIsParsed() throws Exception {
+		mTransport.notify((ObjectNode)OM.readTree("{\"jsonrpc\":\"2.0\",\"method\":\"Player.OnPause\",\"params\":{\"data\":"
+				+ "{\"item\":{\"id\":1,\"type\":\"song\"},\"player\":{\"playerid\":0,\"speed\":0}},\"sender\":\"xbmc\"}}"));
+		assertTrue(next() instanceof PlayerEvent.Pause);
+	}
+
+	private Object next() throws InterruptedException {
+		final Object event = mEvents.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull("Nothing received within " + TIMEOUT + "ms.", event);
+		return event;
+	}
+}
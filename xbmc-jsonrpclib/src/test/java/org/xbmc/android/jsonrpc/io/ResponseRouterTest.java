@@ -0,0 +1,106 @@
+/*
+ *      Copyright (C) 2005-2015 Team XBMC
+ *      http://xbmc.org
+ *
+ *  This Program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2, or (at your option)
+ *  any later version.
+ *
+ *  This Program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XBMC Remote; see the file license.  If not, write to
+ *  the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+ *  http://www.gnu.org/copyleft/gpl.html
+ *
+ */
+
+package org.xbmc.android.jsonrpc.io;
+
+import junit.framework.TestCase;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Routes messages through a {@link ResponseRouter} on the JVM.
+ */
+public class ResponseRouterTest extends TestCase {
+
+	private static final ObjectMapper OM = new ObjectMapper();
+
+	private final HashSet<Long> mWaiting = new HashSet<Long>();
+	private final List<String> mEvents = new ArrayList<String>();
+	private final ResponseRouter mRouter = new ResponseRouter(new ResponseRouter.Target() {
+		@Override
+		public boolean isWaiting(long id) {
+			return mWaiting.contains(id);
+		}
+		@Override
+		public void onResult(long id, JsonNode result) {
+			mEvents.add("tree " + id + " " + result);
+		}
+		@Override
+		public void onResult(long id, JsonParser parser) throws IOException {
+			mEvents.add("stream " + id + " " + OM.readTree(parser));
+		}
+		@Override
+		public void onError(long id, JsonNode response) {
+			mEvents.add("error " + id + " " + response.get("error").get("code"));
+		}
+		@Override
+		public void onDropped(long id) {
+			mEvents.add("dropped " + id);
+		}
+		@Override
+		public void onNotification(ObjectNode notification) {
+			mEvents.add("notification " + notification.get("method").getTextValue() + " " + notification.get("params"));
+		}
+	});
+
+	public void testResultIsStreamedToWaitingCall() throws Exception {
+		mWaiting.add(1L);
+		mRouter.route("{\"id\":1,\"jsonrpc\":\"2.0\",\"result\":{\"movies\":[1,2]}}");
+		assertEquals("[stream 1 {\"movies\":[1,2]}]", mEvents.toString());
+	}
+
+	public void testResultNobodyWaitsForIsDropped() throws Exception {
+		mRouter.route("{\"id\":1,\"jsonrpc\":\"2.0\",\"result\":{\"movies\":[1,2]}}");
+		assertEquals("[dropped 1]", mEvents.toString());
+	}
+
+	public void testResultBeforeIdIsReadIntoTree() throws Exception {
+		mWaiting.add(1L);
+		mRouter.route("{\"result\":\"pong\",\"id\":1}");
+		assertEquals("[tree 1 \"pong\"]", mEvents.toString());
+	}
+
+	public void testBatchIsRoutedPerResponse() throws Exception {
+		mWaiting.add(1L);
+		mWaiting.add(2L);
+		mRouter.route("[{\"id\":1,\"result\":\"a\"},{\"id\":3,\"result\":\"c\"},{\"id\":2,\"result\":\"b\"}]");
+		assertEquals("[stream 1 \"a\", dropped 3, stream 2 \"b\"]", mEvents.toString());
+	}
+
+	public void testErrorKeepsItsId() throws Exception {
+		mWaiting.add(1L);
+		mRouter.route("{\"error\":{\"code\":-32601,\"message\":\"Method not found.\"},\"id\":1}");
+		mRouter.route("{\"error\":{\"code\":-32700,\"message\":\"Parse error.\"},\"id\":null}");
+		assertEquals("[error 1 -32601, error 0 -32700]", mEvents.toString());
+	}
+
+	public void testNotification() throws Exception {
+		mRouter.route("{\"jsonrpc\":\"2.0\",\"method\":\"Player.OnStop\",\"params\":{\"data\":null,\"sender\":\"xbmc\"}}");
+		assertEquals("[notification Player.OnStop {\"data\":null,\"sender\":\"xbmc\"}]", mEvents.toString());
+	}
+}